@@ -1,5 +1,7 @@
 SET SCHEMA "ROOT";
 
+DROP TABLE "SCHEMA_VERSION";
+
 DROP TABLE "LOGIN_USERS";
 
 DROP TABLE "IDENTITIES";
@@ -0,0 +1,14 @@
+-- Indexes of the lookups made on every login and creation,
+-- which were full table scans with only the primary keys.
+-- Fails if the tables already hold duplicates, remove them first.
+
+-- normalized UID, the application compares the UIDs ignoring case
+ALTER TABLE IDENTITIES ADD COLUMN UID_LOWER VARCHAR(255) GENERATED ALWAYS AS (LOWER(UID));
+
+ALTER TABLE IDENTITIES ADD CONSTRAINT IDENTITIES_UID_UNIQUE UNIQUE (UID);
+
+ALTER TABLE IDENTITIES ADD CONSTRAINT IDENTITIES_UID_LOWER_UNIQUE UNIQUE (UID_LOWER);
+
+ALTER TABLE LOGIN_USERS ADD CONSTRAINT LOGIN_USERS_USERNAME_UNIQUE UNIQUE (USERNAME);
+
+ALTER TABLE LOGIN_USERS ADD CONSTRAINT LOGIN_USERS_IDENTITYID_UNIQUE UNIQUE (IDENTITYID);
@@ -0,0 +1,149 @@
+package fr.epita.iam.datamodel;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * One page of search results, with the cursor to pass to get the next page.
+ * The cursor is opaque for the callers: it holds the key of the last record
+ * of the page and the source that produced it, and is only valid for that
+ * source.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ * <p>
+ * <pre><code>Page&lt;Identity&gt; page = dao.searchPage(criteria, 50, null);</code></pre>
+ * <pre><code>Page&lt;Identity&gt; next = dao.searchPage(criteria, 50, page.getNextCursor());</code></pre>
+ * </p>
+ *
+ * @param <T>
+ *            type of the records
+ *
+ * @author Samer Masaad
+ *
+ */
+public class Page<T> {
+
+	private static final char SEPARATOR = ':';
+
+	private final List<T> items;
+	private final String nextCursor;
+
+	/**
+	 * @param items
+	 *            - records of the page
+	 * @param nextCursor
+	 *            - cursor of the next page, null if this is the last page
+	 */
+	public Page(List<T> items, String nextCursor) {
+		this.items = items;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * @return the records of the page
+	 */
+	public List<T> getItems() {
+		return items;
+	}
+
+	/**
+	 * @return the cursor of the next page, or null if this is the last page
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	/**
+	 * @return true if there is a next page
+	 */
+	public boolean hasNext() {
+		return nextCursor != null;
+	}
+
+	/**
+	 * @param source
+	 *            - name of the source producing the page
+	 * @param key
+	 *            - key of the last record of the page
+	 * @return the cursor of the next page
+	 */
+	public static String cursor(String source, long key) {
+		return source + SEPARATOR + key;
+	}
+
+	/**
+	 * @param cursor
+	 *            - cursor of a previous page, or null for the first page
+	 * @param source
+	 *            - name of the source reading the cursor
+	 * @return the key after which the page starts, 0 for the first page
+	 * @throws IllegalArgumentException
+	 *             if the cursor is malformed or comes from another source
+	 */
+	public static long seek(String cursor, String source) {
+		if (cursor == null) {
+			return 0;
+		}
+		final int separator = cursor.indexOf(SEPARATOR);
+		if (separator < 0 || !source.equals(cursor.substring(0, separator))) {
+			throw new IllegalArgumentException("Cursor " + cursor + " was not produced by " + source);
+		}
+		try {
+			return Long.parseLong(cursor.substring(separator + 1));
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Malformed cursor " + cursor, e);
+		}
+	}
+
+	/**
+	 * Streams the records of successive pages, a page is only read once the
+	 * previous one has been consumed, so only one page is held at a time
+	 *
+	 * @param pages
+	 *            - returns the page following a cursor, the first page for null
+	 * @return the stream of the records of every page
+	 */
+	public static <T> Stream<T> stream(Function<String, Page<T>> pages) {
+		final Spliterator<T> records = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.NONNULL) {
+			private Iterator<T> page = Collections.emptyIterator();
+			private String cursor = null;
+			private boolean last = false;
+
+			@Override
+			public boolean tryAdvance(Consumer<? super T> action) {
+				while (!page.hasNext()) {
+					if (last) {
+						return false;
+					}
+					final Page<T> next = pages.apply(cursor);
+					page = next.getItems().iterator();
+					cursor = next.getNextCursor();
+					last = cursor == null;
+				}
+				action.accept(page.next());
+				return true;
+			}
+		};
+		return StreamSupport.stream(records, false);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Page [items=" + items.size() + ", nextCursor=" + nextCursor + "]";
+	}
+
+}
@@ -1,14 +1,12 @@
 package fr.epita.iam.datamodel;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-import fr.epita.logger.Logger;
-
 /**
  * <h3>Description</h3>
  * <p>
- * This class creates and manages a user
+ * This class creates and manages a user. A user holds either the clear text
+ * password it was built with, or its hash: the DAO managers hash the password
+ * before storing the user, and setting the hash drops the clear text password.
+ * Logins verify the clear text password against the stored hash.
  * </p>
  *
  * <h3>Usage</h3>
@@ -29,12 +27,11 @@ import fr.epita.logger.Logger;
 public class User {
 
 	private String userName;
+	private String password;
 	private String hashedPassword;
 	private Integer identityID = 0;
 	private String uid;
 
-	private static final Logger LOGGER = new Logger(User.class);
-
 	/**
 	 *
 	 */
@@ -49,7 +46,7 @@ public class User {
 	 */
 	public User(String userName, String cleatTextPassword, int identityID) {
 		this.userName = userName;
-		this.hashedPassword = md5Hash(cleatTextPassword);
+		this.password = cleatTextPassword;
 		this.identityID = identityID;
 	}
 
@@ -69,55 +66,38 @@ public class User {
 	}
 
 	/**
-	 * @return the hashed password
+	 * @return the hashed password, null until the clear text password has been
+	 *         hashed
 	 */
 	public String getHashedPassword() {
 		return hashedPassword;
 	}
 
 	/**
-	 * hashes the password before storing
+	 * @return the clear text password, null if the user was read from a store
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * the password is hashed by the DAO managers before the user is stored
 	 * 
 	 * @param clearTextPassword
 	 */
 	public void setPassword(String clearTextPassword) {
-		this.hashedPassword = md5Hash(clearTextPassword);
+		this.password = clearTextPassword;
+		this.hashedPassword = null;
 	}
 
 	/**
-	 * store the hashedpassword without performing hash procedure 
+	 * store the hashedpassword without performing hash procedure, the clear text
+	 * password is dropped
 	 * @param hashedPassword
 	 */
 	public void setHashedPassword(String hashedPassword) {
 		this.hashedPassword = hashedPassword;
-	}
-	
-	/**
-	 * @param passwordToHash
-	 * @return MD5 Hash of the password
-	 */
-	private String md5Hash(String passwordToHash) {
-		if (passwordToHash == null)
-			return null;
-		String generatedPassword = null;
-		try {
-			// Create MessageDigest instance for MD5
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			// Add password bytes to digest
-			md.update(passwordToHash.getBytes());
-			// Get the hash's bytes
-			byte[] bytes = md.digest();
-			// Convert it to hexadecimal format
-			StringBuilder sb = new StringBuilder();
-			for (int i = 0; i < bytes.length; i++) {
-				sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
-			}
-			// Get complete hashed password in hex format
-			generatedPassword = sb.toString();
-		} catch (NoSuchAlgorithmException e) {
-			LOGGER.error("Error occured while hashing the password of the user:" + this, e);
-		}
-		return generatedPassword;
+		this.password = null;
 	}
 
 	/**
@@ -1,5 +1,9 @@
 package fr.epita.iam.launcher;
 
+import java.util.concurrent.atomic.AtomicReference;
+
+import fr.epita.iam.services.connections.DualWriter;
+
 /**
  * <h3>Description</h3>
  * <p>
@@ -7,24 +11,37 @@ package fr.epita.iam.launcher;
  * Changing the values of this class is restricted to this package only.
  * </p>
  * 
+ * <p>
+ * The values are held in one immutable {@link State}, replaced as a whole, so
+ * a reader of {@link #getState()} never sees half of a change. They change at
+ * runtime when the {@link HealthMonitor} sees the database or the XML files
+ * fail or come back.
+ * </p>
+ * 
  * @author Samer Masaad
  */
 public class Global {
 
-	private static boolean readonly = false;
-	private static boolean db = true;
-	private static boolean xml = true;
+	private static final AtomicReference<State> STATE = new AtomicReference<>(new State(true, true, false));
 
 	// prevent creating an instance for this class
 	private Global() {
 	}
 
+	/**
+	 * 
+	 * @return the current values, consistent with each other
+	 */
+	public static State getState() {
+		return STATE.get();
+	}
+
 	/**
 	 * 
 	 * @return if the program is running in readonly mode
 	 */
 	public static boolean isReadOnly() {
-		return readonly;
+		return STATE.get().isReadOnly();
 	}
 
 	/**
@@ -32,7 +49,7 @@ public class Global {
 	 * @param readOnly
 	 */
 	protected static void setReadOnly(boolean readOnly) {
-		readonly = readOnly;
+		STATE.updateAndGet(state -> new State(state.isDBWorking(), state.isXMLWorking(), readOnly));
 	}
 
 	/**
@@ -40,15 +57,20 @@ public class Global {
 	 * @return if database connectivity is working properly
 	 */
 	public static boolean isDBWorking() {
-		return db;
+		return STATE.get().isDBWorking();
 	}
 
 	/**
+	 * When the database stops working, the writes still replicating to the XML
+	 * files are waited for before the XML files are used
 	 * 
 	 * @param database
 	 */
 	protected static void setDBWorking(boolean database) {
-		db = database;
+		if (!database && STATE.get().isDBWorking()) {
+			DualWriter.failover();
+		}
+		STATE.updateAndGet(state -> new State(database, state.isXMLWorking(), state.isReadOnly()));
 	}
 
 	/**
@@ -56,7 +78,7 @@ public class Global {
 	 * @return if XML file is found and parsed successfuly
 	 */
 	public static boolean isXMLWorking() {
-		return xml;
+		return STATE.get().isXMLWorking();
 	}
 
 	/**
@@ -64,7 +86,74 @@ public class Global {
 	 * @param xml
 	 */
 	protected static void setXMLWorking(boolean xmlWorking) {
-		xml = xmlWorking;
+		STATE.updateAndGet(state -> new State(state.isDBWorking(), xmlWorking, state.isReadOnly()));
+	}
+
+	/**
+	 * Replaces every value at once. When the database stops working, the
+	 * writes still replicating to the XML files are waited for before the XML
+	 * files are used.
+	 * 
+	 * @param database
+	 * @param xmlWorking
+	 * @param readOnly
+	 * @return the previous values
+	 */
+	protected static State setState(boolean database, boolean xmlWorking, boolean readOnly) {
+		if (!database && STATE.get().isDBWorking()) {
+			DualWriter.failover();
+		}
+		return STATE.getAndSet(new State(database, xmlWorking, readOnly));
+	}
+
+	/**
+	 * <h3>Description</h3>
+	 * <p>
+	 * The global values at one point in time
+	 * </p>
+	 */
+	public static final class State {
+
+		private final boolean db;
+		private final boolean xml;
+		private final boolean readOnly;
+
+		private State(boolean db, boolean xml, boolean readOnly) {
+			this.db = db;
+			this.xml = xml;
+			this.readOnly = readOnly;
+		}
+
+		/**
+		 * @return if database connectivity is working properly
+		 */
+		public boolean isDBWorking() {
+			return db;
+		}
+
+		/**
+		 * @return if XML file is found and parsed successfuly
+		 */
+		public boolean isXMLWorking() {
+			return xml;
+		}
+
+		/**
+		 * @return if the program is running in readonly mode
+		 */
+		public boolean isReadOnly() {
+			return readOnly;
+		}
+
+		/**
+		 * @return String representation of the state
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "State [db=" + db + ", xml=" + xml + ", readOnly=" + readOnly + "]";
+		}
+
 	}
 
 }
@@ -0,0 +1,423 @@
+package fr.epita.iam.launcher;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fr.epita.iam.launcher.Global.State;
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.iam.services.connections.JDBCConnection;
+import fr.epita.iam.services.connections.XMLConnection;
+import fr.epita.iam.services.identity.dao.IdentitySearchIndex;
+import fr.epita.iam.services.users.dao.UsernameIndex;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Probes the database and the XML files in the background, and updates the
+ * {@link Global} state when one of them fails or comes back, so the DAO
+ * managers switch to the XML files and to read-only mode on their next call,
+ * and back once the database works again, without a restart. The probes are
+ * cheap: a validated connection opened outside of the pool, so a pool busy
+ * with the requests isn't taken for a database down, and the files being
+ * readable.
+ * </p>
+ *
+ * <p>
+ * A component fails over after health.failureThreshold failed probes in a
+ * row, and recovers after health.recoveryThreshold successful probes in a
+ * row, so a single slow probe doesn't switch the application back and forth.
+ * Before recovering, the database schema is migrated, and the search indexes
+ * loaded from the database are dropped since the database may have changed
+ * meanwhile. Each change is reported to the {@link Listener}s as an
+ * {@link Event}, with its timings.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>HealthMonitor monitor = HealthMonitor.start();</code>
+ * <code>monitor.addListener(event -&gt; System.out.println(event));</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class HealthMonitor {
+
+	private static final Logger LOGGER = new Logger(HealthMonitor.class);
+
+	private static final String INTERVAL = "health.interval";
+	private static final String FAILURE_THRESHOLD = "health.failureThreshold";
+	private static final String RECOVERY_THRESHOLD = "health.recoveryThreshold";
+	private static final String PROBE_TIMEOUT = "health.probeTimeout";
+
+	private static HealthMonitor instance;
+
+	private final long intervalMillis;
+	private final Component database;
+	private final Component xml;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param intervalMillis
+	 *            - delay between two probes
+	 * @param failureThreshold
+	 *            - failed probes in a row before a component fails over
+	 * @param recoveryThreshold
+	 *            - successful probes in a row before a component recovers
+	 * @param databaseProbe
+	 * @param xmlProbe
+	 */
+	public HealthMonitor(long intervalMillis, int failureThreshold, int recoveryThreshold, Probe databaseProbe,
+			Probe xmlProbe) {
+		this.intervalMillis = intervalMillis;
+		database = new Component("database", databaseProbe, failureThreshold, recoveryThreshold);
+		xml = new Component("XML files", xmlProbe, failureThreshold, recoveryThreshold);
+	}
+
+	/**
+	 * Starts the monitor of the application, configured from the configuration
+	 * file, unless it is already started
+	 *
+	 * @return the monitor, or null if health.interval is 0
+	 */
+	public static synchronized HealthMonitor start() {
+		if (instance == null) {
+			final ConfigurationService confService = ConfigurationService.getInstance();
+			final long interval = confService.getLongConfigurationValue(INTERVAL, 5000);
+			if (interval <= 0) {
+				LOGGER.info("Health monitor disabled");
+				return null;
+			}
+			final int probeTimeout = confService.getIntConfigurationValue(PROBE_TIMEOUT, 2);
+			instance = new HealthMonitor(interval, confService.getIntConfigurationValue(FAILURE_THRESHOLD, 2),
+					confService.getIntConfigurationValue(RECOVERY_THRESHOLD, 3), () -> probeDatabase(probeTimeout),
+					HealthMonitor::probeXML);
+			instance.schedule();
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the monitor of the application, null if not started
+	 */
+	public static synchronized HealthMonitor getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Probes every health.interval milliseconds, on a daemon thread
+	 */
+	public synchronized void schedule() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread thread = new Thread(r, "health-monitor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			scheduler.scheduleWithFixedDelay(this::check, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+			LOGGER.info("Health monitor probing every " + intervalMillis + "ms");
+		}
+	}
+
+	/**
+	 * Stops probing
+	 */
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            - told about every failover and recovery
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * @param listener
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Probes both components once and updates the {@link Global} state if one
+	 * of them failed over or recovered. Called by the scheduler, only one check
+	 * runs at a time.
+	 */
+	public synchronized void check() {
+		try {
+			final State current = Global.getState();
+			final boolean db = database.update(current.isDBWorking());
+			final boolean xmlWorking = xml.update(current.isXMLWorking());
+			if (db == current.isDBWorking() && xmlWorking == current.isXMLWorking()) {
+				return;
+			}
+			if (db && !current.isDBWorking() && !prepareRecovery()) {
+				database.recoveryFailed();
+				return;
+			}
+			final long start = System.nanoTime();
+			// read-only as long as one of them doesn't work, as on startup
+			final State previous = Global.setState(db, xmlWorking, !(db && xmlWorking));
+			final long transitionMillis = (System.nanoTime() - start) / 1000000;
+			if (db != previous.isDBWorking()) {
+				notify(database.changed(db, transitionMillis, previous, Global.getState()));
+			}
+			if (xmlWorking != previous.isXMLWorking()) {
+				notify(xml.changed(xmlWorking, transitionMillis, previous, Global.getState()));
+			}
+		} catch (final RuntimeException e) {
+			// keeps the scheduler running
+			LOGGER.error("Health check failed", e);
+		}
+	}
+
+	/**
+	 * @return true if the database can be used again
+	 */
+	private static boolean prepareRecovery() {
+		if (!new PrelaunchTests().migrations()) {
+			return false;
+		}
+		final IdentitySearchIndex identities = IdentitySearchIndex.getInstance();
+		if (identities != null) {
+			identities.invalidate();
+		}
+		final UsernameIndex usernames = UsernameIndex.getInstance();
+		if (usernames != null) {
+			usernames.invalidate();
+		}
+		return true;
+	}
+
+	private void notify(Event event) {
+		if (event.getType() == Event.Type.FAILOVER) {
+			LOGGER.error(event.toString());
+		} else {
+			LOGGER.info(event.toString());
+		}
+		for (Listener listener : listeners) {
+			try {
+				listener.onEvent(event);
+			} catch (final RuntimeException e) {
+				LOGGER.error("Health listener failed on " + event, e);
+			}
+		}
+	}
+
+	/**
+	 * Opens its own connection, so the probe depends neither on the circuit
+	 * breaker of the DAO managers nor on a free connection in the pool
+	 * 
+	 * @param timeoutSeconds
+	 *            - how long the login and the validation may each take
+	 * @return true if a connection could be opened and validated in time
+	 */
+	public static boolean probeDatabase(int timeoutSeconds) {
+		return JDBCConnection.probe(timeoutSeconds);
+	}
+
+	/**
+	 * @return true if the files of the XML stores can be read
+	 */
+	public static boolean probeXML() {
+		return XMLConnection.isReadable();
+	}
+
+	/**
+	 * The probes of a component and their outcome, only used by the checks
+	 */
+	private static class Component {
+
+		private final String name;
+		private final Probe probe;
+		private final int failureThreshold;
+		private final int recoveryThreshold;
+		private int failures = 0;
+		private int successes = 0;
+		// first probe of the current run of failures or successes
+		private long runStart = System.nanoTime();
+		// when the component last failed over
+		private long downSince = 0;
+
+		private Component(String name, Probe probe, int failureThreshold, int recoveryThreshold) {
+			this.name = name;
+			this.probe = probe;
+			this.failureThreshold = Math.max(1, failureThreshold);
+			this.recoveryThreshold = Math.max(1, recoveryThreshold);
+		}
+
+		/**
+		 * @return whether the component should be working after this probe
+		 */
+		private boolean update(boolean working) {
+			boolean ok;
+			try {
+				ok = probe.probe();
+			} catch (final RuntimeException e) {
+				ok = false;
+			}
+			if (ok) {
+				if (successes++ == 0) {
+					runStart = System.nanoTime();
+				}
+				failures = 0;
+				return working || successes >= recoveryThreshold;
+			}
+			if (failures++ == 0) {
+				runStart = System.nanoTime();
+			}
+			successes = 0;
+			return working && failures < failureThreshold;
+		}
+
+		private void recoveryFailed() {
+			successes = 0;
+		}
+
+		private Event changed(boolean working, long transitionMillis, State from, State to) {
+			final long now = System.nanoTime();
+			final long detectionMillis = (now - runStart) / 1000000;
+			long downtimeMillis = 0;
+			if (working) {
+				downtimeMillis = downSince == 0 ? 0 : (now - downSince) / 1000000;
+			} else {
+				downSince = runStart;
+			}
+			return new Event(working ? Event.Type.RECOVERY : Event.Type.FAILOVER, name, detectionMillis,
+					transitionMillis, downtimeMillis, from, to);
+		}
+
+	}
+
+	/**
+	 * A cheap check of a component
+	 */
+	public interface Probe {
+		boolean probe();
+	}
+
+	/**
+	 * Told about the failovers and recoveries
+	 */
+	public interface Listener {
+		void onEvent(Event event);
+	}
+
+	/**
+	 * <h3>Description</h3>
+	 * <p>
+	 * A failover or a recovery of the database or the XML files
+	 * </p>
+	 */
+	public static final class Event {
+
+		/**
+		 * What happened to the component
+		 */
+		public enum Type {
+			/** the component stopped working */
+			FAILOVER,
+			/** the component works again */
+			RECOVERY
+		}
+
+		private final Type type;
+		private final String component;
+		private final long detectionMillis;
+		private final long transitionMillis;
+		private final long downtimeMillis;
+		private final State from;
+		private final State to;
+
+		private Event(Type type, String component, long detectionMillis, long transitionMillis, long downtimeMillis,
+				State from, State to) {
+			this.type = type;
+			this.component = component;
+			this.detectionMillis = detectionMillis;
+			this.transitionMillis = transitionMillis;
+			this.downtimeMillis = downtimeMillis;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * @return the type
+		 */
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * @return the name of the component
+		 */
+		public String getComponent() {
+			return component;
+		}
+
+		/**
+		 * @return time from the first probe of the change to the event, in
+		 *         milliseconds
+		 */
+		public long getDetectionMillis() {
+			return detectionMillis;
+		}
+
+		/**
+		 * @return time taken to switch the global state, draining the writes
+		 *         to the XML files on a failover of the database, in
+		 *         milliseconds
+		 */
+		public long getTransitionMillis() {
+			return transitionMillis;
+		}
+
+		/**
+		 * @return on a recovery, time since the failover in milliseconds,
+		 *         otherwise 0
+		 */
+		public long getDowntimeMillis() {
+			return downtimeMillis;
+		}
+
+		/**
+		 * @return the global state before the change
+		 */
+		public State getFrom() {
+			return from;
+		}
+
+		/**
+		 * @return the global state after the change
+		 */
+		public State getTo() {
+			return to;
+		}
+
+		/**
+		 * @return String representation of the event
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return "Health " + type + " of the " + component + ": detected in " + detectionMillis + "ms, switched in "
+					+ transitionMillis + "ms" + (type == Type.RECOVERY ? ", down for " + downtimeMillis + "ms" : "")
+					+ ", " + from + " -> " + to;
+		}
+
+	}
+
+}
@@ -1,12 +1,16 @@
 package fr.epita.iam.launcher;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
 
+import fr.epita.iam.datamodel.Identity;
 import fr.epita.iam.services.configuration.ConfigurationService;
 import fr.epita.iam.services.connections.JDBCConnection;
 import fr.epita.iam.services.connections.XMLConnection;
+import fr.epita.iam.services.migration.MigrationRunner;
+import fr.epita.iam.services.persistence.BinarySnapshot;
 import fr.epita.logger.Logger;
 
 /**
@@ -93,22 +97,44 @@ public class PrelaunchTests {
 	}
 
 	/**
-	 * Test the parsing of the XML file
+	 * Brings the database schema up to date
+	 * @return if the migrations were applied, or there was none to apply
+	 */
+	public boolean migrations() {
+		logger.info("Checking database schema.");
+		try {
+			MigrationRunner.fromConfiguration().migrate();
+			return true;
+		} catch (ClassNotFoundException | SQLException | IOException e) {
+			logger.error("Can't migrate the database schema", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Test the parsing of the XML file. The file is streamed, so the check
+	 * doesn't hold the whole document in memory. A binary snapshot is only
+	 * mapped, not read.
 	 * @return if XML file was parsed successfully.
 	 */
 	public boolean xml() {
 		// checking XML parsing
 
 		logger.info("Checking XML file.");
-		try {
-			XMLConnection.getIdentityXML();
+		final int[] count = { 0 };
+		try (BinarySnapshot<Identity> snapshot = XMLConnection.mapIdentities()) {
+			if (snapshot != null) {
+				count[0] = snapshot.size();
+			} else {
+				XMLConnection.readIdentities(identity -> count[0]++);
+			}
 		} catch (Exception e1) {
 			// XML file not found or not working
 			// exit program
 			logger.error("Can't use XML.", e1);
 			return false;
 		}
-		logger.info("XML file working.");
+		logger.info("XML file working, " + count[0] + " identities found.");
 		return true;
 	}
 
@@ -127,8 +153,8 @@ public class PrelaunchTests {
 		}
 
 		try {
-			if (!this.jdbc()) {
-				// database connection failed
+			if (!this.jdbc() || !this.migrations()) {
+				// database connection or schema failed
 				Global.setDBWorking(false);
 				// trying to use read-only mode from XML
 				if (!this.xml()) {
@@ -146,7 +172,7 @@ public class PrelaunchTests {
 				// checking XML
 				if (!this.xml()) {
 					// XML parsing failed
-					Global.setXMLWorking(true);
+					Global.setXMLWorking(false);
 					// using read-only mode
 					Global.setReadOnly(true);
 				}
@@ -154,6 +180,8 @@ public class PrelaunchTests {
 		} catch (SQLException e) {
 			logger.error("Error occured while running the prelaunch tests.", e);
 		}
+		// fails over and recovers while running
+		HealthMonitor.start();
 		return true;
 	}
 
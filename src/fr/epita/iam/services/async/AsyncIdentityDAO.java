@@ -0,0 +1,129 @@
+package fr.epita.iam.services.async;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.Page;
+import fr.epita.iam.services.identity.dao.IdentityDAO;
+import fr.epita.iam.services.identity.dao.IdentityDAOManager;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Asynchronous version of an {@link IdentityDAO}: every operation runs on the
+ * {@link DAOExecutor} and returns a {@link CompletableFuture}, completed with
+ * the result of the operation or exceptionally with the exception it threw.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>AsyncIdentityDAO dao = new AsyncIdentityDAO();</code>
+ * <code>dao.search(criteria).thenAccept(identities -&gt; ...);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class AsyncIdentityDAO {
+
+	private final IdentityDAO dao;
+	private final DAOExecutor executor;
+
+	/**
+	 * <h3>Constructor</h3> of the asynchronous {@link IdentityDAOManager}
+	 */
+	public AsyncIdentityDAO() {
+		this(new IdentityDAOManager(), DAOExecutor.getInstance());
+	}
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param dao
+	 *            - the blocking DAO
+	 * @param executor
+	 *            - runs the operations of the DAO
+	 */
+	public AsyncIdentityDAO(IdentityDAO dao, DAOExecutor executor) {
+		this.dao = dao;
+		this.executor = executor;
+	}
+
+	/**
+	 * @see IdentityDAO#create(Identity)
+	 */
+	public CompletableFuture<Void> create(Identity identity) {
+		return executor.execute(() -> dao.create(identity));
+	}
+
+	/**
+	 * @see IdentityDAO#createAll(Collection)
+	 */
+	public CompletableFuture<Void> createAll(Collection<Identity> identities) {
+		return executor.execute(() -> dao.createAll(identities));
+	}
+
+	/**
+	 * @see IdentityDAO#findDuplicates(Collection)
+	 */
+	public CompletableFuture<List<Identity>> findDuplicates(Collection<Identity> identities) {
+		return executor.submit(() -> dao.findDuplicates(identities));
+	}
+
+	/**
+	 * @see IdentityDAO#findByUids(Collection)
+	 */
+	public CompletableFuture<List<Identity>> findByUids(Collection<String> uids) {
+		return executor.submit(() -> dao.findByUids(uids));
+	}
+
+	/**
+	 * @see IdentityDAO#search(Identity)
+	 */
+	public CompletableFuture<List<Identity>> search(Identity criteria) {
+		return executor.submit(() -> dao.search(criteria));
+	}
+
+	/**
+	 * The stream holds its connection until it is closed, like the stream of the
+	 * blocking DAO
+	 *
+	 * @see IdentityDAO#stream(Identity)
+	 */
+	public CompletableFuture<Stream<Identity>> stream(Identity criteria) {
+		return executor.submit(() -> dao.stream(criteria));
+	}
+
+	/**
+	 * @see IdentityDAO#searchPage(Identity, int, String)
+	 */
+	public CompletableFuture<Page<Identity>> searchPage(Identity criteria, int pageSize, String cursor) {
+		return executor.submit(() -> dao.searchPage(criteria, pageSize, cursor));
+	}
+
+	/**
+	 * @see IdentityDAO#update(Identity, Identity)
+	 */
+	public CompletableFuture<Void> update(Identity from, Identity to) {
+		return executor.execute(() -> dao.update(from, to));
+	}
+
+	/**
+	 * @see IdentityDAO#delete(Identity)
+	 */
+	public CompletableFuture<Void> delete(Identity identity) {
+		return executor.execute(() -> dao.delete(identity));
+	}
+
+	/**
+	 * @see IdentityDAO#getUserByUid(Identity)
+	 */
+	public CompletableFuture<Identity> getUserByUid(Identity criteria) {
+		return executor.submit(() -> dao.getUserByUid(criteria));
+	}
+
+}
@@ -0,0 +1,185 @@
+package fr.epita.iam.services.async;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import fr.epita.iam.datamodel.Page;
+import fr.epita.iam.datamodel.User;
+import fr.epita.iam.services.users.dao.UserDAO;
+import fr.epita.iam.services.users.dao.UserDAOManager;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Asynchronous version of a {@link UserDAO}: every operation runs on the
+ * {@link DAOExecutor} and returns a {@link CompletableFuture}, completed with
+ * the result of the operation or exceptionally with the exception it threw.
+ * </p>
+ *
+ * <p>
+ * A login still verifies the password on the bounded
+ * {@link fr.epita.iam.services.security.HashingExecutor}, only the wait for it
+ * moves off the caller's thread.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>AsyncUserDAO dao = new AsyncUserDAO();</code>
+ * <code>dao.login(new User(username, password, 0)).thenAccept(valid -&gt; ...);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class AsyncUserDAO {
+
+	private final UserDAO dao;
+	private final DAOExecutor executor;
+
+	/**
+	 * <h3>Constructor</h3> of the asynchronous {@link UserDAOManager}
+	 */
+	public AsyncUserDAO() {
+		this(new UserDAOManager(), DAOExecutor.getInstance());
+	}
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param dao
+	 *            - the blocking DAO
+	 * @param executor
+	 *            - runs the operations of the DAO
+	 */
+	public AsyncUserDAO(UserDAO dao, DAOExecutor executor) {
+		this.dao = dao;
+		this.executor = executor;
+	}
+
+	/**
+	 * @see UserDAO#create(User)
+	 */
+	public CompletableFuture<Void> create(User user) {
+		return executor.execute(() -> dao.create(user));
+	}
+
+	/**
+	 * @see UserDAO#createForUid(User)
+	 */
+	public CompletableFuture<Void> createForUid(User user) {
+		return executor.execute(() -> dao.createForUid(user));
+	}
+
+	/**
+	 * @see UserDAO#createAll(Collection)
+	 */
+	public CompletableFuture<Void> createAll(Collection<User> users) {
+		return executor.execute(() -> dao.createAll(users));
+	}
+
+	/**
+	 * @see UserDAO#findDuplicates(Collection)
+	 */
+	public CompletableFuture<List<User>> findDuplicates(Collection<User> users) {
+		return executor.submit(() -> dao.findDuplicates(users));
+	}
+
+	/**
+	 * @see UserDAO#search(User)
+	 */
+	public CompletableFuture<List<User>> search(User criteria) {
+		return executor.submit(() -> dao.search(criteria));
+	}
+
+	/**
+	 * The stream holds its connection until it is closed, like the stream of the
+	 * blocking DAO
+	 *
+	 * @see UserDAO#stream(User)
+	 */
+	public CompletableFuture<Stream<User>> stream(User criteria) {
+		return executor.submit(() -> dao.stream(criteria));
+	}
+
+	/**
+	 * @see UserDAO#searchPage(User, int, String)
+	 */
+	public CompletableFuture<Page<User>> searchPage(User criteria, int pageSize, String cursor) {
+		return executor.submit(() -> dao.searchPage(criteria, pageSize, cursor));
+	}
+
+	/**
+	 * @see UserDAO#getUserByIdentityId(User)
+	 */
+	public CompletableFuture<User> getUserByIdentityId(User criteria) {
+		return executor.submit(() -> dao.getUserByIdentityId(criteria));
+	}
+
+	/**
+	 * @see UserDAO#update(User, User)
+	 */
+	public CompletableFuture<Void> update(User from, User to) {
+		return executor.execute(() -> dao.update(from, to));
+	}
+
+	/**
+	 * @see UserDAO#delete(User)
+	 */
+	public CompletableFuture<Void> delete(User user) {
+		return executor.execute(() -> dao.delete(user));
+	}
+
+	/**
+	 * @see UserDAO#getId(String)
+	 */
+	public CompletableFuture<Integer> getId(String uid) {
+		return executor.submit(() -> dao.getId(uid));
+	}
+
+	/**
+	 * @see UserDAO#getIds(Collection)
+	 */
+	public CompletableFuture<Map<String, Integer>> getIds(Collection<String> uids) {
+		return executor.submit(() -> dao.getIds(uids));
+	}
+
+	/**
+	 * @see UserDAO#login(User)
+	 */
+	public CompletableFuture<Boolean> login(User login) {
+		return executor.submit(() -> dao.login(login));
+	}
+
+	/**
+	 * @see UserDAO#findByUsername(String)
+	 */
+	public CompletableFuture<List<User>> findByUsername(String username) {
+		return executor.submit(() -> dao.findByUsername(username));
+	}
+
+	/**
+	 * @see UserDAO#replaceHashedPassword(User, String)
+	 */
+	public CompletableFuture<Boolean> replaceHashedPassword(User stored, String hashedPassword) {
+		return executor.submit(() -> dao.replaceHashedPassword(stored, hashedPassword));
+	}
+
+	/**
+	 * @see UserDAO#checkOldPwd(User)
+	 */
+	public CompletableFuture<Boolean> checkOldPwd(User oldUser) {
+		return executor.submit(() -> dao.checkOldPwd(oldUser));
+	}
+
+	/**
+	 * @see UserDAO#usernameExists(User)
+	 */
+	public CompletableFuture<Boolean> usernameExists(User user) {
+		return executor.submit(() -> dao.usernameExists(user));
+	}
+
+}
@@ -0,0 +1,223 @@
+package fr.epita.iam.services.async;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Runs the blocking DAO calls of the asynchronous DAOs. On a Java runtime with
+ * virtual threads every call gets its own virtual thread, so a call waiting
+ * for the database or the XML file holds no platform thread. Otherwise the
+ * calls run on a pool of platform threads. Either way, no more than
+ * async.maxConcurrency calls run at once, the others wait for a permit
+ * without holding a connection.
+ * </p>
+ *
+ * <p>
+ * The calls run on other threads than the caller's, so they are not part of
+ * the caller's {@link fr.epita.iam.services.connections.UnitOfWork}.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>CompletableFuture&lt;List&lt;Identity&gt;&gt; identities = DAOExecutor.getInstance()</code>
+ * <code>		.submit(() -&gt; dao.search(criteria));</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class DAOExecutor {
+
+	private static final Logger LOGGER = new Logger(DAOExecutor.class);
+
+	private static final String MAX_CONCURRENCY = "async.maxConcurrency";
+	private static final String VIRTUAL_THREADS = "async.virtualThreads";
+
+	private static DAOExecutor instance;
+
+	private final ExecutorService executor;
+	private final boolean virtual;
+	private final int maxConcurrency;
+	private final Semaphore permits;
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param maxConcurrency
+	 *            - number of calls running at once
+	 * @param virtualThreads
+	 *            - true to use virtual threads when the runtime has them
+	 */
+	public DAOExecutor(int maxConcurrency, boolean virtualThreads) {
+		this.maxConcurrency = Math.max(1, maxConcurrency);
+		permits = new Semaphore(this.maxConcurrency);
+		final ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+		virtual = virtualExecutor != null;
+		if (virtual) {
+			executor = virtualExecutor;
+		} else {
+			final AtomicInteger count = new AtomicInteger();
+			final ThreadPoolExecutor pool = new ThreadPoolExecutor(this.maxConcurrency, this.maxConcurrency, 60,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+						final Thread thread = new Thread(r, "dao-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+	}
+
+	/**
+	 * @return the executor shared by the application, configured from the
+	 *         configuration file
+	 */
+	public static synchronized DAOExecutor getInstance() {
+		if (instance == null) {
+			final ConfigurationService confService = ConfigurationService.getInstance();
+			final String virtualThreads = confService.getConfigurationValue(VIRTUAL_THREADS);
+			instance = new DAOExecutor(confService.getIntConfigurationValue(MAX_CONCURRENCY, 256),
+					virtualThreads == null || Boolean.parseBoolean(virtualThreads.trim()));
+			LOGGER.info("DAO calls run on " + (instance.virtual ? "virtual threads" : "platform threads")
+					+ ", at most " + instance.maxConcurrency + " at once");
+		}
+		return instance;
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor() is looked up at runtime, the
+	 * application is built for Java 8
+	 *
+	 * @return the executor, or null if the runtime has no virtual threads
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param call
+	 *            - the blocking call to run
+	 * @return its future result, completed exceptionally with the exception
+	 *         thrown by the call, or a {@link RejectedExecutionException} if
+	 *         the executor is shut down
+	 */
+	public <T> CompletableFuture<T> submit(Call<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			executor.execute(() -> run(call, future));
+		} catch (final RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * @param action
+	 *            - the blocking call to run, without result
+	 * @return its future completion
+	 */
+	public CompletableFuture<Void> execute(Action action) {
+		return submit(() -> {
+			action.run();
+			return null;
+		});
+	}
+
+	private <T> void run(Call<T> call, CompletableFuture<T> future) {
+		waiting.incrementAndGet();
+		try {
+			permits.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+			return;
+		} finally {
+			waiting.decrementAndGet();
+		}
+		try {
+			future.complete(call.call());
+		} catch (final Exception e) {
+			future.completeExceptionally(e);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return true if the calls run on virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return number of calls allowed to run at once
+	 */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	/**
+	 * @return number of calls running
+	 */
+	public int getRunning() {
+		return maxConcurrency - permits.availablePermits();
+	}
+
+	/**
+	 * @return number of calls waiting for a permit
+	 */
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	/**
+	 * Stops accepting calls, the submitted ones still run
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * @return String representation of the executor metrics
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DAOExecutor [virtual=" + virtual + ", maxConcurrency=" + maxConcurrency + ", running="
+				+ getRunning() + ", waiting=" + getWaiting() + "]";
+	}
+
+	/**
+	 * A blocking DAO call
+	 */
+	public interface Call<T> {
+		T call() throws Exception;
+	}
+
+	/**
+	 * A blocking DAO call without result
+	 */
+	public interface Action {
+		void run() throws Exception;
+	}
+
+}
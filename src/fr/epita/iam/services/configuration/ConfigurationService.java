@@ -71,6 +71,37 @@ public class ConfigurationService {
 		return properties.getProperty(propertyKey);
 	}
 
+	/**
+	 *
+	 * @param propertyKey
+	 * @param defaultValue
+	 * @return integer property associated with the propertyKey, or defaultValue if
+	 *         the property is missing or not a number
+	 */
+	public int getIntConfigurationValue(String propertyKey, int defaultValue) {
+		return (int) getLongConfigurationValue(propertyKey, defaultValue);
+	}
+
+	/**
+	 *
+	 * @param propertyKey
+	 * @param defaultValue
+	 * @return long property associated with the propertyKey, or defaultValue if
+	 *         the property is missing or not a number
+	 */
+	public long getLongConfigurationValue(String propertyKey, long defaultValue) {
+		final String value = properties.getProperty(propertyKey);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (final NumberFormatException e) {
+			LOGGER.warning("Invalid number for property " + propertyKey + ": " + value + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Checks if the .jar's parent folder has a file called "conf.properties". If
 	 * yes, the method sets to the system property "conf" the path of that conf
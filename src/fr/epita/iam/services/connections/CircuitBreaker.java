@@ -0,0 +1,471 @@
+package fr.epita.iam.services.connections;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Stops the DAO managers from waiting on the database when it is slow or
+ * unreachable. The outcome of the last db.circuit.windowSize reads is kept,
+ * and once too many of them failed or were slow, the circuit opens: for
+ * db.circuit.openDuration milliseconds the reads go to their fallback, the
+ * XML files, and every other use of {@link JDBCConnection#getConnection()}
+ * fails at once with a {@link CircuitOpenException}, which the DAOs report
+ * like any other database error. Then a single read is let through as a
+ * probe, and closes the circuit if it succeeds, or opens it again.
+ * </p>
+ *
+ * <p>
+ * A read failing with one of the transient SQLStates of db.retry.sqlStates,
+ * like a refused connection, is tried again up to db.retry.maxAttempts times,
+ * after a random delay of up to db.retry.baseDelay doubled on each attempt, so
+ * the callers don't all retry at once. Writes are not retried, they may have
+ * been applied, and nothing is gated or retried inside a {@link UnitOfWork},
+ * which rolls back as a whole.
+ * </p>
+ *
+ * <p>
+ * A read timing out while waiting for a connection of the pool, a
+ * {@link ConnectionPool.PoolTimeoutException}, is neither retried nor counted
+ * as a failure: the pool is busy, not the database, and retrying would only
+ * add to its load.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>return CircuitBreaker.getInstance().call(() -&gt; dbDAO.search(criteria), () -&gt; xmlDAO.search(criteria));</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class CircuitBreaker {
+
+	private static final Logger LOGGER = new Logger(CircuitBreaker.class);
+
+	private static final String WINDOW_SIZE = "db.circuit.windowSize";
+	private static final String MINIMUM_CALLS = "db.circuit.minimumCalls";
+	private static final String FAILURE_RATE = "db.circuit.failureRateThreshold";
+	private static final String SLOW_CALL_DURATION = "db.circuit.slowCallDuration";
+	private static final String SLOW_CALL_RATE = "db.circuit.slowCallRateThreshold";
+	private static final String OPEN_DURATION = "db.circuit.openDuration";
+	private static final String RETRY_MAX_ATTEMPTS = "db.retry.maxAttempts";
+	private static final String RETRY_BASE_DELAY = "db.retry.baseDelay";
+	private static final String RETRY_MAX_DELAY = "db.retry.maxDelay";
+	private static final String RETRY_SQL_STATES = "db.retry.sqlStates";
+
+	// calls rejected while running their database access, to fail on their connection
+	private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<>();
+
+	private static CircuitBreaker instance;
+
+	/**
+	 * States of the circuit
+	 */
+	public enum State {
+		/** the calls go to the database */
+		CLOSED,
+		/** the calls fail or go to their fallback */
+		OPEN,
+		/** a single call probes the database */
+		HALF_OPEN
+	}
+
+	private final int minimumCalls;
+	private final int failureRateThreshold;
+	private final long slowCallNanos;
+	private final int slowCallRateThreshold;
+	private final long openNanos;
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final Set<String> retryStates;
+
+	// outcome of the last calls, a ring buffer
+	private final boolean[] failed;
+	private final boolean[] slow;
+	private int position = 0;
+	private int count = 0;
+	private int failedCount = 0;
+	private int slowCount = 0;
+	private volatile State state = State.CLOSED;
+	private long openedAt;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong opened = new AtomicLong();
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param windowSize
+	 *            - number of calls whose outcome is kept
+	 * @param minimumCalls
+	 *            - calls kept before the circuit can open
+	 * @param failureRateThreshold
+	 *            - percentage of failed calls opening the circuit, 0 to ignore
+	 *            the failures
+	 * @param slowCallMillis
+	 *            - duration from which a call is slow
+	 * @param slowCallRateThreshold
+	 *            - percentage of slow calls opening the circuit, 0 to ignore
+	 *            the slow calls
+	 * @param openMillis
+	 *            - time the circuit stays open before a call probes the
+	 *            database
+	 * @param maxAttempts
+	 *            - attempts of a read failing with a transient SQLState
+	 * @param baseDelayMillis
+	 *            - maximum delay before the first retry, doubled on each retry
+	 * @param maxDelayMillis
+	 *            - maximum delay before a retry
+	 * @param retryStates
+	 *            - SQLStates of the transient failures
+	 */
+	public CircuitBreaker(int windowSize, int minimumCalls, int failureRateThreshold, long slowCallMillis,
+			int slowCallRateThreshold, long openMillis, int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+			Collection<String> retryStates) {
+		failed = new boolean[Math.max(1, windowSize)];
+		slow = new boolean[failed.length];
+		this.minimumCalls = Math.min(Math.max(1, minimumCalls), failed.length);
+		this.failureRateThreshold = failureRateThreshold;
+		slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+		this.slowCallRateThreshold = slowCallRateThreshold;
+		openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseDelayMillis = Math.max(0, baseDelayMillis);
+		this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+		this.retryStates = new HashSet<>(retryStates);
+	}
+
+	/**
+	 * @return the circuit breaker shared by the DAO managers, configured from
+	 *         the configuration file
+	 */
+	public static synchronized CircuitBreaker getInstance() {
+		if (instance == null) {
+			final ConfigurationService confService = ConfigurationService.getInstance();
+			final String states = confService.getConfigurationValue(RETRY_SQL_STATES);
+			final Set<String> retryStates = new HashSet<>();
+			for (String retryState : (states == null ? "08001,08004,40XL1" : states).split(",")) {
+				if (!retryState.trim().isEmpty()) {
+					retryStates.add(retryState.trim());
+				}
+			}
+			instance = new CircuitBreaker(confService.getIntConfigurationValue(WINDOW_SIZE, 20),
+					confService.getIntConfigurationValue(MINIMUM_CALLS, 10),
+					confService.getIntConfigurationValue(FAILURE_RATE, 50),
+					confService.getLongConfigurationValue(SLOW_CALL_DURATION, 2000),
+					confService.getIntConfigurationValue(SLOW_CALL_RATE, 80),
+					confService.getLongConfigurationValue(OPEN_DURATION, 10000),
+					confService.getIntConfigurationValue(RETRY_MAX_ATTEMPTS, 3),
+					confService.getLongConfigurationValue(RETRY_BASE_DELAY, 100),
+					confService.getLongConfigurationValue(RETRY_MAX_DELAY, 2000), retryStates);
+			LOGGER.info("Database circuit breaker created: " + instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Called before a connection is borrowed: fails if the current call was
+	 * rejected, or if the circuit of the shared breaker is open
+	 *
+	 * @throws CircuitOpenException
+	 */
+	static void checkConnection() throws CircuitOpenException {
+		final CircuitBreaker breaker;
+		synchronized (CircuitBreaker.class) {
+			breaker = instance;
+		}
+		if (REJECTED.get() != null || breaker != null && breaker.isOpen()) {
+			throw new CircuitOpenException();
+		}
+	}
+
+	/**
+	 * Reads from the database, failing on its connection if the circuit is open
+	 *
+	 * @see #call(Call, Call)
+	 */
+	public <T, E extends Exception> T call(Call<T, E> call) throws E {
+		return call(call, null);
+	}
+
+	/**
+	 * Reads from the database, retrying the transient failures, unless the
+	 * circuit is open
+	 *
+	 * @param call
+	 *            - the read of the database
+	 * @param fallback
+	 *            - called instead while the circuit is open, null to fail with
+	 *            the exception of the call
+	 * @return the result of the call or of the fallback
+	 * @throws E
+	 *             the exception of the call or of the fallback
+	 */
+	public <T, E extends Exception> T call(Call<T, E> call, Call<T, ? extends E> fallback) throws E {
+		if (UnitOfWork.current() != null) {
+			// the unit holds its connection and is retried as a whole, if at all
+			return call.call();
+		}
+		for (int attempt = 1;; attempt++) {
+			if (!acquire()) {
+				rejected.incrementAndGet();
+				if (fallback != null) {
+					return fallback.call();
+				}
+				REJECTED.set(Boolean.TRUE);
+				try {
+					return call.call();
+				} finally {
+					REJECTED.remove();
+				}
+			}
+			calls.incrementAndGet();
+			final long start = System.nanoTime();
+			try {
+				final T result = call.call();
+				record(false, System.nanoTime() - start);
+				return result;
+			} catch (final Exception e) {
+				if (isPoolTimeout(e)) {
+					abandon();
+					throw e;
+				}
+				final SQLException cause = sqlCause(e);
+				record(cause != null, System.nanoTime() - start);
+				if (cause == null || attempt >= maxAttempts || !retryStates.contains(cause.getSQLState())
+						|| !backOff(attempt)) {
+					throw e;
+				}
+				retries.incrementAndGet();
+				LOGGER.warning("Retrying a database read after " + cause.getSQLState() + ": " + cause.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Sleeps a random delay between 0 and the base delay doubled on each attempt
+	 *
+	 * @return false if interrupted
+	 */
+	private boolean backOff(int attempt) {
+		final long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+		try {
+			Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * @return the database error causing the exception, null if it isn't one
+	 */
+	private static SQLException sqlCause(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof CircuitOpenException) {
+				return null;
+			}
+			if (cause instanceof SQLException) {
+				return (SQLException) cause;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the exception comes from a busy connection pool
+	 */
+	private static boolean isPoolTimeout(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ConnectionPool.PoolTimeoutException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets a call which couldn't reach the database. If it was the probe,
+	 * the next call probes again.
+	 */
+	private synchronized void abandon() {
+		if (state == State.HALF_OPEN) {
+			// the open duration is over, the next call is let through
+			state = State.OPEN;
+		}
+	}
+
+	/**
+	 * @return true if the call may use the database
+	 */
+	private boolean acquire() {
+		if (state == State.CLOSED) {
+			return true;
+		}
+		synchronized (this) {
+			if (state == State.CLOSED) {
+				return true;
+			}
+			if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+				// this call is the probe
+				state = State.HALF_OPEN;
+				LOGGER.info("Database circuit half-open, probing");
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private synchronized void record(boolean failure, long nanos) {
+		final boolean slowCall = slowCallRateThreshold > 0 && nanos >= slowCallNanos;
+		if (state == State.HALF_OPEN) {
+			if (failure || slowCall) {
+				open("the probe " + (failure ? "failed" : "was slow"));
+			} else {
+				close();
+			}
+			return;
+		}
+		if (state == State.OPEN) {
+			// started before the circuit opened
+			return;
+		}
+		if (count == failed.length) {
+			failedCount -= failed[position] ? 1 : 0;
+			slowCount -= slow[position] ? 1 : 0;
+		} else {
+			count++;
+		}
+		failed[position] = failure;
+		slow[position] = slowCall;
+		failedCount += failure ? 1 : 0;
+		slowCount += slowCall ? 1 : 0;
+		position = (position + 1) % failed.length;
+		if (count >= minimumCalls) {
+			if (failureRateThreshold > 0 && failedCount * 100 >= failureRateThreshold * count) {
+				open(failedCount + " of the last " + count + " calls failed");
+			} else if (slowCallRateThreshold > 0 && slowCount * 100 >= slowCallRateThreshold * count) {
+				open(slowCount + " of the last " + count + " calls were slow");
+			}
+		}
+	}
+
+	private void open(String reason) {
+		state = State.OPEN;
+		openedAt = System.nanoTime();
+		opened.incrementAndGet();
+		LOGGER.error("Database circuit open for " + TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms, " + reason);
+	}
+
+	private void close() {
+		state = State.CLOSED;
+		position = 0;
+		count = 0;
+		failedCount = 0;
+		slowCount = 0;
+		Arrays.fill(failed, false);
+		Arrays.fill(slow, false);
+		LOGGER.info("Database circuit closed");
+	}
+
+	/**
+	 * @return true while the circuit is open and not ready to be probed
+	 */
+	public synchronized boolean isOpen() {
+		return state == State.OPEN && System.nanoTime() - openedAt < openNanos;
+	}
+
+	/**
+	 * @return the state
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return number of calls which used the database, retries included
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * @return number of calls rejected because the circuit was open
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of retries of the transient failures
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return number of times the circuit opened
+	 */
+	public long getOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * @return String representation of the circuit breaker
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "CircuitBreaker [state=" + state + ", calls=" + getCalls() + ", rejected=" + getRejected()
+				+ ", retries=" + getRetries() + ", opened=" + getOpened() + "]";
+	}
+
+	/**
+	 * A read of the database
+	 *
+	 * @param <T>
+	 *            - type of the result
+	 * @param <E>
+	 *            - exception thrown by the read
+	 */
+	public interface Call<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	/**
+	 * <h3>Description</h3>
+	 * <p>
+	 * Thrown instead of borrowing a connection while the circuit is open
+	 * </p>
+	 */
+	public static class CircuitOpenException extends SQLTransientConnectionException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * <h3>Constructor</h3>
+		 */
+		public CircuitOpenException() {
+			super("The database circuit is open", "08004");
+		}
+
+	}
+
+}
@@ -0,0 +1,579 @@
+package fr.epita.iam.services.connections;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * A bounded pool of JDBC connections. Borrowed connections are validated
+ * before being handed out, and calling {@link Connection#close()} on them
+ * returns the physical connection to the pool instead of closing it. Idle
+ * connections are evicted after the idle timeout and every connection is
+ * retired once it reaches its maximum lifetime. Each pooled connection keeps
+ * its own {@link StatementCache}, so statements prepared with the same SQL
+ * text are reused across borrowers.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>Connection connection = pool.borrow();</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class ConnectionPool {
+
+	private static final Logger LOGGER = new Logger(ConnectionPool.class);
+
+	// SQL state used by JDBC for "connection does not exist"
+	private static final String CONNECTION_CLOSED_STATE = "08003";
+	// SQL state prefix of connection exceptions
+	private static final String CONNECTION_ERROR_CLASS = "08";
+
+	/**
+	 * SQL state of {@link PoolTimeoutException}, "timeout expired"
+	 */
+	public static final String POOL_TIMEOUT_STATE = "HYT00";
+
+	private final String url;
+	private final String username;
+	private final String password;
+
+	private final int maxSize;
+	private final int minIdle;
+	private final long maxWaitMillis;
+	private final long idleTimeoutMillis;
+	private final long maxLifetimeMillis;
+	private final int validationTimeoutSeconds;
+	private final int statementCacheSize;
+
+	private final Semaphore permits;
+	private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+	private final ScheduledExecutorService housekeeper;
+	private volatile boolean shutdown = false;
+
+	// metrics
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicInteger peakInUse = new AtomicInteger();
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong validationFailureCount = new AtomicLong();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+	private final AtomicLong statementCacheEvictions = new AtomicLong();
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param url
+	 *            - JDBC url of the database
+	 * @param username
+	 * @param password
+	 * @param maxSize
+	 *            - maximum number of open connections
+	 * @param minIdle
+	 *            - number of idle connections kept by the eviction
+	 * @param maxWaitMillis
+	 *            - how long a borrower waits for a free connection
+	 * @param idleTimeoutMillis
+	 *            - how long a connection may stay idle before being closed
+	 * @param maxLifetimeMillis
+	 *            - maximum age of a connection
+	 * @param validationTimeoutSeconds
+	 *            - timeout of the validation done on borrow
+	 * @param statementCacheSize
+	 *            - number of prepared statements cached per connection, 0 to
+	 *            disable the cache
+	 */
+	public ConnectionPool(String url, String username, String password, int maxSize, int minIdle,
+			long maxWaitMillis, long idleTimeoutMillis, long maxLifetimeMillis, int validationTimeoutSeconds,
+			int statementCacheSize) {
+		this.url = url;
+		this.username = username;
+		this.password = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+		this.maxWaitMillis = maxWaitMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.maxLifetimeMillis = maxLifetimeMillis;
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+		this.statementCacheSize = statementCacheSize;
+		this.permits = new Semaphore(this.maxSize, true);
+
+		// background eviction of idle and expired connections
+		housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "iam-connection-pool-housekeeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long period = Math.max(1000, Math.min(idleTimeoutMillis, 30000));
+		housekeeper.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Borrows a connection from the pool, waiting at most the configured maximum
+	 * wait time. The returned connection must be closed to give it back.
+	 *
+	 * @return a validated connection
+	 * @throws PoolTimeoutException
+	 *             if no connection got free in time
+	 * @throws SQLException
+	 *             if a new connection could not be opened
+	 */
+	public Connection borrow() throws SQLException {
+		if (shutdown) {
+			throw new SQLException("The connection pool has been shut down", CONNECTION_CLOSED_STATE);
+		}
+		final long start = System.nanoTime();
+		try {
+			if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				timeoutCount.incrementAndGet();
+				throw new PoolTimeoutException("Timed out after " + maxWaitMillis
+						+ "ms waiting for a database connection, " + inUse.get() + " in use");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PoolTimeoutException("Interrupted while waiting for a database connection", e);
+		}
+
+		try {
+			PooledConnection pooled = takeIdle();
+			if (pooled == null) {
+				// nothing reusable, open a new physical connection
+				pooled = create();
+			}
+			recordBorrow(System.nanoTime() - start);
+			return pooled.newHandle();
+		} catch (final SQLException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return a valid idle connection, or null if none is available
+	 */
+	private PooledConnection takeIdle() {
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			if (isExpired(pooled, System.currentTimeMillis())) {
+				destroy(pooled);
+			} else if (!isValid(pooled)) {
+				validationFailureCount.incrementAndGet();
+				destroy(pooled);
+			} else {
+				return pooled;
+			}
+		}
+		return null;
+	}
+
+	private PooledConnection create() throws SQLException {
+		final Connection physical = DriverManager.getConnection(url, username, password);
+		final PooledConnection pooled;
+		try {
+			pooled = new PooledConnection(physical);
+		} catch (final SQLException | RuntimeException e) {
+			try {
+				physical.close();
+			} catch (final SQLException closeError) {
+				e.addSuppressed(closeError);
+			}
+			throw e;
+		}
+		total.incrementAndGet();
+		createdCount.incrementAndGet();
+		return pooled;
+	}
+
+	private boolean isValid(PooledConnection pooled) {
+		try {
+			return pooled.physical.isValid(validationTimeoutSeconds);
+		} catch (final SQLException e) {
+			return false;
+		}
+	}
+
+	private boolean isExpired(PooledConnection pooled, long now) {
+		return maxLifetimeMillis > 0 && now - pooled.createdAt >= maxLifetimeMillis;
+	}
+
+	private void recordBorrow(long waitNanos) {
+		borrowCount.incrementAndGet();
+		totalWaitNanos.addAndGet(waitNanos);
+		long max;
+		while (waitNanos > (max = maxWaitNanos.get())) {
+			if (maxWaitNanos.compareAndSet(max, waitNanos)) {
+				break;
+			}
+		}
+		final int current = inUse.incrementAndGet();
+		int peak;
+		while (current > (peak = peakInUse.get())) {
+			if (peakInUse.compareAndSet(peak, current)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool, or closes it if it is broken,
+	 * expired or the pool has been shut down.
+	 *
+	 * @param pooled
+	 */
+	private void release(PooledConnection pooled) {
+		inUse.decrementAndGet();
+		try {
+			if (shutdown || pooled.broken || isExpired(pooled, System.currentTimeMillis())) {
+				destroy(pooled);
+			} else {
+				reset(pooled);
+				pooled.lastUsedAt = System.currentTimeMillis();
+				// most recently used first, so the tail ages out first
+				idle.offerFirst(pooled);
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Undo the state a borrower may have left on the connection
+	 *
+	 * @param pooled
+	 */
+	private void reset(PooledConnection pooled) {
+		if (pooled.autoCommitChanged) {
+			try {
+				if (!pooled.physical.getAutoCommit()) {
+					pooled.physical.rollback();
+					pooled.physical.setAutoCommit(true);
+				}
+				pooled.autoCommitChanged = false;
+			} catch (final SQLException e) {
+				LOGGER.warning("Could not reset a pooled connection, discarding it: " + e.getMessage());
+				pooled.broken = true;
+			}
+		}
+		if (pooled.isolationChanged && !pooled.broken) {
+			try {
+				pooled.physical.setTransactionIsolation(pooled.defaultIsolation);
+				pooled.isolationChanged = false;
+			} catch (final SQLException e) {
+				LOGGER.warning("Could not reset a pooled connection, discarding it: " + e.getMessage());
+				pooled.broken = true;
+			}
+		}
+	}
+
+	private void destroy(PooledConnection pooled) {
+		total.decrementAndGet();
+		destroyedCount.incrementAndGet();
+		pooled.statements.clear();
+		try {
+			pooled.physical.close();
+		} catch (final SQLException e) {
+			LOGGER.error("Error occured while closing a pooled connection", e);
+		}
+	}
+
+	/**
+	 * Closes idle connections that exceeded the idle timeout (keeping minIdle of
+	 * them) and connections that exceeded their maximum lifetime.
+	 */
+	private void evict() {
+		final long now = System.currentTimeMillis();
+		final Iterator<PooledConnection> iterator = idle.descendingIterator();
+		while (iterator.hasNext()) {
+			final PooledConnection pooled = iterator.next();
+			final boolean idleTooLong = idleTimeoutMillis > 0 && now - pooled.lastUsedAt >= idleTimeoutMillis
+					&& idle.size() > minIdle;
+			if ((idleTooLong || isExpired(pooled, now)) && idle.remove(pooled)) {
+				destroy(pooled);
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections and stops handing out new ones. Borrowed
+	 * connections are closed when they are given back.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		housekeeper.shutdownNow();
+		PooledConnection pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			destroy(pooled);
+		}
+	}
+
+	/**
+	 * @return the maximum number of open connections
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return number of connections currently borrowed
+	 */
+	public int getInUse() {
+		return inUse.get();
+	}
+
+	/**
+	 * @return highest number of connections borrowed at the same time
+	 */
+	public int getPeakInUse() {
+		return peakInUse.get();
+	}
+
+	/**
+	 * @return number of connections waiting in the pool
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * @return number of open physical connections
+	 */
+	public int getTotal() {
+		return total.get();
+	}
+
+	/**
+	 * @return number of successful borrows
+	 */
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	/**
+	 * @return average time spent waiting for a connection, in milliseconds
+	 */
+	public double getAverageWaitMillis() {
+		final long borrows = borrowCount.get();
+		return borrows == 0 ? 0 : totalWaitNanos.get() / (borrows * 1e6);
+	}
+
+	/**
+	 * @return longest time spent waiting for a connection, in milliseconds
+	 */
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return number of borrows that timed out
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * @return number of physical connections opened
+	 */
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * @return number of physical connections closed
+	 */
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+
+	/**
+	 * @return number of idle connections that failed validation on borrow
+	 */
+	public long getValidationFailureCount() {
+		return validationFailureCount.get();
+	}
+
+	/**
+	 * @return number of prepared statements served from a statement cache
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	/**
+	 * @return number of prepared statements that had to be prepared by the
+	 *         database
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+
+	/**
+	 * @return number of statements evicted from a statement cache
+	 */
+	public long getStatementCacheEvictions() {
+		return statementCacheEvictions.get();
+	}
+
+	/**
+	 * @return String representation of the pool metrics
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ConnectionPool [total=" + getTotal() + ", inUse=" + getInUse() + ", idle=" + getIdle()
+				+ ", peakInUse=" + getPeakInUse() + ", borrows=" + getBorrowCount() + ", avgWaitMs="
+				+ String.format("%.3f", getAverageWaitMillis()) + ", maxWaitMs="
+				+ String.format("%.3f", getMaxWaitMillis()) + ", timeouts=" + getTimeoutCount() + ", created="
+				+ getCreatedCount() + ", destroyed=" + getDestroyedCount() + ", validationFailures="
+				+ getValidationFailureCount() + ", statementHits=" + getStatementCacheHits() + ", statementMisses="
+				+ getStatementCacheMisses() + ", statementEvictions=" + getStatementCacheEvictions() + "]";
+	}
+
+	/**
+	 * A physical connection owned by the pool
+	 */
+	private final class PooledConnection {
+
+		private final Connection physical;
+		private final StatementCache statements;
+		private final long createdAt;
+		private volatile long lastUsedAt;
+		private volatile boolean broken = false;
+		private volatile boolean autoCommitChanged = false;
+		private volatile boolean isolationChanged = false;
+		private final int defaultIsolation;
+
+		private PooledConnection(Connection physical) throws SQLException {
+			this.physical = physical;
+			this.defaultIsolation = physical.getTransactionIsolation();
+			this.statements = new StatementCache(physical, statementCacheSize, statementCacheHits,
+					statementCacheMisses, statementCacheEvictions);
+			this.createdAt = System.currentTimeMillis();
+			this.lastUsedAt = createdAt;
+		}
+
+		/**
+		 * @return a new handle on this connection, given to one borrower
+		 */
+		private Connection newHandle() {
+			return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new ConnectionHandle(this));
+		}
+	}
+
+	/**
+	 * The connection seen by a borrower. Closing it returns the physical
+	 * connection to the pool, and any further use fails.
+	 */
+	private final class ConnectionHandle implements InvocationHandler {
+
+		private final PooledConnection pooled;
+		private boolean closed = false;
+
+		private ConnectionHandle(PooledConnection pooled) {
+			this.pooled = pooled;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			final int arity = args == null ? 0 : args.length;
+			if ("close".equals(name) && arity == 0) {
+				if (!closed) {
+					closed = true;
+					release(pooled);
+				}
+				return null;
+			} else if ("isClosed".equals(name) && arity == 0) {
+				return closed || pooled.physical.isClosed();
+			} else if ("equals".equals(name) && arity == 1) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name) && arity == 0) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name) && arity == 0) {
+				return "PooledConnection[" + pooled.physical + (closed ? ", closed]" : "]");
+			}
+			if (closed) {
+				throw new SQLException("Connection is closed", CONNECTION_CLOSED_STATE);
+			}
+			if ("setAutoCommit".equals(name)) {
+				pooled.autoCommitChanged = true;
+			} else if ("setTransactionIsolation".equals(name)) {
+				pooled.isolationChanged = true;
+			} else if ("prepareStatement".equals(name) && arity == 1) {
+				return pooled.statements.prepare((Connection) proxy, (String) args[0]);
+			}
+			try {
+				return method.invoke(pooled.physical, args);
+			} catch (final InvocationTargetException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof SQLException) {
+					final String state = ((SQLException) cause).getSQLState();
+					if (state != null && state.startsWith(CONNECTION_ERROR_CLASS)) {
+						// the physical connection is unusable, don't give it back to the pool
+						pooled.broken = true;
+					}
+				}
+				throw cause;
+			}
+		}
+	}
+
+	/**
+	 * <h3>Description</h3>
+	 * <p>
+	 * Thrown when no connection of the pool got free in time: every connection
+	 * is borrowed, which says nothing about the database itself
+	 * </p>
+	 */
+	public static class PoolTimeoutException extends SQLTransientConnectionException {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * <h3>Constructor</h3>
+		 *
+		 * @param reason
+		 */
+		public PoolTimeoutException(String reason) {
+			super(reason, POOL_TIMEOUT_STATE);
+		}
+
+		/**
+		 * <h3>Constructor</h3>
+		 *
+		 * @param reason
+		 * @param cause
+		 */
+		public PoolTimeoutException(String reason, Throwable cause) {
+			super(reason, POOL_TIMEOUT_STATE, cause);
+		}
+
+	}
+
+}
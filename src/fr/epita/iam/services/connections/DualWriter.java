@@ -0,0 +1,520 @@
+package fr.epita.iam.services.connections;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.TransformerException;
+
+import fr.epita.iam.exceptions.DataException;
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.iam.services.connections.UnitOfWork.Write;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Writes the XML files alongside the database writes of the DAO managers. The
+ * database is the primary: its write is run by the caller and decides the
+ * outcome of the operation. The XML writes are run in order by a single
+ * thread, either while the database is written (join policy "both", the
+ * caller waits for both) or once it has been written (join policy "primary",
+ * the caller only waits for the database).
+ * </p>
+ *
+ * <p>
+ * With the join policy "primary", the XML files are an asynchronous replica of
+ * the database: the writes wait in memory for the replicating thread, and
+ * {@link #getLagOperations()} and {@link #getLagMillis()} tell how far behind
+ * the XML files are. The queue is drained when the application stops, and when
+ * the database stops working so the XML files read instead are up to date.
+ * </p>
+ *
+ * <p>
+ * Failures are reconciled toward the database. An XML write that fails is
+ * retried, and the XML writes after it wait behind it so the file sees them
+ * in order, until it succeeds or has failed dao.write.maxAttempts times. An
+ * XML write that ran while the database write failed is undone. A write that
+ * can't be undone is only started once the database has been written.
+ * </p>
+ *
+ * <p>
+ * Inside a {@link UnitOfWork}, the XML write is staged in the unit instead.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>try (DualWriter.WriteHandle write = DualWriter.getInstance().begin(() -&gt; xmlDAO.create(identity),</code>
+ * <code>		() -&gt; xmlDAO.delete(identity))) {</code>
+ * <code>	dbDAO.create(identity);</code>
+ * <code>	write.primaryWritten();</code>
+ * <code>}</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class DualWriter {
+
+	private static final Logger LOGGER = new Logger(DualWriter.class);
+
+	private static final String JOIN = "dao.write.join";
+	private static final String RETRY_DELAY = "dao.write.retryDelay";
+	private static final String MAX_ATTEMPTS = "dao.write.maxAttempts";
+
+	// how long the shutdown and the failover wait for the XML writes
+	private static final long DRAIN_TIMEOUT = 10000;
+
+	private static DualWriter instance;
+
+	/**
+	 * When a write of the DAO managers returns
+	 */
+	public enum JoinPolicy {
+		/** once the database and the XML files are written */
+		BOTH,
+		/** once the database is written, the XML files are written after */
+		PRIMARY
+	}
+
+	private final JoinPolicy policy;
+	private final long retryDelayMillis;
+	private final int maxAttempts;
+	private final ScheduledExecutorService secondary;
+	// XML writes not applied yet, in order, only used by the secondary thread
+	private final Deque<SecondaryWrite> pending = new ArrayDeque<>();
+	private boolean retryScheduled = false;
+	// XML writes submitted and not applied yet, oldest first
+	private final Queue<SecondaryWrite> lagging = new ConcurrentLinkedQueue<>();
+
+	private final Latency primaryLatency = new Latency();
+	private final Latency secondaryLatency = new Latency();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong undone = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile int pendingCount = 0;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param policy
+	 *            - when the writes return
+	 * @param retryDelayMillis
+	 *            - delay before a failed XML write is tried again
+	 * @param maxAttempts
+	 *            - attempts of an XML write before it is given up
+	 */
+	public DualWriter(JoinPolicy policy, long retryDelayMillis, int maxAttempts) {
+		this.policy = policy;
+		this.retryDelayMillis = Math.max(1, retryDelayMillis);
+		this.maxAttempts = Math.max(1, maxAttempts);
+		secondary = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "xml-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return the writer shared by the DAO managers, configured from the
+	 *         configuration file. The XML writes still queued are waited for
+	 *         when the application stops.
+	 */
+	public static synchronized DualWriter getInstance() {
+		if (instance == null) {
+			final ConfigurationService confService = ConfigurationService.getInstance();
+			final String join = confService.getConfigurationValue(JOIN);
+			JoinPolicy policy = JoinPolicy.BOTH;
+			if (join != null && !join.trim().isEmpty()) {
+				try {
+					policy = JoinPolicy.valueOf(join.trim().toUpperCase(Locale.ROOT));
+				} catch (final IllegalArgumentException e) {
+					LOGGER.warning("Unknown " + JOIN + " " + join + ", using both");
+				}
+			}
+			instance = new DualWriter(policy, confService.getLongConfigurationValue(RETRY_DELAY, 1000),
+					confService.getIntConfigurationValue(MAX_ATTEMPTS, 5));
+			final DualWriter writer = instance;
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> writer.drain(DRAIN_TIMEOUT), "xml-writer-drain"));
+		}
+		return instance;
+	}
+
+	/**
+	 * Drains the writer shared by the DAO managers, if it was created, before
+	 * the XML files are read instead of the database
+	 */
+	public static void failover() {
+		final DualWriter writer;
+		synchronized (DualWriter.class) {
+			writer = instance;
+		}
+		if (writer != null) {
+			LOGGER.info("Database down, replicating the " + writer.getLagOperations()
+					+ " writes left to the XML files");
+			writer.drain(DRAIN_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Starts a write, to close once the database has been written or has
+	 * failed. With the join policy "both" and an undo, the XML write starts
+	 * right away.
+	 *
+	 * @param write
+	 *            - the write of the XML files
+	 * @param undo
+	 *            - undoes the write of the XML files, null if it can't be undone
+	 * @return the handle of the write
+	 */
+	public WriteHandle begin(Write write, Write undo) {
+		final boolean inUnit = UnitOfWork.isActive();
+		final WriteHandle handle = new WriteHandle(write, undo, inUnit);
+		if (!inUnit && policy == JoinPolicy.BOTH && undo != null) {
+			handle.started = new SecondaryWrite(write);
+			submit(handle.started);
+		}
+		return handle;
+	}
+
+	/**
+	 * Waits until every XML write submitted so far has been applied or given
+	 * up. A write waiting for a retry is tried again right away, then every
+	 * dao.write.retryDelay.
+	 *
+	 * @param timeoutMillis
+	 * @return true if the XML files caught up in time
+	 */
+	public boolean drain(long timeoutMillis) {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (true) {
+			try {
+				final long remaining = deadline - System.nanoTime();
+				if (remaining > 0) {
+					secondary.submit(this::applyPending).get(remaining, TimeUnit.NANOSECONDS);
+				}
+				if (lagging.isEmpty()) {
+					return true;
+				}
+				if (deadline - System.nanoTime() <= 0) {
+					LOGGER.warning("The XML files are " + getLagOperations() + " writes and " + getLagMillis()
+							+ "ms behind the database");
+					return false;
+				}
+				Thread.sleep(Math.min(retryDelayMillis, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1));
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (final ExecutionException | TimeoutException e) {
+				LOGGER.error("Could not drain the writes of the XML files", e);
+				return false;
+			}
+		}
+	}
+
+	private void submit(SecondaryWrite write) {
+		lagging.add(write);
+		secondary.submit(() -> {
+			pending.add(write);
+			applyPending();
+		});
+	}
+
+	/**
+	 * Applies the pending XML writes in order, runs on the secondary thread
+	 */
+	private void applyPending() {
+		while (!pending.isEmpty()) {
+			final SecondaryWrite head = pending.peek();
+			if (!head.cancelled && !head.attempt()) {
+				if (head.attempts < maxAttempts) {
+					scheduleRetry();
+					break;
+				}
+				dropped.incrementAndGet();
+				LOGGER.error("Giving up a write of the XML files after " + head.attempts
+						+ " attempts, the XML files no longer match the database");
+			}
+			final SecondaryWrite done = pending.poll();
+			lagging.remove(done);
+			done.done.complete(null);
+		}
+		pendingCount = pending.size();
+	}
+
+	private void scheduleRetry() {
+		if (!retryScheduled) {
+			retryScheduled = true;
+			secondary.schedule(() -> {
+				retryScheduled = false;
+				applyPending();
+			}, retryDelayMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Undoes a write started with the database write that failed, runs on the
+	 * secondary thread
+	 */
+	private void undo(SecondaryWrite started, SecondaryWrite undoWrite) {
+		if (started.applied) {
+			undone.incrementAndGet();
+			lagging.add(undoWrite);
+			pending.add(undoWrite);
+			applyPending();
+		} else {
+			// cancelled before it was applied
+			pending.remove(started);
+			lagging.remove(started);
+			pendingCount = pending.size();
+			started.done.complete(null);
+			undoWrite.done.complete(null);
+		}
+	}
+
+	/**
+	 * Waits until the XML write has been applied or given up, not just tried
+	 */
+	private static void await(SecondaryWrite write) {
+		try {
+			write.done.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (final ExecutionException e) {
+			LOGGER.error("Write of the XML files interrupted", e);
+		}
+	}
+
+	/**
+	 * @return the join policy
+	 */
+	public JoinPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return latency of the database writes
+	 */
+	public Latency getPrimaryLatency() {
+		return primaryLatency;
+	}
+
+	/**
+	 * @return latency of the XML writes
+	 */
+	public Latency getSecondaryLatency() {
+		return secondaryLatency;
+	}
+
+	/**
+	 * @return number of failed attempts of XML writes
+	 */
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return number of XML writes undone because the database write failed
+	 */
+	public long getUndone() {
+		return undone.get();
+	}
+
+	/**
+	 * @return number of XML writes given up
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return number of XML writes queued or waiting for a retry
+	 */
+	public int getPending() {
+		return pendingCount;
+	}
+
+	/**
+	 * @return number of XML writes submitted and not applied yet, how far the
+	 *         XML files are behind the database
+	 */
+	public int getLagOperations() {
+		return lagging.size();
+	}
+
+	/**
+	 * @return age of the oldest XML write not applied yet in milliseconds, 0 if
+	 *         the XML files are up to date
+	 */
+	public long getLagMillis() {
+		final SecondaryWrite oldest = lagging.peek();
+		return oldest == null ? 0 : Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.submitted));
+	}
+
+	/**
+	 * @return String representation of the writer metrics
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DualWriter [policy=" + policy + ", database=" + primaryLatency + ", xml=" + secondaryLatency
+				+ ", failures=" + getFailures() + ", undone=" + getUndone() + ", dropped=" + getDropped()
+				+ ", pending=" + getPending() + ", lag=" + getLagOperations() + " writes/" + getLagMillis() + "ms]";
+	}
+
+	/**
+	 * A write in progress, closing it completes the XML write according to the
+	 * outcome of the database write
+	 */
+	public class WriteHandle implements AutoCloseable {
+
+		private final Write write;
+		private final Write undo;
+		private final boolean inUnit;
+		private final long start = System.nanoTime();
+		private boolean written = false;
+		// the XML write started with the database write
+		private SecondaryWrite started;
+
+		private WriteHandle(Write write, Write undo, boolean inUnit) {
+			this.write = write;
+			this.undo = undo;
+			this.inUnit = inUnit;
+		}
+
+		/**
+		 * To call once the database has been written
+		 */
+		public void primaryWritten() {
+			primaryLatency.record(System.nanoTime() - start);
+			written = true;
+		}
+
+		/**
+		 * Writes or undoes the XML files, and waits for them if the join policy
+		 * is "both" or the database write failed
+		 */
+		@Override
+		public void close() {
+			if (inUnit) {
+				if (written) {
+					UnitOfWork.stage(write);
+				}
+				return;
+			}
+			if (started != null) {
+				if (written) {
+					await(started);
+				} else {
+					started.cancelled = true;
+					final SecondaryWrite cancelled = started;
+					final SecondaryWrite undoWrite = new SecondaryWrite(undo);
+					secondary.submit(() -> undo(cancelled, undoWrite));
+					await(undoWrite);
+				}
+			} else if (written) {
+				final SecondaryWrite submitted = new SecondaryWrite(write);
+				submit(submitted);
+				if (policy == JoinPolicy.BOTH) {
+					await(submitted);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * An XML write, with the outcome of its attempts
+	 */
+	private class SecondaryWrite {
+
+		private final Write write;
+		private final long submitted = System.nanoTime();
+		private int attempts = 0;
+		private volatile boolean applied = false;
+		private volatile boolean cancelled = false;
+		// completed once applied or given up
+		private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		private SecondaryWrite(Write write) {
+			this.write = write;
+		}
+
+		private boolean attempt() {
+			attempts++;
+			final long start = System.nanoTime();
+			try {
+				write.apply();
+				applied = true;
+				return true;
+			} catch (final DataException | TransformerException | RuntimeException e) {
+				failures.incrementAndGet();
+				LOGGER.error("Write of the XML files failed, attempt " + attempts + " of " + maxAttempts, e);
+				return false;
+			} finally {
+				secondaryLatency.record(System.nanoTime() - start);
+			}
+		}
+
+	}
+
+	/**
+	 * Number, mean and maximum duration of the writes of a backend
+	 */
+	public static class Latency {
+
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private void record(long nanos) {
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		/**
+		 * @return number of writes
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @return mean duration of the writes, in milliseconds
+		 */
+		public double getMeanMillis() {
+			final long n = count.get();
+			return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+		}
+
+		/**
+		 * @return longest write, in milliseconds
+		 */
+		public double getMaxMillis() {
+			return maxNanos.get() / 1e6;
+		}
+
+		/**
+		 * @return String representation of the latency
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "{count=%d, mean=%.2fms, max=%.2fms}", getCount(), getMeanMillis(),
+					getMaxMillis());
+		}
+
+	}
+
+}
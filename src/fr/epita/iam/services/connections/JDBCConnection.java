@@ -5,6 +5,11 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import fr.epita.iam.services.configuration.ConfigurationService;
 import fr.epita.logger.Logger;
@@ -12,7 +17,11 @@ import fr.epita.logger.Logger;
 /**
  * <h3>Description</h3>
  * <p>
- * This class manages the JDBC connection.
+ * This class manages the JDBC connection. Connections are borrowed from a
+ * {@link ConnectionPool} sized from the configuration file, and closing them
+ * gives them back to the pool. Inside a {@link UnitOfWork}, every DAO gets the
+ * connection of the unit instead. While the {@link CircuitBreaker} is open, no
+ * connection is borrowed.
  * </p>
  * 
  * @author Samer Masaad
@@ -24,20 +33,71 @@ public class JDBCConnection {
 	}
 
 	private static final Logger LOGGER = new Logger(JDBCConnection.class);
+	private static final String DRIVER = "org.apache.derby.jdbc.ClientDriver";
 	private static final String DB_HOST = "db.host";
 	private static final String DB_PWD = "db.pwd";
 	private static final String DB_USER = "db.user";
 
+	private static final String POOL_MAX_SIZE = "db.pool.maxSize";
+	private static final String POOL_MIN_IDLE = "db.pool.minIdle";
+	private static final String POOL_MAX_WAIT = "db.pool.maxWait";
+	private static final String POOL_IDLE_TIMEOUT = "db.pool.idleTimeout";
+	private static final String POOL_MAX_LIFETIME = "db.pool.maxLifetime";
+	private static final String POOL_VALIDATION_TIMEOUT = "db.pool.validationTimeout";
+	private static final String POOL_STATEMENT_CACHE_SIZE = "db.pool.statementCacheSize";
+	private static final String BATCH_SIZE = "db.batchSize";
+	private static final String FETCH_SIZE = "db.fetchSize";
+
+	/**
+	 * Number of parameters of the IN lists, shorter lists are padded so every
+	 * query shares the same cached statement
+	 */
+	public static final int IN_LIST_SIZE = 100;
+
+	private static volatile ConnectionPool pool;
+
 	/**
-	 * Initialises a connection with the database. Derby is used as a database, so
-	 * the derbyclient.jar should be added to the java build path
+	 * Borrows a connection from the pool, creating the pool on first use, or
+	 * returns the connection of the unit of work open on the current thread.
+	 * Derby is used as a database, so the derbyclient.jar should be added to the
+	 * java build path
 	 * 
 	 * @return The JDBC connection
 	 * @throws ClassNotFoundException
 	 * @throws SQLException
+	 *             also a {@link CircuitBreaker.CircuitOpenException} while the
+	 *             circuit is open, unless a unit of work is open
 	 */
 	public static Connection getConnection() throws ClassNotFoundException, SQLException {
+		final UnitOfWork unit = UnitOfWork.current();
+		if (unit != null) {
+			return unit.getConnection();
+		}
+		CircuitBreaker.checkConnection();
+		return getPool().borrow();
+	}
 
+	/**
+	 * Creates the pool if it hasn't been initialized, then returns it
+	 * 
+	 * @return the connection pool
+	 * @throws ClassNotFoundException
+	 */
+	public static ConnectionPool getPool() throws ClassNotFoundException {
+		ConnectionPool current = pool;
+		if (current == null) {
+			synchronized (JDBCConnection.class) {
+				current = pool;
+				if (current == null) {
+					current = createPool();
+					pool = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	private static ConnectionPool createPool() throws ClassNotFoundException {
 		final ConfigurationService confService = ConfigurationService.getInstance();
 
 		final String url = confService.getConfigurationValue(DB_HOST);
@@ -45,23 +105,150 @@ public class JDBCConnection {
 		final String username = confService.getConfigurationValue(DB_USER);
 
 		//get the driver
-		Class.forName("org.apache.derby.jdbc.ClientDriver");
+		Class.forName(DRIVER);
+
+		final ConnectionPool connectionPool = new ConnectionPool(url, username, password,
+				confService.getIntConfigurationValue(POOL_MAX_SIZE, 10),
+				confService.getIntConfigurationValue(POOL_MIN_IDLE, 2),
+				confService.getLongConfigurationValue(POOL_MAX_WAIT, 5000),
+				confService.getLongConfigurationValue(POOL_IDLE_TIMEOUT, 600000),
+				confService.getLongConfigurationValue(POOL_MAX_LIFETIME, 1800000),
+				confService.getIntConfigurationValue(POOL_VALIDATION_TIMEOUT, 2),
+				confService.getIntConfigurationValue(POOL_STATEMENT_CACHE_SIZE, 20));
+		LOGGER.info("Database connection pool created with at most " + connectionPool.getMaxSize() + " connections");
+		return connectionPool;
+	}
+
+	/**
+	 * Opens a connection outside of the pool and validates it, so a pool whose
+	 * connections are all borrowed isn't mistaken for a database down. The
+	 * login timeout of the {@link DriverManager} is shared by the whole JVM, it
+	 * also bounds the connections opened by the pool.
+	 * 
+	 * @param timeoutSeconds
+	 *            - how long the login and the validation may each take
+	 * @return true if the database answered in time
+	 */
+	public static boolean probe(int timeoutSeconds) {
+		final ConfigurationService confService = ConfigurationService.getInstance();
+		try {
+			Class.forName(DRIVER);
+			DriverManager.setLoginTimeout(timeoutSeconds);
+			try (Connection connection = DriverManager.getConnection(confService.getConfigurationValue(DB_HOST),
+					confService.getConfigurationValue(DB_USER), confService.getConfigurationValue(DB_PWD))) {
+				return connection.isValid(timeoutSeconds);
+			}
+		} catch (final ClassNotFoundException | SQLException e) {
+			return false;
+		}
+	}
 
-		return DriverManager.getConnection(url, username, password);
+	/**
+	 * @return number of rows written per batch and per transaction by the bulk
+	 *         operations
+	 */
+	public static int getBatchSize() {
+		final ConfigurationService confService = ConfigurationService.getInstance();
+		return Math.max(1, confService.getIntConfigurationValue(BATCH_SIZE, 1000));
 	}
 
 	/**
-	 * Closes the connection
+	 * @return number of rows fetched per round trip by the streaming searches
+	 */
+	public static int getFetchSize() {
+		final ConfigurationService confService = ConfigurationService.getInstance();
+		return Math.max(1, confService.getIntConfigurationValue(FETCH_SIZE, 500));
+	}
+
+	/**
+	 * Streams the rows of an executed query, reading them from the database as
+	 * the stream is consumed. Closing the stream closes the result set and the
+	 * prepared statement, and gives the connection back to the pool, so the
+	 * stream must be used in a try-with-resources block. A database error while
+	 * reading a row is thrown as an {@link IllegalStateException}.
 	 * 
 	 * @param connection
+	 * @param preparedStatement
+	 * @param resultSet
+	 * @param mapper
+	 *            - deserialises a row
+	 * @return the stream of the rows
 	 */
-	public static void close(Connection connection, PreparedStatement preparedStatement, ResultSet resultSet) {
-		// close connection
+	public static <T> Stream<T> stream(Connection connection, PreparedStatement preparedStatement,
+			ResultSet resultSet, RowMapper<T> mapper) {
+		final Spliterator<T> rows = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.NONNULL) {
+			@Override
+			public boolean tryAdvance(Consumer<? super T> action) {
+				try {
+					if (!resultSet.next()) {
+						return false;
+					}
+					action.accept(mapper.map(resultSet));
+					return true;
+				} catch (final SQLException e) {
+					LOGGER.error("error while reading a row from the database", e);
+					throw new IllegalStateException("Could not read the next row", e);
+				}
+			}
+		};
+		return StreamSupport.stream(rows, false).onClose(() -> close(connection, preparedStatement, resultSet));
+	}
+
+	/**
+	 * @param count
+	 * @return count comma separated parameter markers, for an IN list
+	 */
+	public static String placeholders(int count) {
+		final StringBuilder placeholders = new StringBuilder(count * 3);
+		for (int i = 0; i < count; i++) {
+			placeholders.append(i == 0 ? "?" : ", ?");
+		}
+		return placeholders.toString();
+	}
+
+	/**
+	 * Rolls back the current transaction of the connection, if any
+	 * 
+	 * @param connection
+	 */
+	public static void rollback(Connection connection) {
 		if (connection != null) {
 			try {
-				connection.close();
+				connection.rollback();
 			} catch (final SQLException e) {
-				LOGGER.error("Error occured while closing the connection with the database", e);
+				LOGGER.error("Error occured while rolling back the transaction", e);
+			}
+		}
+	}
+
+	/**
+	 * Closes every pooled connection. The next call to {@link #getConnection()}
+	 * creates a new pool.
+	 */
+	public static void shutdown() {
+		synchronized (JDBCConnection.class) {
+			if (pool != null) {
+				LOGGER.info("Shutting down the database connection pool: " + pool);
+				pool.shutdown();
+				pool = null;
+			}
+		}
+	}
+
+	/**
+	 * Closes the result set and the prepared statement, then gives the connection
+	 * back to the pool
+	 * 
+	 * @param connection
+	 */
+	public static void close(Connection connection, PreparedStatement preparedStatement, ResultSet resultSet) {
+		// close result set
+		if (resultSet != null) {
+			try {
+				resultSet.close();
+			} catch (final SQLException e) {
+				LOGGER.error("Error occured while closing the result set", e);
 			}
 		}
 		// close prepared statement
@@ -72,12 +259,12 @@ public class JDBCConnection {
 				LOGGER.error("Error occured while closing the prepared statement", e);
 			}
 		}
-		// close result set
-		if (resultSet != null) {
+		// release connection
+		if (connection != null) {
 			try {
-				resultSet.close();
+				connection.close();
 			} catch (final SQLException e) {
-				LOGGER.error("Error occured while closing the result set", e);
+				LOGGER.error("Error occured while closing the connection with the database", e);
 			}
 		}
 	}
@@ -0,0 +1,67 @@
+package fr.epita.iam.services.connections;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
+import fr.epita.iam.services.persistence.RecordCodec;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Journal codecs of the identities and of the local users
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class RecordCodecs {
+
+	/**
+	 * fields: displayName, uid, email
+	 */
+	public static final RecordCodec<Identity> IDENTITY = new RecordCodec<Identity>() {
+
+		@Override
+		public String[] encode(Identity identity) {
+			return new String[] { identity.getDisplayName(), identity.getUid(), identity.getEmail() };
+		}
+
+		@Override
+		public Identity decode(String[] fields) {
+			checkLength(fields, 3);
+			return new Identity(fields[0], fields[1], fields[2]);
+		}
+	};
+
+	/**
+	 * fields: uid, userName, hashedPassword, identityID
+	 */
+	public static final RecordCodec<User> USER = new RecordCodec<User>() {
+
+		@Override
+		public String[] encode(User user) {
+			return new String[] { user.getUid(), user.getUserName(), user.getHashedPassword(),
+					String.valueOf(user.getIdentityID()) };
+		}
+
+		@Override
+		public User decode(String[] fields) {
+			checkLength(fields, 4);
+			final User user = new User();
+			user.setUid(fields[0]);
+			user.setUserName(fields[1]);
+			user.setHashedPassword(fields[2]);
+			user.setIdentityID(Integer.parseInt(fields[3]));
+			return user;
+		}
+	};
+
+	// prevent creating an instance of this class
+	private RecordCodecs() {
+	}
+
+	private static void checkLength(String[] fields, int length) {
+		if (fields.length != length) {
+			throw new IllegalArgumentException("expected " + length + " fields, found " + fields.length);
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package fr.epita.iam.services.connections;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Deserialises the current row of a result set.
+ * </p>
+ *
+ * @param <T>
+ *            type of the records
+ *
+ * @author Samer Masaad
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+	/**
+	 * @param resultSet
+	 *            - positioned on the row to read
+	 * @return the record of the row
+	 * @throws SQLException
+	 */
+	T map(ResultSet resultSet) throws SQLException;
+
+}
@@ -0,0 +1,237 @@
+package fr.epita.iam.services.connections;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * A least recently used cache of prepared statements, keyed by SQL text and
+ * attached to one pooled connection. Closing a statement obtained from the
+ * cache clears its parameters and keeps it open for the next borrower of the
+ * connection, so the database doesn't parse and plan the same query again.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>PreparedStatement statement = cache.prepare(connectionHandle, sql);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+class StatementCache {
+
+	private static final Logger LOGGER = new Logger(StatementCache.class);
+
+	private final Connection physical;
+	private final int maxSize;
+	private final LinkedHashMap<String, CachedStatement> statements;
+
+	// counters shared by all the caches of a pool
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param physical
+	 *            - the connection the statements are prepared on
+	 * @param maxSize
+	 *            - maximum number of cached statements
+	 * @param hits
+	 * @param misses
+	 * @param evictions
+	 */
+	StatementCache(Connection physical, int maxSize, AtomicLong hits, AtomicLong misses, AtomicLong evictions) {
+		this.physical = physical;
+		this.maxSize = maxSize;
+		this.hits = hits;
+		this.misses = misses;
+		this.evictions = evictions;
+		// access order, so the eldest entry is the least recently used one
+		this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+				if (size() > StatementCache.this.maxSize) {
+					evict(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached statement for this SQL text, preparing it on a miss. If
+	 * the cached statement is already in use on this connection, an uncached
+	 * statement is returned instead.
+	 *
+	 * @param handle
+	 *            - the connection seen by the borrower
+	 * @param sql
+	 * @return a prepared statement whose close() gives it back to the cache
+	 * @throws SQLException
+	 */
+	synchronized PreparedStatement prepare(Connection handle, String sql) throws SQLException {
+		if (maxSize <= 0) {
+			return physical.prepareStatement(sql);
+		}
+		CachedStatement cached = statements.get(sql);
+		if (cached == null) {
+			misses.incrementAndGet();
+			cached = new CachedStatement(sql, physical.prepareStatement(sql));
+			statements.put(sql, cached);
+		} else if (cached.checkedOut) {
+			// same query opened twice on the same connection
+			misses.incrementAndGet();
+			return physical.prepareStatement(sql);
+		} else {
+			hits.incrementAndGet();
+		}
+		cached.checkedOut = true;
+		return cached.newHandle(handle);
+	}
+
+	/**
+	 * Give a statement back to the cache
+	 *
+	 * @param cached
+	 * @throws SQLException
+	 */
+	private synchronized void giveBack(CachedStatement cached) throws SQLException {
+		cached.checkedOut = false;
+		if (cached.evicted) {
+			cached.statement.close();
+			return;
+		}
+		cached.statement.clearParameters();
+		if (cached.maxRowsChanged) {
+			cached.statement.setMaxRows(0);
+			cached.maxRowsChanged = false;
+		}
+		if (cached.fetchSizeChanged) {
+			cached.statement.setFetchSize(0);
+			cached.fetchSizeChanged = false;
+		}
+	}
+
+	private void evict(CachedStatement cached) {
+		evictions.incrementAndGet();
+		cached.evicted = true;
+		if (!cached.checkedOut) {
+			closeQuietly(cached);
+		}
+	}
+
+	/**
+	 * Closes every cached statement, before the connection is closed
+	 */
+	synchronized void clear() {
+		final Iterator<CachedStatement> iterator = statements.values().iterator();
+		while (iterator.hasNext()) {
+			closeQuietly(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	private void closeQuietly(CachedStatement cached) {
+		try {
+			cached.statement.close();
+		} catch (final SQLException e) {
+			LOGGER.warning("Error occured while closing a cached statement: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A prepared statement owned by the cache
+	 */
+	private final class CachedStatement {
+
+		private final String sql;
+		private final PreparedStatement statement;
+		private boolean checkedOut = false;
+		private boolean evicted = false;
+		private boolean maxRowsChanged = false;
+		private boolean fetchSizeChanged = false;
+
+		private CachedStatement(String sql, PreparedStatement statement) {
+			this.sql = sql;
+			this.statement = statement;
+		}
+
+		private PreparedStatement newHandle(Connection connectionHandle) {
+			return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+					new Class<?>[] { PreparedStatement.class }, new StatementHandle(this, connectionHandle));
+		}
+	}
+
+	/**
+	 * The statement seen by the borrower. Closing it gives the statement back
+	 * to the cache.
+	 */
+	private final class StatementHandle implements InvocationHandler {
+
+		private final CachedStatement cached;
+		private final Connection connectionHandle;
+		private boolean closed = false;
+
+		private StatementHandle(CachedStatement cached, Connection connectionHandle) {
+			this.cached = cached;
+			this.connectionHandle = connectionHandle;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			final int arity = args == null ? 0 : args.length;
+			if ("close".equals(name) && arity == 0) {
+				if (!closed) {
+					closed = true;
+					giveBack(cached);
+				}
+				return null;
+			} else if ("isClosed".equals(name) && arity == 0) {
+				return closed || cached.statement.isClosed();
+			} else if ("getConnection".equals(name) && arity == 0) {
+				return connectionHandle;
+			} else if ("equals".equals(name) && arity == 1) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name) && arity == 0) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name) && arity == 0) {
+				return "CachedStatement[" + cached.sql + "]";
+			}
+			if (closed) {
+				throw new SQLException("Statement is closed");
+			}
+			if ("setMaxRows".equals(name)) {
+				cached.maxRowsChanged = true;
+			} else if ("setFetchSize".equals(name)) {
+				cached.fetchSizeChanged = true;
+			}
+			try {
+				return method.invoke(cached.statement, args);
+			} catch (final InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+}
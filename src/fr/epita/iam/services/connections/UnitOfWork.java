@@ -0,0 +1,372 @@
+package fr.epita.iam.services.connections;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.TransformerException;
+
+import fr.epita.iam.exceptions.DataException;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Runs several DAO operations on one database connection and one transaction.
+ * While a unit of work is open on a thread, {@link JDBCConnection#getConnection()}
+ * returns the connection of the unit to every JDBC DAO of that thread: closing
+ * it, committing it or changing its auto-commit mode is ignored, so the DAOs
+ * don't need to know about the unit. A DAO rolling back marks the unit as
+ * rollback only, and its commit fails. So does an error the database raises
+ * after rolling the transaction back itself (SQLState class 40, a deadlock or a
+ * lock timeout), from the connection or from one of its statements.
+ * </p>
+ *
+ * <p>
+ * The writes to the XML files are staged by the DAO managers with
+ * {@link #stage(Write)} and applied in order once the database transaction is
+ * committed, or dropped if it is rolled back. Searches of the XML files don't
+ * see the staged writes. The connection is only borrowed on the first database
+ * access, and is given back when the unit is closed.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>try (UnitOfWork unit = UnitOfWork.begin()) {</code>
+ * <code>	identityDAO.create(identity);</code>
+ * <code>	userDAO.createForUid(user);</code>
+ * <code>	unit.commit();</code>
+ * <code>}</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class UnitOfWork implements AutoCloseable {
+
+	private static final Logger LOGGER = new Logger(UnitOfWork.class);
+
+	private static final ThreadLocal<UnitOfWork> CURRENT = new ThreadLocal<>();
+
+	private final Thread owner = Thread.currentThread();
+	private final int isolation;
+	// the pooled connection, borrowed on first use
+	private Connection connection;
+	// what the DAOs get instead of the pooled connection
+	private Connection shared;
+	private final List<Write> staged = new ArrayList<>();
+	private boolean rollbackOnly = false;
+	private boolean finished = false;
+
+	private UnitOfWork(int isolation) {
+		this.isolation = isolation;
+	}
+
+	/**
+	 * Opens a unit of work on the current thread, with the default isolation of
+	 * the connections
+	 *
+	 * @return the unit, to close once done
+	 * @throws IllegalStateException
+	 *             if a unit of work is already open on this thread
+	 */
+	public static UnitOfWork begin() {
+		return begin(-1);
+	}
+
+	/**
+	 * Opens a unit of work on the current thread
+	 *
+	 * @param isolation
+	 *            - transaction isolation level of the unit, one of the
+	 *            {@link Connection} constants
+	 * @return the unit, to close once done
+	 * @throws IllegalStateException
+	 *             if a unit of work is already open on this thread
+	 */
+	public static UnitOfWork begin(int isolation) {
+		if (CURRENT.get() != null) {
+			throw new IllegalStateException("A unit of work is already open on this thread");
+		}
+		final UnitOfWork unit = new UnitOfWork(isolation);
+		CURRENT.set(unit);
+		return unit;
+	}
+
+	/**
+	 * @return the unit of work open on the current thread, or null
+	 */
+	public static UnitOfWork current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * @return true if a unit of work is open on the current thread
+	 */
+	public static boolean isActive() {
+		return CURRENT.get() != null;
+	}
+
+	/**
+	 * Stages a write of the XML files in the unit of work of the current thread,
+	 * if there is one
+	 *
+	 * @param write
+	 * @return false if there is no unit of work, and the write must be applied
+	 *         right away
+	 */
+	public static boolean stage(Write write) {
+		final UnitOfWork unit = CURRENT.get();
+		if (unit == null) {
+			return false;
+		}
+		unit.staged.add(write);
+		return true;
+	}
+
+	/**
+	 * @return the connection of the unit, borrowed from the pool on the first
+	 *         call
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 */
+	Connection getConnection() throws ClassNotFoundException, SQLException {
+		checkOpen();
+		if (shared == null) {
+			final Connection borrowed = JDBCConnection.getPool().borrow();
+			try {
+				borrowed.setAutoCommit(false);
+				if (isolation >= 0) {
+					borrowed.setTransactionIsolation(isolation);
+				}
+			} catch (final SQLException e) {
+				borrowed.close();
+				throw e;
+			}
+			connection = borrowed;
+			shared = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new SharedConnection());
+		}
+		return shared;
+	}
+
+	/**
+	 * Commits the database transaction, then applies the staged writes of the XML
+	 * files. A write that fails doesn't stop the next ones, the first failure is
+	 * thrown once they are all applied.
+	 *
+	 * @throws SQLException
+	 *             if the transaction could not be committed, or a DAO rolled it
+	 *             back; nothing is applied then
+	 * @throws DataException
+	 *             if a staged write failed, the database is committed
+	 * @throws TransformerException
+	 *             if a staged write failed, the database is committed
+	 */
+	public void commit() throws SQLException, DataException, TransformerException {
+		checkOpen();
+		finished = true;
+		if (rollbackOnly) {
+			rollbackConnection();
+			staged.clear();
+			throw new SQLException("The unit of work was rolled back by a failed operation");
+		}
+		if (connection != null) {
+			try {
+				connection.commit();
+			} catch (final SQLException e) {
+				rollbackConnection();
+				staged.clear();
+				throw e;
+			}
+		}
+		Exception failure = null;
+		for (Write write : staged) {
+			try {
+				write.apply();
+			} catch (DataException | TransformerException | RuntimeException e) {
+				LOGGER.error("Staged write failed after the commit of the unit of work", e);
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		staged.clear();
+		if (failure instanceof DataException) {
+			throw (DataException) failure;
+		} else if (failure instanceof TransformerException) {
+			throw (TransformerException) failure;
+		} else if (failure != null) {
+			throw (RuntimeException) failure;
+		}
+	}
+
+	/**
+	 * Rolls back the database transaction and drops the staged writes
+	 */
+	public void rollback() {
+		checkOpen();
+		finished = true;
+		rollbackConnection();
+		staged.clear();
+	}
+
+	/**
+	 * Rolls back the unit if it was not committed, gives the connection back to
+	 * the pool and closes the unit on the current thread
+	 */
+	@Override
+	public void close() {
+		try {
+			if (!finished) {
+				rollback();
+			}
+		} finally {
+			if (connection != null) {
+				JDBCConnection.close(connection, null, null);
+				connection = null;
+			}
+			if (CURRENT.get() == this) {
+				CURRENT.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return true if a DAO or the database rolled back the transaction, the
+	 *         unit can only be rolled back
+	 */
+	public boolean isRollbackOnly() {
+		return rollbackOnly;
+	}
+
+	/**
+	 * @return number of writes of the XML files waiting for the commit
+	 */
+	public int getStagedWrites() {
+		return staged.size();
+	}
+
+	private void rollbackConnection() {
+		if (connection != null) {
+			JDBCConnection.rollback(connection);
+		}
+	}
+
+	private void checkOpen() {
+		if (finished || CURRENT.get() != this || Thread.currentThread() != owner) {
+			throw new IllegalStateException("The unit of work is not open on this thread");
+		}
+	}
+
+	/**
+	 * A write of the XML files, applied when the unit of work is committed
+	 */
+	public interface Write {
+		void apply() throws DataException, TransformerException;
+	}
+
+	/**
+	 * The connection seen by the DAOs, which can't end the transaction of the
+	 * unit
+	 */
+	private final class SharedConnection implements InvocationHandler {
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			final int arity = args == null ? 0 : args.length;
+			if (("close".equals(name) || "commit".equals(name)) && arity == 0) {
+				return null;
+			} else if (("setAutoCommit".equals(name) || "setTransactionIsolation".equals(name)) && arity == 1) {
+				return null;
+			} else if ("getAutoCommit".equals(name) && arity == 0) {
+				return false;
+			} else if ("rollback".equals(name) && arity == 0) {
+				rollbackOnly = true;
+				return null;
+			} else if ("isClosed".equals(name) && arity == 0) {
+				return finished || connection == null || connection.isClosed();
+			} else if ("equals".equals(name) && arity == 1) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name) && arity == 0) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name) && arity == 0) {
+				return "UnitOfWork[" + connection + "]";
+			}
+			if (finished || connection == null) {
+				throw new SQLException("The unit of work is closed");
+			}
+			final Object result;
+			try {
+				result = method.invoke(connection, args);
+			} catch (final InvocationTargetException e) {
+				throw failed(e.getCause());
+			}
+			if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+				return Proxy.newProxyInstance(Connection.class.getClassLoader(),
+						new Class<?>[] { method.getReturnType() }, new SharedStatement((Statement) result, proxy));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * A statement of the shared connection, which marks the unit as rollback only
+	 * when the database rolled the transaction back
+	 */
+	private final class SharedStatement implements InvocationHandler {
+
+		private final Statement statement;
+		private final Object connectionProxy;
+
+		private SharedStatement(Statement statement, Object connectionProxy) {
+			this.statement = statement;
+			this.connectionProxy = connectionProxy;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			final int arity = args == null ? 0 : args.length;
+			if ("getConnection".equals(name) && arity == 0) {
+				return connectionProxy;
+			} else if ("equals".equals(name) && arity == 1) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name) && arity == 0) {
+				return System.identityHashCode(proxy);
+			} else if ("toString".equals(name) && arity == 0) {
+				return "UnitOfWork[" + statement + "]";
+			}
+			try {
+				return method.invoke(statement, args);
+			} catch (final InvocationTargetException e) {
+				throw failed(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Marks the unit as rollback only if the database already rolled the
+	 * transaction back
+	 *
+	 * @return the failure, to be thrown
+	 */
+	private Throwable failed(Throwable failure) {
+		if (failure instanceof SQLException) {
+			final String state = ((SQLException) failure).getSQLState();
+			if (state != null && state.startsWith("40")) {
+				rollbackOnly = true;
+			}
+		}
+		return failure;
+	}
+
+}
@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -17,22 +20,70 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
 import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.iam.services.persistence.BinarySnapshot;
+import fr.epita.iam.services.persistence.JournalPersistence;
+import fr.epita.iam.services.persistence.Operation;
+import fr.epita.iam.services.persistence.RecordCodec;
+import fr.epita.iam.services.persistence.RecordWriter;
+import fr.epita.iam.services.persistence.StorePersistence;
+import fr.epita.iam.services.persistence.SynchronousPersistence;
+import fr.epita.iam.services.persistence.WriteBehindPersistence;
+import fr.epita.logger.Logger;
 
 /**
  * <h3>Description</h3>
  * <p>
- * This class manages the XML parsing and saving.
+ * This class manages the XML parsing and saving. Records are streamed with
+ * StAX by default; setting xml.loader=dom in the configuration file parses the
+ * whole document instead.
+ * </p>
+ * <p>
+ * Changes are written through a {@link StorePersistence}: after every change by
+ * default, in the background with xml.persistence=writebehind, or appended to
+ * a journal with xml.persistence=journal.
+ * </p>
+ * <p>
+ * With xml.snapshot=binary, the stores are saved to a memory-mapped binary
+ * snapshot next to the XML file instead of the XML file itself, and the XML
+ * file is only written when it is exported. The XML file is read only while no
+ * binary snapshot exists yet.
  * </p>
  * 
  * @author Samer Masaad
  */
 public class XMLConnection {
 	
+	private static final Logger LOGGER = new Logger(XMLConnection.class);
+
 	//path to local user's XML file
 	private static final String USERSXML = "resources/users_db.xml";
+	private static final String IDENTITIESPATH = "xml.file.path";
+	private static final String LOADER = "xml.loader";
+	private static final String DOMLOADER = "dom";
+	private static final String PERSISTENCE = "xml.persistence";
+	private static final String WRITEBEHIND = "writebehind";
+	private static final String WRITEBEHIND_INTERVAL = "xml.writebehind.interval";
+	private static final String WRITEBEHIND_MAXOPS = "xml.writebehind.maxOps";
+	private static final String JOURNAL = "journal";
+	private static final String JOURNAL_INTERVAL = "xml.journal.compactionInterval";
+	private static final String JOURNAL_MAXENTRIES = "xml.journal.maxEntries";
+	private static final String SNAPSHOT = "xml.snapshot";
+	private static final String BINARY = "binary";
+	private static final String XML_EXTENSION = ".xml";
+	private static final String BINARY_EXTENSION = ".bin";
+
+	// elements of a parsed document
+	private static final String IDENTITY = "identity";
+	private static final String USER = "user";
+	private static final String PROPERTY = "property";
+	private static final String NAME = "name";
 
 	//prevent creating an instance of this class
 	private XMLConnection() {}
@@ -47,12 +98,294 @@ public class XMLConnection {
 	public static Document getIdentityXML() throws ParserConfigurationException, SAXException, IOException {
 		// open and validate the XML file
 		
-		final ConfigurationService configuration = ConfigurationService.getInstance();
-		String path = configuration.getConfigurationValue("xml.file.path");
-		
-		return getDocument(path);
+		return getDocument(getIdentityPath());
 		
 	}
+
+	/**
+	 * Reads every identity of the identities XML file, one at a time
+	 * 
+	 * @param consumer
+	 *            - receives the identities in file order
+	 * @throws IOException
+	 */
+	public static void readIdentities(Consumer<Identity> consumer) throws IOException {
+		final File snapshot = getBinaryFile(getIdentityPath());
+		if (isBinarySnapshot() && snapshot.exists()) {
+			try (BinarySnapshot<Identity> mapped = BinarySnapshot.map(snapshot, RecordCodecs.IDENTITY)) {
+				mapped.forEach(consumer);
+			}
+		} else if (isDOMLoader()) {
+			readIdentities(getDocumentOrFail(getIdentityPath()), consumer);
+		} else {
+			XMLRecordReader.readIdentities(new File(getIdentityPath()), consumer);
+		}
+	}
+
+	/**
+	 * Reads every user of the local users XML file, one at a time
+	 * 
+	 * @param consumer
+	 *            - receives the users in file order
+	 * @throws IOException
+	 */
+	public static void readUsers(Consumer<User> consumer) throws IOException {
+		final File snapshot = getBinaryFile(USERSXML);
+		if (isBinarySnapshot() && snapshot.exists()) {
+			try (BinarySnapshot<User> mapped = BinarySnapshot.map(snapshot, RecordCodecs.USER)) {
+				mapped.forEach(consumer);
+			}
+		} else if (isDOMLoader()) {
+			readUsers(getDocumentOrFail(USERSXML), consumer);
+		} else {
+			XMLRecordReader.readUsers(new File(USERSXML), consumer);
+		}
+	}
+
+	/**
+	 * Maps the binary snapshot of the identities, indexed by UID
+	 * 
+	 * @return the mapped snapshot, or null if there is no up to date binary
+	 *         snapshot
+	 * @throws IOException
+	 */
+	public static BinarySnapshot<Identity> mapIdentities() throws IOException {
+		return map(getBinaryFile(getIdentityPath()), RecordCodecs.IDENTITY);
+	}
+
+	/**
+	 * Maps the binary snapshot of the local users, indexed by username
+	 * 
+	 * @return the mapped snapshot, or null if there is no up to date binary
+	 *         snapshot
+	 * @throws IOException
+	 */
+	public static BinarySnapshot<User> mapUsers() throws IOException {
+		return map(getBinaryFile(USERSXML), RecordCodecs.USER);
+	}
+
+	private static <T> BinarySnapshot<T> map(File snapshot, RecordCodec<T> codec) throws IOException {
+		if (!isBinarySnapshot() || !snapshot.exists() || JournalPersistence.getJournal(snapshot).length() > 0) {
+			// changes of the journal are not in the snapshot
+			return null;
+		}
+		return BinarySnapshot.map(snapshot, codec);
+	}
+
+	/**
+	 * Extracts the identities of a parsed identities document
+	 * 
+	 * @param document
+	 * @param consumer
+	 */
+	public static void readIdentities(Document document, Consumer<Identity> consumer) {
+		final NodeList nodes = document.getDocumentElement().getElementsByTagName(IDENTITY);
+		for (int i = 0; i < nodes.getLength(); i++) {
+			final Identity identity = new Identity();
+			final NodeList properties = ((Element) nodes.item(i)).getElementsByTagName(PROPERTY);
+			for (int j = 0; j < properties.getLength(); j++) {
+				final Element property = (Element) properties.item(j);
+				XMLRecordReader.setIdentityProperty(identity, property.getAttribute(NAME), property.getTextContent());
+			}
+			consumer.accept(identity);
+		}
+	}
+
+	/**
+	 * Extracts the users of a parsed users document
+	 * 
+	 * @param document
+	 * @param consumer
+	 */
+	public static void readUsers(Document document, Consumer<User> consumer) {
+		final NodeList nodes = document.getDocumentElement().getElementsByTagName(USER);
+		for (int i = 0; i < nodes.getLength(); i++) {
+			final User user = new User();
+			final NodeList properties = ((Element) nodes.item(i)).getElementsByTagName(PROPERTY);
+			for (int j = 0; j < properties.getLength(); j++) {
+				final Element property = (Element) properties.item(j);
+				XMLRecordReader.setUserProperty(user, property.getAttribute(NAME), property.getTextContent());
+			}
+			consumer.accept(user);
+		}
+	}
+
+	/**
+	 * Replaces the content of the identities XML file, also used to export the
+	 * identities in binary snapshot mode
+	 * 
+	 * @param identities
+	 * @throws TransformerException
+	 */
+	public static void saveIdentities(Iterable<Identity> identities) throws TransformerException {
+		try {
+			XMLRecordWriter.writeIdentities(new File(getIdentityPath()), identities);
+		} catch (final IOException e) {
+			throw new TransformerException(e);
+		}
+	}
+
+	/**
+	 * Replaces the content of the local users XML file, also used to export the
+	 * users in binary snapshot mode
+	 * 
+	 * @param users
+	 * @throws TransformerException
+	 */
+	public static void saveUsers(Iterable<User> users) throws TransformerException {
+		try {
+			XMLRecordWriter.writeUsers(new File(USERSXML), users);
+		} catch (final IOException e) {
+			throw new TransformerException(e);
+		}
+	}
+
+	/**
+	 * Creates the persistence of the identities store, as configured by
+	 * xml.persistence
+	 * 
+	 * @param source
+	 *            - returns a copy of the identities of the store
+	 * @return the persistence of the identities XML file
+	 */
+	public static StorePersistence<Identity> createIdentityPersistence(Supplier<? extends Iterable<Identity>> source) {
+		if (isBinarySnapshot()) {
+			return createPersistence(getBinaryFile(getIdentityPath()), source,
+					BinarySnapshot.writer(RecordCodecs.IDENTITY, Identity::getUid), RecordCodecs.IDENTITY);
+		}
+		return createPersistence(new File(getIdentityPath()), source, XMLRecordWriter::writeIdentities,
+				RecordCodecs.IDENTITY);
+	}
+
+	/**
+	 * Creates the persistence of the local users store, as configured by
+	 * xml.persistence
+	 * 
+	 * @param source
+	 *            - returns a copy of the users of the store
+	 * @return the persistence of the local users XML file
+	 */
+	public static StorePersistence<User> createUserPersistence(Supplier<? extends Iterable<User>> source) {
+		if (isBinarySnapshot()) {
+			return createPersistence(getBinaryFile(USERSXML), source,
+					BinarySnapshot.writer(RecordCodecs.USER, User::getUserName), RecordCodecs.USER);
+		}
+		return createPersistence(new File(USERSXML), source, XMLRecordWriter::writeUsers, RecordCodecs.USER);
+	}
+
+	/**
+	 * Replays the identities journal over the loaded snapshot, in journal mode
+	 * 
+	 * @param consumer
+	 *            - applies the changes to the store
+	 * @return number of replayed changes
+	 * @throws IOException
+	 */
+	public static int replayIdentities(BiConsumer<Operation, Identity> consumer) throws IOException {
+		return replay(getSnapshotFile(getIdentityPath()), RecordCodecs.IDENTITY, consumer);
+	}
+
+	/**
+	 * Replays the local users journal over the loaded snapshot, in journal mode
+	 * 
+	 * @param consumer
+	 *            - applies the changes to the store
+	 * @return number of replayed changes
+	 * @throws IOException
+	 */
+	public static int replayUsers(BiConsumer<Operation, User> consumer) throws IOException {
+		return replay(getSnapshotFile(USERSXML), RecordCodecs.USER, consumer);
+	}
+
+	private static <T> int replay(File file, RecordCodec<T> codec, BiConsumer<Operation, T> consumer)
+			throws IOException {
+		if (isPersistence(JOURNAL)) {
+			return JournalPersistence.replay(file, codec, consumer);
+		}
+		if (JournalPersistence.getJournal(file).exists()) {
+			LOGGER.warning("Ignoring the journal of " + file + ", set xml.persistence=journal to replay it");
+		}
+		return 0;
+	}
+
+	private static <T> StorePersistence<T> createPersistence(File file, Supplier<? extends Iterable<T>> source,
+			RecordWriter<T> writer, RecordCodec<T> codec) {
+		final ConfigurationService configuration = ConfigurationService.getInstance();
+		if (isPersistence(JOURNAL)) {
+			return new JournalPersistence<>(file, source, writer, codec,
+					configuration.getLongConfigurationValue(JOURNAL_INTERVAL, 60000),
+					configuration.getIntConfigurationValue(JOURNAL_MAXENTRIES, 10000));
+		}
+		if (isPersistence(WRITEBEHIND)) {
+			return new WriteBehindPersistence<>(file, source, writer,
+					configuration.getLongConfigurationValue(WRITEBEHIND_INTERVAL, 1000),
+					configuration.getIntConfigurationValue(WRITEBEHIND_MAXOPS, 500));
+		}
+		return new SynchronousPersistence<>(file, source, writer);
+	}
+
+	private static boolean isPersistence(String mode) {
+		final ConfigurationService configuration = ConfigurationService.getInstance();
+		return mode.equalsIgnoreCase(configuration.getConfigurationValue(PERSISTENCE));
+	}
+
+	private static boolean isBinarySnapshot() {
+		final ConfigurationService configuration = ConfigurationService.getInstance();
+		return BINARY.equalsIgnoreCase(configuration.getConfigurationValue(SNAPSHOT));
+	}
+
+	/**
+	 * Cheap check of the XML stores, for the health checks: the files are not
+	 * parsed
+	 *
+	 * @return true if the files of the identities and the users can be read
+	 */
+	public static boolean isReadable() {
+		return isReadable(getIdentityPath()) && isReadable(USERSXML);
+	}
+
+	private static boolean isReadable(String path) {
+		return path != null && (getSnapshotFile(path).canRead() || new File(path).canRead());
+	}
+
+	/**
+	 * @param path
+	 *            - path of an XML file
+	 * @return the file the store of this XML file is saved to
+	 */
+	private static File getSnapshotFile(String path) {
+		return isBinarySnapshot() ? getBinaryFile(path) : new File(path);
+	}
+
+	/**
+	 * @param path
+	 *            - path of an XML file
+	 * @return the binary snapshot next to this XML file
+	 */
+	private static File getBinaryFile(String path) {
+		final String base = path.endsWith(XML_EXTENSION) ? path.substring(0, path.length() - XML_EXTENSION.length())
+				: path;
+		return new File(base + BINARY_EXTENSION);
+	}
+
+	private static String getIdentityPath() {
+		final ConfigurationService configuration = ConfigurationService.getInstance();
+		return configuration.getConfigurationValue(IDENTITIESPATH);
+	}
+
+	private static boolean isDOMLoader() {
+		final ConfigurationService configuration = ConfigurationService.getInstance();
+		return DOMLOADER.equalsIgnoreCase(configuration.getConfigurationValue(LOADER));
+	}
+
+	private static Document getDocumentOrFail(String path) throws IOException {
+		try {
+			return getDocument(path);
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("Could not parse the XML file " + path, e);
+		}
+	}
+
 /**
  * 
  * @return parsed document of the local users XML file.
@@ -79,15 +412,14 @@ public class XMLConnection {
 		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 		final DocumentBuilder documentBuilder = dbf.newDocumentBuilder();
 		// parse the XML file
-		return documentBuilder.parse(new FileInputStream(file));
+		try (FileInputStream input = new FileInputStream(file)) {
+			return documentBuilder.parse(input);
+		}
 	}
 	
 	public static void saveIdentityXML(Document doc) throws TransformerException {
-		// get file path
-		final ConfigurationService configuration = ConfigurationService.getInstance();
-		String path = configuration.getConfigurationValue("xml.file.path");
 		// save the file
-		save(doc, path);
+		save(doc, getIdentityPath());
 	}
 	
 	public static void saveUserXML(Document doc) throws TransformerException {
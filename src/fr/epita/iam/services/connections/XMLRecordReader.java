@@ -0,0 +1,153 @@
+package fr.epita.iam.services.connections;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Streams the records of the identities and users XML files with StAX. Each
+ * record is handed to the consumer as soon as its closing element is read, so
+ * only one record is held in memory at a time, whatever the size of the file.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>XMLRecordReader.readIdentities(file, store::add);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class XMLRecordReader {
+
+	private static final String PROPERTY = "property";
+	private static final String NAME = "name";
+
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+
+	static {
+		// the files never reference external entities
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	// prevent creating an instance of this class
+	private XMLRecordReader() {
+	}
+
+	/**
+	 * Read every identity of an identities XML file
+	 *
+	 * @param file
+	 * @param consumer
+	 *            - receives the identities in file order
+	 * @throws IOException
+	 */
+	public static void readIdentities(File file, Consumer<Identity> consumer) throws IOException {
+		read(file, "identity", Identity::new, XMLRecordReader::setIdentityProperty, consumer);
+	}
+
+	/**
+	 * Read every user of a users XML file
+	 *
+	 * @param file
+	 * @param consumer
+	 *            - receives the users in file order
+	 * @throws IOException
+	 */
+	public static void readUsers(File file, Consumer<User> consumer) throws IOException {
+		read(file, "user", User::new, XMLRecordReader::setUserProperty, consumer);
+	}
+
+	static void setIdentityProperty(Identity identity, String name, String value) {
+		switch (name) {
+		case "displayName":
+			identity.setDisplayName(value);
+			break;
+		case "uid":
+			identity.setUid(value);
+			break;
+		case "email":
+			identity.setEmail(value);
+			break;
+		default:
+			break;
+		}
+	}
+
+	static void setUserProperty(User user, String name, String value) {
+		switch (name) {
+		case "username":
+			user.setUserName(value);
+			break;
+		case "uid":
+			user.setUid(value);
+			break;
+		case "hashedPassword":
+			// stored as is, the password is already hashed
+			user.setHashedPassword(value);
+			break;
+		default:
+			break;
+		}
+	}
+
+	private static <T> void read(File file, String recordElement, Supplier<T> factory, PropertySetter<T> setter,
+			Consumer<T> consumer) throws IOException {
+		try (InputStream input = new BufferedInputStream(new FileInputStream(file))) {
+			final XMLStreamReader reader = FACTORY.createXMLStreamReader(input);
+			try {
+				T record = null;
+				while (reader.hasNext()) {
+					final int event = reader.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						final String element = reader.getLocalName();
+						if (recordElement.equals(element)) {
+							record = factory.get();
+						} else if (record != null && PROPERTY.equals(element)) {
+							final String name = reader.getAttributeValue(null, NAME);
+							// reads up to the end of the property element
+							final String value = reader.getElementText();
+							if (name != null) {
+								setter.set(record, name, value);
+							}
+						}
+					} else if (event == XMLStreamConstants.END_ELEMENT && record != null
+							&& recordElement.equals(reader.getLocalName())) {
+						consumer.accept(record);
+						record = null;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (final XMLStreamException e) {
+			throw new IOException("Could not read the XML file " + file, e);
+		}
+	}
+
+	/**
+	 * Sets a named property on a record
+	 *
+	 * @param <T>
+	 */
+	interface PropertySetter<T> {
+		void set(T record, String name, String value);
+	}
+
+}
@@ -0,0 +1,144 @@
+package fr.epita.iam.services.connections;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Writes identities and users to XML files with StAX, in the same format as
+ * the one read by {@link XMLRecordReader}. Records are written one after the
+ * other, no document is built in memory.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>XMLRecordWriter.writeIdentities(file, store.all());</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class XMLRecordWriter {
+
+	private static final String ENCODING = "UTF-8";
+	private static final XMLOutputFactory FACTORY = XMLOutputFactory.newInstance();
+
+	// prevent creating an instance of this class
+	private XMLRecordWriter() {
+	}
+
+	/**
+	 * Write the identities to a file, replacing its content
+	 *
+	 * @param file
+	 * @param identities
+	 * @throws IOException
+	 */
+	public static void writeIdentities(File file, Iterable<Identity> identities) throws IOException {
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+			writeIdentities(output, identities);
+		}
+	}
+
+	/**
+	 * Write the identities to a stream
+	 *
+	 * @param output
+	 * @param identities
+	 * @throws IOException
+	 */
+	public static void writeIdentities(OutputStream output, Iterable<Identity> identities) throws IOException {
+		try {
+			final XMLStreamWriter writer = start(output, "identities");
+			for (Identity identity : identities) {
+				writer.writeCharacters("\n\t");
+				writer.writeStartElement("identity");
+				writeProperty(writer, "displayName", identity.getDisplayName());
+				writeProperty(writer, "uid", identity.getUid());
+				writeProperty(writer, "email", identity.getEmail());
+				writer.writeEndElement();
+			}
+			end(writer);
+		} catch (final XMLStreamException e) {
+			throw new IOException("Could not write the identities", e);
+		}
+	}
+
+	/**
+	 * Write the users to a file, replacing its content
+	 *
+	 * @param file
+	 * @param users
+	 * @throws IOException
+	 */
+	public static void writeUsers(File file, Iterable<User> users) throws IOException {
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(file))) {
+			writeUsers(output, users);
+		}
+	}
+
+	/**
+	 * Write the users to a stream
+	 *
+	 * @param output
+	 * @param users
+	 * @throws IOException
+	 */
+	public static void writeUsers(OutputStream output, Iterable<User> users) throws IOException {
+		try {
+			final XMLStreamWriter writer = start(output, "users");
+			for (User user : users) {
+				writer.writeCharacters("\n\t");
+				writer.writeStartElement("user");
+				writeProperty(writer, "username", user.getUserName());
+				writeProperty(writer, "uid", user.getUid());
+				writeProperty(writer, "hashedPassword", user.getHashedPassword());
+				writer.writeEndElement();
+			}
+			end(writer);
+		} catch (final XMLStreamException e) {
+			throw new IOException("Could not write the users", e);
+		}
+	}
+
+	private static XMLStreamWriter start(OutputStream output, String root) throws XMLStreamException {
+		final XMLStreamWriter writer = FACTORY.createXMLStreamWriter(output, ENCODING);
+		writer.writeStartDocument(ENCODING, "1.0");
+		writer.writeCharacters("\n");
+		writer.writeStartElement(root);
+		return writer;
+	}
+
+	private static void end(XMLStreamWriter writer) throws XMLStreamException {
+		writer.writeCharacters("\n");
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.flush();
+		writer.close();
+	}
+
+	private static void writeProperty(XMLStreamWriter writer, String name, String value) throws XMLStreamException {
+		if (value == null || value.isEmpty()) {
+			writer.writeEmptyElement("property");
+			writer.writeAttribute("name", name);
+		} else {
+			writer.writeStartElement("property");
+			writer.writeAttribute("name", name);
+			writer.writeCharacters(value);
+			writer.writeEndElement();
+		}
+	}
+
+}
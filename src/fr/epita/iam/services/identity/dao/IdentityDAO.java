@@ -1,10 +1,13 @@
 package fr.epita.iam.services.identity.dao;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
 import javax.xml.transform.TransformerException;
 
 import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
 import fr.epita.iam.exceptions.DuplicateException;
@@ -43,6 +46,40 @@ public interface IdentityDAO {
 	public void create(Identity identity)
 			throws CreationException, ReadOnlyException, DuplicateException, SearchException, TransformerException;
 
+	/**
+	 * Creates many identities at once
+	 * 
+	 * @param identities
+	 *            - identities to add
+	 * @throws CreationException
+	 * @throws ReadOnlyException
+	 * @throws DuplicateException
+	 * @throws SearchException
+	 * @throws TransformerException
+	 */
+	public void createAll(Collection<Identity> identities)
+			throws CreationException, ReadOnlyException, DuplicateException, SearchException, TransformerException;
+
+	/**
+	 * Finds the identities whose UID is already used
+	 * 
+	 * @param identities
+	 *            - identities to check
+	 * @return the identities of the collection whose UID is already used
+	 * @throws SearchException
+	 */
+	public List<Identity> findDuplicates(Collection<Identity> identities) throws SearchException;
+
+	/**
+	 * Reads the identities having these UIDs, ignoring case
+	 * 
+	 * @param uids
+	 *            - UIDs of the identities
+	 * @return the identities found, in no particular order
+	 * @throws SearchException
+	 */
+	public List<Identity> findByUids(Collection<String> uids) throws SearchException;
+
 	/**
 	 * Search for an identity
 	 * 
@@ -53,6 +90,33 @@ public interface IdentityDAO {
 	 */
 	public List<Identity> search(Identity criteria) throws SearchException;
 
+	/**
+	 * Search for identities without holding all of them in memory. The stream
+	 * may hold resources, it must be closed after use.
+	 * 
+	 * @param criteria
+	 *            - criteria of the identity to search for
+	 * @return stream of matched identities
+	 * @throws SearchException
+	 */
+	public Stream<Identity> stream(Identity criteria) throws SearchException;
+
+	/**
+	 * Search for identities, one page at a time
+	 * 
+	 * @param criteria
+	 *            - criteria of the identity to search for
+	 * @param pageSize
+	 *            - maximum number of identities of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return the page of matched identities, and the cursor of the next one
+	 * @throws SearchException
+	 *             also if the cursor is not valid for this DAO
+	 */
+	public Page<Identity> searchPage(Identity criteria, int pageSize, String cursor) throws SearchException;
+
 	/**
 	 * Update information of an identity
 	 * 
@@ -1,10 +1,23 @@
 package fr.epita.iam.services.identity.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.xml.transform.TransformerException;
 
 import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
 import fr.epita.iam.exceptions.DuplicateException;
@@ -12,12 +25,33 @@ import fr.epita.iam.exceptions.ReadOnlyException;
 import fr.epita.iam.exceptions.SearchException;
 import fr.epita.iam.exceptions.UpdateException;
 import fr.epita.iam.launcher.Global;
+import fr.epita.iam.services.connections.CircuitBreaker;
+import fr.epita.iam.services.connections.DualWriter;
+import fr.epita.iam.services.connections.JDBCConnection;
+import fr.epita.iam.services.connections.UnitOfWork;
+import fr.epita.iam.services.users.dao.LoginCache;
+import fr.epita.iam.services.users.dao.UsernameIndex;
 import fr.epita.logger.Logger;
 
 /**
  * <h3>Description</h3>
  * <p>
- * Manages the JDBC and XML Identity DAOs.
+ * Manages the JDBC and XML Identity DAOs. The XML file is written alongside
+ * the database by the {@link DualWriter}, and put back as it was if the
+ * database write fails. Inside a {@link UnitOfWork}, the writes of the XML
+ * file are staged and applied once the unit is committed.
+ * </p>
+ *
+ * <p>
+ * Searches of the database by display name or email are resolved by the
+ * {@link IdentitySearchIndex}, which every create, update and delete keeps up
+ * to date, and only the matched identities are read from the database. The
+ * same index suggests identities by the start of their display name or UID.
+ * </p>
+ *
+ * <p>
+ * The reads of the database go through the {@link CircuitBreaker}, and are
+ * answered from the XML file while its circuit is open.
  * </p>
  *
  * <h3>Usage</h3>
@@ -31,20 +65,24 @@ import fr.epita.logger.Logger;
  */
 public class IdentityDAOManager implements IdentityDAO {
 
-	private boolean readOnly = true;
-
 	private static Logger logger = new Logger(IdentityDAOManager.class);
 
 	private IdentityDAO dbDAO;
 	private IdentityDAO xmlDAO;
+	private DualWriter dualWriter;
+	private CircuitBreaker circuitBreaker;
+	// null if disabled
+	private IdentitySearchIndex searchIndex;
 
 	/**
 	 * <h3>Constructor</h3>
 	 */
 	public IdentityDAOManager() {
-		readOnly = Global.isReadOnly();
 		dbDAO = new IdentityJDBCDAO();
 		xmlDAO = new IdentityXMLDAO();
+		dualWriter = DualWriter.getInstance();
+		circuitBreaker = CircuitBreaker.getInstance();
+		searchIndex = IdentitySearchIndex.getInstance();
 	}
 
 	/**
@@ -61,14 +99,19 @@ public class IdentityDAOManager implements IdentityDAO {
 	 */
 	public void create(Identity identity)
 			throws CreationException, ReadOnlyException, DuplicateException, SearchException, TransformerException {
-		if (readOnly) {
+		if (Global.isReadOnly()) {
 			logger.error("Running in read-only mode. Can't create this identity : " + identity);
 			throw new ReadOnlyException(identity);
 		} else {
 			if (getUserByUid(identity) == null) {
 				// no duplicate uid found
-				dbDAO.create(identity);
-				xmlDAO.create(identity);
+				final Identity xmlIdentity = snapshot(identity);
+				try (DualWriter.WriteHandle write = beginXmlWrite(Collections.singleton(xmlIdentity),
+						() -> xmlDAO.create(xmlIdentity))) {
+					dbDAO.create(identity);
+					write.primaryWritten();
+				}
+				indexed(index -> index.put(identity));
 			} else {
 				// duplicate uid found
 				logger.error("Duplicate UID found while creating this identity: " + identity);
@@ -77,6 +120,72 @@ public class IdentityDAOManager implements IdentityDAO {
 		}
 	}
 
+	/**
+	 * Creates many identities if not in read only mode and no UID is duplicated.
+	 * Otherwise throws {@link ReadOnlyException} or {@link DuplicateException}.
+	 * Duplicates are checked once for the whole collection, then the identities
+	 * are created in batches of db.batchSize, each batch in one database
+	 * transaction and one write of the XML file.
+	 * 
+	 * @param identities
+	 *            - identities to add
+	 * @throws CreationException
+	 *             if a batch failed, the previous batches are kept
+	 * @throws ReadOnlyException
+	 * @throws DuplicateException
+	 * @throws SearchException
+	 * @throws TransformerException
+	 */
+	public void createAll(Collection<Identity> identities)
+			throws CreationException, ReadOnlyException, DuplicateException, SearchException, TransformerException {
+		if (identities.isEmpty()) {
+			return;
+		}
+		if (Global.isReadOnly()) {
+			logger.error("Running in read-only mode. Can't create " + identities.size() + " identities");
+			throw new ReadOnlyException(identities.iterator().next());
+		}
+		// duplicates inside the collection, ignoring case like the stores
+		final Set<String> uids = new HashSet<>();
+		for (Identity identity : identities) {
+			if (!uids.add(identity.getUid() == null ? null : identity.getUid().toLowerCase(Locale.ROOT))) {
+				logger.error("Duplicate UID found while creating this identity: " + identity);
+				throw new DuplicateException(identity);
+			}
+		}
+		// duplicates already stored
+		final List<Identity> duplicates = findDuplicates(identities);
+		if (!duplicates.isEmpty()) {
+			logger.error(duplicates.size() + " duplicate UIDs found while creating identities, first one: "
+					+ duplicates.get(0));
+			throw new DuplicateException(duplicates.get(0));
+		}
+		final List<Identity> all = new ArrayList<>(identities);
+		final int batchSize = JDBCConnection.getBatchSize();
+		for (int from = 0; from < all.size(); from += batchSize) {
+			final List<Identity> batch = all.subList(from, Math.min(from + batchSize, all.size()));
+			final List<Identity> xmlBatch = batch.stream().map(IdentityDAOManager::snapshot)
+					.collect(Collectors.toList());
+			try (DualWriter.WriteHandle write = beginXmlWrite(xmlBatch, () -> xmlDAO.createAll(xmlBatch))) {
+				dbDAO.createAll(batch);
+				write.primaryWritten();
+			}
+			indexed(index -> index.putAll(batch));
+		}
+	}
+
+	/**
+	 * @param identities
+	 *            - identities to check
+	 * @return the identities of the collection whose UID is already used in the
+	 *         database
+	 * @throws SearchException
+	 */
+	@Override
+	public List<Identity> findDuplicates(Collection<Identity> identities) throws SearchException {
+		return circuitBreaker.call(() -> dbDAO.findDuplicates(identities));
+	}
+
 	/**
 	 * Search for an identity. Search database if it's working, otherwise search XML
 	 * file.
@@ -88,14 +197,232 @@ public class IdentityDAOManager implements IdentityDAO {
 	 */
 	public List<Identity> search(Identity criteria) throws SearchException {
 		if (Global.isDBWorking()) {
+			if (searchIndex != null && (criteria.getDisplayName() != null || criteria.getEmail() != null)) {
+				// contains-query, which the database can only answer with a table scan
+				return circuitBreaker.call(() -> searchIndexed(criteria), () -> xmlDAO.search(criteria));
+			}
 			// use database if working
-			return dbDAO.search(criteria);
+			return circuitBreaker.call(() -> dbDAO.search(criteria), () -> xmlDAO.search(criteria));
 		} else {
 			// use XML
 			return xmlDAO.search(criteria);
 		}
 	}
 
+	/**
+	 * Resolves the candidate UIDs with the search index, loaded on first use,
+	 * then reads them from the database and checks them against the criteria
+	 */
+	private List<Identity> searchIndexed(Identity criteria) throws SearchException {
+		searchIndex.load(() -> dbDAO.stream(new Identity()));
+		final Set<String> uids = searchIndex.search(criteria.getDisplayName(), criteria.getEmail());
+		if (criteria.getUid() != null) {
+			uids.retainAll(Collections.singleton(IdentitySearchIndex.key(criteria.getUid())));
+		}
+		final List<Identity> results = new ArrayList<>(uids.size());
+		for (Identity identity : dbDAO.findByUids(uids)) {
+			// changed since it was indexed
+			if (contains(identity.getDisplayName(), criteria.getDisplayName())
+					&& contains(identity.getEmail(), criteria.getEmail())) {
+				results.add(identity);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Suggests identities for a type-ahead, the ones whose display name starts
+	 * with the prefix, sorted by display name, then the ones whose UID starts
+	 * with it, sorted by UID. The {@link IdentitySearchIndex} finds them when the
+	 * database is working, then only they are read, otherwise the identities of
+	 * the XML file are scanned.
+	 * 
+	 * @param prefix
+	 *            - start of the display name or UID, ignoring case
+	 * @param limit
+	 *            - maximum number of identities returned
+	 * @return the matched identities
+	 * @throws SearchException
+	 */
+	public List<Identity> suggest(String prefix, int limit) throws SearchException {
+		if (Global.isDBWorking() && searchIndex != null) {
+			return circuitBreaker.call(() -> suggestIndexed(prefix, limit), () -> {
+				try (Stream<Identity> all = xmlDAO.stream(new Identity())) {
+					return suggest(all, prefix, limit);
+				}
+			});
+		}
+		try (Stream<Identity> all = stream(new Identity())) {
+			return suggest(all, prefix, limit);
+		}
+	}
+
+	/**
+	 * Finds the suggestions with the search index, loaded on first use, then
+	 * reads them from the database
+	 */
+	private List<Identity> suggestIndexed(String prefix, int limit) throws SearchException {
+		final String start = prefix.toLowerCase(Locale.ROOT);
+		searchIndex.load(() -> dbDAO.stream(new Identity()));
+		final List<String> uids = searchIndex.suggest(prefix, limit);
+		final Map<String, Identity> identities = new HashMap<>();
+		for (Identity identity : dbDAO.findByUids(uids)) {
+			identities.put(IdentitySearchIndex.key(identity.getUid()), identity);
+		}
+		final List<Identity> results = new ArrayList<>(uids.size());
+		for (String uid : uids) {
+			final Identity identity = identities.get(uid);
+			// may have changed since it was indexed
+			if (identity != null && (startsWith(identity.getDisplayName(), start)
+					|| startsWith(identity.getUid(), start))) {
+				results.add(identity);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Scans the identities for the suggestions
+	 */
+	private static List<Identity> suggest(Stream<Identity> all, String prefix, int limit) {
+		final String start = prefix.toLowerCase(Locale.ROOT);
+		final Comparator<String> order = Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER);
+		final List<Identity> byDisplayName = new ArrayList<>();
+		final List<Identity> byUid = new ArrayList<>();
+		all.forEach(identity -> {
+			if (startsWith(identity.getDisplayName(), start)) {
+				byDisplayName.add(identity);
+			} else if (startsWith(identity.getUid(), start)) {
+				byUid.add(identity);
+			}
+		});
+		byDisplayName.sort(Comparator.comparing(Identity::getDisplayName, order));
+		byUid.sort(Comparator.comparing(Identity::getUid, order));
+		byDisplayName.addAll(byUid);
+		return new ArrayList<>(byDisplayName.subList(0, Math.min(limit, byDisplayName.size())));
+	}
+
+	private static boolean startsWith(String value, String start) {
+		return value != null && value.toLowerCase(Locale.ROOT).startsWith(start);
+	}
+
+	private static boolean contains(String value, String query) {
+		return query == null
+				|| value != null && value.toLowerCase(Locale.ROOT).contains(query.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Starts the write of the XML file alongside the database write. If the
+	 * database write fails, the XML identities having the UIDs of the
+	 * identities are put back as they were before the write. The identities
+	 * must be copies, see {@link #snapshot(Identity)}.
+	 */
+	private DualWriter.WriteHandle beginXmlWrite(Collection<Identity> identities, UnitOfWork.Write write) {
+		final List<String> uids = new ArrayList<>(identities.size());
+		for (Identity identity : identities) {
+			if (identity.getUid() == null) {
+				// can't be undone
+				return dualWriter.begin(write, null);
+			}
+			uids.add(identity.getUid());
+		}
+		final List<Identity> previous = new ArrayList<>();
+		return dualWriter.begin(() -> {
+			previous.clear();
+			previous.addAll(xmlDAO.findByUids(uids));
+			write.apply();
+		}, () -> {
+			for (Identity identity : identities) {
+				xmlDAO.delete(identity);
+			}
+			if (!previous.isEmpty()) {
+				xmlDAO.createAll(previous);
+			}
+		});
+	}
+
+	/**
+	 * Copies the identity for the write of the XML file, which may run on
+	 * another thread after the call returned, so the caller can reuse or edit
+	 * its identity
+	 */
+	private static Identity snapshot(Identity identity) {
+		return new Identity(identity.getDisplayName(), identity.getUid(), identity.getEmail());
+	}
+
+	/**
+	 * Applies a change to the search index, once the unit of work is committed
+	 * if there is one
+	 */
+	private void indexed(Consumer<IdentitySearchIndex> change) {
+		if (searchIndex != null && !UnitOfWork.stage(() -> change.accept(searchIndex))) {
+			change.accept(searchIndex);
+		}
+	}
+
+	/**
+	 * @param uids
+	 *            - UIDs of the identities
+	 * @return the identities having these UIDs, from the database if it's
+	 *         working, otherwise from the XML file
+	 * @throws SearchException
+	 */
+	@Override
+	public List<Identity> findByUids(Collection<String> uids) throws SearchException {
+		if (Global.isDBWorking()) {
+			// use database if working
+			return circuitBreaker.call(() -> dbDAO.findByUids(uids), () -> xmlDAO.findByUids(uids));
+		} else {
+			// use XML
+			return xmlDAO.findByUids(uids);
+		}
+	}
+
+	/**
+	 * Search for identities, streamed from the database if it's working,
+	 * otherwise from the XML file. The stream must be closed after use.
+	 * 
+	 * @param criteria
+	 *            - criteria of identity to search for
+	 * @return stream of matched identities
+	 * @throws SearchException
+	 */
+	public Stream<Identity> stream(Identity criteria) throws SearchException {
+		if (Global.isDBWorking()) {
+			// use database if working
+			return circuitBreaker.call(() -> dbDAO.stream(criteria), () -> xmlDAO.stream(criteria));
+		} else {
+			// use XML
+			return xmlDAO.stream(criteria);
+		}
+	}
+
+	/**
+	 * Search for identities one page at a time, in the database if it's working,
+	 * otherwise in the XML file. A cursor is only valid for the source that
+	 * returned it, the search has to start over if the source changed.
+	 * 
+	 * @param criteria
+	 *            - criteria of identity to search for
+	 * @param pageSize
+	 *            - maximum number of identities of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return the page of matched identities
+	 * @throws SearchException
+	 */
+	public Page<Identity> searchPage(Identity criteria, int pageSize, String cursor) throws SearchException {
+		if (Global.isDBWorking()) {
+			// use database if working
+			return circuitBreaker.call(() -> dbDAO.searchPage(criteria, pageSize, cursor),
+					() -> xmlDAO.searchPage(criteria, pageSize, cursor));
+		} else {
+			// use XML
+			return xmlDAO.searchPage(criteria, pageSize, cursor);
+		}
+	}
+
 	/**
 	 * Updates the information of an identity if not in read only mode. Otherwise
 	 * throws {@link ReadOnlyException}
@@ -109,18 +436,25 @@ public class IdentityDAOManager implements IdentityDAO {
 	 * @throws TransformerException
 	 */
 	public void update(Identity from, Identity to) throws ReadOnlyException, UpdateException, TransformerException {
-		if (readOnly) {
+		if (Global.isReadOnly()) {
 			logger.error("Running in read-only mode. Can't update this identity : " + to);
 			throw new ReadOnlyException(to);
 		} else {
-			dbDAO.update(from, to);
-			xmlDAO.update(from, to);
+			final Identity xmlFrom = snapshot(from);
+			final Identity xmlTo = snapshot(to);
+			try (DualWriter.WriteHandle write = beginXmlWrite(Collections.singleton(xmlTo),
+					() -> xmlDAO.update(xmlFrom, xmlTo))) {
+				dbDAO.update(from, to);
+				write.primaryWritten();
+			}
+			indexed(index -> index.put(to));
 		}
 	}
 
 	/**
 	 * Delete an identity if not in read only mode. Otherwise throws
-	 * {@link ReadOnlyException}
+	 * {@link ReadOnlyException}. The cached logins are forgotten, since the user
+	 * of the identity is deleted with it.
 	 * 
 	 * @param identity
 	 * @throws ReadOnlyException
@@ -128,18 +462,34 @@ public class IdentityDAOManager implements IdentityDAO {
 	 * @throws TransformerException
 	 */
 	public void delete(Identity identity) throws ReadOnlyException, DeleteException, TransformerException {
-		if (readOnly) {
+		if (Global.isReadOnly()) {
 			logger.error("Running in read-only mode. Can't delete this identity : " + identity);
 			throw new ReadOnlyException(identity);
 		} else {
-			dbDAO.delete(identity);
-			xmlDAO.delete(identity);
+			try {
+				final Identity xmlIdentity = snapshot(identity);
+				try (DualWriter.WriteHandle write = beginXmlWrite(Collections.singleton(xmlIdentity),
+						() -> xmlDAO.delete(xmlIdentity))) {
+					dbDAO.delete(identity);
+					write.primaryWritten();
+				}
+				indexed(index -> index.remove(identity.getUid()));
+				// its username is not known here
+				final UsernameIndex usernames = UsernameIndex.getInstance();
+				if (usernames != null && !UnitOfWork.stage(usernames::invalidate)) {
+					usernames.invalidate();
+				}
+			} finally {
+				LoginCache.getInstance().invalidateAll();
+				// again once committed, a login may have cached the user meanwhile
+				UnitOfWork.stage(() -> LoginCache.getInstance().invalidateAll());
+			}
 		}
 	}
 
 	@Override
 	public Identity getUserByUid(Identity criteria) throws SearchException {
-		return dbDAO.getUserByUid(criteria);
+		return circuitBreaker.call(() -> dbDAO.getUserByUid(criteria));
 	}
 
 }
@@ -5,9 +5,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
 import fr.epita.iam.exceptions.SearchException;
@@ -34,6 +40,18 @@ public class IdentityJDBCDAO implements IdentityDAO {
 
 	private static final Logger LOGGER = new Logger(IdentityJDBCDAO.class);
 
+	/**
+	 * Source of the cursors of the pages returned by the database
+	 */
+	public static final String CURSOR_SOURCE = "db";
+
+	private static final String SEARCH_CRITERIA = "WHERE (? IS NULL OR DISPLAY_NAME LIKE ?) "
+			+ "AND (? IS NULL OR EMAIL LIKE ?) " + "AND (? IS NULL OR UID_LOWER = ?)";
+	private static final String SEARCH = "SELECT DISPLAY_NAME, EMAIL, UID FROM IDENTITIES " + SEARCH_CRITERIA;
+	// seeks the page on the primary key
+	private static final String SEARCH_PAGE = "SELECT ID, DISPLAY_NAME, EMAIL, UID FROM IDENTITIES "
+			+ SEARCH_CRITERIA + " AND ID > ? ORDER BY ID FETCH FIRST ? ROWS ONLY";
+
 	/**
 	 * Add an identity to the database.
 	 * 
@@ -67,6 +85,154 @@ public class IdentityJDBCDAO implements IdentityDAO {
 		}
 	}
 
+	/**
+	 * Add identities to the database, in one batch and one transaction. Nothing is
+	 * added if one of the inserts fails.
+	 * 
+	 * @param identities - the identities to add
+	 * @throws CreationException
+	 */
+	@Override
+	public void createAll(Collection<Identity> identities) throws CreationException {
+		if (identities.isEmpty()) {
+			return;
+		}
+		LOGGER.info("Creating " + identities.size() + " identities in database");
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		try {
+			// get connection
+			connection = JDBCConnection.getConnection();
+			connection.setAutoCommit(false);
+			preparedStatement = connection
+					.prepareStatement("INSERT INTO IDENTITIES(UID, EMAIL, DISPLAY_NAME) VALUES (?, ?, ?)");
+			for (Identity identity : identities) {
+				// set parameters
+				preparedStatement.setString(1, identity.getUid());
+				preparedStatement.setString(2, identity.getEmail());
+				preparedStatement.setString(3, identity.getDisplayName());
+				preparedStatement.addBatch();
+			}
+			// execute
+			preparedStatement.executeBatch();
+			connection.commit();
+		} catch (final Exception e) {
+			JDBCConnection.rollback(connection);
+			LOGGER.error("Error occured while creating " + identities.size() + " identities in database, got that error "
+					+ e.getMessage());
+			throw new CreationException(e, identities.iterator().next());
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, null);
+		}
+	}
+
+	/**
+	 * Reads the identities having these UIDs, with one query per
+	 * {@link JDBCConnection#IN_LIST_SIZE} UIDs served by the index of UID_LOWER
+	 * 
+	 * @param uids - UIDs of the identities
+	 * @return the identities found, in no particular order
+	 * @throws SearchException
+	 */
+	@Override
+	public List<Identity> findByUids(Collection<String> uids) throws SearchException {
+		final List<String> keys = new ArrayList<>(uids.size());
+		for (String uid : uids) {
+			keys.add(uid.toLowerCase(Locale.ROOT));
+		}
+		final List<Identity> results = new ArrayList<>(keys.size());
+		if (keys.isEmpty()) {
+			return results;
+		}
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			// get connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement("SELECT DISPLAY_NAME, EMAIL, UID FROM IDENTITIES "
+					+ "WHERE UID_LOWER IN (" + JDBCConnection.placeholders(JDBCConnection.IN_LIST_SIZE) + ")");
+			for (int from = 0; from < keys.size(); from += JDBCConnection.IN_LIST_SIZE) {
+				final int to = Math.min(from + JDBCConnection.IN_LIST_SIZE, keys.size());
+				// set the parameters, the last UID fills the rest of the list
+				for (int i = 0; i < JDBCConnection.IN_LIST_SIZE; i++) {
+					preparedStatement.setString(i + 1, keys.get(Math.min(from + i, to - 1)));
+				}
+				// execute the query
+				rs = preparedStatement.executeQuery();
+				while (rs.next()) {
+					results.add(toIdentity(rs));
+				}
+				rs.close();
+				rs = null;
+			}
+		} catch (ClassNotFoundException | SQLException e) {
+			LOGGER.error("error while reading identities by UID from the database", e);
+			throw new SearchException(e, new Identity(null, keys.get(0), null));
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+		}
+		return results;
+	}
+
+	/**
+	 * Finds the identities whose UID is already in the database, ignoring case
+	 * like the unique index of UID_LOWER, with one query per
+	 * {@link JDBCConnection#IN_LIST_SIZE} identities
+	 * 
+	 * @param identities - identities to check
+	 * @return the identities of the collection whose UID is already used
+	 * @throws SearchException
+	 */
+	@Override
+	public List<Identity> findDuplicates(Collection<Identity> identities) throws SearchException {
+		final List<String> uids = new ArrayList<>(identities.size());
+		for (Identity identity : identities) {
+			if (identity.getUid() != null) {
+				uids.add(identity.getUid().toLowerCase(Locale.ROOT));
+			}
+		}
+		final Set<String> existing = new HashSet<>();
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			// get connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement("SELECT UID_LOWER FROM IDENTITIES WHERE UID_LOWER IN ("
+					+ JDBCConnection.placeholders(JDBCConnection.IN_LIST_SIZE) + ")");
+			for (int from = 0; from < uids.size(); from += JDBCConnection.IN_LIST_SIZE) {
+				final int to = Math.min(from + JDBCConnection.IN_LIST_SIZE, uids.size());
+				// set the parameters, the last UID fills the rest of the list
+				for (int i = 0; i < JDBCConnection.IN_LIST_SIZE; i++) {
+					preparedStatement.setString(i + 1, uids.get(Math.min(from + i, to - 1)));
+				}
+				// execute the query
+				rs = preparedStatement.executeQuery();
+				while (rs.next()) {
+					existing.add(rs.getString("UID_LOWER"));
+				}
+				rs.close();
+				rs = null;
+			}
+		} catch (ClassNotFoundException | SQLException e) {
+			LOGGER.error("error while searching the database for duplicate UIDs", e);
+			throw new SearchException(e, identities.iterator().next());
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+		}
+		final List<Identity> duplicates = new ArrayList<>();
+		for (Identity identity : identities) {
+			if (identity.getUid() != null && existing.contains(identity.getUid().toLowerCase(Locale.ROOT))) {
+				duplicates.add(identity);
+			}
+		}
+		return duplicates;
+	}
+
 	/**
 	 * Search the database for an identity
 	 * 
@@ -84,28 +250,14 @@ public class IdentityJDBCDAO implements IdentityDAO {
 		try {
 			// get connection
 			connection = JDBCConnection.getConnection();
-			final String sqlString = "SELECT DISPLAY_NAME, EMAIL, UID FROM IDENTITIES "
-					+ "WHERE (? IS NULL OR DISPLAY_NAME LIKE ?) " + "AND (? IS NULL OR EMAIL LIKE ?) "
-					+ "AND (? IS NULL OR LOWER(UID) = ?)";
-			preparedStatement = connection.prepareStatement(sqlString);
+			preparedStatement = connection.prepareStatement(SEARCH);
 			// set the parameters
-			preparedStatement.setString(1, criteria.getDisplayName());
-			preparedStatement.setString(2, "%" + criteria.getDisplayName() + "%");
-			preparedStatement.setString(3, criteria.getEmail());
-			preparedStatement.setString(4, "%" + criteria.getEmail() + "%");
-			preparedStatement.setString(5, criteria.getUid());
-			if(criteria.getUid() != null) preparedStatement.setString(6, criteria.getUid().toLowerCase());
-			else preparedStatement.setString(6, null);
+			setSearchParameters(preparedStatement, criteria);
 			// execute the query
 			rs = preparedStatement.executeQuery();
 			while (rs.next()) {
 				// deserialise the results
-				final Identity currentIdentity = new Identity();
-				currentIdentity.setDisplayName(rs.getString("DISPLAY_NAME"));
-				currentIdentity.setEmail(rs.getString("EMAIL"));
-				currentIdentity.setUid(rs.getString("UID"));
-
-				results.add(currentIdentity);
+				results.add(toIdentity(rs));
 			}
 		} catch (ClassNotFoundException | SQLException e) {
 			LOGGER.error("error while performing search in the database", e);
@@ -117,6 +269,109 @@ public class IdentityJDBCDAO implements IdentityDAO {
 		return results;
 	}
 
+	/**
+	 * Search the database for identities, reading the matched rows
+	 * {@link JDBCConnection#getFetchSize()} at a time as the stream is consumed.
+	 * The stream holds a connection until it is closed.
+	 * 
+	 * @param criteria - criteria of the identity to search for
+	 * @return stream of matched identities, to close after use
+	 * @throws SearchException
+	 */
+	@Override
+	public Stream<Identity> stream(Identity criteria) throws SearchException {
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			// get connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement(SEARCH);
+			preparedStatement.setFetchSize(JDBCConnection.getFetchSize());
+			// set the parameters
+			setSearchParameters(preparedStatement, criteria);
+			// execute the query, the rows are read by the stream
+			rs = preparedStatement.executeQuery();
+			return JDBCConnection.stream(connection, preparedStatement, rs, IdentityJDBCDAO::toIdentity);
+		} catch (ClassNotFoundException | SQLException e) {
+			LOGGER.error("error while performing search in the database", e);
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+			throw new SearchException(e, criteria);
+		}
+	}
+
+	/**
+	 * Search the database for identities, one page at a time in the order of
+	 * their ID. The page starts right after the ID held by the cursor, so every
+	 * page costs the same whatever its position.
+	 * 
+	 * @param criteria - criteria of the identity to search for
+	 * @param pageSize - maximum number of identities of the page
+	 * @param cursor - cursor returned with the previous page, null for the first page
+	 * @return the page of matched identities
+	 * @throws SearchException
+	 */
+	@Override
+	public Page<Identity> searchPage(Identity criteria, int pageSize, String cursor) throws SearchException {
+		final List<Identity> results = new ArrayList<>();
+		String nextCursor = null;
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			if (pageSize < 1) {
+				throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+			}
+			final long after = Page.seek(cursor, CURSOR_SOURCE);
+			// get connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement(SEARCH_PAGE);
+			// set the parameters, one more row tells if there is a next page
+			setSearchParameters(preparedStatement, criteria);
+			preparedStatement.setLong(7, after);
+			preparedStatement.setInt(8, pageSize + 1);
+			// execute the query
+			rs = preparedStatement.executeQuery();
+			long last = after;
+			while (rs.next()) {
+				if (results.size() == pageSize) {
+					nextCursor = Page.cursor(CURSOR_SOURCE, last);
+					break;
+				}
+				// deserialise the results
+				results.add(toIdentity(rs));
+				last = rs.getLong("ID");
+			}
+		} catch (ClassNotFoundException | SQLException | IllegalArgumentException e) {
+			LOGGER.error("error while performing search in the database", e);
+			throw new SearchException(e, criteria);
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+		}
+		return new Page<>(results, nextCursor);
+	}
+
+	private static void setSearchParameters(PreparedStatement preparedStatement, Identity criteria)
+			throws SQLException {
+		preparedStatement.setString(1, criteria.getDisplayName());
+		preparedStatement.setString(2, "%" + criteria.getDisplayName() + "%");
+		preparedStatement.setString(3, criteria.getEmail());
+		preparedStatement.setString(4, "%" + criteria.getEmail() + "%");
+		preparedStatement.setString(5, criteria.getUid());
+		if(criteria.getUid() != null) preparedStatement.setString(6, criteria.getUid().toLowerCase(Locale.ROOT));
+		else preparedStatement.setString(6, null);
+	}
+
+	private static Identity toIdentity(ResultSet rs) throws SQLException {
+		final Identity identity = new Identity();
+		identity.setDisplayName(rs.getString("DISPLAY_NAME"));
+		identity.setEmail(rs.getString("EMAIL"));
+		identity.setUid(rs.getString("UID"));
+		return identity;
+	}
+
 	/**
 	 * Update information of an identity in the database
 	 * 
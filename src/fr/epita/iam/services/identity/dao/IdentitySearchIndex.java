@@ -0,0 +1,296 @@
+package fr.epita.iam.services.identity.dao;
+
+import java.util.Collection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.exceptions.SearchException;
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.iam.services.index.PrefixIndex;
+import fr.epita.iam.services.index.SubstringIndex;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Trigram index of the display names and emails of the identities of the
+ * database, keyed by lower case UID, so contains-queries resolve to candidate
+ * UIDs without the table scan of a LIKE '%x%'. The index is loaded from the
+ * database on the first contains-query, then kept up to date by the
+ * {@link IdentityDAOManager} on every create, update and delete. Changes made
+ * to the database by other processes are not seen until {@link #invalidate()}.
+ * </p>
+ *
+ * <p>
+ * Matching ignores case, like the searches of the XML file.
+ * </p>
+ *
+ * <p>
+ * The display names and UIDs are also held in {@link PrefixIndex}es, for the
+ * suggestions of {@link #suggest(String, int)}.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>IdentitySearchIndex index = IdentitySearchIndex.getInstance();</code>
+ * <code>index.load(() -&gt; dbDAO.stream(new Identity()));</code>
+ * <code>Set&lt;String&gt; uids = index.search(displayName, email);</code>
+ * <code>List&lt;String&gt; suggestions = index.suggest("sam", 10);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class IdentitySearchIndex {
+
+	private static final Logger LOGGER = new Logger(IdentitySearchIndex.class);
+
+	private static final String ENABLED = "search.index.enabled";
+
+	private static IdentitySearchIndex instance;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final SubstringIndex<String> displayNames = new SubstringIndex<>();
+	private final SubstringIndex<String> emails = new SubstringIndex<>();
+	private final PrefixIndex<String> displayNamePrefixes = new PrefixIndex<>();
+	private final PrefixIndex<String> uidPrefixes = new PrefixIndex<>();
+	private final Set<String> uids = new HashSet<>();
+	private volatile boolean loaded = false;
+
+	/**
+	 * @return the index shared by the identity DAO managers, or null if disabled
+	 *         in the configuration file
+	 */
+	public static synchronized IdentitySearchIndex getInstance() {
+		if (instance == null) {
+			final String enabled = ConfigurationService.getInstance().getConfigurationValue(ENABLED);
+			if (enabled != null && !Boolean.parseBoolean(enabled.trim())) {
+				return null;
+			}
+			instance = new IdentitySearchIndex();
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if the index has been loaded
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * Loads every identity of the source, unless already loaded. The changes
+	 * reported while loading wait for the load to finish.
+	 *
+	 * @param source
+	 *            - every identity of the database, the stream is closed
+	 * @throws SearchException
+	 */
+	public void load(Source source) throws SearchException {
+		if (loaded) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+			final long start = System.nanoTime();
+			clear();
+			try (Stream<Identity> identities = source.open()) {
+				identities.forEach(this::index);
+			} catch (final RuntimeException e) {
+				clear();
+				throw e;
+			}
+			displayNamePrefixes.compact();
+			uidPrefixes.compact();
+			loaded = true;
+			LOGGER.info("Search index loaded with " + uids.size() + " identities in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets every identity, the index is loaded again on the next search
+	 */
+	public void invalidate() {
+		lock.writeLock().lock();
+		try {
+			loaded = false;
+			clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes an identity, replacing the one with the same UID
+	 *
+	 * @param identity
+	 */
+	public void put(Identity identity) {
+		if (identity.getUid() == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			// checked under the lock, a load in progress may not have read it
+			if (loaded) {
+				index(identity);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes many identities
+	 *
+	 * @param identities
+	 */
+	public void putAll(Collection<Identity> identities) {
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				return;
+			}
+			for (Identity identity : identities) {
+				if (identity.getUid() != null) {
+					index(identity);
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes the identity having this UID
+	 *
+	 * @param uid
+	 */
+	public void remove(String uid) {
+		if (uid == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				return;
+			}
+			final String key = key(uid);
+			uids.remove(key);
+			displayNames.remove(key);
+			emails.remove(key);
+			displayNamePrefixes.remove(key);
+			uidPrefixes.remove(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param displayName
+	 *            - substring of the display name, null matches every identity
+	 * @param email
+	 *            - substring of the email, null matches every identity
+	 * @return the lower case UIDs of the identities matching both
+	 */
+	public Set<String> search(String displayName, String email) {
+		lock.readLock().lock();
+		try {
+			if (displayName == null && email == null) {
+				return new HashSet<>(uids);
+			}
+			if (displayName == null) {
+				return new HashSet<>(emails.search(email));
+			}
+			final Set<String> results = new HashSet<>(displayNames.search(displayName));
+			if (email != null && !results.isEmpty()) {
+				results.retainAll(emails.search(email));
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            - start of the display name or the UID
+	 * @param limit
+	 *            - maximum number of UIDs returned
+	 * @return the lower case UIDs of the identities whose display name starts
+	 *         with the prefix, sorted by display name, then the ones whose UID
+	 *         starts with the prefix, sorted by UID
+	 */
+	public List<String> suggest(String prefix, int limit) {
+		lock.readLock().lock();
+		try {
+			final Set<String> results = new LinkedHashSet<>(displayNamePrefixes.suggest(prefix, limit));
+			for (String uid : uidPrefixes.suggest(prefix, limit)) {
+				if (results.size() >= limit) {
+					break;
+				}
+				results.add(uid);
+			}
+			return new ArrayList<>(results);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of indexed identities
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return uids.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void index(Identity identity) {
+		final String key = key(identity.getUid());
+		uids.add(key);
+		displayNames.put(key, identity.getDisplayName());
+		emails.put(key, identity.getEmail());
+		displayNamePrefixes.put(key, identity.getDisplayName());
+		uidPrefixes.put(key, identity.getUid());
+	}
+
+	private void clear() {
+		uids.clear();
+		displayNames.clear();
+		emails.clear();
+		displayNamePrefixes.clear();
+		uidPrefixes.clear();
+	}
+
+	static String key(String uid) {
+		return uid.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Opens the stream of the identities to load
+	 */
+	public interface Source {
+		Stream<Identity> open() throws SearchException;
+	}
+
+}
@@ -0,0 +1,339 @@
+package fr.epita.iam.services.identity.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.Page;
+import fr.epita.iam.services.index.SubstringIndex;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * In-memory store of identities with a hash index on the UID, a hash index on
+ * the email and a substring index on the display name. Every identity gets an
+ * internal sequence number, which keeps the insertion order of the file and
+ * is the key of the paginated searches.
+ * </p>
+ *
+ * <p>
+ * UIDs are compared ignoring case, display names and emails are matched with
+ * contains semantics ignoring case, and null criteria match everything.
+ * Identities are copied in and out of the store, so callers can't modify it
+ * by accident.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>IdentityStore store = new IdentityStore();</code>
+ * <code>store.add(identity);</code>
+ * <code>List&lt;Identity&gt; results = store.search(criteria);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class IdentityStore {
+
+	/**
+	 * Source of the cursors of the pages returned by the store
+	 */
+	public static final String CURSOR_SOURCE = "xml";
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private long sequence = 0;
+	// sequence -> identity, in insertion order
+	private final NavigableMap<Long, Identity> identities = new TreeMap<>();
+	// lower case uid -> sequence
+	private final Map<String, Long> uidIndex = new HashMap<>();
+	// lower case email -> sequences
+	private final Map<String, Set<Long>> emailIndex = new HashMap<>();
+	private final SubstringIndex<Long> displayNameIndex = new SubstringIndex<>();
+
+	/**
+	 * Add an identity to the store. If an identity with the same UID is already
+	 * stored, it is replaced.
+	 *
+	 * @param identity
+	 */
+	public void add(Identity identity) {
+		lock.writeLock().lock();
+		try {
+			final Long existing = uidIndex.get(key(identity.getUid()));
+			if (existing != null) {
+				unindex(existing, identities.remove(existing));
+			}
+			final long id = ++sequence;
+			final Identity copy = copy(identity);
+			identities.put(id, copy);
+			index(id, copy);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the display name and the email of the identity having the same UID
+	 *
+	 * @param to
+	 *            - edited identity
+	 * @return false if no identity has this UID
+	 */
+	public boolean update(Identity to) {
+		lock.writeLock().lock();
+		try {
+			final Long id = uidIndex.get(key(to.getUid()));
+			if (id == null) {
+				return false;
+			}
+			final Identity stored = identities.get(id);
+			unindex(id, stored);
+			stored.setDisplayName(to.getDisplayName());
+			stored.setEmail(to.getEmail());
+			index(id, stored);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the identity having this UID
+	 *
+	 * @param uid
+	 * @return the removed identity, or null if no identity has this UID
+	 */
+	public Identity remove(String uid) {
+		lock.writeLock().lock();
+		try {
+			final Long id = uidIndex.get(key(uid));
+			if (id == null) {
+				return null;
+			}
+			final Identity removed = identities.remove(id);
+			unindex(id, removed);
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param uid
+	 * @return a copy of the identity having this UID, or null
+	 */
+	public Identity get(String uid) {
+		lock.readLock().lock();
+		try {
+			final Long id = uidIndex.get(key(uid));
+			return id == null ? null : copy(identities.get(id));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Search the store using the most selective index available for the
+	 * criteria, then check the remaining criteria on the candidates.
+	 *
+	 * @param criteria
+	 * @return copies of the matched identities, in insertion order
+	 */
+	public List<Identity> search(Identity criteria) {
+		lock.readLock().lock();
+		try {
+			final List<Identity> results = new ArrayList<>();
+			for (Long id : candidates(criteria, 0)) {
+				final Identity identity = identities.get(id);
+				if (matches(identity, criteria)) {
+					results.add(copy(identity));
+				}
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #search(Identity)}, one page at a time. The page starts
+	 * right after the sequence number held by the cursor, so every page costs
+	 * the same whatever its position.
+	 *
+	 * @param criteria
+	 * @param pageSize
+	 *            - maximum number of identities of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return copies of the matched identities of the page, in insertion order
+	 * @throws IllegalArgumentException
+	 *             if the page size is not positive or the cursor was not
+	 *             returned by a store
+	 */
+	public Page<Identity> searchPage(Identity criteria, int pageSize, String cursor) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+		}
+		final long after = Page.seek(cursor, CURSOR_SOURCE);
+		lock.readLock().lock();
+		try {
+			final List<Identity> results = new ArrayList<>();
+			long last = after;
+			for (Long id : candidates(criteria, after)) {
+				final Identity identity = identities.get(id);
+				if (matches(identity, criteria)) {
+					if (results.size() == pageSize) {
+						// there is at least one more match
+						return new Page<>(results, Page.cursor(CURSOR_SOURCE, last));
+					}
+					results.add(copy(identity));
+					last = id;
+				}
+			}
+			return new Page<>(results, null);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return copies of all the identities, in insertion order
+	 */
+	public List<Identity> all() {
+		lock.readLock().lock();
+		try {
+			final List<Identity> results = new ArrayList<>(identities.size());
+			for (Identity identity : identities.values()) {
+				results.add(copy(identity));
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of stored identities
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return identities.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove every identity
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			identities.clear();
+			uidIndex.clear();
+			emailIndex.clear();
+			displayNameIndex.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private Set<Long> searchEmails(String email) {
+		// the distinct emails are scanned instead of the identities
+		final String query = key(email);
+		final Set<Long> results = new HashSet<>();
+		for (Map.Entry<String, Set<Long>> entry : emailIndex.entrySet()) {
+			if (entry.getKey().contains(query)) {
+				results.addAll(entry.getValue());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Uses the most selective index available for the criteria
+	 *
+	 * @return the sequence numbers greater than after of the identities that may
+	 *         match, sorted
+	 */
+	private Collection<Long> candidates(Identity criteria, long after) {
+		final Collection<Long> ids;
+		if (criteria.getUid() != null) {
+			final Long id = uidIndex.get(key(criteria.getUid()));
+			ids = id == null ? Collections.<Long>emptySet() : Collections.singleton(id);
+		} else if (criteria.getDisplayName() != null) {
+			ids = displayNameIndex.search(criteria.getDisplayName());
+		} else if (criteria.getEmail() != null) {
+			ids = searchEmails(criteria.getEmail());
+		} else {
+			return identities.tailMap(after, false).keySet();
+		}
+		final List<Long> list = new ArrayList<>(ids.size());
+		for (Long id : ids) {
+			if (id > after) {
+				list.add(id);
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	private void index(long id, Identity identity) {
+		uidIndex.put(key(identity.getUid()), id);
+		if (identity.getEmail() != null) {
+			emailIndex.computeIfAbsent(key(identity.getEmail()), e -> new HashSet<>()).add(id);
+		}
+		displayNameIndex.put(id, identity.getDisplayName());
+	}
+
+	private void unindex(long id, Identity identity) {
+		uidIndex.remove(key(identity.getUid()));
+		if (identity.getEmail() != null) {
+			final Set<Long> ids = emailIndex.get(key(identity.getEmail()));
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty()) {
+					emailIndex.remove(key(identity.getEmail()));
+				}
+			}
+		}
+		displayNameIndex.remove(id);
+	}
+
+	private static boolean matches(Identity identity, Identity criteria) {
+		return (criteria.getUid() == null || key(criteria.getUid()).equals(key(identity.getUid())))
+				&& contains(identity.getDisplayName(), criteria.getDisplayName())
+				&& contains(identity.getEmail(), criteria.getEmail());
+	}
+
+	private static boolean contains(String value, String query) {
+		if (query == null) {
+			return true;
+		}
+		return value != null && key(value).contains(key(query));
+	}
+
+	private static String key(String value) {
+		return value == null ? "" : value.toLowerCase(Locale.ROOT);
+	}
+
+	private static Identity copy(Identity identity) {
+		return new Identity(identity.getDisplayName(), identity.getUid(), identity.getEmail());
+	}
+
+}
@@ -2,37 +2,40 @@ package fr.epita.iam.services.identity.dao;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.stream.Stream;
 
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
 import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
 import fr.epita.iam.exceptions.SearchException;
+import fr.epita.iam.exceptions.UpdateException;
 import fr.epita.iam.services.connections.XMLConnection;
+import fr.epita.iam.services.persistence.BinarySnapshot;
+import fr.epita.iam.services.persistence.Operation;
+import fr.epita.iam.services.persistence.StorePersistence;
 import fr.epita.logger.Logger;
 
 /**
  * <h3>Description</h3>
  * <p>
- * Manages the XML DAO.
+ * Manages the XML DAO. The identities XML file is streamed once per process
+ * into an {@link IdentityStore} shared by every instance of this DAO, and every
+ * query runs against its indexes. Changes are written to the file by a
+ * {@link StorePersistence}, either right away or in the background.
+ * </p>
+ *
+ * <p>
+ * When a binary snapshot is available, UID lookups are served from the mapped
+ * file, and the store is only loaded on the first search or change.
  * </p>
  *
  * <h3>Usage</h3>
- * 
+ *
  * <pre>
  * <code>IdentityXMLDAOManager dao = new IdentityXMLDAOManager();</code>
  * </pre>
@@ -41,228 +44,356 @@ import fr.epita.logger.Logger;
  * @author Samer Masaad
  */
 public class IdentityXMLDAO implements IdentityDAO {
-	
-	private Document document;
+
 	private static final Logger LOGGER = new Logger(IdentityXMLDAO.class);
 
-	private static final String TEXTEXPRESSION = "']/text()";
-	private static final String PROPERTYEXPRESSION = "./property[@name='";
-	private static final String IDENTITYEXPRESSION = "/identities/identity[";
-	
-	private static final String PROPERTY = "property";
-	private static final String IDENTITY = "identity";
-	
-	private static final String DISPLAYNAME = "displayName";
-	private static final String UID = "uid";
-	private static final String EMAIL = "email";
+	// identities copied at a time by the streams
+	private static final int STREAM_PAGE_SIZE = 500;
 
-	private static final String DISPLAYNAMEEXPRESSION = PROPERTYEXPRESSION + DISPLAYNAME + TEXTEXPRESSION;
-	private static final String UIDEXPRESSION = PROPERTYEXPRESSION + UID + TEXTEXPRESSION;
-	private static final String EMAILEXPRESSION = PROPERTYEXPRESSION + EMAIL + TEXTEXPRESSION;
+	private static IdentityStore sharedStore;
+	private static StorePersistence<Identity> sharedPersistence;
+	// serves the UID lookups until the store is loaded
+	private static volatile BinarySnapshot<Identity> sharedSnapshot;
+	private static boolean snapshotMapped;
+
+	private IdentityStore store;
+	private StorePersistence<Identity> persistence;
 
 	/**
 	 * <h3>Constructor</h3>
-	 * Parse the XML file and prepare the document
+	 * Load the identities of the XML file in the store, if not already loaded and
+	 * if there is no binary snapshot to map
 	 */
 	public IdentityXMLDAO() {
+		if (mapSnapshot() == null) {
+			try {
+				open();
+			} catch (final IOException e) {
+				// already logged, every call fails until the file can be loaded
+			}
+		}
+	}
+
+	/**
+	 * Loads the store on first use
+	 *
+	 * @throws IOException
+	 *             if the XML file could not be loaded, the next call tries again
+	 */
+	private void open() throws IOException {
+		if (store == null) {
+			store = getStore();
+			persistence = getPersistence(store);
+		}
+	}
+
+	/**
+	 * Loads the store on first use, for a search
+	 *
+	 * @throws SearchException
+	 *             if the XML file could not be loaded
+	 */
+	private void open(Identity criteria) throws SearchException {
 		try {
-			// get the XML document
-			document = XMLConnection.getIdentityXML();
-		} catch (ParserConfigurationException | SAXException | IOException e) {
-			LOGGER.error("Failed to load default settings. Exiting program...", e);
+			open();
+		} catch (final IOException e) {
+			throw new SearchException(e, criteria);
+		}
+	}
+
+	/**
+	 * Maps the binary snapshot once, if the store is not loaded yet
+	 *
+	 * @return the mapped snapshot, or null
+	 */
+	private static synchronized BinarySnapshot<Identity> mapSnapshot() {
+		if (sharedStore == null && !snapshotMapped) {
+			snapshotMapped = true;
+			try {
+				sharedSnapshot = XMLConnection.mapIdentities();
+			} catch (final IOException e) {
+				LOGGER.error("Failed to map the binary snapshot, loading the identities instead.", e);
+			}
+		}
+		return sharedSnapshot;
+	}
+
+	/**
+	 * Streams the snapshot into the shared store on first use
+	 *
+	 * @return the shared store
+	 * @throws IOException
+	 *             if the file could not be loaded, nothing is kept so an empty
+	 *             store is never served nor written to the file
+	 */
+	private static synchronized IdentityStore getStore() throws IOException {
+		if (sharedStore == null) {
+			final IdentityStore loaded = new IdentityStore();
+			try {
+				if (sharedSnapshot != null) {
+					sharedSnapshot.forEach(loaded::add);
+				} else {
+					XMLConnection.readIdentities(loaded::add);
+					// changes made since the last snapshot, in journal mode
+					XMLConnection.replayIdentities((operation, identity) -> apply(loaded, operation, identity));
+				}
+			} catch (final IOException e) {
+				LOGGER.error("Failed to load the identities XML file.", e);
+				throw e;
+			}
+			sharedStore = loaded;
+			// the snapshot is out of date as soon as the store changes, and the
+			// file can only be replaced once it is unmapped
+			if (sharedSnapshot != null) {
+				sharedSnapshot.close();
+				sharedSnapshot = null;
+			}
 		}
+		return sharedStore;
+	}
+
+	private static void apply(IdentityStore store, Operation operation, Identity identity) {
+		switch (operation) {
+		case CREATE:
+			store.add(identity);
+			break;
+		case UPDATE:
+			store.update(identity);
+			break;
+		case DELETE:
+			store.remove(identity.getUid());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param store
+	 *            - the shared store, holding the whole file
+	 * @return the persistence of the shared store
+	 */
+	private static synchronized StorePersistence<Identity> getPersistence(IdentityStore store) {
+		if (sharedPersistence == null) {
+			sharedPersistence = XMLConnection.createIdentityPersistence(store::all);
+		}
+		return sharedPersistence;
+	}
 
+	/**
+	 * @return the persistence of the identities XML file, for its metrics
+	 * @throws IOException
+	 *             if the file could not be loaded
+	 */
+	public static StorePersistence<Identity> getPersistence() throws IOException {
+		return getPersistence(getStore());
+	}
+
+	/**
+	 * Writes every identity to the identities XML file, which is not kept up to
+	 * date in binary snapshot mode
+	 *
+	 * @throws TransformerException
+	 * @throws IOException
+	 *             if the file could not be loaded
+	 */
+	public static void exportXML() throws TransformerException, IOException {
+		XMLConnection.saveIdentities(getStore().all());
 	}
 
 	/**
 	 * Add an identity to the XML file.
-	 * 
+	 *
 	 * @param identity - the identity to add
 	 * @throws CreationException
 	 * @throws TransformerException
-	 */	 
+	 */
 	@Override
 	public void create(Identity identity) throws CreationException, TransformerException {
-		// get root element
-		final Element root = document.getDocumentElement();
-		// create a new identity element
-		final Element identityElement = getNewIdentityElt();
-		// set the properties
-		setProperties(identity, identityElement);
-		// append the identity element to the root
-		root.appendChild(identityElement);
-		// save the document
-		XMLConnection.saveIdentityXML(document);
-	}
-
-	private void setProperties(Identity identity, final Element identityElement) {
-		identityElement.appendChild(getNewPropertyElmt(DISPLAYNAME, identity.getDisplayName()));
-		identityElement.appendChild(getNewPropertyElmt(UID, identity.getUid()));
-		identityElement.appendChild(getNewPropertyElmt(EMAIL, identity.getEmail()));
+		try {
+			open();
+		} catch (final IOException e) {
+			throw new CreationException(e, identity);
+		}
+		synchronized (store) {
+			store.add(identity);
+			persistence.changed(Operation.CREATE, identity);
+		}
 	}
 
-	private Element getNewPropertyElmt(String propertyName, String propertyValue) {
-		// create a new property element
-		final Element identityProperty = getNewPropertyElt();
-		// set node values
-		identityProperty.setNodeValue(propertyName);
-		identityProperty.setAttribute("name", propertyName);
-		identityProperty.setTextContent(propertyValue);
-		return identityProperty;
+	/**
+	 * Add identities to the XML file, written once for all of them.
+	 *
+	 * @param identities - the identities to add
+	 * @throws CreationException
+	 * @throws TransformerException
+	 */
+	@Override
+	public void createAll(Collection<Identity> identities) throws CreationException, TransformerException {
+		try {
+			open();
+		} catch (final IOException e) {
+			throw new CreationException(e, identities.iterator().next());
+		}
+		synchronized (store) {
+			for (Identity identity : identities) {
+				store.add(identity);
+			}
+			persistence.changedAll(Operation.CREATE, identities);
+		}
 	}
 
-	private Element getNewIdentityElt() {
-		return document.createElement(IDENTITY);
+	/**
+	 * @param identities - identities to check
+	 * @return the identities of the collection whose UID is already used
+	 * @throws SearchException
+	 */
+	@Override
+	public List<Identity> findDuplicates(Collection<Identity> identities) throws SearchException {
+		final List<Identity> duplicates = new ArrayList<>();
+		for (Identity identity : identities) {
+			if (identity.getUid() != null && getUserByUid(identity) != null) {
+				duplicates.add(identity);
+			}
+		}
+		return duplicates;
 	}
 
-	private Element getNewPropertyElt() {
-		return document.createElement(PROPERTY);
+	/**
+	 * @param uids - UIDs of the identities
+	 * @return the identities of the XML file having these UIDs
+	 * @throws SearchException
+	 */
+	@Override
+	public List<Identity> findByUids(Collection<String> uids) throws SearchException {
+		try {
+			open();
+		} catch (final IOException e) {
+			throw new SearchException(e, new Identity());
+		}
+		final List<Identity> results = new ArrayList<>(uids.size());
+		for (String uid : uids) {
+			final Identity identity = store.get(uid);
+			if (identity != null) {
+				results.add(identity);
+			}
+		}
+		return results;
 	}
 
 	/**
 	 * Update information of an identity in the XML file.
-	 * 
+	 *
 	 * @param from - original identity
 	 * @param to - edited identity
+	 * @throws UpdateException
 	 * @throws TransformerException
 	 */
 	@Override
-	public void update(Identity from, Identity to) throws TransformerException {
-
+	public void update(Identity from, Identity to) throws UpdateException, TransformerException {
 		if (from.getUid().equals(to.getUid())) {
 			// safe to go
-			// construct the expression
-			String expression = IDENTITYEXPRESSION + UIDEXPRESSION + " = '" + to.getUid() + "']";
 			try {
-				final XPathFactory xpathFactory = XPathFactory.newInstance();
-				final XPath xpath = xpathFactory.newXPath();
-				// compile the expression
-				final XPathExpression xPathExpression = xpath.compile(expression);
-				// evaluate
-				final Node result = (Node) xPathExpression.evaluate(document, XPathConstants.NODE);
-
-				while (result.getFirstChild() != null) {
-					// delete the old element
-					result.removeChild(result.getFirstChild());
-				}
-				if (result instanceof Element) {
-					// create a new element
-					Element el = (Element) result;
-					setProperties(to, el);
-					XMLConnection.saveIdentityXML(document);
+				open();
+			} catch (final IOException e) {
+				throw new UpdateException(e, to);
+			}
+			synchronized (store) {
+				if (store.update(to)) {
+					persistence.changed(Operation.UPDATE, to);
+				} else {
+					LOGGER.error("An error occured while updating, identity not found in XML file: " + from);
 				}
-
-			} catch (final XPathExpressionException e) {
-				LOGGER.error("An error occured while updating:" + from, e);
 			}
 		}
-
 	}
 
 	/**
 	 * Delete an identity from the XML file, also deletes the user associated with it.
-	 * 
+	 *
 	 * @param identity - identity to delete
 	 * @throws DeleteException
+	 * @throws TransformerException
 	 */
 	@Override
-	public void delete(Identity identity) throws TransformerException {
-		// construct the expression
-		String expression = IDENTITYEXPRESSION + UIDEXPRESSION + " = '" + identity.getUid() + "']";
+	public void delete(Identity identity) throws DeleteException, TransformerException {
 		try {
-			final XPathFactory xpathFactory = XPathFactory.newInstance();
-			final XPath xpath = xpathFactory.newXPath();
-			// compile
-			final XPathExpression xPathExpression = xpath.compile(expression);
-			// evaluate
-			final Node result = (Node) xPathExpression.evaluate(document, XPathConstants.NODE);
-			
-			if(result != null) {
-				// if node found, delete it
-				result.getParentNode().removeChild(result);
-				XMLConnection.saveIdentityXML(document);
+			open();
+		} catch (final IOException e) {
+			throw new DeleteException(e, identity);
+		}
+		synchronized (store) {
+			if (store.remove(identity.getUid()) != null) {
+				persistence.changed(Operation.DELETE, identity);
 			} else {
 				LOGGER.warning("Trying to delete an identity from XML file that doesn't exist: " + identity);
 			}
-			
-		} catch (final XPathExpressionException e) {
-			LOGGER.error("An error occured while deleting: " + identity, e);
 		}
-
 	}
 
 	/**
-	 * Search the XML file for an identity.
-	 * 
+	 * Search the loaded identities. UIDs are compared ignoring case, display names
+	 * and emails are matched if they contain the criteria, and null criteria
+	 * match every identity.
+	 *
 	 * @param criteria - criteria of the identity to search for
 	 * @return list of matched identities
 	 * @throws SearchException
 	 */
 	@Override
 	public List<Identity> search(Identity criteria) throws SearchException {
-		final List<Identity> identities = new ArrayList<>();
-
-		// construct the expression
-		String expression = IDENTITYEXPRESSION;
-
-		if (criteria.getDisplayName() != null) {
-			expression += "contains(./property[@name='displayName']/text(), '" + criteria.getDisplayName().toLowerCase() + "')";
-		} else {
-			expression += DISPLAYNAMEEXPRESSION + " = *";
-		}
-
-		expression += " and ";
-
-		expression += UIDEXPRESSION + " = ";
-		if (criteria.getUid() != null) {
-			expression += "'" + criteria.getUid().toLowerCase() + "'";
-		} else {
-			expression += "*";
-		}
-
-		expression += " and ";
-
-		if (criteria.getEmail() != null) {
-			expression += "contains(./property[@name='email']/text(), '" + criteria.getEmail() + "')";
-		} else {
-			expression += EMAILEXPRESSION + " = *";
-		}
+		open(criteria);
+		return store.search(criteria);
+	}
 
-		expression += "]";
+	/**
+	 * Same as {@link #search(Identity)}, the matched identities are copied one
+	 * page of {@value #STREAM_PAGE_SIZE} at a time as the stream is consumed
+	 *
+	 * @param criteria - criteria of the identity to search for
+	 * @return stream of matched identities
+	 * @throws SearchException
+	 */
+	@Override
+	public Stream<Identity> stream(Identity criteria) throws SearchException {
+		open(criteria);
+		final IdentityStore loaded = store;
+		return Page.stream(cursor -> loaded.searchPage(criteria, STREAM_PAGE_SIZE, cursor));
+	}
 
+	/**
+	 * Search the loaded identities one page at a time, in insertion order
+	 *
+	 * @param criteria - criteria of the identity to search for
+	 * @param pageSize - maximum number of identities of the page
+	 * @param cursor - cursor returned with the previous page, null for the first page
+	 * @return the page of matched identities
+	 * @throws SearchException
+	 */
+	@Override
+	public Page<Identity> searchPage(Identity criteria, int pageSize, String cursor) throws SearchException {
+		open(criteria);
 		try {
-			final XPathFactory xpathFactory = XPathFactory.newInstance();
-			final XPath xpath = xpathFactory.newXPath();
-			// compile
-			final XPathExpression xPathExpression = xpath.compile(expression);
-			// evaluate
-			final NodeList results = (NodeList) xPathExpression.evaluate(document, XPathConstants.NODESET);
-
-			final int length = results.getLength();
-			for (int i = 0; i < length; i++) {
-				// deserialise the results
-				final Node item = results.item(i);
-				final Identity identity = new Identity();
-				identity.setDisplayName((String) xpathFactory.newXPath().compile(DISPLAYNAMEEXPRESSION).evaluate(item,
-						XPathConstants.STRING));
-				identity.setEmail((String) xpathFactory.newXPath().compile(EMAILEXPRESSION).evaluate(item,
-						XPathConstants.STRING));
-				identity.setUid(
-						(String) xpathFactory.newXPath().compile(UIDEXPRESSION).evaluate(item, XPathConstants.STRING));
-				identities.add(identity);
-			}
-
-		} catch (final XPathExpressionException e) {
-
-			LOGGER.error("An error occured while searching for: " + criteria, e);
+			return store.searchPage(criteria, pageSize, cursor);
+		} catch (final IllegalArgumentException e) {
+			LOGGER.error("Invalid cursor for the XML search: " + cursor);
+			throw new SearchException(e, criteria);
 		}
-
-		return identities;
 	}
 
 	@Override
 	public Identity getUserByUid(Identity criteria) throws SearchException {
-		return null;
+		final BinarySnapshot<Identity> snapshot = sharedSnapshot;
+		if (store == null && snapshot != null) {
+			try {
+				final List<Identity> identities = snapshot.get(criteria.getUid());
+				return identities.isEmpty() ? null : identities.get(0);
+			} catch (final IllegalStateException e) {
+				// closed meanwhile, the store is loaded
+			}
+		}
+		open(criteria);
+		return store.get(criteria.getUid());
 	}
 
 }
@@ -0,0 +1,29 @@
+package fr.epita.iam.services.importer;
+
+import java.util.List;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Last stage of the {@link ImportPipeline}: writes a batch of validated
+ * records. The users of a batch belong to identities of the same batch, they
+ * are matched by UID.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public interface BatchWriter {
+
+	/**
+	 * Writes a batch and reports what was written, or not, to the progress
+	 *
+	 * @param identities
+	 * @param users
+	 * @param progress
+	 */
+	void write(List<Identity> identities, List<User> users, ImportProgress progress);
+
+}
@@ -0,0 +1,165 @@
+package fr.epita.iam.services.importer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Parses a comma separated file, one record per row. The first row names the
+ * columns: displayName, uid, email, username and password, in any order and
+ * ignoring case. Other columns are ignored. Fields can be quoted, a quoted
+ * field can contain commas, line breaks and doubled quotes.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>try (RecordParser parser = new CSVRecordParser(file)) {</code>
+ * <code>	ImportRecord record = parser.next();</code>
+ * <code>}</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class CSVRecordParser implements RecordParser {
+
+	private static final int END = -1;
+
+	private final BufferedReader reader;
+	private final int displayName;
+	private final int uid;
+	private final int email;
+	private final int userName;
+	private final int password;
+	private long number;
+	private long line = 1;
+
+	/**
+	 * <h3>Constructor</h3> Opens a UTF-8 file and reads its header
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public CSVRecordParser(File file) throws IOException {
+		this(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * <h3>Constructor</h3> Reads the header
+	 *
+	 * @param reader
+	 * @throws IOException
+	 */
+	public CSVRecordParser(Reader reader) throws IOException {
+		this.reader = new BufferedReader(reader);
+		final List<String> header = readRow();
+		if (header == null) {
+			throw new IOException("Empty CSV file, a header is expected");
+		}
+		final List<String> columns = new ArrayList<>(header.size());
+		for (String column : header) {
+			columns.add(column.trim().toLowerCase(Locale.ROOT));
+		}
+		displayName = columns.indexOf("displayname");
+		uid = columns.indexOf("uid");
+		email = columns.indexOf("email");
+		userName = columns.indexOf("username");
+		password = columns.indexOf("password");
+		if (uid < 0) {
+			throw new IOException("The CSV header has no uid column: " + header);
+		}
+	}
+
+	@Override
+	public ImportRecord next() throws IOException {
+		List<String> row;
+		do {
+			row = readRow();
+			if (row == null) {
+				return null;
+			}
+			// skip the blank lines
+		} while (row.size() == 1 && row.get(0).isEmpty());
+
+		final ImportRecord record = new ImportRecord(++number);
+		record.setDisplayName(get(row, displayName));
+		record.setUid(get(row, uid));
+		record.setEmail(get(row, email));
+		record.setUserName(get(row, userName));
+		record.setPassword(get(row, password));
+		return record;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private static String get(List<String> row, int column) {
+		if (column < 0 || column >= row.size()) {
+			return null;
+		}
+		final String value = row.get(column);
+		return value.isEmpty() ? null : value;
+	}
+
+	/**
+	 * @return the fields of the next row, or null at the end of the file
+	 * @throws IOException
+	 */
+	private List<String> readRow() throws IOException {
+		int c = reader.read();
+		if (c == END) {
+			return null;
+		}
+		final List<String> row = new ArrayList<>();
+		final StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		while (true) {
+			if (quoted) {
+				if (c == END) {
+					throw new IOException("Unterminated quoted field at line " + line);
+				}
+				if (c == '"') {
+					reader.mark(1);
+					final int following = reader.read();
+					if (following == '"') {
+						field.append('"');
+					} else {
+						quoted = false;
+						reader.reset();
+					}
+				} else {
+					if (c == '\n') {
+						line++;
+					}
+					field.append((char) c);
+				}
+			} else if (c == '"' && field.length() == 0) {
+				quoted = true;
+			} else if (c == ',') {
+				row.add(field.toString());
+				field.setLength(0);
+			} else if (c == '\n' || c == END) {
+				line++;
+				break;
+			} else if (c != '\r') {
+				field.append((char) c);
+			}
+			c = reader.read();
+		}
+		row.add(field.toString());
+		return row;
+	}
+
+}
@@ -0,0 +1,123 @@
+package fr.epita.iam.services.importer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.transform.TransformerException;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
+import fr.epita.iam.exceptions.DataException;
+import fr.epita.iam.services.identity.dao.IdentityDAO;
+import fr.epita.iam.services.users.dao.UserDAO;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Writes the imported batches through the DAO layer with
+ * {@link IdentityDAO#createAll(java.util.Collection)} and
+ * {@link UserDAO#createAll(java.util.Collection)}. When a batch is refused,
+ * for example because of a duplicate UID, its records are written one at a
+ * time so only the faulty ones are lost.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>BatchWriter writer = new DAOBatchWriter(new IdentityDAOManager(), new UserDAOManager());</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class DAOBatchWriter implements BatchWriter {
+
+	private static final Logger LOGGER = new Logger(DAOBatchWriter.class);
+
+	private final IdentityDAO identityDAO;
+	private final UserDAO userDAO;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param identityDAO
+	 * @param userDAO
+	 */
+	public DAOBatchWriter(IdentityDAO identityDAO, UserDAO userDAO) {
+		this.identityDAO = identityDAO;
+		this.userDAO = userDAO;
+	}
+
+	@Override
+	public void write(List<Identity> identities, List<User> users, ImportProgress progress) {
+		// UIDs of the identities that could not be written
+		final Set<String> failed = new HashSet<>();
+		try {
+			identityDAO.createAll(identities);
+			progress.identitiesWritten(identities.size());
+		} catch (DataException | TransformerException e) {
+			LOGGER.warning("Batch of " + identities.size() + " identities refused, writing them one at a time: "
+					+ e.getMessage());
+			for (Identity identity : identities) {
+				try {
+					identityDAO.create(identity);
+					progress.identitiesWritten(1);
+				} catch (DataException | TransformerException e1) {
+					LOGGER.error("Could not import the identity " + identity + ": " + e1.getMessage());
+					failed.add(identity.getUid());
+					progress.failed(1);
+				}
+			}
+		}
+		writeUsers(users, failed, progress);
+	}
+
+	private void writeUsers(List<User> users, Set<String> failed, ImportProgress progress) {
+		final List<User> writable = new ArrayList<>(users.size());
+		final List<String> uids = new ArrayList<>(users.size());
+		for (User user : users) {
+			if (!failed.contains(user.getUid())) {
+				writable.add(user);
+				if (user.getUid() != null) {
+					uids.add(user.getUid());
+				}
+			}
+		}
+		// the identities have just been created, their IDs are read at once
+		Map<String, Integer> ids;
+		try {
+			ids = userDAO.getIds(uids);
+		} catch (final DataException e) {
+			// the users are then written one at a time, by UID
+			LOGGER.warning("Could not read the IDs of " + uids.size() + " identities: " + e.getMessage());
+			ids = Collections.emptyMap();
+		}
+		for (User user : writable) {
+			final Integer id = user.getUid() == null ? null : ids.get(user.getUid().toLowerCase(Locale.ROOT));
+			user.setIdentityID(id == null ? 0 : id);
+		}
+		try {
+			userDAO.createAll(writable);
+			progress.usersWritten(writable.size());
+		} catch (DataException | TransformerException e) {
+			LOGGER.warning("Batch of " + writable.size() + " users refused, writing them one at a time: "
+					+ e.getMessage());
+			for (User user : writable) {
+				try {
+					userDAO.createForUid(user);
+					progress.usersWritten(1);
+				} catch (DataException | TransformerException e1) {
+					LOGGER.error("Could not import the user " + user.getUserName() + ": " + e1.getMessage());
+					progress.failed(1);
+				}
+			}
+		}
+	}
+
+}
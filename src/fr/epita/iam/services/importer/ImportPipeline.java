@@ -0,0 +1,333 @@
+package fr.epita.iam.services.importer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.iam.services.security.PasswordHashers;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Imports a file of identities and users in three stages linked by bounded
+ * queues:
+ * <ul>
+ * <li>the calling thread parses the records</li>
+ * <li>the workers validate them and hash the passwords</li>
+ * <li>a writer groups them in batches and hands them to a
+ * {@link BatchWriter}</li>
+ * </ul>
+ * A full queue blocks the stage feeding it, so only a bounded number of
+ * records is held in memory whatever the size of the file. Invalid records are
+ * logged and counted, they don't stop the import. The progress is logged every
+ * report interval.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>ImportPipeline pipeline = ImportPipeline.fromConfiguration(new DAOBatchWriter(identityDAO, userDAO));</code>
+ * <code>try (RecordParser parser = new CSVRecordParser(file)) {</code>
+ * <code>	ImportProgress report = pipeline.run(parser);</code>
+ * <code>}</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class ImportPipeline {
+
+	private static final Logger LOGGER = new Logger(ImportPipeline.class);
+
+	private static final String WORKERS = "import.workers";
+	private static final String BATCH_SIZE = "import.batchSize";
+	private static final String QUEUE_CAPACITY = "import.queueCapacity";
+	private static final String REPORT_INTERVAL = "import.reportInterval";
+
+	private static final Pattern EMAIL = Pattern.compile("[^@\\s]+@[^@\\s]+");
+	// how often a blocked stage checks whether the import was aborted
+	private static final long POLL_MILLIS = 100;
+
+	// end of stream markers, one per worker
+	private static final ImportRecord NO_MORE_RECORDS = new ImportRecord(-1);
+	private static final Validated NO_MORE_VALIDATED = new Validated(null, null);
+
+	private final BatchWriter writer;
+	private final int workers;
+	private final int batchSize;
+	private final int queueCapacity;
+	private final long reportIntervalMillis;
+	private Consumer<ImportProgress> listener;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param writer
+	 *            - writes the validated batches
+	 * @param workers
+	 *            - number of validation threads
+	 * @param batchSize
+	 *            - number of identities per batch
+	 * @param queueCapacity
+	 *            - number of records each queue can hold
+	 * @param reportIntervalMillis
+	 *            - delay between two progress reports, 0 for no report
+	 */
+	public ImportPipeline(BatchWriter writer, int workers, int batchSize, int queueCapacity,
+			long reportIntervalMillis) {
+		this.writer = writer;
+		this.workers = Math.max(1, workers);
+		this.batchSize = Math.max(1, batchSize);
+		this.queueCapacity = Math.max(1, queueCapacity);
+		this.reportIntervalMillis = reportIntervalMillis;
+	}
+
+	/**
+	 * Reads the settings of the import section of the configuration file
+	 *
+	 * @param writer
+	 * @return the configured pipeline
+	 */
+	public static ImportPipeline fromConfiguration(BatchWriter writer) {
+		final ConfigurationService confService = ConfigurationService.getInstance();
+		return new ImportPipeline(writer,
+				confService.getIntConfigurationValue(WORKERS, Runtime.getRuntime().availableProcessors()),
+				confService.getIntConfigurationValue(BATCH_SIZE, 1000),
+				confService.getIntConfigurationValue(QUEUE_CAPACITY, 10000),
+				confService.getLongConfigurationValue(REPORT_INTERVAL, 5000));
+	}
+
+	/**
+	 * @param listener
+	 *            - also receives every progress report, and the final one
+	 */
+	public void setListener(Consumer<ImportProgress> listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Imports every record of the parser, and returns once they are all written
+	 *
+	 * @param parser
+	 * @return the final report
+	 * @throws IOException
+	 *             if the file could not be read, or a stage failed
+	 */
+	public ImportProgress run(RecordParser parser) throws IOException {
+		final ImportProgress progress = new ImportProgress();
+		final BlockingQueue<ImportRecord> parsed = new ArrayBlockingQueue<>(queueCapacity);
+		final BlockingQueue<Validated> validated = new ArrayBlockingQueue<>(queueCapacity);
+		// first failure of a stage, the others stop as soon as it is set
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		final AtomicInteger threads = new AtomicInteger();
+		final ExecutorService stages = Executors.newFixedThreadPool(workers + 1, r -> {
+			final Thread thread = new Thread(r, "import-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "import-report");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (reportIntervalMillis > 0) {
+			reporter.scheduleAtFixedRate(() -> report(progress), reportIntervalMillis, reportIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+
+		for (int i = 0; i < workers; i++) {
+			stages.execute(stage(failure, () -> validate(parsed, validated, progress, failure)));
+		}
+		stages.execute(stage(failure, () -> write(validated, progress, failure)));
+
+		try {
+			ImportRecord record;
+			while (failure.get() == null && (record = parser.next()) != null) {
+				progress.parsed();
+				put(parsed, record, failure);
+			}
+			for (int i = 0; i < workers; i++) {
+				put(parsed, NO_MORE_RECORDS, failure);
+			}
+		} catch (final IOException | RuntimeException e) {
+			failure.compareAndSet(null, e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure.compareAndSet(null, e);
+		} finally {
+			stages.shutdown();
+			try {
+				stages.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, e);
+			}
+			reporter.shutdownNow();
+			progress.finished();
+			report(progress);
+		}
+
+		final Throwable cause = failure.get();
+		if (cause instanceof IOException) {
+			throw (IOException) cause;
+		} else if (cause instanceof InterruptedException) {
+			throw new InterruptedIOException("Import interrupted");
+		} else if (cause != null) {
+			throw new IOException("Import aborted", cause);
+		}
+		return progress;
+	}
+
+	private void validate(BlockingQueue<ImportRecord> parsed, BlockingQueue<Validated> validated,
+			ImportProgress progress, AtomicReference<Throwable> failure) throws InterruptedException {
+		ImportRecord record;
+		while ((record = take(parsed, failure)) != null && record != NO_MORE_RECORDS) {
+			final String error = check(record);
+			if (error != null) {
+				LOGGER.warning("Rejected record " + record.getNumber() + ", " + error + ": " + record);
+				progress.rejected();
+				continue;
+			}
+			final Identity identity = new Identity(record.getDisplayName(), record.getUid(), record.getEmail());
+			User user = null;
+			if (record.getUserName() != null) {
+				user = new User(record.getUserName(), null, 0);
+				user.setUid(record.getUid());
+				// the hash is slow on purpose, which is why it runs on the workers
+				user.setHashedPassword(PasswordHashers.getDefault().hash(record.getPassword()));
+			}
+			put(validated, new Validated(identity, user), failure);
+		}
+		put(validated, NO_MORE_VALIDATED, failure);
+	}
+
+	private static String check(ImportRecord record) {
+		if (isBlank(record.getUid())) {
+			return "missing uid";
+		}
+		if (isBlank(record.getDisplayName())) {
+			return "missing display name";
+		}
+		if (!isBlank(record.getEmail()) && !EMAIL.matcher(record.getEmail()).matches()) {
+			return "invalid email";
+		}
+		if (isBlank(record.getUserName()) != isBlank(record.getPassword())) {
+			return "username and password must be given together";
+		}
+		return null;
+	}
+
+	private static boolean isBlank(String value) {
+		return value == null || value.trim().isEmpty();
+	}
+
+	private void write(BlockingQueue<Validated> validated, ImportProgress progress,
+			AtomicReference<Throwable> failure) throws InterruptedException {
+		List<Identity> identities = new ArrayList<>(batchSize);
+		List<User> users = new ArrayList<>();
+		int running = workers;
+		Validated record;
+		while (running > 0 && (record = take(validated, failure)) != null) {
+			if (record == NO_MORE_VALIDATED) {
+				running--;
+				continue;
+			}
+			identities.add(record.identity);
+			if (record.user != null) {
+				users.add(record.user);
+			}
+			if (identities.size() >= batchSize) {
+				writer.write(identities, users, progress);
+				identities = new ArrayList<>(batchSize);
+				users = new ArrayList<>();
+			}
+		}
+		if (running == 0 && !identities.isEmpty()) {
+			writer.write(identities, users, progress);
+		}
+	}
+
+	private void report(ImportProgress progress) {
+		LOGGER.info(progress.toString());
+		if (listener != null) {
+			listener.accept(progress);
+		}
+	}
+
+	/**
+	 * Blocks until there is room in the queue, or until the import is aborted
+	 *
+	 * @return false if the import was aborted
+	 */
+	private static <E> boolean put(BlockingQueue<E> queue, E element, AtomicReference<Throwable> failure)
+			throws InterruptedException {
+		while (failure.get() == null) {
+			if (queue.offer(element, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Blocks until an element is available, or until the import is aborted
+	 *
+	 * @return the element, or null if the import was aborted
+	 */
+	private static <E> E take(BlockingQueue<E> queue, AtomicReference<Throwable> failure)
+			throws InterruptedException {
+		while (failure.get() == null) {
+			final E element = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			if (element != null) {
+				return element;
+			}
+		}
+		return null;
+	}
+
+	private static Runnable stage(AtomicReference<Throwable> failure, Stage stage) {
+		return () -> {
+			try {
+				stage.run();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, e);
+			} catch (final RuntimeException e) {
+				LOGGER.error("Import stage failed", e);
+				failure.compareAndSet(null, e);
+			}
+		};
+	}
+
+	private interface Stage {
+		void run() throws InterruptedException;
+	}
+
+	private static class Validated {
+
+		private final Identity identity;
+		private final User user;
+
+		private Validated(Identity identity, User user) {
+			this.identity = identity;
+			this.user = user;
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package fr.epita.iam.services.importer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Counters of a running import, updated by the stages of the
+ * {@link ImportPipeline}. It is also the final report of the import.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class ImportProgress {
+
+	private final long start = System.nanoTime();
+	private final AtomicLong parsed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong identities = new AtomicLong();
+	private final AtomicLong users = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long end;
+
+	void parsed() {
+		parsed.incrementAndGet();
+	}
+
+	void rejected() {
+		rejected.incrementAndGet();
+	}
+
+	void finished() {
+		end = System.nanoTime();
+	}
+
+	/**
+	 * @param count
+	 *            - number of identities written by the writer stage
+	 */
+	public void identitiesWritten(int count) {
+		identities.addAndGet(count);
+	}
+
+	/**
+	 * @param count
+	 *            - number of users written by the writer stage
+	 */
+	public void usersWritten(int count) {
+		users.addAndGet(count);
+	}
+
+	/**
+	 * @param count
+	 *            - number of records the writer stage could not write
+	 */
+	public void failed(int count) {
+		failed.addAndGet(count);
+	}
+
+	/**
+	 * @return number of records read from the file
+	 */
+	public long getParsed() {
+		return parsed.get();
+	}
+
+	/**
+	 * @return number of records rejected by the validation
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of identities written
+	 */
+	public long getIdentitiesWritten() {
+		return identities.get();
+	}
+
+	/**
+	 * @return number of users written
+	 */
+	public long getUsersWritten() {
+		return users.get();
+	}
+
+	/**
+	 * @return number of valid records that could not be written
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return true once every stage has finished
+	 */
+	public boolean isFinished() {
+		return end != 0;
+	}
+
+	/**
+	 * @return time spent so far, or the duration of the finished import, in
+	 *         milliseconds
+	 */
+	public long getElapsedMillis() {
+		return ((end != 0 ? end : System.nanoTime()) - start) / 1000000;
+	}
+
+	/**
+	 * @return identities written per second
+	 */
+	public double getThroughput() {
+		final long elapsed = getElapsedMillis();
+		return elapsed == 0 ? 0 : identities.get() * 1000.0 / elapsed;
+	}
+
+	/**
+	 * @return String representation of the progress
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ImportProgress [parsed=" + getParsed() + ", rejected=" + getRejected() + ", identities="
+				+ getIdentitiesWritten() + ", users=" + getUsersWritten() + ", failed=" + getFailed()
+				+ ", elapsedMs=" + getElapsedMillis() + ", identitiesPerSecond="
+				+ String.format("%.1f", getThroughput()) + (isFinished() ? ", finished" : "") + "]";
+	}
+
+}
@@ -0,0 +1,122 @@
+package fr.epita.iam.services.importer;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * A raw record read from an import file, before validation. The username and
+ * the clear text password are optional: without them only the identity is
+ * imported.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class ImportRecord {
+
+	private final long number;
+	private String displayName;
+	private String uid;
+	private String email;
+	private String userName;
+	private String password;
+
+	/**
+	 * @param number
+	 *            - position of the record in the file, starting at 1
+	 */
+	public ImportRecord(long number) {
+		this.number = number;
+	}
+
+	/**
+	 * @return position of the record in the file, starting at 1
+	 */
+	public long getNumber() {
+		return number;
+	}
+
+	/**
+	 * @return the displayName
+	 */
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	/**
+	 * @param displayName
+	 *            the displayName to set
+	 */
+	public void setDisplayName(String displayName) {
+		this.displayName = displayName;
+	}
+
+	/**
+	 * @return the uid
+	 */
+	public String getUid() {
+		return uid;
+	}
+
+	/**
+	 * @param uid
+	 *            the uid to set
+	 */
+	public void setUid(String uid) {
+		this.uid = uid;
+	}
+
+	/**
+	 * @return the email
+	 */
+	public String getEmail() {
+		return email;
+	}
+
+	/**
+	 * @param email
+	 *            the email to set
+	 */
+	public void setEmail(String email) {
+		this.email = email;
+	}
+
+	/**
+	 * @return the userName
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @param userName
+	 *            the userName to set
+	 */
+	public void setUserName(String userName) {
+		this.userName = userName;
+	}
+
+	/**
+	 * @return the clear text password
+	 */
+	public String getPassword() {
+		return password;
+	}
+
+	/**
+	 * @param password
+	 *            the clear text password to set
+	 */
+	public void setPassword(String password) {
+		this.password = password;
+	}
+
+	/**
+	 * @return String representation of the record, without the password
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ImportRecord [number=" + number + ", displayName=" + displayName + ", uid=" + uid + ", email="
+				+ email + ", userName=" + userName + "]";
+	}
+
+}
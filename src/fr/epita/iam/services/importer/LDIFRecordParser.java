@@ -0,0 +1,159 @@
+package fr.epita.iam.services.importer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Parses an LDIF export, one record per entry. The attributes are mapped as
+ * follows, other attributes are ignored:
+ * <ul>
+ * <li>displayName, or cn when there is no displayName: display name</li>
+ * <li>uid: UID</li>
+ * <li>mail: email</li>
+ * <li>userPassword: clear text password, the username is the uid</li>
+ * </ul>
+ * Folded lines and base64 values (attribute:: value) are supported.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>try (RecordParser parser = new LDIFRecordParser(file)) {</code>
+ * <code>	ImportRecord record = parser.next();</code>
+ * <code>}</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class LDIFRecordParser implements RecordParser {
+
+	private final BufferedReader reader;
+	// line read ahead to find the folded lines
+	private String pending;
+	private long number;
+
+	/**
+	 * <h3>Constructor</h3> Opens a UTF-8 file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public LDIFRecordParser(File file) throws IOException {
+		this(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param reader
+	 */
+	public LDIFRecordParser(Reader reader) {
+		this.reader = new BufferedReader(reader);
+	}
+
+	@Override
+	public ImportRecord next() throws IOException {
+		ImportRecord record = null;
+		String commonName = null;
+		String line;
+		while ((line = readLine()) != null) {
+			if (line.isEmpty()) {
+				if (record != null) {
+					// end of the entry
+					break;
+				}
+				continue;
+			}
+			if (line.startsWith("#")) {
+				continue;
+			}
+			final int colon = line.indexOf(':');
+			if (colon <= 0) {
+				throw new IOException("Malformed LDIF line: " + line);
+			}
+			final String attribute = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			final String value = value(line, colon);
+			if ("version".equals(attribute) && record == null) {
+				continue;
+			}
+			if (record == null) {
+				record = new ImportRecord(++number);
+			}
+			switch (attribute) {
+			case "displayname":
+				record.setDisplayName(value);
+				break;
+			case "cn":
+				commonName = value;
+				break;
+			case "uid":
+				record.setUid(value);
+				break;
+			case "mail":
+				record.setEmail(value);
+				break;
+			case "userpassword":
+				record.setPassword(value);
+				break;
+			default:
+				break;
+			}
+		}
+		if (record != null) {
+			if (record.getDisplayName() == null) {
+				record.setDisplayName(commonName);
+			}
+			if (record.getPassword() != null) {
+				record.setUserName(record.getUid());
+			}
+		}
+		return record;
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	private static String value(String line, int colon) throws IOException {
+		if (colon + 1 < line.length() && line.charAt(colon + 1) == ':') {
+			final String encoded = line.substring(colon + 2).trim();
+			try {
+				return new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_8);
+			} catch (final IllegalArgumentException e) {
+				throw new IOException("Malformed base64 value: " + line, e);
+			}
+		}
+		return line.substring(colon + 1).trim();
+	}
+
+	/**
+	 * @return the next logical line, with its folded lines appended
+	 * @throws IOException
+	 */
+	private String readLine() throws IOException {
+		final String first = pending != null ? pending : reader.readLine();
+		pending = null;
+		if (first == null) {
+			return null;
+		}
+		final StringBuilder line = new StringBuilder(first);
+		String following;
+		while ((following = reader.readLine()) != null && following.startsWith(" ")) {
+			line.append(following, 1, following.length());
+		}
+		pending = following;
+		return line.toString();
+	}
+
+}
@@ -0,0 +1,24 @@
+package fr.epita.iam.services.importer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Reads the records of an import file one at a time, so the file is never
+ * loaded in memory.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public interface RecordParser extends Closeable {
+
+	/**
+	 * @return the next record, or null at the end of the file
+	 * @throws IOException
+	 *             if the file can't be read or is malformed
+	 */
+	ImportRecord next() throws IOException;
+
+}
@@ -0,0 +1,241 @@
+package fr.epita.iam.services.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * A case insensitive prefix index, for type-ahead. The values are kept in two
+ * sorted arrays, values and keys, so a query is a binary search followed by
+ * reading the next entries until the limit, whatever the number of entries.
+ * The changes go to a small sorted map merged in the arrays when it grows as
+ * big as them. A sorted entry is live while its value is the very string held
+ * for its key, so the entries of a removed or changed key are skipped until
+ * then.
+ * </p>
+ *
+ * <p>
+ * This class is not thread safe, callers are expected to guard it with the
+ * lock of the structure owning it.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>PrefixIndex&lt;Long&gt; index = new PrefixIndex&lt;&gt;();</code>
+ * <code>index.put(1L, "Samer Massad");</code>
+ * <code>List&lt;Long&gt; keys = index.suggest("sam", 10);</code>
+ * </pre>
+ * </p>
+ *
+ * @param <K>
+ *            type of the keys of the indexed entries
+ *
+ * @author Samer Masaad
+ */
+public class PrefixIndex<K> {
+
+	private static final int MIN_MERGE = 1024;
+	private static final String[] NO_VALUES = new String[0];
+
+	// normalized value of every entry, the other structures share its strings
+	private final Map<K, String> values = new HashMap<>();
+	// sorted entries, some may be stale
+	private String[] sortedValues = NO_VALUES;
+	private Object[] sortedKeys = new Object[0];
+	// entries added since the last merge
+	private final NavigableMap<String, List<K>> added = new TreeMap<>();
+	private int addedCount = 0;
+	private int staleCount = 0;
+
+	/**
+	 * Index a value, replacing the previous value of that key
+	 *
+	 * @param key
+	 * @param value
+	 *            - null values are not indexed
+	 */
+	public void put(K key, String value) {
+		if (value == null) {
+			remove(key);
+			return;
+		}
+		// a new string, which no stale entry holds
+		final String normalized = new String(normalize(value));
+		final String previous = values.put(key, normalized);
+		if (previous != null) {
+			if (previous.equals(normalized)) {
+				// keep the entry already sorted
+				values.put(key, previous);
+				return;
+			}
+			staleCount++;
+		}
+		final List<K> keys = added.computeIfAbsent(normalized, v -> new ArrayList<>(1));
+		if (!keys.contains(key)) {
+			// the key may have had this value since the last merge
+			keys.add(key);
+			addedCount++;
+		}
+		mergeIfNeeded();
+	}
+
+	/**
+	 * Remove the value of a key from the index
+	 *
+	 * @param key
+	 */
+	public void remove(K key) {
+		if (values.remove(key) != null) {
+			staleCount++;
+			mergeIfNeeded();
+		}
+	}
+
+	/**
+	 * @param prefix
+	 * @param limit
+	 *            - maximum number of keys returned
+	 * @return keys of the entries whose value starts with the prefix, ignoring
+	 *         case, in the order of their values
+	 */
+	@SuppressWarnings("unchecked")
+	public List<K> suggest(String prefix, int limit) {
+		if (limit <= 0) {
+			return Collections.emptyList();
+		}
+		final String normalized = normalize(prefix);
+		final List<K> results = new ArrayList<>(Math.min(limit, 16));
+		int i = lowerBound(normalized);
+		final Iterator<Map.Entry<String, List<K>>> pending = added.tailMap(normalized, true).entrySet().iterator();
+		Map.Entry<String, List<K>> next = pending.hasNext() ? pending.next() : null;
+		while (results.size() < limit) {
+			final boolean sorted = i < sortedValues.length && sortedValues[i].startsWith(normalized);
+			final boolean fresh = next != null && next.getKey().startsWith(normalized);
+			if (!sorted && !fresh) {
+				break;
+			}
+			if (sorted && (!fresh || sortedValues[i].compareTo(next.getKey()) <= 0)) {
+				final K key = (K) sortedKeys[i];
+				if (sortedValues[i] == values.get(key)) {
+					results.add(key);
+				}
+				i++;
+			} else {
+				for (K key : next.getValue()) {
+					if (results.size() < limit && isLive(next.getKey(), key)) {
+						results.add(key);
+					}
+				}
+				next = pending.hasNext() ? pending.next() : null;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Merges the changes in the sorted arrays, to call once many entries have
+	 * been put, so the memory of the pending changes is given back
+	 */
+	@SuppressWarnings("unchecked")
+	public void compact() {
+		if (addedCount == 0 && staleCount == 0) {
+			return;
+		}
+		final int size = values.size();
+		final String[] mergedValues = new String[size];
+		final Object[] mergedKeys = new Object[size];
+		final Iterator<Map.Entry<String, List<K>>> pending = added.entrySet().iterator();
+		Map.Entry<String, List<K>> next = pending.hasNext() ? pending.next() : null;
+		int i = 0;
+		int n = 0;
+		while (i < sortedValues.length || next != null) {
+			if (i < sortedValues.length && (next == null || sortedValues[i].compareTo(next.getKey()) <= 0)) {
+				final K key = (K) sortedKeys[i];
+				if (sortedValues[i] == values.get(key)) {
+					mergedValues[n] = sortedValues[i];
+					mergedKeys[n++] = key;
+				}
+				i++;
+			} else {
+				for (K key : next.getValue()) {
+					if (isLive(next.getKey(), key)) {
+						mergedValues[n] = values.get(key);
+						mergedKeys[n++] = key;
+					}
+				}
+				next = pending.hasNext() ? pending.next() : null;
+			}
+		}
+		sortedValues = n == size ? mergedValues : Arrays.copyOf(mergedValues, n);
+		sortedKeys = n == size ? mergedKeys : Arrays.copyOf(mergedKeys, n);
+		added.clear();
+		addedCount = 0;
+		staleCount = 0;
+	}
+
+	/**
+	 * @return number of indexed entries
+	 */
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Remove every entry
+	 */
+	public void clear() {
+		values.clear();
+		sortedValues = NO_VALUES;
+		sortedKeys = new Object[0];
+		added.clear();
+		addedCount = 0;
+		staleCount = 0;
+	}
+
+	private void mergeIfNeeded() {
+		final int threshold = Math.max(MIN_MERGE, sortedValues.length);
+		if (addedCount >= threshold || staleCount >= threshold) {
+			compact();
+		}
+	}
+
+	/**
+	 * A key is put at most once per pending value, so the pending entry is live
+	 * if the key still has that value
+	 */
+	private boolean isLive(String value, K key) {
+		return value.equals(values.get(key));
+	}
+
+	/**
+	 * @return index of the first sorted value not lower than the prefix
+	 */
+	private int lowerBound(String prefix) {
+		int low = 0;
+		int high = sortedValues.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (sortedValues[middle].compareTo(prefix) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	private static String normalize(String value) {
+		return value.toLowerCase(Locale.ROOT);
+	}
+
+}
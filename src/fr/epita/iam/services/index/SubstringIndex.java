@@ -0,0 +1,164 @@
+package fr.epita.iam.services.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * A case insensitive substring index. Every indexed value is split into
+ * trigrams, and a contains-query only checks the entries sharing all the
+ * trigrams of the query. Queries shorter than a trigram check every entry.
+ * </p>
+ *
+ * <p>
+ * This class is not thread safe, callers are expected to guard it with the
+ * lock of the structure owning it.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>SubstringIndex&lt;Long&gt; index = new SubstringIndex&lt;&gt;();</code>
+ * <code>index.put(1L, "Samer Massad");</code>
+ * <code>Set&lt;Long&gt; keys = index.search("mass");</code>
+ * </pre>
+ * </p>
+ *
+ * @param <K>
+ *            type of the keys of the indexed entries
+ *
+ * @author Samer Masaad
+ */
+public class SubstringIndex<K> {
+
+	private static final int GRAM = 3;
+
+	// normalized value of every entry
+	private final Map<K, String> values = new HashMap<>();
+	// trigram -> keys of the entries containing it
+	private final Map<String, Set<K>> postings = new HashMap<>();
+
+	/**
+	 * Index a value, replacing the previous value of that key
+	 *
+	 * @param key
+	 * @param value
+	 *            - null values are not indexed
+	 */
+	public void put(K key, String value) {
+		remove(key);
+		if (value == null) {
+			return;
+		}
+		final String normalized = normalize(value);
+		values.put(key, normalized);
+		for (String gram : grams(normalized)) {
+			postings.computeIfAbsent(gram, g -> new HashSet<>()).add(key);
+		}
+	}
+
+	/**
+	 * Remove the value of a key from the index
+	 *
+	 * @param key
+	 */
+	public void remove(K key) {
+		final String normalized = values.remove(key);
+		if (normalized == null) {
+			return;
+		}
+		for (String gram : grams(normalized)) {
+			final Set<K> keys = postings.get(gram);
+			if (keys != null) {
+				keys.remove(key);
+				if (keys.isEmpty()) {
+					postings.remove(gram);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param query
+	 * @return keys of the entries whose value contains the query, ignoring case
+	 */
+	public Set<K> search(String query) {
+		final String normalized = normalize(query);
+		if (normalized.length() < GRAM) {
+			// too short to use the trigrams
+			return scan(normalized);
+		}
+		// intersect the postings, starting with the rarest trigram
+		final List<Set<K>> candidates = new ArrayList<>();
+		for (String gram : grams(normalized)) {
+			final Set<K> keys = postings.get(gram);
+			if (keys == null) {
+				return Collections.emptySet();
+			}
+			candidates.add(keys);
+		}
+		candidates.sort((a, b) -> Integer.compare(a.size(), b.size()));
+		final Set<K> result = new HashSet<>();
+		for (K key : candidates.get(0)) {
+			if (inAll(key, candidates) && values.get(key).contains(normalized)) {
+				// trigrams can match out of order, so check the real value
+				result.add(key);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of indexed entries
+	 */
+	public int size() {
+		return values.size();
+	}
+
+	/**
+	 * Remove every entry
+	 */
+	public void clear() {
+		values.clear();
+		postings.clear();
+	}
+
+	private boolean inAll(K key, List<Set<K>> candidates) {
+		for (int i = 1; i < candidates.size(); i++) {
+			if (!candidates.get(i).contains(key)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private Set<K> scan(String normalized) {
+		final Set<K> result = new HashSet<>();
+		for (Map.Entry<K, String> entry : values.entrySet()) {
+			if (entry.getValue().contains(normalized)) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	private static Set<String> grams(String normalized) {
+		final Set<String> grams = new HashSet<>();
+		for (int i = 0; i + GRAM <= normalized.length(); i++) {
+			grams.add(normalized.substring(i, i + GRAM));
+		}
+		return grams;
+	}
+
+	private static String normalize(String value) {
+		return value.toLowerCase(Locale.ROOT);
+	}
+
+}
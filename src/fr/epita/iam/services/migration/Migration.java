@@ -0,0 +1,160 @@
+package fr.epita.iam.services.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * A numbered SQL script of the database schema. The scripts are named
+ * V&lt;version&gt;__&lt;description&gt;.sql, hold statements ended by a
+ * semicolon at the end of a line, and lines starting with -- are comments.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>Migration migration = Migration.read(new File("sql/migrations/V1__lookup_indexes.sql"));</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class Migration implements Comparable<Migration> {
+
+	private static final Pattern NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+	private final int version;
+	private final String description;
+	private final List<String> statements;
+	private final long checksum;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param version
+	 *            - number of the migration, applied in increasing order
+	 * @param description
+	 * @param statements
+	 *            - SQL statements, without their semicolon
+	 * @param checksum
+	 *            - checksum of the script, to detect a script edited after it
+	 *            was applied
+	 */
+	public Migration(int version, String description, List<String> statements, long checksum) {
+		this.version = version;
+		this.description = description;
+		this.statements = Collections.unmodifiableList(new ArrayList<>(statements));
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the name of the file is the name of a migration script
+	 */
+	public static boolean isScript(File file) {
+		return file.isFile() && NAME.matcher(file.getName()).matches();
+	}
+
+	/**
+	 * Reads a migration script
+	 *
+	 * @param file
+	 * @return the migration
+	 * @throws IOException
+	 *             if the file can't be read or is not named as a script
+	 */
+	public static Migration read(File file) throws IOException {
+		final Matcher matcher = NAME.matcher(file.getName());
+		if (!matcher.matches()) {
+			throw new IOException("Not a migration script: " + file);
+		}
+		final byte[] content = Files.readAllBytes(file.toPath());
+		final CRC32 crc = new CRC32();
+		crc.update(content);
+		return new Migration(Integer.parseInt(matcher.group(1)), matcher.group(2).replace('_', ' '),
+				split(new String(content, StandardCharsets.UTF_8)), crc.getValue());
+	}
+
+	/**
+	 * @param script
+	 * @return the statements of the script, without comments and semicolons
+	 */
+	static List<String> split(String script) {
+		final List<String> statements = new ArrayList<>();
+		final StringBuilder statement = new StringBuilder();
+		for (String line : script.split("\r?\n")) {
+			final String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+				continue;
+			}
+			if (statement.length() > 0) {
+				statement.append('\n');
+			}
+			if (trimmed.endsWith(";")) {
+				statement.append(trimmed, 0, trimmed.length() - 1);
+				statements.add(statement.toString().trim());
+				statement.setLength(0);
+			} else {
+				statement.append(trimmed);
+			}
+		}
+		if (statement.toString().trim().length() > 0) {
+			// the last statement may omit its semicolon
+			statements.add(statement.toString().trim());
+		}
+		return statements;
+	}
+
+	/**
+	 * @return the version
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the description
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * @return the statements
+	 */
+	public List<String> getStatements() {
+		return statements;
+	}
+
+	/**
+	 * @return the checksum of the script
+	 */
+	public long getChecksum() {
+		return checksum;
+	}
+
+	@Override
+	public int compareTo(Migration other) {
+		return Integer.compare(version, other.version);
+	}
+
+	/**
+	 * @return String representation of the migration
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "Migration [version=" + version + ", description=" + description + ", statements="
+				+ statements.size() + "]";
+	}
+
+}
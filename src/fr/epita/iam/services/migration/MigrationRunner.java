@@ -0,0 +1,230 @@
+package fr.epita.iam.services.migration;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.iam.services.connections.JDBCConnection;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Brings the database schema up to date on startup. The {@link Migration}
+ * scripts of the migrations directory are applied in the order of their
+ * version, each one in its own transaction with the row recording it in the
+ * SCHEMA_VERSION table, so a failed script leaves nothing behind and is tried
+ * again on the next startup. The table is locked while migrating, so two
+ * processes starting together don't apply a script twice.
+ * </p>
+ *
+ * <p>
+ * The scripts start from the schema of sql/init.sql. A script edited after it
+ * was applied is reported, not applied again: changes need a new script.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>int applied = MigrationRunner.fromConfiguration().migrate();</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class MigrationRunner {
+
+	private static final Logger LOGGER = new Logger(MigrationRunner.class);
+
+	private static final String PATH = "db.migrations.path";
+	private static final String DEFAULT_PATH = "sql/migrations";
+
+	private static final String TABLE = "SCHEMA_VERSION";
+	private static final String CREATE_TABLE = "CREATE TABLE " + TABLE + " (VERSION INT NOT NULL PRIMARY KEY, "
+			+ "DESCRIPTION VARCHAR(255), CHECKSUM BIGINT, APPLIED_AT TIMESTAMP)";
+	// SQL state of Derby when the table already exists
+	private static final String TABLE_EXISTS = "X0Y32";
+
+	private final File directory;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param directory
+	 *            - directory of the migration scripts
+	 */
+	public MigrationRunner(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return a runner of the scripts of the directory set in the configuration
+	 *         file
+	 */
+	public static MigrationRunner fromConfiguration() {
+		final String path = ConfigurationService.getInstance().getConfigurationValue(PATH);
+		return new MigrationRunner(new File(path == null || path.trim().isEmpty() ? DEFAULT_PATH : path.trim()));
+	}
+
+	/**
+	 * @return the scripts of the directory, in the order of their version
+	 * @throws IOException
+	 *             if a script can't be read, or two scripts have the same
+	 *             version
+	 */
+	public List<Migration> load() throws IOException {
+		final List<Migration> migrations = new ArrayList<>();
+		final File[] files = directory.listFiles(Migration::isScript);
+		if (files == null) {
+			LOGGER.warning("No migrations directory found: " + directory.getAbsolutePath());
+			return migrations;
+		}
+		for (File file : files) {
+			migrations.add(Migration.read(file));
+		}
+		Collections.sort(migrations);
+		for (int i = 1; i < migrations.size(); i++) {
+			if (migrations.get(i).getVersion() == migrations.get(i - 1).getVersion()) {
+				throw new IOException("Two migrations have the version " + migrations.get(i).getVersion());
+			}
+		}
+		return migrations;
+	}
+
+	/**
+	 * Applies the migrations that are not recorded in the SCHEMA_VERSION table
+	 *
+	 * @return number of migrations applied
+	 * @throws IOException
+	 *             if the scripts could not be read
+	 * @throws SQLException
+	 *             if a migration failed, the previous ones are kept
+	 * @throws ClassNotFoundException
+	 */
+	public int migrate() throws IOException, SQLException, ClassNotFoundException {
+		final List<Migration> migrations = load();
+		Connection connection = null;
+		try {
+			connection = JDBCConnection.getConnection();
+			createTable(connection);
+			connection.setAutoCommit(false);
+			int applied = 0;
+			for (Migration migration : migrations) {
+				if (apply(connection, migration)) {
+					applied++;
+				}
+			}
+			LOGGER.info("Database schema up to date at version " + getVersion(connection) + ", " + applied
+					+ " migrations applied");
+			return applied;
+		} finally {
+			JDBCConnection.close(connection, null, null);
+		}
+	}
+
+	/**
+	 * @return the highest version applied, 0 if none
+	 * @throws SQLException
+	 * @throws ClassNotFoundException
+	 */
+	public int getVersion() throws SQLException, ClassNotFoundException {
+		Connection connection = null;
+		try {
+			connection = JDBCConnection.getConnection();
+			createTable(connection);
+			return getVersion(connection);
+		} finally {
+			JDBCConnection.close(connection, null, null);
+		}
+	}
+
+	private static void createTable(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute(CREATE_TABLE);
+			LOGGER.info("Created the " + TABLE + " table");
+		} catch (final SQLException e) {
+			if (!TABLE_EXISTS.equals(e.getSQLState())) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Applies the migration in its own transaction, unless it is already
+	 * recorded
+	 *
+	 * @return true if the migration was applied
+	 */
+	private static boolean apply(Connection connection, Migration migration) throws SQLException {
+		try {
+			// blocks the other processes until this migration is committed
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("LOCK TABLE " + TABLE + " IN EXCLUSIVE MODE");
+			}
+			final Map<Integer, Long> applied = getApplied(connection);
+			if (applied.containsKey(migration.getVersion())) {
+				final Long checksum = applied.get(migration.getVersion());
+				if (checksum != null && checksum != migration.getChecksum()) {
+					LOGGER.warning("Migration " + migration.getVersion()
+							+ " was edited after it was applied, write a new migration instead");
+				}
+				connection.commit();
+				return false;
+			}
+			LOGGER.info("Applying " + migration);
+			final long start = System.nanoTime();
+			for (String sql : migration.getStatements()) {
+				try (Statement statement = connection.createStatement()) {
+					statement.execute(sql);
+				}
+			}
+			try (PreparedStatement record = connection.prepareStatement(
+					"INSERT INTO " + TABLE + " (VERSION, DESCRIPTION, CHECKSUM, APPLIED_AT) VALUES (?, ?, ?, ?)")) {
+				record.setInt(1, migration.getVersion());
+				record.setString(2, migration.getDescription());
+				record.setLong(3, migration.getChecksum());
+				record.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+				record.executeUpdate();
+			}
+			connection.commit();
+			LOGGER.info("Applied migration " + migration.getVersion() + " in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+			return true;
+		} catch (final SQLException e) {
+			JDBCConnection.rollback(connection);
+			LOGGER.error("Migration " + migration.getVersion() + " failed, rolled back", e);
+			throw e;
+		}
+	}
+
+	private static Map<Integer, Long> getApplied(Connection connection) throws SQLException {
+		final Map<Integer, Long> applied = new HashMap<>();
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT VERSION, CHECKSUM FROM " + TABLE)) {
+			while (rs.next()) {
+				final long checksum = rs.getLong(2);
+				applied.put(rs.getInt(1), rs.wasNull() ? null : checksum);
+			}
+		}
+		return applied;
+	}
+
+	private static int getVersion(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement();
+				ResultSet rs = statement.executeQuery("SELECT MAX(VERSION) FROM " + TABLE)) {
+			return rs.next() ? rs.getInt(1) : 0;
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+package fr.epita.iam.services.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Binary snapshot of a store, read through a {@link MappedByteBuffer}. Records
+ * are length prefixed and followed by an index of their offsets, sorted by
+ * key, so a record can be found by its key with a binary search without
+ * deserializing the others.
+ * </p>
+ *
+ * <p>
+ * Layout, big endian:
+ * <ul>
+ * <li>header: magic, version</li>
+ * <li>records: length, key, number of fields, fields</li>
+ * <li>index: offset of every record, sorted by key</li>
+ * <li>trailer: offset of the index, number of records, magic</li>
+ * </ul>
+ * Strings are written as their UTF-8 length followed by their bytes, -1 for
+ * null. Keys are compared ignoring case.
+ * </p>
+ *
+ * <p>
+ * Java can't unmap a file explicitly: the mapping is released when the buffer
+ * is garbage collected. {@link #close()} drops the reference to the buffer, so
+ * it can be collected once the records are loaded. Until then, some systems,
+ * Windows for example, refuse to replace the mapped file, see
+ * {@link StorePersistence#replace(File, File)}.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>BinarySnapshot&lt;Identity&gt; snapshot = BinarySnapshot.map(file, RecordCodecs.IDENTITY);</code>
+ * <code>List&lt;Identity&gt; identities = snapshot.get(uid);</code>
+ * </pre>
+ * </p>
+ *
+ * @param <T>
+ *            type of the records
+ *
+ * @author Samer Masaad
+ */
+public class BinarySnapshot<T> implements AutoCloseable {
+
+	private static final int MAGIC = 0x49414D42;
+	private static final int VERSION = 1;
+	private static final int HEADER = 8;
+	private static final int TRAILER = 16;
+
+	private final File file;
+	private final RecordCodec<T> codec;
+	// null once closed
+	private volatile ByteBuffer buffer;
+	private final int indexOffset;
+	private final int size;
+
+	private BinarySnapshot(File file, RecordCodec<T> codec, ByteBuffer buffer) throws IOException {
+		this.file = file;
+		this.codec = codec;
+		this.buffer = buffer;
+		final int end = buffer.limit();
+		if (end < HEADER + TRAILER || buffer.getInt(0) != MAGIC || buffer.getInt(end - 4) != MAGIC) {
+			throw new IOException(file + " is not a binary snapshot");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported version " + buffer.getInt(4) + " of " + file);
+		}
+		final long index = buffer.getLong(end - TRAILER);
+		size = buffer.getInt(end - 8);
+		if (index < HEADER || size < 0 || index + 8L * size != end - TRAILER) {
+			throw new IOException(file + " is corrupted");
+		}
+		indexOffset = (int) index;
+	}
+
+	/**
+	 * Maps a snapshot file in memory. Nothing is deserialized until the records
+	 * are read.
+	 *
+	 * @param file
+	 * @param codec
+	 * @return the mapped snapshot
+	 * @throws IOException
+	 *             if the file can't be read or is not a valid snapshot
+	 */
+	public static <T> BinarySnapshot<T> map(File file, RecordCodec<T> codec) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to be mapped");
+			}
+			// the mapping stays valid once the channel is closed, until the buffer is collected
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new BinarySnapshot<>(file, codec, buffer);
+		}
+	}
+
+	/**
+	 * @param codec
+	 *            - converts the records to fields
+	 * @param key
+	 *            - key of a record, for example its UID
+	 * @return a writer of binary snapshots
+	 */
+	public static <T> RecordWriter<T> writer(RecordCodec<T> codec, Function<T, String> key) {
+		return (output, records) -> write(output, records, codec, key);
+	}
+
+	private static <T> void write(OutputStream output, Iterable<T> records, RecordCodec<T> codec,
+			Function<T, String> key) throws IOException {
+		final DataOutputStream data = new DataOutputStream(output);
+		final List<Entry> entries = new ArrayList<>();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		final DataOutputStream record = new DataOutputStream(bytes);
+		long position = HEADER;
+
+		data.writeInt(MAGIC);
+		data.writeInt(VERSION);
+		for (T value : records) {
+			final String recordKey = normalize(key.apply(value));
+			bytes.reset();
+			writeString(record, recordKey);
+			final String[] fields = codec.encode(value);
+			record.writeInt(fields.length);
+			for (String field : fields) {
+				writeString(record, field);
+			}
+			data.writeInt(bytes.size());
+			bytes.writeTo(data);
+			entries.add(new Entry(recordKey, position));
+			position += 4 + bytes.size();
+		}
+
+		Collections.sort(entries);
+		for (Entry entry : entries) {
+			data.writeLong(entry.offset);
+		}
+		data.writeLong(position);
+		data.writeInt(entries.size());
+		data.writeInt(MAGIC);
+		data.flush();
+	}
+
+	/**
+	 * @param key
+	 * @return the records having this key, ignoring case
+	 * @throws IllegalStateException
+	 *             if the snapshot is closed
+	 */
+	public List<T> get(String key) {
+		final ByteBuffer buffer = mapped();
+		final String normalized = normalize(key);
+		final List<T> results = new ArrayList<>(1);
+		// first record having a key greater or equal
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (keyAt(buffer, middle).compareTo(normalized) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		for (int i = low; i < size && keyAt(buffer, i).equals(normalized); i++) {
+			results.add(read(buffer, recordOffset(buffer, i)));
+		}
+		return results;
+	}
+
+	/**
+	 * Deserializes every record, in the order they were written
+	 *
+	 * @param consumer
+	 * @throws IllegalStateException
+	 *             if the snapshot is closed
+	 */
+	public void forEach(Consumer<? super T> consumer) {
+		final ByteBuffer buffer = mapped();
+		int offset = HEADER;
+		while (offset < indexOffset) {
+			consumer.accept(read(buffer, offset));
+			offset += 4 + buffer.getInt(offset);
+		}
+	}
+
+	/**
+	 * @return number of records
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the mapped file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Drops the reference to the mapped file, so the mapping is released once
+	 * the buffer is garbage collected. The records can't be read anymore.
+	 */
+	@Override
+	public void close() {
+		buffer = null;
+	}
+
+	private ByteBuffer mapped() {
+		final ByteBuffer mapped = buffer;
+		if (mapped == null) {
+			throw new IllegalStateException("The binary snapshot " + file + " is closed");
+		}
+		return mapped;
+	}
+
+	private int recordOffset(ByteBuffer buffer, int position) {
+		return (int) buffer.getLong(indexOffset + 8 * position);
+	}
+
+	private String keyAt(ByteBuffer buffer, int position) {
+		final ByteBuffer reader = buffer.duplicate();
+		reader.position(recordOffset(buffer, position) + 4);
+		return readString(reader);
+	}
+
+	private T read(ByteBuffer buffer, int offset) {
+		final ByteBuffer reader = buffer.duplicate();
+		reader.position(offset + 4);
+		// skip the key
+		readString(reader);
+		final String[] fields = new String[reader.getInt()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = readString(reader);
+		}
+		return codec.decode(fields);
+	}
+
+	private static void writeString(DataOutputStream output, String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(ByteBuffer reader) {
+		final int length = reader.getInt();
+		if (length < 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		reader.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String normalize(String key) {
+		return key == null ? "" : key.toLowerCase(Locale.ROOT);
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		private final String key;
+		private final long offset;
+
+		Entry(String key, long offset) {
+			this.key = key;
+			this.offset = offset;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return key.compareTo(other.key);
+		}
+	}
+
+}
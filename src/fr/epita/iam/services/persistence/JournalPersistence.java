@@ -0,0 +1,303 @@
+package fr.epita.iam.services.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import javax.xml.transform.TransformerException;
+
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Appends one line per change to a journal file next to the snapshot, instead
+ * of rewriting the snapshot. A background compaction folds the journal into a
+ * fresh snapshot every interval, or once the journal holds too many entries.
+ * On startup, the snapshot is loaded first, then the journal is replayed with
+ * {@link #replay(File, RecordCodec, BiConsumer)}.
+ * </p>
+ *
+ * <p>
+ * A journal entry is the operation followed by the fields of the record,
+ * separated by tabs: <code>C	Samer Massad	FR100	samer@hotmail.com</code>.
+ * Replaying an entry gives the same result whether or not it is already part
+ * of the snapshot, so a crash during a compaction is harmless. Closing the
+ * persistence compacts the journal, which is then empty: the persistence mode
+ * can be changed after a clean shutdown.
+ * </p>
+ *
+ * @param <T>
+ *            type of the records of the store
+ *
+ * @author Samer Masaad
+ */
+public class JournalPersistence<T> extends WriteBehindPersistence<T> {
+
+	private static final Logger LOGGER = new Logger(JournalPersistence.class);
+
+	private static final String JOURNAL = ".journal";
+	// journal being folded into the snapshot
+	private static final String COMPACTING = ".journal.compacting";
+	private static final char SEPARATOR = '\t';
+	private static final String NULL = "\\0";
+
+	private final RecordCodec<T> codec;
+	private final File journal;
+	private final File compacting;
+	private final Object journalLock = new Object();
+	private OutputStream output;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param file
+	 *            - the snapshot file
+	 * @param source
+	 *            - returns a consistent copy of the records of the store
+	 * @param writer
+	 *            - serializes the records to the snapshot
+	 * @param codec
+	 *            - converts the records to journal entries
+	 * @param compactionIntervalMillis
+	 *            - delay between two compactions
+	 * @param maxJournalEntries
+	 *            - number of journal entries that triggers a compaction before
+	 *            the interval ends, 0 to only compact on the interval
+	 */
+	public JournalPersistence(File file, Supplier<? extends Iterable<T>> source, RecordWriter<T> writer,
+			RecordCodec<T> codec, long compactionIntervalMillis, int maxJournalEntries) {
+		super(file, source, writer, compactionIntervalMillis, maxJournalEntries);
+		this.codec = codec;
+		journal = getJournal(file);
+		compacting = new File(file.getPath() + COMPACTING);
+	}
+
+	/**
+	 * Replays the journal of a snapshot file, if any, oldest entry first
+	 *
+	 * @param file
+	 *            - the snapshot file
+	 * @param codec
+	 *            - converts the journal entries to records
+	 * @param consumer
+	 *            - applies the changes to the store
+	 * @return number of replayed entries
+	 * @throws IOException
+	 */
+	public static <T> int replay(File file, RecordCodec<T> codec, BiConsumer<Operation, T> consumer)
+			throws IOException {
+		// a crash during a compaction leaves the previous journal behind
+		return replayFile(new File(file.getPath() + COMPACTING), codec, consumer)
+				+ replayFile(getJournal(file), codec, consumer);
+	}
+
+	/**
+	 * @param file
+	 *            - the snapshot file
+	 * @return the journal of this snapshot file
+	 */
+	public static File getJournal(File file) {
+		return new File(file.getPath() + JOURNAL);
+	}
+
+	@Override
+	protected void onChange(Operation operation, Collection<? extends T> records) throws TransformerException {
+		final StringBuilder entries = new StringBuilder(64 * records.size());
+		for (T record : records) {
+			encode(entries, operation, codec.encode(record));
+		}
+		final byte[] bytes = entries.toString().getBytes(StandardCharsets.UTF_8);
+		synchronized (journalLock) {
+			try {
+				if (output == null) {
+					output = new BufferedOutputStream(new FileOutputStream(journal, true));
+				}
+				output.write(bytes);
+				// hand the entries to the operating system before the DAO returns
+				output.flush();
+			} catch (final IOException e) {
+				pending.addAndGet(-records.size());
+				throw new TransformerException("Could not append to " + journal, e);
+			}
+		}
+		addBytesWritten(bytes.length);
+		super.onChange(operation, records);
+	}
+
+	/**
+	 * Folds the journal into a fresh snapshot
+	 */
+	@Override
+	protected long writeSnapshot() throws IOException {
+		final Iterable<T> records;
+		synchronized (journalLock) {
+			closeJournal();
+			if (journal.exists()) {
+				if (compacting.exists()) {
+					// the previous compaction failed, keep its entries in order
+					append(journal, compacting);
+					Files.delete(journal.toPath());
+				} else {
+					replace(journal, compacting);
+				}
+			}
+			// every change of the compacted journal is already in the store
+			records = records();
+		}
+		final long written = writeSnapshot(records);
+		Files.deleteIfExists(compacting.toPath());
+		return written;
+	}
+
+	@Override
+	public void close() throws TransformerException {
+		super.close();
+		synchronized (journalLock) {
+			try {
+				closeJournal();
+			} catch (final IOException e) {
+				throw new TransformerException("Could not close " + journal, e);
+			}
+		}
+	}
+
+	private void closeJournal() throws IOException {
+		if (output != null) {
+			try {
+				output.close();
+			} finally {
+				output = null;
+			}
+		}
+	}
+
+	private static void append(File from, File to) throws IOException {
+		try (OutputStream target = new FileOutputStream(to, true)) {
+			Files.copy(from.toPath(), target);
+		}
+	}
+
+	private static <T> int replayFile(File journal, RecordCodec<T> codec, BiConsumer<Operation, T> consumer)
+			throws IOException {
+		if (!journal.exists()) {
+			return 0;
+		}
+		int replayed = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(journal), StandardCharsets.UTF_8))) {
+			String line;
+			int number = 0;
+			while ((line = reader.readLine()) != null) {
+				number++;
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					final List<String> fields = decode(line);
+					final Operation operation = toOperation(fields.remove(0));
+					consumer.accept(operation, codec.decode(fields.toArray(new String[fields.size()])));
+					replayed++;
+				} catch (final IllegalArgumentException e) {
+					// most likely the last entry, cut by a crash
+					LOGGER.warning("Skipping invalid entry " + number + " of " + journal + ": " + e.getMessage());
+				}
+			}
+		}
+		return replayed;
+	}
+
+	private static void encode(StringBuilder entry, Operation operation, String[] fields) {
+		entry.append(operation.name().charAt(0));
+		for (String field : fields) {
+			entry.append(SEPARATOR);
+			if (field == null) {
+				entry.append(NULL);
+				continue;
+			}
+			for (int i = 0; i < field.length(); i++) {
+				final char c = field.charAt(i);
+				switch (c) {
+				case '\\':
+					entry.append("\\\\");
+					break;
+				case '\t':
+					entry.append("\\t");
+					break;
+				case '\n':
+					entry.append("\\n");
+					break;
+				case '\r':
+					entry.append("\\r");
+					break;
+				default:
+					entry.append(c);
+				}
+			}
+		}
+		entry.append('\n');
+	}
+
+	private static List<String> decode(String line) {
+		final List<String> fields = new ArrayList<>();
+		final StringBuilder field = new StringBuilder();
+		boolean isNull = false;
+		for (int i = 0; i < line.length(); i++) {
+			final char c = line.charAt(i);
+			if (c == SEPARATOR) {
+				fields.add(isNull ? null : field.toString());
+				field.setLength(0);
+				isNull = false;
+			} else if (c == '\\') {
+				if (++i == line.length()) {
+					throw new IllegalArgumentException("unfinished escape");
+				}
+				switch (line.charAt(i)) {
+				case '\\':
+					field.append('\\');
+					break;
+				case 't':
+					field.append('\t');
+					break;
+				case 'n':
+					field.append('\n');
+					break;
+				case 'r':
+					field.append('\r');
+					break;
+				case '0':
+					isNull = true;
+					break;
+				default:
+					throw new IllegalArgumentException("unknown escape \\" + line.charAt(i));
+				}
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(isNull ? null : field.toString());
+		return fields;
+	}
+
+	private static Operation toOperation(String code) {
+		for (Operation operation : Operation.values()) {
+			if (code.length() == 1 && operation.name().charAt(0) == code.charAt(0)) {
+				return operation;
+			}
+		}
+		throw new IllegalArgumentException("unknown operation " + code);
+	}
+
+}
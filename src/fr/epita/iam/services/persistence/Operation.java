@@ -0,0 +1,13 @@
+package fr.epita.iam.services.persistence;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Kind of change applied to a store
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public enum Operation {
+	CREATE, UPDATE, DELETE
+}
@@ -0,0 +1,31 @@
+package fr.epita.iam.services.persistence;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Converts the records of a store to a list of fields, and back. Used for the
+ * journal entries and the binary snapshots. Null fields are allowed.
+ * </p>
+ *
+ * @param <T>
+ *            type of the records
+ *
+ * @author Samer Masaad
+ */
+public interface RecordCodec<T> {
+
+	/**
+	 * @param record
+	 * @return the fields of the record
+	 */
+	String[] encode(T record);
+
+	/**
+	 * @param fields
+	 * @return the record
+	 * @throws IllegalArgumentException
+	 *             if the fields don't describe a record
+	 */
+	T decode(String[] fields);
+
+}
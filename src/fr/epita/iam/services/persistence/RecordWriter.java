@@ -0,0 +1,27 @@
+package fr.epita.iam.services.persistence;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Serializes the records of a store to a stream, for example
+ * {@link fr.epita.iam.services.connections.XMLRecordWriter#writeIdentities(OutputStream, Iterable)}
+ * </p>
+ *
+ * @param <T>
+ *            type of the records
+ *
+ * @author Samer Masaad
+ */
+public interface RecordWriter<T> {
+
+	/**
+	 * @param output
+	 * @param records
+	 * @throws IOException
+	 */
+	void write(OutputStream output, Iterable<T> records) throws IOException;
+
+}
@@ -0,0 +1,320 @@
+package fr.epita.iam.services.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.xml.transform.TransformerException;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Persists an in-memory store to a snapshot file. The stores report every
+ * change with {@link #changed(Operation, Object)}, and the subclasses decide
+ * when the snapshot is written. A snapshot is written to a temporary file next
+ * to the target, then renamed over it, so a crash never leaves a half written
+ * file behind.
+ * </p>
+ *
+ * <p>
+ * The persistence keeps the number of bytes written per logical write (one
+ * call to changed) and the latency of the flushes.
+ * </p>
+ *
+ * @param <T>
+ *            type of the records of the store
+ *
+ * @author Samer Masaad
+ */
+public abstract class StorePersistence<T> {
+
+	// replacing a file still mapped by a binary snapshot
+	private static final int REPLACE_ATTEMPTS = 3;
+	private static final long REPLACE_RETRY_DELAY = 50;
+
+	protected final File file;
+	private final Supplier<? extends Iterable<T>> source;
+	private final RecordWriter<T> writer;
+
+	// changes not written yet
+	protected final AtomicLong pending = new AtomicLong();
+	private final Object flushLock = new Object();
+
+	// metrics
+	private final AtomicLong logicalWrites = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong totalFlushNanos = new AtomicLong();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param file
+	 *            - the snapshot file
+	 * @param source
+	 *            - returns a consistent copy of the records of the store
+	 * @param writer
+	 *            - serializes the records
+	 */
+	protected StorePersistence(File file, Supplier<? extends Iterable<T>> source, RecordWriter<T> writer) {
+		this.file = file;
+		this.source = source;
+		this.writer = writer;
+	}
+
+	/**
+	 * Called by the store after each change
+	 *
+	 * @param operation
+	 * @param record
+	 *            - the created, updated or deleted record
+	 * @throws TransformerException
+	 *             if the change had to be written and the write failed
+	 */
+	public final void changed(Operation operation, T record) throws TransformerException {
+		changedAll(operation, Collections.singletonList(record));
+	}
+
+	/**
+	 * Called by the store after the same change was applied to many records, so
+	 * they are written together
+	 *
+	 * @param operation
+	 * @param records
+	 *            - the created, updated or deleted records
+	 * @throws TransformerException
+	 *             if the changes had to be written and the write failed
+	 */
+	public final void changedAll(Operation operation, Collection<? extends T> records) throws TransformerException {
+		if (records.isEmpty()) {
+			return;
+		}
+		logicalWrites.addAndGet(records.size());
+		pending.addAndGet(records.size());
+		onChange(operation, records);
+	}
+
+	/**
+	 * Decide what to do with changes
+	 *
+	 * @param operation
+	 * @param records
+	 * @throws TransformerException
+	 */
+	protected abstract void onChange(Operation operation, Collection<? extends T> records)
+			throws TransformerException;
+
+	/**
+	 * Write the snapshot if there are changes that haven't been written yet
+	 *
+	 * @throws TransformerException
+	 */
+	public void flush() throws TransformerException {
+		synchronized (flushLock) {
+			final long changes = pending.get();
+			if (changes == 0) {
+				return;
+			}
+			final long start = System.nanoTime();
+			try {
+				bytesWritten.addAndGet(writeSnapshot());
+			} catch (final IOException e) {
+				throw new TransformerException("Could not write " + file, e);
+			}
+			// changes made during the write stay pending
+			pending.addAndGet(-changes);
+			recordFlush(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Write every change and release the resources of the persistence
+	 *
+	 * @throws TransformerException
+	 */
+	public void close() throws TransformerException {
+		flush();
+	}
+
+	/**
+	 * Writes the current records of the store as the new snapshot
+	 *
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	protected long writeSnapshot() throws IOException {
+		return writeSnapshot(records());
+	}
+
+	/**
+	 * Writes the records to a temporary file and renames it over the snapshot
+	 *
+	 * @param records
+	 * @return number of bytes written
+	 * @throws IOException
+	 */
+	protected final long writeSnapshot(Iterable<T> records) throws IOException {
+		final File directory = file.getAbsoluteFile().getParentFile();
+		final File temporary = File.createTempFile("." + file.getName() + "-", ".tmp", directory);
+		try {
+			try (OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary))) {
+				writer.write(output, records);
+			}
+			final long length = temporary.length();
+			replace(temporary, file);
+			return length;
+		} finally {
+			Files.deleteIfExists(temporary.toPath());
+		}
+	}
+
+	/**
+	 * Atomically replace a file, falling back to a plain replace on file systems
+	 * that can't rename atomically. Some systems, Windows for example, refuse to
+	 * replace a file that is still mapped in memory: a closed
+	 * {@link BinarySnapshot} is only unmapped once garbage collected, so the
+	 * collection is requested and the replace tried again a few times.
+	 *
+	 * @param source
+	 * @param target
+	 * @throws IOException
+	 */
+	protected static void replace(File source, File target) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				move(source, target);
+				return;
+			} catch (final FileSystemException e) {
+				if (attempt == REPLACE_ATTEMPTS) {
+					throw e;
+				}
+				System.gc();
+				try {
+					Thread.sleep(REPLACE_RETRY_DELAY * attempt);
+				} catch (final InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	private static void move(File source, File target) throws IOException {
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Count bytes written outside of the snapshots
+	 *
+	 * @param bytes
+	 */
+	protected void addBytesWritten(long bytes) {
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * @return a consistent copy of the records of the store
+	 */
+	protected Iterable<T> records() {
+		return source.get();
+	}
+
+	private void recordFlush(long nanos) {
+		flushCount.incrementAndGet();
+		totalFlushNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxFlushNanos.get())) {
+			if (maxFlushNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return the snapshot file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return number of changes not written yet
+	 */
+	public long getPendingChanges() {
+		return pending.get();
+	}
+
+	/**
+	 * @return number of changes reported by the store
+	 */
+	public long getLogicalWrites() {
+		return logicalWrites.get();
+	}
+
+	/**
+	 * @return number of bytes written to disk
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return average number of bytes written per change
+	 */
+	public double getBytesPerLogicalWrite() {
+		final long writes = logicalWrites.get();
+		return writes == 0 ? 0 : (double) bytesWritten.get() / writes;
+	}
+
+	/**
+	 * @return number of flushes
+	 */
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+
+	/**
+	 * @return average duration of a flush, in milliseconds
+	 */
+	public double getAverageFlushMillis() {
+		final long flushes = flushCount.get();
+		return flushes == 0 ? 0 : totalFlushNanos.get() / (flushes * 1e6);
+	}
+
+	/**
+	 * @return longest flush, in milliseconds
+	 */
+	public double getMaxFlushMillis() {
+		return maxFlushNanos.get() / 1e6;
+	}
+
+	/**
+	 * @return String representation of the persistence metrics
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [file=" + file + ", pending=" + getPendingChanges() + ", writes="
+				+ getLogicalWrites() + ", bytes=" + getBytesWritten() + ", bytesPerWrite="
+				+ String.format("%.1f", getBytesPerLogicalWrite()) + ", flushes=" + getFlushCount()
+				+ ", avgFlushMs=" + String.format("%.3f", getAverageFlushMillis()) + ", maxFlushMs="
+				+ String.format("%.3f", getMaxFlushMillis()) + "]";
+	}
+
+}
@@ -0,0 +1,43 @@
+package fr.epita.iam.services.persistence;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.function.Supplier;
+
+import javax.xml.transform.TransformerException;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Writes the snapshot after every change, before the DAO returns. This is the
+ * behaviour of the XML DAOs before write-behind was added, and the safest one
+ * when the process can be killed at any time.
+ * </p>
+ *
+ * @param <T>
+ *            type of the records of the store
+ *
+ * @author Samer Masaad
+ */
+public class SynchronousPersistence<T> extends StorePersistence<T> {
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param file
+	 *            - the snapshot file
+	 * @param source
+	 *            - returns a consistent copy of the records of the store
+	 * @param writer
+	 *            - serializes the records
+	 */
+	public SynchronousPersistence(File file, Supplier<? extends Iterable<T>> source, RecordWriter<T> writer) {
+		super(file, source, writer);
+	}
+
+	@Override
+	protected void onChange(Operation operation, Collection<? extends T> records) throws TransformerException {
+		flush();
+	}
+
+}
@@ -0,0 +1,122 @@
+package fr.epita.iam.services.persistence;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import javax.xml.transform.TransformerException;
+
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Marks the store dirty on every change and writes the snapshot in the
+ * background, so many changes are coalesced into a single write. A flush
+ * happens:
+ * <ul>
+ * <li>every interval, if the store is dirty</li>
+ * <li>as soon as the number of pending changes reaches the threshold</li>
+ * <li>when the persistence is closed, or when the JVM shuts down</li>
+ * </ul>
+ * Changes made since the last flush are lost if the process is killed.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>StorePersistence&lt;Identity&gt; persistence = new WriteBehindPersistence&lt;&gt;(file, store::all,</code>
+ * <code>		XMLRecordWriter::writeIdentities, 1000, 500);</code>
+ * <code>persistence.changed(Operation.CREATE, identity);</code>
+ * </pre>
+ * </p>
+ *
+ * @param <T>
+ *            type of the records of the store
+ *
+ * @author Samer Masaad
+ */
+public class WriteBehindPersistence<T> extends StorePersistence<T> {
+
+	private static final Logger LOGGER = new Logger(WriteBehindPersistence.class);
+
+	private final int maxPendingChanges;
+	private final ScheduledExecutorService flusher;
+	private final Thread shutdownHook;
+	// a threshold flush is already queued
+	private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param file
+	 *            - the snapshot file
+	 * @param source
+	 *            - returns a consistent copy of the records of the store
+	 * @param writer
+	 *            - serializes the records
+	 * @param intervalMillis
+	 *            - delay between two background flushes
+	 * @param maxPendingChanges
+	 *            - number of changes that triggers a flush before the interval
+	 *            ends, 0 to only flush on the interval
+	 */
+	public WriteBehindPersistence(File file, Supplier<? extends Iterable<T>> source, RecordWriter<T> writer,
+			long intervalMillis, int maxPendingChanges) {
+		super(file, source, writer);
+		this.maxPendingChanges = maxPendingChanges;
+		flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "write-behind-" + file.getName());
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		shutdownHook = new Thread(this::flushQuietly, "write-behind-shutdown-" + file.getName());
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	@Override
+	protected void onChange(Operation operation, Collection<? extends T> records) throws TransformerException {
+		if (maxPendingChanges > 0 && !flusher.isShutdown() && pending.get() >= maxPendingChanges && flushQueued.compareAndSet(false, true)) {
+			flusher.execute(() -> {
+				flushQueued.set(false);
+				flushQuietly();
+			});
+		}
+	}
+
+	/**
+	 * Stop the background flushes and write the pending changes
+	 *
+	 * @throws TransformerException
+	 */
+	@Override
+	public void close() throws TransformerException {
+		flusher.shutdown();
+		try {
+			flusher.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (final IllegalStateException e) {
+			// the JVM is already shutting down, the hook does the flush
+		}
+		flush();
+	}
+
+	private void flushQuietly() {
+		try {
+			flush();
+		} catch (final TransformerException e) {
+			// the changes stay pending, the next flush will retry
+			LOGGER.error("Failed to write " + file, e);
+		}
+	}
+
+}
@@ -0,0 +1,160 @@
+package fr.epita.iam.services.security;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import fr.epita.iam.services.configuration.ConfigurationService;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * A bounded pool of threads for the slow password hashes, so they never run
+ * on the threads serving the requests, and never more of them at once than
+ * the machine can handle. When all the threads are busy and the queue is full,
+ * new hashes are refused right away instead of piling up.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>CompletableFuture&lt;Boolean&gt; valid = HashingExecutor.getInstance()</code>
+ * <code>		.submit(() -&gt; PasswordHashers.verify(password, encoded));</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class HashingExecutor {
+
+	private static final String THREADS = "security.hash.threads";
+	private static final String QUEUE_CAPACITY = "security.hash.queueCapacity";
+	private static final String TIMEOUT = "security.hash.timeout";
+
+	private static HashingExecutor instance;
+
+	private final ThreadPoolExecutor executor;
+	private final long timeoutMillis;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param threads
+	 *            - number of hashing threads
+	 * @param queueCapacity
+	 *            - number of hashes waiting for a thread
+	 * @param timeoutMillis
+	 *            - how long a caller waits for a hash
+	 */
+	public HashingExecutor(int threads, int queueCapacity, long timeoutMillis) {
+		final AtomicInteger count = new AtomicInteger();
+		executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), r -> {
+					final Thread thread = new Thread(r, "password-hashing-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @return the executor shared by the application, sized from the
+	 *         configuration file
+	 */
+	public static synchronized HashingExecutor getInstance() {
+		if (instance == null) {
+			final ConfigurationService confService = ConfigurationService.getInstance();
+			instance = new HashingExecutor(
+					confService.getIntConfigurationValue(THREADS, Runtime.getRuntime().availableProcessors()),
+					confService.getIntConfigurationValue(QUEUE_CAPACITY, 64),
+					confService.getLongConfigurationValue(TIMEOUT, 5000));
+		}
+		return instance;
+	}
+
+	/**
+	 * @param hash
+	 *            - the hashing to run
+	 * @return its future result
+	 * @throws RejectedExecutionException
+	 *             if the queue is full
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> hash) {
+		try {
+			return CompletableFuture.supplyAsync(hash, executor);
+		} catch (final RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Runs a hashing in the background if there is room for it
+	 *
+	 * @param hash
+	 * @return false if the queue is full and the hashing was dropped
+	 */
+	public boolean offer(Runnable hash) {
+		try {
+			executor.execute(hash);
+			return true;
+		} catch (final RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * @return number of hashing threads
+	 */
+	public int getThreads() {
+		return executor.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return how long a caller waits for a hash, in milliseconds
+	 */
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * @return number of hashes refused because the queue was full
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of hashes waiting for a thread
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return number of hashes running
+	 */
+	public int getActive() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * @return String representation of the executor metrics
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "HashingExecutor [threads=" + getThreads() + ", active=" + getActive() + ", queued="
+				+ getQueued() + ", completed=" + executor.getCompletedTaskCount() + ", rejected=" + getRejected()
+				+ "]";
+	}
+
+}
@@ -0,0 +1,119 @@
+package fr.epita.iam.services.security;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Hashes passwords with MD5 into 32 lower case hexadecimal characters. Each
+ * thread reuses its own digest and buffers: the password is encoded in UTF-8
+ * and the digest is converted to hexadecimal through a lookup table, so the
+ * only allocation of a hash is the returned string.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>String hashedPassword = MD5Hasher.hash(clearTextPassword);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public final class MD5Hasher {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int DIGEST_LENGTH = 16;
+
+	private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+	// prevent creating an instance of this class
+	private MD5Hasher() {
+	}
+
+	/**
+	 * @param password
+	 *            - clear text password
+	 * @return MD5 hash of the UTF-8 bytes of the password, in hexadecimal, or
+	 *         null if the password is null
+	 */
+	public static String hash(CharSequence password) {
+		if (password == null) {
+			return null;
+		}
+		final State state = STATE.get();
+		final int length = state.encode(password);
+		state.digest.update(state.bytes, 0, length);
+		try {
+			state.digest.digest(state.hash, 0, DIGEST_LENGTH);
+		} catch (final DigestException e) {
+			// the buffer always has the size of an MD5 digest
+			throw new IllegalStateException(e);
+		}
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			state.hex[2 * i] = HEX[(state.hash[i] >> 4) & 0xf];
+			state.hex[2 * i + 1] = HEX[state.hash[i] & 0xf];
+		}
+		return new String(state.hex);
+	}
+
+	/**
+	 * Digest and buffers of a thread
+	 */
+	private static final class State {
+
+		private final MessageDigest digest;
+		private final byte[] hash = new byte[DIGEST_LENGTH];
+		private final char[] hex = new char[2 * DIGEST_LENGTH];
+		private byte[] bytes = new byte[64];
+
+		private State() {
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (final NoSuchAlgorithmException e) {
+				// every Java platform has to support MD5
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/**
+		 * Encodes the password in UTF-8 into the reusable buffer, unpaired
+		 * surrogates are replaced by '?' like {@link String#getBytes}
+		 *
+		 * @return number of bytes written
+		 */
+		private int encode(CharSequence password) {
+			final int chars = password.length();
+			if (bytes.length < 3 * chars) {
+				bytes = new byte[3 * chars];
+			}
+			int length = 0;
+			for (int i = 0; i < chars; i++) {
+				final char c = password.charAt(i);
+				if (c < 0x80) {
+					bytes[length++] = (byte) c;
+				} else if (c < 0x800) {
+					bytes[length++] = (byte) (0xc0 | c >> 6);
+					bytes[length++] = (byte) (0x80 | c & 0x3f);
+				} else if (Character.isHighSurrogate(c) && i + 1 < chars
+						&& Character.isLowSurrogate(password.charAt(i + 1))) {
+					final int codePoint = Character.toCodePoint(c, password.charAt(++i));
+					bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+					bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+					bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+					bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+				} else if (Character.isSurrogate(c)) {
+					bytes[length++] = '?';
+				} else {
+					bytes[length++] = (byte) (0xe0 | c >> 12);
+					bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+					bytes[length++] = (byte) (0x80 | c & 0x3f);
+				}
+			}
+			return length;
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+package fr.epita.iam.services.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * The legacy unsalted MD5 hashes, 32 hexadecimal characters without a prefix.
+ * They are only kept to verify the existing passwords, which are upgraded on
+ * the next successful login.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class MD5PasswordHasher implements PasswordHasher {
+
+	/**
+	 * Name of the algorithm
+	 */
+	public static final String ID = "md5";
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(String encoded) {
+		if (encoded == null || encoded.length() != 32) {
+			return false;
+		}
+		for (int i = 0; i < encoded.length(); i++) {
+			if (Character.digit(encoded.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String hash(CharSequence password) {
+		return MD5Hasher.hash(password);
+	}
+
+	@Override
+	public boolean verify(CharSequence password, String encoded) {
+		return MessageDigest.isEqual(MD5Hasher.hash(password).getBytes(StandardCharsets.US_ASCII),
+				encoded.toLowerCase().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Override
+	public boolean needsRehash(String encoded) {
+		// there is no cost to raise
+		return false;
+	}
+
+}
@@ -0,0 +1,100 @@
+package fr.epita.iam.services.security;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * PBKDF2 with HMAC-SHA256 (RFC 8018) on raw bytes, for the PBKDF2 hasher and
+ * for scrypt, whose salts are binary.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+final class PBKDF2 {
+
+	private static final String HMAC = "HmacSHA256";
+	private static final int BLOCK_LENGTH = 32;
+
+	// prevent creating an instance of this class
+	private PBKDF2() {
+	}
+
+	/**
+	 * @param password
+	 * @param salt
+	 * @param iterations
+	 * @param length
+	 *            - number of bytes to derive
+	 * @return the derived key
+	 */
+	static byte[] derive(byte[] password, byte[] salt, int iterations, int length) {
+		final Mac mac;
+		try {
+			mac = Mac.getInstance(HMAC);
+			// an empty password is valid, but not as a key spec
+			mac.init(password.length == 0 ? new EmptyKey() : new SecretKeySpec(password, HMAC));
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			// every Java platform has to support HmacSHA256
+			throw new IllegalStateException(e);
+		}
+		final byte[] derived = new byte[length];
+		final byte[] u = new byte[BLOCK_LENGTH];
+		final byte[] t = new byte[BLOCK_LENGTH];
+		try {
+			for (int block = 1, offset = 0; offset < length; block++, offset += BLOCK_LENGTH) {
+				// U1 = PRF(password, salt || INT(block))
+				mac.update(salt);
+				mac.update((byte) (block >>> 24));
+				mac.update((byte) (block >>> 16));
+				mac.update((byte) (block >>> 8));
+				mac.update((byte) block);
+				mac.doFinal(u, 0);
+				System.arraycopy(u, 0, t, 0, BLOCK_LENGTH);
+				for (int i = 1; i < iterations; i++) {
+					// Ui = PRF(password, Ui-1)
+					mac.update(u);
+					mac.doFinal(u, 0);
+					for (int j = 0; j < BLOCK_LENGTH; j++) {
+						t[j] ^= u[j];
+					}
+				}
+				System.arraycopy(t, 0, derived, offset, Math.min(BLOCK_LENGTH, length - offset));
+			}
+		} catch (final ShortBufferException e) {
+			// the buffers have the size of the MAC
+			throw new IllegalStateException(e);
+		}
+		return derived;
+	}
+
+	/**
+	 * A zero length HMAC key, which {@link SecretKeySpec} refuses
+	 */
+	private static final class EmptyKey implements SecretKey {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public String getAlgorithm() {
+			return HMAC;
+		}
+
+		@Override
+		public String getFormat() {
+			return "RAW";
+		}
+
+		@Override
+		public byte[] getEncoded() {
+			return new byte[0];
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package fr.epita.iam.services.security;
+
+import java.security.MessageDigest;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Salted PBKDF2 with HMAC-SHA256 hashes, encoded as
+ * <code>$pbkdf2-sha256$iterations$salt$hash</code> with the salt and the hash
+ * in base64. The cost is the number of iterations.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class PBKDF2PasswordHasher implements PasswordHasher {
+
+	/**
+	 * Name of the algorithm
+	 */
+	public static final String ID = "pbkdf2";
+
+	private static final String PREFIX = "$pbkdf2-sha256$";
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 32;
+
+	private final int iterations;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param iterations
+	 *            - number of iterations of the new hashes
+	 */
+	public PBKDF2PasswordHasher(int iterations) {
+		if (iterations < 1) {
+			throw new IllegalArgumentException("The number of iterations must be positive: " + iterations);
+		}
+		this.iterations = iterations;
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(String encoded) {
+		return encoded != null && encoded.startsWith(PREFIX);
+	}
+
+	@Override
+	public String hash(CharSequence password) {
+		final byte[] salt = PasswordHashers.salt(SALT_LENGTH);
+		final byte[] hash = PBKDF2.derive(PasswordHashers.bytes(password), salt, iterations, HASH_LENGTH);
+		return PREFIX + iterations + "$" + PasswordHashers.encode(salt) + "$" + PasswordHashers.encode(hash);
+	}
+
+	@Override
+	public boolean verify(CharSequence password, String encoded) {
+		final String[] fields = fields(encoded);
+		if (fields == null) {
+			return false;
+		}
+		final byte[] expected = PasswordHashers.decode(fields[2]);
+		final byte[] hash = PBKDF2.derive(PasswordHashers.bytes(password), PasswordHashers.decode(fields[1]),
+				Integer.parseInt(fields[0]), expected.length);
+		return MessageDigest.isEqual(hash, expected);
+	}
+
+	@Override
+	public boolean needsRehash(String encoded) {
+		final String[] fields = fields(encoded);
+		return fields == null || Integer.parseInt(fields[0]) < iterations;
+	}
+
+	/**
+	 * @return the iterations, the salt and the hash, or null if the hash is
+	 *         malformed
+	 */
+	private static String[] fields(String encoded) {
+		final String[] fields = encoded.substring(PREFIX.length()).split("\\$");
+		if (fields.length != 3 || !fields[0].matches("[1-9][0-9]{0,8}") || fields[2].isEmpty()) {
+			return null;
+		}
+		return fields;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PBKDF2PasswordHasher [iterations=" + iterations + "]";
+	}
+
+}
@@ -0,0 +1,59 @@
+package fr.epita.iam.services.security;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Hashes and verifies passwords with one algorithm. The encoded hashes
+ * describe themselves: they hold the algorithm, its cost and the salt, so any
+ * stored hash can be verified after the configuration changed. Additional
+ * hashers are found with {@link java.util.ServiceLoader}.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>String encoded = hasher.hash(password);</code>
+ * <code>boolean valid = hasher.verify(password, encoded);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public interface PasswordHasher {
+
+	/**
+	 * @return name of the algorithm, used in the configuration file
+	 */
+	String getId();
+
+	/**
+	 * @param encoded
+	 *            - a stored hash
+	 * @return true if the hash was produced by this algorithm
+	 */
+	boolean accepts(String encoded);
+
+	/**
+	 * @param password
+	 *            - clear text password
+	 * @return the encoded hash, with a new salt
+	 */
+	String hash(CharSequence password);
+
+	/**
+	 * @param password
+	 *            - clear text password
+	 * @param encoded
+	 *            - a hash accepted by this hasher
+	 * @return true if the password matches the hash
+	 */
+	boolean verify(CharSequence password, String encoded);
+
+	/**
+	 * @param encoded
+	 *            - a hash accepted by this hasher
+	 * @return true if the hash is weaker than the configured cost
+	 */
+	boolean needsRehash(String encoded);
+
+}
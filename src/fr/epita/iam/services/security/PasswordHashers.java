@@ -0,0 +1,173 @@
+package fr.epita.iam.services.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * The password hashers of the application: the built-in MD5 (legacy), PBKDF2
+ * and scrypt hashers, configured from the configuration file, and the hashers
+ * found with {@link ServiceLoader}. New passwords are hashed with the default
+ * hasher, and stored hashes are verified by the hasher that produced them.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>String encoded = PasswordHashers.getDefault().hash(password);</code>
+ * <code>boolean valid = PasswordHashers.verify(password, encoded);</code>
+ * <code>boolean upgrade = PasswordHashers.needsRehash(encoded);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public final class PasswordHashers {
+
+	private static final Logger LOGGER = new Logger(PasswordHashers.class);
+
+	private static final String ALGORITHM = "security.hash.algorithm";
+	private static final String PBKDF2_ITERATIONS = "security.pbkdf2.iterations";
+	private static final String SCRYPT_LOGN = "security.scrypt.logN";
+	private static final String SCRYPT_R = "security.scrypt.r";
+	private static final String SCRYPT_P = "security.scrypt.p";
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private static List<PasswordHasher> hashers;
+	private static PasswordHasher defaultHasher;
+
+	// prevent creating an instance of this class
+	private PasswordHashers() {
+	}
+
+	private static synchronized void load() {
+		if (hashers != null) {
+			return;
+		}
+		final ConfigurationService confService = ConfigurationService.getInstance();
+		final List<PasswordHasher> loaded = new ArrayList<>();
+		loaded.add(new MD5PasswordHasher());
+		loaded.add(new PBKDF2PasswordHasher(confService.getIntConfigurationValue(PBKDF2_ITERATIONS, 100000)));
+		loaded.add(new ScryptPasswordHasher(confService.getIntConfigurationValue(SCRYPT_LOGN, 14),
+				confService.getIntConfigurationValue(SCRYPT_R, 8), confService.getIntConfigurationValue(SCRYPT_P, 1)));
+		for (PasswordHasher hasher : ServiceLoader.load(PasswordHasher.class)) {
+			loaded.add(hasher);
+		}
+
+		final String algorithm = confService.getConfigurationValue(ALGORITHM);
+		PasswordHasher configured = find(loaded, algorithm == null ? PBKDF2PasswordHasher.ID : algorithm.trim());
+		if (configured == null) {
+			LOGGER.warning("Unknown password hashing algorithm " + algorithm + ", using " + PBKDF2PasswordHasher.ID);
+			configured = find(loaded, PBKDF2PasswordHasher.ID);
+		}
+		defaultHasher = configured;
+		hashers = loaded;
+		LOGGER.info("Passwords are hashed with " + configured);
+	}
+
+	private static PasswordHasher find(List<PasswordHasher> list, String id) {
+		for (PasswordHasher hasher : list) {
+			if (hasher.getId().equalsIgnoreCase(id)) {
+				return hasher;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the hasher of the new passwords
+	 */
+	public static synchronized PasswordHasher getDefault() {
+		load();
+		return defaultHasher;
+	}
+
+	/**
+	 * @param id
+	 *            - name of an algorithm
+	 * @return its hasher, or null
+	 */
+	public static synchronized PasswordHasher get(String id) {
+		load();
+		return find(hashers, id);
+	}
+
+	/**
+	 * @param encoded
+	 *            - a stored hash
+	 * @return the hasher that produced it, or null
+	 */
+	public static synchronized PasswordHasher forEncoded(String encoded) {
+		load();
+		for (PasswordHasher hasher : hashers) {
+			if (hasher.accepts(encoded)) {
+				return hasher;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param password
+	 *            - clear text password
+	 * @param encoded
+	 *            - a stored hash
+	 * @return true if the password matches the hash, false also if the hash is
+	 *         unknown or malformed
+	 */
+	public static boolean verify(CharSequence password, String encoded) {
+		if (password == null || encoded == null) {
+			return false;
+		}
+		final PasswordHasher hasher = forEncoded(encoded);
+		if (hasher == null) {
+			LOGGER.warning("Unknown password hash format, the password can't be verified");
+			return false;
+		}
+		try {
+			return hasher.verify(password, encoded);
+		} catch (final RuntimeException e) {
+			LOGGER.warning("Malformed " + hasher.getId() + " password hash: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @param encoded
+	 *            - a stored hash
+	 * @return true if the hash was not produced by the default hasher, or with a
+	 *         lower cost
+	 */
+	public static boolean needsRehash(String encoded) {
+		final PasswordHasher hasher = getDefault();
+		return encoded != null && (!hasher.accepts(encoded) || hasher.needsRehash(encoded));
+	}
+
+	static byte[] salt(int length) {
+		final byte[] salt = new byte[length];
+		RANDOM.nextBytes(salt);
+		return salt;
+	}
+
+	static byte[] bytes(CharSequence password) {
+		return password.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	static String encode(byte[] bytes) {
+		return Base64.getEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	static byte[] decode(String encoded) {
+		return Base64.getDecoder().decode(encoded);
+	}
+
+}
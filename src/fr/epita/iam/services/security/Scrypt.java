@@ -0,0 +1,152 @@
+package fr.epita.iam.services.security;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * The scrypt key derivation function (RFC 7914). Its cost is both in time and
+ * in memory: a derivation holds 128 * r * N bytes.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+final class Scrypt {
+
+	// prevent creating an instance of this class
+	private Scrypt() {
+	}
+
+	/**
+	 * @param password
+	 * @param salt
+	 * @param n
+	 *            - CPU and memory cost, a power of two
+	 * @param r
+	 *            - block size
+	 * @param p
+	 *            - parallelism
+	 * @param length
+	 *            - number of bytes to derive
+	 * @return the derived key
+	 */
+	static byte[] derive(byte[] password, byte[] salt, int n, int r, int p, int length) {
+		if (n < 2 || (n & (n - 1)) != 0) {
+			throw new IllegalArgumentException("N must be a power of two greater than 1: " + n);
+		}
+		final int blockLength = 128 * r;
+		final byte[] b = PBKDF2.derive(password, salt, 1, p * blockLength);
+		final int[] x = new int[32 * r];
+		final int[] v = new int[32 * r * n];
+		final int[] y = new int[32 * r];
+		final int[] t = new int[16];
+		for (int i = 0; i < p; i++) {
+			// the blocks are mixed as little endian words
+			for (int k = 0; k < x.length; k++) {
+				x[k] = decodeInt(b, i * blockLength + 4 * k);
+			}
+			romix(x, v, y, t, n, r);
+			for (int k = 0; k < x.length; k++) {
+				encodeInt(x[k], b, i * blockLength + 4 * k);
+			}
+		}
+		return PBKDF2.derive(password, b, 1, length);
+	}
+
+	private static void romix(int[] x, int[] v, int[] y, int[] t, int n, int r) {
+		final int words = 32 * r;
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(x, 0, v, i * words, words);
+			blockMix(x, y, t, r);
+		}
+		for (int i = 0; i < n; i++) {
+			// integerify: first word of the last 64 bytes block
+			final int j = x[(2 * r - 1) * 16] & (n - 1);
+			for (int k = 0; k < words; k++) {
+				x[k] ^= v[j * words + k];
+			}
+			blockMix(x, y, t, r);
+		}
+	}
+
+	private static void blockMix(int[] b, int[] y, int[] t, int r) {
+		System.arraycopy(b, (2 * r - 1) * 16, t, 0, 16);
+		for (int i = 0; i < 2 * r; i++) {
+			for (int k = 0; k < 16; k++) {
+				t[k] ^= b[i * 16 + k];
+			}
+			salsa208(t);
+			// even blocks first, then odd blocks
+			System.arraycopy(t, 0, y, ((i & 1) * r + (i >> 1)) * 16, 16);
+		}
+		System.arraycopy(y, 0, b, 0, 32 * r);
+	}
+
+	private static void salsa208(int[] b) {
+		int x0 = b[0], x1 = b[1], x2 = b[2], x3 = b[3], x4 = b[4], x5 = b[5], x6 = b[6], x7 = b[7];
+		int x8 = b[8], x9 = b[9], x10 = b[10], x11 = b[11], x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+		for (int i = 0; i < 8; i += 2) {
+			// columns
+			x4 ^= Integer.rotateLeft(x0 + x12, 7);
+			x8 ^= Integer.rotateLeft(x4 + x0, 9);
+			x12 ^= Integer.rotateLeft(x8 + x4, 13);
+			x0 ^= Integer.rotateLeft(x12 + x8, 18);
+			x9 ^= Integer.rotateLeft(x5 + x1, 7);
+			x13 ^= Integer.rotateLeft(x9 + x5, 9);
+			x1 ^= Integer.rotateLeft(x13 + x9, 13);
+			x5 ^= Integer.rotateLeft(x1 + x13, 18);
+			x14 ^= Integer.rotateLeft(x10 + x6, 7);
+			x2 ^= Integer.rotateLeft(x14 + x10, 9);
+			x6 ^= Integer.rotateLeft(x2 + x14, 13);
+			x10 ^= Integer.rotateLeft(x6 + x2, 18);
+			x3 ^= Integer.rotateLeft(x15 + x11, 7);
+			x7 ^= Integer.rotateLeft(x3 + x15, 9);
+			x11 ^= Integer.rotateLeft(x7 + x3, 13);
+			x15 ^= Integer.rotateLeft(x11 + x7, 18);
+			// rows
+			x1 ^= Integer.rotateLeft(x0 + x3, 7);
+			x2 ^= Integer.rotateLeft(x1 + x0, 9);
+			x3 ^= Integer.rotateLeft(x2 + x1, 13);
+			x0 ^= Integer.rotateLeft(x3 + x2, 18);
+			x6 ^= Integer.rotateLeft(x5 + x4, 7);
+			x7 ^= Integer.rotateLeft(x6 + x5, 9);
+			x4 ^= Integer.rotateLeft(x7 + x6, 13);
+			x5 ^= Integer.rotateLeft(x4 + x7, 18);
+			x11 ^= Integer.rotateLeft(x10 + x9, 7);
+			x8 ^= Integer.rotateLeft(x11 + x10, 9);
+			x9 ^= Integer.rotateLeft(x8 + x11, 13);
+			x10 ^= Integer.rotateLeft(x9 + x8, 18);
+			x12 ^= Integer.rotateLeft(x15 + x14, 7);
+			x13 ^= Integer.rotateLeft(x12 + x15, 9);
+			x14 ^= Integer.rotateLeft(x13 + x12, 13);
+			x15 ^= Integer.rotateLeft(x14 + x13, 18);
+		}
+		b[0] += x0;
+		b[1] += x1;
+		b[2] += x2;
+		b[3] += x3;
+		b[4] += x4;
+		b[5] += x5;
+		b[6] += x6;
+		b[7] += x7;
+		b[8] += x8;
+		b[9] += x9;
+		b[10] += x10;
+		b[11] += x11;
+		b[12] += x12;
+		b[13] += x13;
+		b[14] += x14;
+		b[15] += x15;
+	}
+
+	private static int decodeInt(byte[] bytes, int offset) {
+		return bytes[offset] & 0xff | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+				| (bytes[offset + 3] & 0xff) << 24;
+	}
+
+	private static void encodeInt(int value, byte[] bytes, int offset) {
+		bytes[offset] = (byte) value;
+		bytes[offset + 1] = (byte) (value >>> 8);
+		bytes[offset + 2] = (byte) (value >>> 16);
+		bytes[offset + 3] = (byte) (value >>> 24);
+	}
+
+}
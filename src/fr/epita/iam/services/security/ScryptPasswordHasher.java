@@ -0,0 +1,119 @@
+package fr.epita.iam.services.security;
+
+import java.security.MessageDigest;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Salted scrypt hashes, encoded as <code>$scrypt$logN$r$p$salt$hash</code>
+ * with the salt and the hash in base64. The cost is N, the number of blocks
+ * of 128 * r bytes held by a derivation, given as a power of two.
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class ScryptPasswordHasher implements PasswordHasher {
+
+	/**
+	 * Name of the algorithm
+	 */
+	public static final String ID = "scrypt";
+
+	private static final String PREFIX = "$scrypt$";
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 32;
+	// refuses the stored hashes that would need more than 1GB
+	private static final long MAX_MEMORY = 1L << 30;
+
+	private final int logN;
+	private final int r;
+	private final int p;
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param logN
+	 *            - cost of the new hashes, as a power of two
+	 * @param r
+	 *            - block size
+	 * @param p
+	 *            - parallelism
+	 */
+	public ScryptPasswordHasher(int logN, int r, int p) {
+		if (!valid(logN, r, p)) {
+			throw new IllegalArgumentException("Invalid scrypt parameters: logN=" + logN + ", r=" + r + ", p=" + p);
+		}
+		this.logN = logN;
+		this.r = r;
+		this.p = p;
+	}
+
+	@Override
+	public String getId() {
+		return ID;
+	}
+
+	@Override
+	public boolean accepts(String encoded) {
+		return encoded != null && encoded.startsWith(PREFIX);
+	}
+
+	@Override
+	public String hash(CharSequence password) {
+		final byte[] salt = PasswordHashers.salt(SALT_LENGTH);
+		final byte[] hash = Scrypt.derive(PasswordHashers.bytes(password), salt, 1 << logN, r, p, HASH_LENGTH);
+		return PREFIX + logN + "$" + r + "$" + p + "$" + PasswordHashers.encode(salt) + "$"
+				+ PasswordHashers.encode(hash);
+	}
+
+	@Override
+	public boolean verify(CharSequence password, String encoded) {
+		final int[] parameters = parameters(encoded);
+		if (parameters == null) {
+			return false;
+		}
+		final String[] fields = encoded.substring(PREFIX.length()).split("\\$");
+		final byte[] expected = PasswordHashers.decode(fields[4]);
+		final byte[] hash = Scrypt.derive(PasswordHashers.bytes(password), PasswordHashers.decode(fields[3]),
+				1 << parameters[0], parameters[1], parameters[2], expected.length);
+		return MessageDigest.isEqual(hash, expected);
+	}
+
+	@Override
+	public boolean needsRehash(String encoded) {
+		final int[] parameters = parameters(encoded);
+		return parameters == null || parameters[0] < logN || parameters[1] < r || parameters[2] < p;
+	}
+
+	/**
+	 * @return logN, r and p, or null if the hash is malformed
+	 */
+	private static int[] parameters(String encoded) {
+		final String[] fields = encoded.substring(PREFIX.length()).split("\\$");
+		if (fields.length != 5 || fields[4].isEmpty()) {
+			return null;
+		}
+		for (int i = 0; i < 3; i++) {
+			if (!fields[i].matches("[1-9][0-9]{0,5}")) {
+				return null;
+			}
+		}
+		final int[] parameters = { Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+				Integer.parseInt(fields[2]) };
+		return valid(parameters[0], parameters[1], parameters[2]) ? parameters : null;
+	}
+
+	private static boolean valid(int logN, int r, int p) {
+		return logN >= 1 && logN < 31 && r >= 1 && p >= 1 && (128L * r << logN) <= MAX_MEMORY
+				&& (long) r * p < 1 << 30;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "ScryptPasswordHasher [logN=" + logN + ", r=" + r + ", p=" + p + "]";
+	}
+
+}
@@ -0,0 +1,298 @@
+package fr.epita.iam.services.users.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.epita.iam.services.configuration.ConfigurationService;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Remembers the password of the last successful login of each username, so
+ * repeated logins don't query the database or the XML file, nor pay for a slow
+ * password hash. Only successful logins are cached: a wrong password always
+ * goes to the DAOs.
+ * </p>
+ *
+ * <p>
+ * The clear text passwords are not kept: the cache holds a SHA-256 of a key
+ * drawn at random for the process followed by the password, which is useless
+ * outside of this process.
+ * </p>
+ *
+ * <p>
+ * Entries expire after a time to live, and the least recently used entry is
+ * evicted when the cache is full. Every change of a user invalidates its entry
+ * before the change returns, and a login that started before an invalidation
+ * is not cached.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>LoginCache cache = LoginCache.getInstance();</code>
+ * <code>long version = cache.getVersion();</code>
+ * <code>if (!cache.check(username, password) &amp;&amp; dao.login(user)) {</code>
+ * <code>	cache.put(username, password, version);</code>
+ * <code>}</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class LoginCache {
+
+	private static final String MAX_SIZE = "login.cache.size";
+	private static final String TTL = "login.cache.ttl";
+
+	private static LoginCache instance;
+
+	private final byte[] key = new byte[32];
+	private final int maxSize;
+	private final long ttlNanos;
+	// username -> entry, least recently used first
+	private final Map<String, CachedLogin> entries;
+	// incremented by every invalidation
+	private long version = 0;
+
+	// metrics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * <h3>Constructor</h3>
+	 *
+	 * @param maxSize
+	 *            - maximum number of usernames cached, 0 disables the cache
+	 * @param ttlMillis
+	 *            - how long a successful login is remembered
+	 */
+	public LoginCache(int maxSize, long ttlMillis) {
+		this.maxSize = Math.max(0, maxSize);
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		new SecureRandom().nextBytes(key);
+		entries = new LinkedHashMap<String, CachedLogin>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedLogin> eldest) {
+				if (size() > LoginCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @return the cache shared by the user DAOs, sized from the configuration
+	 *         file
+	 */
+	public static synchronized LoginCache getInstance() {
+		if (instance == null) {
+			final ConfigurationService confService = ConfigurationService.getInstance();
+			instance = new LoginCache(confService.getIntConfigurationValue(MAX_SIZE, 10000),
+					confService.getLongConfigurationValue(TTL, 300000));
+		}
+		return instance;
+	}
+
+	/**
+	 * @param username
+	 * @param password
+	 *            - clear text password
+	 * @return true if these credentials logged in successfully less than a time
+	 *         to live ago
+	 */
+	public boolean check(String username, String password) {
+		// hashed outside of the lock
+		return check(username, token(password));
+	}
+
+	private synchronized boolean check(String username, byte[] token) {
+		final CachedLogin entry = entries.get(username);
+		if (entry == null) {
+			misses.incrementAndGet();
+			return false;
+		}
+		if (System.nanoTime() - entry.created > ttlNanos) {
+			entries.remove(username);
+			expirations.incrementAndGet();
+			misses.incrementAndGet();
+			return false;
+		}
+		if (!MessageDigest.isEqual(entry.token, token)) {
+			// maybe another user with the same username, let the DAOs decide
+			misses.incrementAndGet();
+			return false;
+		}
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @return the current version, to read before the login is checked by the
+	 *         DAOs
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Remembers a successful login, unless the cache was invalidated since the
+	 * login started
+	 *
+	 * @param username
+	 * @param password
+	 *            - clear text password
+	 * @param startVersion
+	 *            - version read before the login was checked
+	 */
+	public void put(String username, String password, long startVersion) {
+		if (maxSize == 0 || username == null || password == null) {
+			return;
+		}
+		put(username, token(password), startVersion);
+	}
+
+	private synchronized void put(String username, byte[] token, long startVersion) {
+		if (startVersion == version) {
+			entries.put(username, new CachedLogin(token, System.nanoTime()));
+		}
+	}
+
+	/**
+	 * Forgets the login of a username, or every login if the username is not
+	 * known
+	 *
+	 * @param username
+	 */
+	public synchronized void invalidate(String username) {
+		version++;
+		invalidations.incrementAndGet();
+		if (username == null) {
+			entries.clear();
+		} else {
+			entries.remove(username);
+		}
+	}
+
+	/**
+	 * Forgets every login
+	 */
+	public void invalidateAll() {
+		invalidate(null);
+	}
+
+	/**
+	 * Removes the expired entries
+	 */
+	public synchronized void purge() {
+		final long now = System.nanoTime();
+		final Iterator<CachedLogin> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			if (now - iterator.next().created > ttlNanos) {
+				iterator.remove();
+				expirations.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return number of cached usernames
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return number of logins served by the cache
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of logins checked by the DAOs
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return ratio of the logins served by the cache
+	 */
+	public double getHitRate() {
+		final long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}
+
+	/**
+	 * @return number of entries evicted because the cache was full
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of entries removed because they expired
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * @return number of invalidations
+	 */
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	/**
+	 * @return String representation of the cache metrics
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "LoginCache [size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHits() + ", misses="
+				+ getMisses() + ", hitRate=" + String.format("%.3f", getHitRate()) + ", evictions=" + getEvictions()
+				+ ", expirations=" + getExpirations() + ", invalidations=" + getInvalidations() + "]";
+	}
+
+	private byte[] token(String password) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(key);
+			if (password != null) {
+				digest.update(password.getBytes(StandardCharsets.UTF_8));
+			}
+			return digest.digest();
+		} catch (final NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static final class CachedLogin {
+
+		private final byte[] token;
+		private final long created;
+
+		private CachedLogin(byte[] token, long created) {
+			this.token = token;
+			this.created = created;
+		}
+	}
+
+}
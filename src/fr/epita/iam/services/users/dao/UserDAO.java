@@ -1,9 +1,13 @@
 package fr.epita.iam.services.users.dao;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import javax.xml.transform.TransformerException;
 
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.datamodel.User;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
@@ -43,6 +47,48 @@ public interface UserDAO {
 	public void create(User user) throws CreationException, ReadOnlyException, DuplicateException, SearchException,
 			TransformerException, NoIdentityFoundException;
 
+	/**
+	 * Creates the user of the identity having the UID of the user. The identity
+	 * is resolved, the identity and username checked for duplicates and the user
+	 * inserted in one step, and the identity ID of the user is set.
+	 * 
+	 * @param user
+	 *            - user to add, with the UID of its identity
+	 * @throws CreationException
+	 * @throws ReadOnlyException
+	 * @throws DuplicateException
+	 * @throws TransformerException
+	 * @throws NoIdentityFoundException
+	 */
+	public void createForUid(User user) throws CreationException, ReadOnlyException, DuplicateException,
+			TransformerException, NoIdentityFoundException;
+
+	/**
+	 * Creates many users at once
+	 * 
+	 * @param users
+	 *            - users to add
+	 * @throws CreationException
+	 * @throws ReadOnlyException
+	 * @throws DuplicateException
+	 * @throws SearchException
+	 * @throws TransformerException
+	 * @throws NoIdentityFoundException
+	 */
+	public void createAll(Collection<User> users) throws CreationException, ReadOnlyException, DuplicateException,
+			SearchException, TransformerException, NoIdentityFoundException;
+
+	/**
+	 * Finds the users whose identity already has a user, or whose username is
+	 * already used
+	 * 
+	 * @param users
+	 *            - users to check
+	 * @return the users of the collection that can't be created
+	 * @throws SearchException
+	 */
+	public List<User> findDuplicates(Collection<User> users) throws SearchException;
+
 	/**
 	 * Search for a user
 	 * 
@@ -53,6 +99,33 @@ public interface UserDAO {
 	 */
 	public List<User> search(User criteria) throws SearchException;
 
+	/**
+	 * Search for users without holding all of them in memory. The stream may
+	 * hold resources, it must be closed after use.
+	 * 
+	 * @param criteria
+	 *            - criteria of the user to search for
+	 * @return stream of matched users
+	 * @throws SearchException
+	 */
+	public Stream<User> stream(User criteria) throws SearchException;
+
+	/**
+	 * Search for users, one page at a time
+	 * 
+	 * @param criteria
+	 *            - criteria of the user to search for
+	 * @param pageSize
+	 *            - maximum number of users of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return the page of matched users, and the cursor of the next one
+	 * @throws SearchException
+	 *             also if the cursor is not valid for this DAO
+	 */
+	public Page<User> searchPage(User criteria, int pageSize, String cursor) throws SearchException;
+
 	/**
 	 * 
 	 * @param criteria
@@ -94,15 +167,48 @@ public interface UserDAO {
 	 */
 	public int getId(String uid);
 
+	/**
+	 * Get the IDs of the identities having these UIDs, at once.
+	 * 
+	 * @param uids
+	 * @return the ID of each identity found, keyed by its UID in lower case
+	 * @throws SearchException
+	 */
+	public Map<String, Integer> getIds(Collection<String> uids) throws SearchException;
+
 	/**
 	 * 
 	 * @param login
-	 *            - login credentials
+	 *            - login credentials, with the clear text password
 	 * @return true if login succeeded, false otherwise
 	 * @throws SearchException
 	 */
 	public boolean login(User login) throws SearchException;
 
+	/**
+	 * @param username
+	 * @return the users having exactly this username, with their hashed password
+	 *         and UID
+	 * @throws SearchException
+	 */
+	public List<User> findByUsername(String username) throws SearchException;
+
+	/**
+	 * Replaces the hashed password of a user, only if it still is the one read
+	 * with the user, so a password changed in the meantime is kept
+	 * 
+	 * @param stored
+	 *            - user as read from the DAO
+	 * @param hashedPassword
+	 *            - the new hash of the same password
+	 * @return true if the hash was replaced
+	 * @throws ReadOnlyException
+	 * @throws UpdateException
+	 * @throws TransformerException
+	 */
+	public boolean replaceHashedPassword(User stored, String hashedPassword)
+			throws ReadOnlyException, UpdateException, TransformerException;
+
 	/**
 	 * checks if the new password is equal to the old provided clear text password
 	 * 
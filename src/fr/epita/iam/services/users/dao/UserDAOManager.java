@@ -1,9 +1,28 @@
 package fr.epita.iam.services.users.dao;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import javax.xml.transform.TransformerException;
 
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.datamodel.User;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
@@ -13,12 +32,39 @@ import fr.epita.iam.exceptions.ReadOnlyException;
 import fr.epita.iam.exceptions.SearchException;
 import fr.epita.iam.exceptions.UpdateException;
 import fr.epita.iam.launcher.Global;
+import fr.epita.iam.services.connections.CircuitBreaker;
+import fr.epita.iam.services.connections.DualWriter;
+import fr.epita.iam.services.connections.JDBCConnection;
+import fr.epita.iam.services.connections.UnitOfWork;
+import fr.epita.iam.services.security.HashingExecutor;
+import fr.epita.iam.services.security.PasswordHashers;
 import fr.epita.logger.Logger;
 
 /**
  * <h3>Description</h3>
  * <p>
- * Manages the JDBC and XML User DAOs.
+ * Manages the JDBC and XML User DAOs. Successful logins are remembered by the
+ * {@link LoginCache}, which every update and delete invalidates. The XML file
+ * is written alongside the database by the {@link DualWriter}. Inside a
+ * {@link UnitOfWork}, the writes of the XML file are staged and applied once
+ * the unit is committed.
+ * </p>
+ *
+ * <p>
+ * Passwords are hashed and verified on the bounded {@link HashingExecutor}, so
+ * a burst of logins or creations can't take every thread with slow hashes. A password stored with an
+ * outdated algorithm or cost is hashed again with the default one in the
+ * background after a successful login.
+ * </p>
+ *
+ * <p>
+ * Usernames are suggested from the {@link UsernameIndex}, which every create,
+ * update and delete keeps up to date.
+ * </p>
+ *
+ * <p>
+ * The reads of the database go through the {@link CircuitBreaker}, and are
+ * answered from the XML file while its circuit is open.
  * </p>
  *
  * <h3>Usage</h3>
@@ -32,20 +78,26 @@ import fr.epita.logger.Logger;
  */
 public class UserDAOManager implements UserDAO {
 
-	private boolean readOnly = true;
-
 	private static Logger logger = new Logger(UserDAOManager.class);
 
 	private UserDAO dbDAO;
 	private UserDAO xmlDAO;
+	private LoginCache loginCache;
+	private DualWriter dualWriter;
+	private CircuitBreaker circuitBreaker;
+	// null if disabled
+	private UsernameIndex usernameIndex;
 
 	/**
 	 * <h3>Constructor</h3>
 	 */
 	public UserDAOManager() {
-		readOnly = Global.isReadOnly();
 		dbDAO = new UserJDBCDAO();
 		xmlDAO = new UserXMLDAO();
+		loginCache = LoginCache.getInstance();
+		dualWriter = DualWriter.getInstance();
+		circuitBreaker = CircuitBreaker.getInstance();
+		usernameIndex = UsernameIndex.getInstance();
 	}
 
 	/**
@@ -63,15 +115,21 @@ public class UserDAOManager implements UserDAO {
 	 */
 	public void create(User user) throws CreationException, ReadOnlyException, DuplicateException, SearchException,
 			TransformerException, NoIdentityFoundException {
-		if (readOnly) {
+		if (Global.isReadOnly()) {
 			logger.error("Running in read-only mode. Can't create this user : " + user);
 			throw new ReadOnlyException(user);
 		} else {
 			if (getUserByIdentityId(user) == null && !usernameExists(user)) {
 				if (user.getIdentityID() != 0) {
 					// identity id found
-					dbDAO.create(user);
-					xmlDAO.create(user);
+					hashPasswords(Collections.singleton(user), e -> new CreationException(e, user));
+					final User xmlUser = snapshot(user);
+					try (DualWriter.WriteHandle write = beginXmlWrite(Collections.singleton(user),
+							() -> xmlDAO.create(xmlUser))) {
+						dbDAO.create(user);
+						write.primaryWritten();
+					}
+					indexed(index -> index.put(user.getUserName()));
 				} else {
 					// identity id not found
 					logger.error("Cannot create a user who doesn't have an identity: " + user);
@@ -84,13 +142,120 @@ public class UserDAOManager implements UserDAO {
 		}
 	}
 
+	/**
+	 * Creates the user of the identity having the UID of the user if not in read
+	 * only mode. Unlike {@link #create(User)}, the identity ID doesn't have to be
+	 * known: the database resolves it, checks the duplicates and inserts the user
+	 * in one statement and one transaction, so two concurrent creations can't
+	 * both pass the checks. Otherwise throws {@link ReadOnlyException},
+	 * {@link DuplicateException} or {@link NoIdentityFoundException}
+	 * 
+	 * @param user
+	 *            - user to add, with the UID of its identity
+	 * @throws CreationException
+	 * @throws ReadOnlyException
+	 * @throws DuplicateException
+	 * @throws TransformerException
+	 * @throws NoIdentityFoundException
+	 */
+	@Override
+	public void createForUid(User user) throws CreationException, ReadOnlyException, DuplicateException,
+			TransformerException, NoIdentityFoundException {
+		if (Global.isReadOnly()) {
+			logger.error("Running in read-only mode. Can't create this user : " + user);
+			throw new ReadOnlyException(user);
+		}
+		hashPasswords(Collections.singleton(user), e -> new CreationException(e, user));
+		final User xmlUser = snapshot(user);
+		// sets the identity ID of the user
+		try (DualWriter.WriteHandle write = beginXmlWrite(Collections.singleton(user),
+				() -> xmlDAO.createForUid(xmlUser))) {
+			dbDAO.createForUid(user);
+			write.primaryWritten();
+		}
+		indexed(index -> index.put(user.getUserName()));
+	}
+
+	/**
+	 * Creates many users if not in read only mode, every user has an identity and
+	 * no IdentityID or username is duplicated. Otherwise throws
+	 * {@link ReadOnlyException}, {@link NoIdentityFoundException} or
+	 * {@link DuplicateException}. Duplicates are checked once for the whole
+	 * collection, then the users are created in batches of db.batchSize, each
+	 * batch in one database transaction and one write of the XML file.
+	 * 
+	 * @param users
+	 *            - users to add
+	 * @throws CreationException
+	 *             if a batch failed, the previous batches are kept
+	 * @throws ReadOnlyException
+	 * @throws DuplicateException
+	 * @throws SearchException
+	 * @throws TransformerException
+	 * @throws NoIdentityFoundException
+	 */
+	public void createAll(Collection<User> users) throws CreationException, ReadOnlyException, DuplicateException,
+			SearchException, TransformerException, NoIdentityFoundException {
+		if (users.isEmpty()) {
+			return;
+		}
+		if (Global.isReadOnly()) {
+			logger.error("Running in read-only mode. Can't create " + users.size() + " users");
+			throw new ReadOnlyException(users.iterator().next());
+		}
+		// duplicates inside the collection
+		final Set<Integer> identityIds = new HashSet<>();
+		final Set<String> usernames = new HashSet<>();
+		for (User user : users) {
+			if (user.getIdentityID() == 0) {
+				logger.error("Cannot create a user who doesn't have an identity: " + user);
+				throw new NoIdentityFoundException(user);
+			}
+			if (!identityIds.add(user.getIdentityID()) || !usernames.add(user.getUserName())) {
+				logger.error("Duplicate Username or UID found while creating this user: " + user);
+				throw new DuplicateException(user);
+			}
+		}
+		// duplicates already stored
+		final List<User> duplicates = findDuplicates(users);
+		if (!duplicates.isEmpty()) {
+			logger.error(duplicates.size() + " duplicate Usernames or UIDs found while creating users, first one: "
+					+ duplicates.get(0));
+			throw new DuplicateException(duplicates.get(0));
+		}
+		final List<User> all = new ArrayList<>(users);
+		final int batchSize = JDBCConnection.getBatchSize();
+		for (int from = 0; from < all.size(); from += batchSize) {
+			final List<User> batch = all.subList(from, Math.min(from + batchSize, all.size()));
+			hashPasswords(batch, e -> new CreationException(e, batch.get(0)));
+			final List<User> xmlBatch = batch.stream().map(UserDAOManager::snapshot).collect(Collectors.toList());
+			try (DualWriter.WriteHandle write = beginXmlWrite(batch, () -> xmlDAO.createAll(xmlBatch))) {
+				dbDAO.createAll(batch);
+				write.primaryWritten();
+			}
+			indexed(index -> batch.forEach(user -> index.put(user.getUserName())));
+		}
+	}
+
+	/**
+	 * @param users
+	 *            - users to check
+	 * @return the users of the collection whose identity already has a user in
+	 *         the database, or whose username is already used
+	 * @throws SearchException
+	 */
+	@Override
+	public List<User> findDuplicates(Collection<User> users) throws SearchException {
+		return circuitBreaker.call(() -> dbDAO.findDuplicates(users));
+	}
+
 	/**
 	 * @param user
 	 * @return
 	 * @throws SearchException 
 	 */
 	public boolean usernameExists(User user) throws SearchException {
-		return dbDAO.usernameExists(user);
+		return circuitBreaker.call(() -> dbDAO.usernameExists(user));
 	}
 
 	/**
@@ -105,13 +270,58 @@ public class UserDAOManager implements UserDAO {
 	public List<User> search(User criteria) throws SearchException {
 		if (Global.isDBWorking()) {
 			// use database if working
-			return dbDAO.search(criteria);
+			return circuitBreaker.call(() -> dbDAO.search(criteria), () -> xmlDAO.search(criteria));
 		} else {
 			// use XML file
 			return xmlDAO.search(criteria);
 		}
 	}
 
+	/**
+	 * Search for users, streamed from the database if it's working, otherwise
+	 * from the XML file. The stream must be closed after use.
+	 * 
+	 * @param criteria
+	 *            - criteria of user to search for
+	 * @return stream of matched users
+	 * @throws SearchException
+	 */
+	public Stream<User> stream(User criteria) throws SearchException {
+		if (Global.isDBWorking()) {
+			// use database if working
+			return circuitBreaker.call(() -> dbDAO.stream(criteria), () -> xmlDAO.stream(criteria));
+		} else {
+			// use XML file
+			return xmlDAO.stream(criteria);
+		}
+	}
+
+	/**
+	 * Search for users one page at a time, in the database if it's working,
+	 * otherwise in the XML file. A cursor is only valid for the source that
+	 * returned it, the search has to start over if the source changed.
+	 * 
+	 * @param criteria
+	 *            - criteria of user to search for
+	 * @param pageSize
+	 *            - maximum number of users of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return the page of matched users
+	 * @throws SearchException
+	 */
+	public Page<User> searchPage(User criteria, int pageSize, String cursor) throws SearchException {
+		if (Global.isDBWorking()) {
+			// use database if working
+			return circuitBreaker.call(() -> dbDAO.searchPage(criteria, pageSize, cursor),
+					() -> xmlDAO.searchPage(criteria, pageSize, cursor));
+		} else {
+			// use XML file
+			return xmlDAO.searchPage(criteria, pageSize, cursor);
+		}
+	}
+
 	/**
 	 * Updates the information of a user if not in read only mode. Otherwise throws
 	 * {@link ReadOnlyException}
@@ -126,14 +336,30 @@ public class UserDAOManager implements UserDAO {
 	 * @throws SearchException 
 	 */
 	public void update(User from, User to) throws ReadOnlyException, UpdateException, TransformerException, SearchException {
-		if (readOnly) {
+		if (Global.isReadOnly()) {
 			logger.error("Running in read-only mode. Can't update this user : " + to);
 			throw new ReadOnlyException(to);
 		} else {
 			if(to.getUserName() != null && !usernameExists(to)) {
 				// username is not null and new username doesn't exist
-				dbDAO.update(from, to);
-				xmlDAO.update(from, to);
+				try {
+					// only the edited user may have a new password
+					hashPasswords(Collections.singleton(to), e -> new UpdateException(e, to));
+					final User xmlFrom = snapshot(from);
+					final User xmlTo = snapshot(to);
+					try (DualWriter.WriteHandle write = beginXmlWrite(Collections.singleton(from),
+							() -> xmlDAO.update(xmlFrom, xmlTo))) {
+						dbDAO.update(from, to);
+						write.primaryWritten();
+					}
+					indexed(index -> {
+						unindex(index, from);
+						index.put(to.getUserName());
+					});
+				} finally {
+					invalidateLogin(from);
+					invalidateLogin(to);
+				}
 			} else {
 				throw new UpdateException(to);
 			}
@@ -150,15 +376,186 @@ public class UserDAOManager implements UserDAO {
 	 * @throws TransformerException
 	 */
 	public void delete(User user) throws ReadOnlyException, DeleteException, TransformerException {
-		if (readOnly) {
+		if (Global.isReadOnly()) {
 			logger.error("Running in read-only mode. Can't delete this user : " + user);
 			throw new ReadOnlyException(user);
 		} else {
-			dbDAO.delete(user);
-			xmlDAO.delete(user);
+			try {
+				final User xmlUser = snapshot(user);
+				try (DualWriter.WriteHandle write = beginXmlWrite(Collections.singleton(user),
+						() -> xmlDAO.delete(xmlUser))) {
+					dbDAO.delete(user);
+					write.primaryWritten();
+				}
+				indexed(index -> unindex(index, user));
+			} finally {
+				invalidateLogin(user);
+			}
 		}
 	}
 
+	/**
+	 * Forgets the cached login of the user, or every cached login if its
+	 * username is not known
+	 * 
+	 * @param user
+	 */
+	private void invalidateLogin(User user) {
+		final String username = user.getUserName();
+		loginCache.invalidate(username);
+		// again once committed, a login may have cached the user meanwhile
+		UnitOfWork.stage(() -> loginCache.invalidate(username));
+	}
+
+	/**
+	 * Starts the write of the XML file alongside the database write. If the
+	 * database write fails, the XML users having the UIDs of the users are put
+	 * back as they were before the write. Without their UIDs, the XML file is
+	 * only written once the database has been.
+	 */
+	private DualWriter.WriteHandle beginXmlWrite(Collection<User> users, UnitOfWork.Write write) {
+		final List<String> uids = new ArrayList<>(users.size());
+		for (User user : users) {
+			if (user.getUid() == null) {
+				// can't be undone
+				return dualWriter.begin(write, null);
+			}
+			uids.add(user.getUid());
+		}
+		final List<User> previous = new ArrayList<>();
+		return dualWriter.begin(() -> {
+			previous.clear();
+			for (String uid : uids) {
+				final User criteria = new User();
+				criteria.setUid(uid);
+				previous.addAll(xmlDAO.search(criteria));
+			}
+			write.apply();
+		}, () -> {
+			for (String uid : uids) {
+				final User user = new User();
+				user.setUid(uid);
+				xmlDAO.delete(user);
+			}
+			if (!previous.isEmpty()) {
+				xmlDAO.createAll(previous);
+			}
+		});
+	}
+
+	/**
+	 * Hashes the clear text passwords of the users on the
+	 * {@link HashingExecutor}, which replaces them with their hash, so both
+	 * stores get the same hash and the caller's thread doesn't run the slow
+	 * hashes
+	 *
+	 * @param failure
+	 *            - builds the exception thrown if a password could not be hashed
+	 *            in time
+	 */
+	private static <E extends Exception> void hashPasswords(Collection<User> users, Function<Exception, E> failure)
+			throws E {
+		final HashingExecutor executor = HashingExecutor.getInstance();
+		final Deque<CompletableFuture<Void>> hashes = new ArrayDeque<>();
+		try {
+			for (User user : users) {
+				final String password = user.getPassword();
+				if (password == null) {
+					continue;
+				}
+				// at most one hash per thread, leaves the queue to the logins
+				if (hashes.size() >= executor.getThreads()) {
+					hashes.poll().get(executor.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+				}
+				hashes.add(executor.submit(() -> PasswordHashers.getDefault().hash(password))
+						.thenAccept(user::setHashedPassword));
+			}
+			for (CompletableFuture<Void> hash : hashes) {
+				hash.get(executor.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw failure.apply(e);
+		} catch (final ExecutionException | TimeoutException | RejectedExecutionException e) {
+			logger.error("Could not hash the passwords of " + users.size() + " users", e);
+			throw failure.apply(e);
+		}
+	}
+
+	/**
+	 * Copies the user for the write of the XML file, which may run on another
+	 * thread while the database is written, so the identity ID set by the
+	 * database write isn't shared with the XML write. The password must be
+	 * hashed already.
+	 */
+	private static User snapshot(User user) {
+		final User copy = new User();
+		copy.setUserName(user.getUserName());
+		copy.setHashedPassword(user.getHashedPassword());
+		copy.setIdentityID(user.getIdentityID());
+		copy.setUid(user.getUid());
+		return copy;
+	}
+
+	/**
+	 * Applies a change to the username index, once the unit of work is
+	 * committed if there is one
+	 */
+	private void indexed(Consumer<UsernameIndex> change) {
+		if (usernameIndex != null && !UnitOfWork.stage(() -> change.accept(usernameIndex))) {
+			change.accept(usernameIndex);
+		}
+	}
+
+	/**
+	 * Removes the username of the user, or every username if it is not known
+	 */
+	private static void unindex(UsernameIndex index, User user) {
+		if (user.getUserName() == null) {
+			index.invalidate();
+		} else {
+			index.remove(user.getUserName());
+		}
+	}
+
+	/**
+	 * Suggests usernames for a type-ahead. The {@link UsernameIndex} answers
+	 * without reading the users when the database is working, otherwise the
+	 * users of the XML file are scanned.
+	 * 
+	 * @param prefix
+	 *            - start of the username, ignoring case
+	 * @param limit
+	 *            - maximum number of usernames returned
+	 * @return the matched usernames, sorted ignoring case
+	 * @throws SearchException
+	 */
+	public List<String> suggest(String prefix, int limit) throws SearchException {
+		if (Global.isDBWorking() && usernameIndex != null) {
+			return circuitBreaker.call(() -> {
+				usernameIndex.load(() -> dbDAO.stream(new User()));
+				return usernameIndex.suggest(prefix, limit);
+			}, () -> {
+				try (Stream<User> users = xmlDAO.stream(new User())) {
+					return suggest(users, prefix, limit);
+				}
+			});
+		}
+		try (Stream<User> users = stream(new User())) {
+			return suggest(users, prefix, limit);
+		}
+	}
+
+	/**
+	 * Scans the users for the suggestions
+	 */
+	private static List<String> suggest(Stream<User> users, String prefix, int limit) {
+		final String start = prefix.toLowerCase(Locale.ROOT);
+		return users.map(User::getUserName)
+				.filter(username -> username != null && username.toLowerCase(Locale.ROOT).startsWith(start))
+				.sorted(String.CASE_INSENSITIVE_ORDER).limit(limit).collect(Collectors.toList());
+	}
+
 	/**
 	 * @param criteria
 	 *            - criteria of the user
@@ -166,7 +563,7 @@ public class UserDAOManager implements UserDAO {
 	 */
 	@Override
 	public User getUserByIdentityId(User criteria) throws SearchException {
-		return dbDAO.getUserByIdentityId(criteria);
+		return circuitBreaker.call(() -> dbDAO.getUserByIdentityId(criteria));
 	}
 
 	/**
@@ -177,31 +574,164 @@ public class UserDAOManager implements UserDAO {
 	 */
 	@Override
 	public int getId(String identityID) {
-		return dbDAO.getId(identityID);
+		return circuitBreaker.call(() -> dbDAO.getId(identityID));
+	}
+
+	/**
+	 * Get the IDs of the identities having these UIDs, with as few queries as
+	 * possible.
+	 * 
+	 * @param uids
+	 * @return the ID of each identity found, keyed by its UID in lower case
+	 * @throws SearchException
+	 */
+	@Override
+	public Map<String, Integer> getIds(Collection<String> uids) throws SearchException {
+		return circuitBreaker.call(() -> dbDAO.getIds(uids));
 	}
 
 	/**
+	 * Checks the credentials against the login cache first, then against the
+	 * database if it's working, otherwise against the XML file. The password is
+	 * verified on the {@link HashingExecutor}, and rehashed in the background if
+	 * its hash is outdated.
 	 * 
 	 * @param login
-	 *            - login credentials
+	 *            - login credentials, with the clear text password
 	 * @return true if login succeeded, false otherwise
 	 * @throws SearchException
+	 *             also if the password could not be verified in time
 	 */
 	@Override
 	public boolean login(User login) throws SearchException {
-		if (login.getUserName() != null && login.getHashedPassword() != null) {
+		final String password = login.getPassword();
+		if (login.getUserName() != null && password != null) {
 			//provided credentials are both not null
-			if (Global.isDBWorking()) {
-				// use database if working
-				return dbDAO.login(login);
-			} else {
-				// use XML file
-				return xmlDAO.login(login);
+			if (loginCache.check(login.getUserName(), password)) {
+				logger.info("Successful login from cache using username: " + login.getUserName());
+				return true;
+			}
+			final long version = loginCache.getVersion();
+			final List<User> candidates = findByUsername(login.getUserName());
+			final User matched = verify(login, candidates);
+			if (matched == null) {
+				logger.warning("Failed login using username: " + login.getUserName());
+				return false;
+			}
+			logger.info("Successful login using username: " + login.getUserName());
+			loginCache.put(login.getUserName(), password, version);
+			if (!Global.isReadOnly() && PasswordHashers.needsRehash(matched.getHashedPassword())) {
+				rehashLater(matched, password);
 			}
+			return true;
 		}
 		return false;
 	}
 
+	/**
+	 * @return the first candidate whose hash matches the password, or null
+	 */
+	private static User verify(User login, List<User> candidates) throws SearchException {
+		if (candidates.isEmpty()) {
+			return null;
+		}
+		final String password = login.getPassword();
+		final HashingExecutor executor = HashingExecutor.getInstance();
+		try {
+			return executor.submit(() -> {
+				for (User candidate : candidates) {
+					if (PasswordHashers.verify(password, candidate.getHashedPassword())) {
+						return candidate;
+					}
+				}
+				return null;
+			}).get(executor.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SearchException(e, login);
+		} catch (final ExecutionException | TimeoutException | RejectedExecutionException e) {
+			logger.error("Could not verify the password of username: " + login.getUserName(), e);
+			throw new SearchException(e, login);
+		}
+	}
+
+	/**
+	 * Hashes the password again with the default hasher in the background, and
+	 * stores the new hash if the password didn't change meanwhile
+	 */
+	private void rehashLater(User stored, String password) {
+		final boolean queued = HashingExecutor.getInstance().offer(() -> {
+			final String hashedPassword = PasswordHashers.getDefault().hash(password);
+			try {
+				if (replaceHashedPassword(stored, hashedPassword)) {
+					logger.info("Upgraded the password hash of username: " + stored.getUserName());
+				}
+			} catch (ReadOnlyException | UpdateException | TransformerException e) {
+				logger.error("Could not upgrade the password hash of username: " + stored.getUserName(), e);
+			}
+		});
+		if (!queued) {
+			// the next login will try again
+			logger.warning("Hashing queue full, password hash of " + stored.getUserName() + " not upgraded");
+		}
+	}
+
+	/**
+	 * @param username
+	 * @return the users having exactly this username, from the database if it's
+	 *         working, otherwise from the XML file
+	 * @throws SearchException
+	 */
+	@Override
+	public List<User> findByUsername(String username) throws SearchException {
+		if (Global.isDBWorking()) {
+			// use database if working
+			return circuitBreaker.call(() -> dbDAO.findByUsername(username), () -> xmlDAO.findByUsername(username));
+		} else {
+			// use XML file
+			return xmlDAO.findByUsername(username);
+		}
+	}
+
+	/**
+	 * Replaces the hashed password of a user if not in read only mode, only if
+	 * it still is the one read with the user. Otherwise throws
+	 * {@link ReadOnlyException}
+	 * 
+	 * @param stored
+	 *            - user as read by {@link #findByUsername(String)}
+	 * @param hashedPassword
+	 *            - the new hash of the same password
+	 * @return true if the hash was replaced
+	 * @throws ReadOnlyException
+	 * @throws UpdateException
+	 * @throws TransformerException
+	 */
+	@Override
+	public boolean replaceHashedPassword(User stored, String hashedPassword)
+			throws ReadOnlyException, UpdateException, TransformerException {
+		if (Global.isReadOnly()) {
+			logger.error("Running in read-only mode. Can't update this user : " + stored);
+			throw new ReadOnlyException(stored);
+		}
+		boolean replaced = false;
+		if (Global.isDBWorking()) {
+			replaced = dbDAO.replaceHashedPassword(stored, hashedPassword);
+		}
+		// the XML file keeps a copy of the database
+		if (!UnitOfWork.stage(() -> xmlDAO.replaceHashedPassword(stored, hashedPassword))) {
+			replaced |= xmlDAO.replaceHashedPassword(stored, hashedPassword);
+		}
+		return replaced;
+	}
+
+	/**
+	 * @return the cache of the successful logins, for its metrics
+	 */
+	public static LoginCache getLoginCache() {
+		return LoginCache.getInstance();
+	}
+
 	/**
 	 * checks if the new password is equal to the old provided clear text
 	 * password
@@ -215,13 +745,13 @@ public class UserDAOManager implements UserDAO {
 	 */
 	@Override
 	public boolean checkOldPwd(User oldUser) throws SearchException {
-		String oldProvidedHashedPassword = oldUser.getHashedPassword();
-		if (oldProvidedHashedPassword == null) {
+		String oldProvidedPassword = oldUser.getPassword();
+		if (oldProvidedPassword == null) {
 			return false;
 		} else {
-			// old password is not null
-			oldUser = getUserByIdentityId(oldUser);
-			return oldUser.getHashedPassword().equals(oldProvidedHashedPassword);
+			// old password is not null, verified on the hashing executor
+			final User stored = getUserByIdentityId(oldUser);
+			return stored != null && verify(oldUser, Collections.singletonList(stored)) != null;
 		}
 	}
 
@@ -5,10 +5,18 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
 
 import javax.xml.transform.TransformerException;
 
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.datamodel.User;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
@@ -18,6 +26,8 @@ import fr.epita.iam.exceptions.ReadOnlyException;
 import fr.epita.iam.exceptions.SearchException;
 import fr.epita.iam.exceptions.UpdateException;
 import fr.epita.iam.services.connections.JDBCConnection;
+import fr.epita.iam.services.connections.UnitOfWork;
+import fr.epita.iam.services.security.PasswordHashers;
 import fr.epita.logger.Logger;
 
 /**
@@ -55,6 +65,27 @@ public class UserJDBCDAO implements UserDAO {
 	private static final String USERNAME = "USERNAME";
 	private static final Logger LOGGER = new Logger(UserJDBCDAO.class);
 
+	/**
+	 * Source of the cursors of the pages returned by the database
+	 */
+	public static final String CURSOR_SOURCE = "db";
+
+	private static final String SEARCH_FROM = "FROM IDENTITIES I " + "INNER JOIN LOGIN_USERS L ON L.IDENTITYID = I.ID "
+			+ "WHERE (? IS NULL OR L.USERNAME LIKE ?) " + "AND (? = 0 OR L.IDENTITYID = ?)";
+	private static final String SEARCH = "SELECT L.USERNAME, L.HASHED_PASSWORD, L.IDENTITYID, I.UID " + SEARCH_FROM;
+	// seeks the page on the primary key
+	private static final String SEARCH_PAGE = "SELECT L.ID, L.USERNAME, L.HASHED_PASSWORD, L.IDENTITYID, I.UID "
+			+ SEARCH_FROM + " AND L.ID > ? ORDER BY L.ID FETCH FIRST ? ROWS ONLY";
+	// the identity of the UID, only if neither it nor the username has a user yet
+	private static final String INSERT_FOR_UID = "INSERT INTO LOGIN_USERS(USERNAME, HASHED_PASSWORD, IDENTITYID) "
+			+ "SELECT CAST(? AS VARCHAR(255)), CAST(? AS VARCHAR(255)), I.ID FROM IDENTITIES I "
+			+ "WHERE I.UID_LOWER = ? "
+			+ "AND NOT EXISTS (SELECT 1 FROM LOGIN_USERS L WHERE L.IDENTITYID = I.ID OR L.USERNAME = ?)";
+	private static final String IDENTITY_OF_UID = "SELECT ID FROM IDENTITIES WHERE UID_LOWER = ?";
+	// SQL state class of the rolled back transactions (deadlock, lock timeout), which can be retried
+	private static final String TRANSACTION_ROLLBACK_CLASS = "40";
+	private static final int MAX_ATTEMPTS = 3;
+
 	/**
 	 * Adds the user if not in read only mode and IdentityID is not duplicated and
 	 * exists in the Identities table. Otherwise throws {@link ReadOnlyException},
@@ -95,6 +126,197 @@ public class UserJDBCDAO implements UserDAO {
 		}
 	}
 
+	/**
+	 * Adds the user of the identity having the UID of the user, with one
+	 * constrained insert: the identity is resolved and both the identity and the
+	 * username checked for duplicates by the insert itself. The transaction is
+	 * serializable, so two creators can't both pass the checks: the one chosen as
+	 * deadlock victim is retried and then sees the other's user. Inside a
+	 * {@link UnitOfWork}, the isolation of the unit applies and nothing is
+	 * retried. When nothing was
+	 * inserted, the identity is looked up on the same connection to tell a
+	 * missing identity from a duplicate.
+	 * 
+	 * @param user
+	 *            - user to add, with the UID of its identity
+	 * @throws CreationException
+	 * @throws DuplicateException
+	 * @throws NoIdentityFoundException
+	 */
+	@Override
+	public void createForUid(User user) throws CreationException, DuplicateException, NoIdentityFoundException {
+		LOGGER.info("Creating user in database: " + user);
+		int[] result = null;
+		for (int attempt = 1; result == null; attempt++) {
+			try {
+				result = insertForUid(user);
+			} catch (final SQLException e) {
+				final String state = e.getSQLState();
+				// inside a unit of work, the whole unit has been rolled back
+				if (state == null || !state.startsWith(TRANSACTION_ROLLBACK_CLASS) || attempt == MAX_ATTEMPTS
+						|| UnitOfWork.isActive()) {
+					LOGGER.error("Error occured while creating in database the user " + user + "got that error "
+							+ e.getMessage());
+					throw new CreationException(e, user);
+				}
+			} catch (final Exception e) {
+				LOGGER.error(
+						"Error occured while creating in database the user " + user + "got that error " + e.getMessage());
+				throw new CreationException(e, user);
+			}
+		}
+		final int inserted = result[0];
+		final int identityId = result[1];
+		if (inserted == 0) {
+			if (identityId == 0) {
+				LOGGER.error("Cannot create a user who doesn't have an identity: " + user);
+				throw new NoIdentityFoundException(user);
+			}
+			LOGGER.error("Duplicate Username or UID found while creating this user: " + user);
+			throw new DuplicateException(user);
+		}
+		user.setIdentityID(identityId);
+	}
+
+	/**
+	 * @return the number of inserted users and the identity ID of the UID, 0 if
+	 *         no identity has it
+	 */
+	private static int[] insertForUid(User user) throws ClassNotFoundException, SQLException {
+		Connection connection = null;
+		PreparedStatement insert = null;
+		PreparedStatement select = null;
+		ResultSet rs = null;
+		try {
+			// get the connection
+			connection = JDBCConnection.getConnection();
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			insert = connection.prepareStatement(INSERT_FOR_UID);
+			// set parameters
+			insert.setString(1, user.getUserName());
+			insert.setString(2, user.getHashedPassword());
+			insert.setString(3, user.getUid().toLowerCase(Locale.ROOT));
+			insert.setString(4, user.getUserName());
+			// execute
+			final int inserted = insert.executeUpdate();
+			// identity of the user, or the reason it was refused
+			select = connection.prepareStatement(IDENTITY_OF_UID);
+			select.setString(1, user.getUid().toLowerCase(Locale.ROOT));
+			rs = select.executeQuery();
+			final int identityId = rs.next() ? rs.getInt(1) : 0;
+			connection.commit();
+			return new int[] { inserted, identityId };
+		} catch (final SQLException e) {
+			JDBCConnection.rollback(connection);
+			throw e;
+		} finally {
+			// close connection
+			JDBCConnection.close(null, insert, null);
+			JDBCConnection.close(connection, select, rs);
+		}
+	}
+
+	/**
+	 * Adds the users to the database, in one batch and one transaction. Nothing is
+	 * added if one of the inserts fails.
+	 * 
+	 * @param users
+	 *            - users to add
+	 * @throws CreationException
+	 */
+	@Override
+	public void createAll(Collection<User> users) throws CreationException {
+		if (users.isEmpty()) {
+			return;
+		}
+		LOGGER.info("Creating " + users.size() + " users in database");
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		try {
+			// get the connection
+			connection = JDBCConnection.getConnection();
+			connection.setAutoCommit(false);
+			preparedStatement = connection.prepareStatement(
+					"INSERT INTO LOGIN_USERS(USERNAME, HASHED_PASSWORD, IDENTITYID) VALUES (?, ?, ?)");
+			for (User user : users) {
+				// set parameters
+				preparedStatement.setString(1, user.getUserName());
+				preparedStatement.setString(2, user.getHashedPassword());
+				preparedStatement.setInt(3, user.getIdentityID());
+				preparedStatement.addBatch();
+			}
+			// execute
+			preparedStatement.executeBatch();
+			connection.commit();
+		} catch (final Exception e) {
+			JDBCConnection.rollback(connection);
+			LOGGER.error("Error occured while creating " + users.size() + " users in database, got that error "
+					+ e.getMessage());
+			throw new CreationException(e, users.iterator().next());
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, null);
+		}
+	}
+
+	/**
+	 * Finds the users whose identity already has a user, or whose username is
+	 * already used, with one query per {@link JDBCConnection#IN_LIST_SIZE} users
+	 * 
+	 * @param users
+	 *            - users to check
+	 * @return the users of the collection that can't be created
+	 * @throws SearchException
+	 */
+	@Override
+	public List<User> findDuplicates(Collection<User> users) throws SearchException {
+		final List<User> candidates = new ArrayList<>(users);
+		final Set<Integer> existingIds = new HashSet<>();
+		final Set<String> existingUsernames = new HashSet<>();
+		final int size = JDBCConnection.IN_LIST_SIZE;
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			// get the connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement("SELECT IDENTITYID, USERNAME FROM LOGIN_USERS "
+					+ "WHERE IDENTITYID IN (" + JDBCConnection.placeholders(size) + ") " + "OR USERNAME IN ("
+					+ JDBCConnection.placeholders(size) + ")");
+			for (int from = 0; from < candidates.size(); from += size) {
+				final int to = Math.min(from + size, candidates.size());
+				// set parameters, the last user fills the rest of the lists
+				for (int i = 0; i < size; i++) {
+					final User user = candidates.get(Math.min(from + i, to - 1));
+					preparedStatement.setInt(i + 1, user.getIdentityID());
+					preparedStatement.setString(size + i + 1, user.getUserName());
+				}
+				// execute
+				rs = preparedStatement.executeQuery();
+				while (rs.next()) {
+					existingIds.add(rs.getInt(IDENTITYID));
+					existingUsernames.add(rs.getString(USERNAME));
+				}
+				rs.close();
+				rs = null;
+			}
+		} catch (ClassNotFoundException | SQLException e) {
+			LOGGER.error("error while searching the database for duplicate users", e);
+			throw new SearchException(e, candidates.get(0));
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+		}
+		final List<User> duplicates = new ArrayList<>();
+		for (User user : candidates) {
+			if (existingIds.contains(user.getIdentityID()) || existingUsernames.contains(user.getUserName())) {
+				duplicates.add(user);
+			}
+		}
+		return duplicates;
+	}
+
 	/**
 	 * Get ID of an identity from UID.
 	 * 
@@ -109,11 +331,11 @@ public class UserJDBCDAO implements UserDAO {
 		try {
 			// get connection
 			connection = JDBCConnection.getConnection();
-			preparedStatement = connection.prepareStatement("SELECT ID FROM IDENTITIES WHERE LOWER(UID)=?");
+			preparedStatement = connection.prepareStatement("SELECT ID FROM IDENTITIES WHERE UID_LOWER=?");
 			// we need one row only
 			preparedStatement.setMaxRows(1);
 			// set parameters
-			preparedStatement.setString(1, uid.toLowerCase());
+			preparedStatement.setString(1, uid.toLowerCase(Locale.ROOT));
 			rs = preparedStatement.executeQuery();
 			while (rs.next()) {
 				// retrieve the ID
@@ -129,6 +351,58 @@ public class UserJDBCDAO implements UserDAO {
 		return id;
 	}
 
+	/**
+	 * Get the IDs of the identities having these UIDs, with one query per
+	 * {@link JDBCConnection#IN_LIST_SIZE} UIDs served by the index of UID_LOWER
+	 * 
+	 * @param uids
+	 * @return the ID of each identity found, keyed by its UID in lower case
+	 * @throws SearchException
+	 */
+	@Override
+	public Map<String, Integer> getIds(Collection<String> uids) throws SearchException {
+		final List<String> keys = new ArrayList<>(uids.size());
+		for (String uid : uids) {
+			keys.add(uid.toLowerCase(Locale.ROOT));
+		}
+		final Map<String, Integer> ids = new HashMap<>();
+		if (keys.isEmpty()) {
+			return ids;
+		}
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			// get connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement("SELECT ID, UID_LOWER FROM IDENTITIES WHERE UID_LOWER IN ("
+					+ JDBCConnection.placeholders(JDBCConnection.IN_LIST_SIZE) + ")");
+			for (int from = 0; from < keys.size(); from += JDBCConnection.IN_LIST_SIZE) {
+				final int to = Math.min(from + JDBCConnection.IN_LIST_SIZE, keys.size());
+				// set the parameters, the last UID fills the rest of the list
+				for (int i = 0; i < JDBCConnection.IN_LIST_SIZE; i++) {
+					preparedStatement.setString(i + 1, keys.get(Math.min(from + i, to - 1)));
+				}
+				// execute the query
+				rs = preparedStatement.executeQuery();
+				while (rs.next()) {
+					ids.put(rs.getString("UID_LOWER"), rs.getInt("ID"));
+				}
+				rs.close();
+				rs = null;
+			}
+		} catch (ClassNotFoundException | SQLException e) {
+			LOGGER.error("error while reading identity ids by UID from the database", e);
+			final User faulty = new User();
+			faulty.setUid(keys.get(0));
+			throw new SearchException(e, faulty);
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+		}
+		return ids;
+	}
+
 	/**
 	 * Search for a user.
 	 * 
@@ -147,25 +421,14 @@ public class UserJDBCDAO implements UserDAO {
 		try {
 			// get the connection
 			connection = JDBCConnection.getConnection();
-			final String sqlString = "SELECT L.USERNAME, L.HASHED_PASSWORD, L.IDENTITYID, I.UID " + "FROM IDENTITIES I "
-					+ "INNER JOIN LOGIN_USERS L ON L.IDENTITYID = I.ID " + "WHERE (? IS NULL OR L.USERNAME LIKE ?) "
-					+ "AND (? = 0 OR L.IDENTITYID = ?)";
-			preparedStatement = connection.prepareStatement(sqlString);
+			preparedStatement = connection.prepareStatement(SEARCH);
 			// set parameters
-			preparedStatement.setString(1, criteria.getUserName());
-			preparedStatement.setString(2, "%" + criteria.getUserName() + "%");
-			preparedStatement.setInt(3, criteria.getIdentityID());
-			preparedStatement.setInt(4, criteria.getIdentityID());
+			setSearchParameters(preparedStatement, criteria);
 			// execute
 			rs = preparedStatement.executeQuery();
 			while (rs.next()) {
 				// deserialise results
-				final User currentUser = new User();
-				currentUser.setUserName(rs.getString(USERNAME));
-				currentUser.setPassword(rs.getString(HASHED_PWD));
-				currentUser.setIdentityID(rs.getInt(IDENTITYID));
-				currentUser.setUid(rs.getString(UID));
-				results.add(currentUser);
+				results.add(toUser(rs));
 			}
 		} catch (ClassNotFoundException | SQLException e) {
 			LOGGER.error("error while performing search in the database", e);
@@ -177,6 +440,112 @@ public class UserJDBCDAO implements UserDAO {
 		return results;
 	}
 
+	/**
+	 * Search the database for users, reading the matched rows
+	 * {@link JDBCConnection#getFetchSize()} at a time as the stream is consumed.
+	 * The stream holds a connection until it is closed.
+	 * 
+	 * @param criteria
+	 *            - criteria of the user to search for
+	 * @return stream of matched users, to close after use
+	 * @throws SearchException
+	 */
+	@Override
+	public Stream<User> stream(User criteria) throws SearchException {
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			// get the connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement(SEARCH);
+			preparedStatement.setFetchSize(JDBCConnection.getFetchSize());
+			// set parameters
+			setSearchParameters(preparedStatement, criteria);
+			// execute, the rows are read by the stream
+			rs = preparedStatement.executeQuery();
+			return JDBCConnection.stream(connection, preparedStatement, rs, UserJDBCDAO::toUser);
+		} catch (ClassNotFoundException | SQLException e) {
+			LOGGER.error("error while performing search in the database", e);
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+			throw new SearchException(e, criteria);
+		}
+	}
+
+	/**
+	 * Search the database for users, one page at a time in the order of their
+	 * ID. The page starts right after the ID held by the cursor, so every page
+	 * costs the same whatever its position.
+	 * 
+	 * @param criteria
+	 *            - criteria of the user to search for
+	 * @param pageSize
+	 *            - maximum number of users of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return the page of matched users
+	 * @throws SearchException
+	 */
+	@Override
+	public Page<User> searchPage(User criteria, int pageSize, String cursor) throws SearchException {
+		final List<User> results = new ArrayList<>();
+		String nextCursor = null;
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet rs = null;
+		try {
+			if (pageSize < 1) {
+				throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+			}
+			final long after = Page.seek(cursor, CURSOR_SOURCE);
+			// get the connection
+			connection = JDBCConnection.getConnection();
+			preparedStatement = connection.prepareStatement(SEARCH_PAGE);
+			// set parameters, one more row tells if there is a next page
+			setSearchParameters(preparedStatement, criteria);
+			preparedStatement.setLong(5, after);
+			preparedStatement.setInt(6, pageSize + 1);
+			// execute
+			rs = preparedStatement.executeQuery();
+			long last = after;
+			while (rs.next()) {
+				if (results.size() == pageSize) {
+					nextCursor = Page.cursor(CURSOR_SOURCE, last);
+					break;
+				}
+				// deserialise results
+				results.add(toUser(rs));
+				last = rs.getLong("ID");
+			}
+		} catch (ClassNotFoundException | SQLException | IllegalArgumentException e) {
+			LOGGER.error("error while performing search in the database", e);
+			throw new SearchException(e, criteria);
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, rs);
+		}
+		return new Page<>(results, nextCursor);
+	}
+
+	private static void setSearchParameters(PreparedStatement preparedStatement, User criteria) throws SQLException {
+		preparedStatement.setString(1, criteria.getUserName());
+		preparedStatement.setString(2, "%" + criteria.getUserName() + "%");
+		preparedStatement.setInt(3, criteria.getIdentityID());
+		preparedStatement.setInt(4, criteria.getIdentityID());
+	}
+
+	private static User toUser(ResultSet rs) throws SQLException {
+		final User user = new User();
+		user.setUserName(rs.getString(USERNAME));
+		// already hashed
+		user.setHashedPassword(rs.getString(HASHED_PWD));
+		user.setIdentityID(rs.getInt(IDENTITYID));
+		user.setUid(rs.getString(UID));
+		return user;
+	}
+
 	/**
 	 * Updates the information of a user in the database if not in read only mode.
 	 * Otherwise throws {@link ReadOnlyException}
@@ -295,6 +664,8 @@ public class UserJDBCDAO implements UserDAO {
 	}
 
 	/**
+	 * Verifies the clear text password against the hashes of the users having
+	 * this username
 	 * 
 	 * @param login
 	 *            - login credentials
@@ -303,40 +674,94 @@ public class UserJDBCDAO implements UserDAO {
 	 */
 	@Override
 	public boolean login(User login) throws SearchException {
-		Connection connection = null;
 		boolean success = false;
+		for (User user : findByUsername(login.getUserName())) {
+			if (PasswordHashers.verify(login.getPassword(), user.getHashedPassword())) {
+				// at least one user has these credentials
+				success = true;
+				break;
+			}
+		}
+		// log the login attemp
+		if (success) {
+			LOGGER.info("Successful login from database using username: " + login.getUserName());
+		} else {
+			LOGGER.warning("Failed login from database using username: " + login.getUserName());
+		}
+		return success;
+	}
+
+	/**
+	 * @param username
+	 * @return the users having exactly this username, with their hashed password
+	 *         and UID
+	 * @throws SearchException
+	 */
+	@Override
+	public List<User> findByUsername(String username) throws SearchException {
+		final List<User> results = new ArrayList<>();
+		Connection connection = null;
 		PreparedStatement preparedStatement = null;
 		ResultSet rs = null;
 		try {
 			// get the connection
 			connection = JDBCConnection.getConnection();
-			final String sqlString = "SELECT ID FROM LOGIN_USERS " + "WHERE (USERNAME = ?) "
-					+ "AND (HASHED_PASSWORD = ?)";
+			final String sqlString = "SELECT L.USERNAME, L.HASHED_PASSWORD, L.IDENTITYID, I.UID "
+					+ "FROM IDENTITIES I " + "INNER JOIN LOGIN_USERS L ON L.IDENTITYID = I.ID " + "WHERE L.USERNAME = ?";
 			preparedStatement = connection.prepareStatement(sqlString);
 			// set parameters
-			preparedStatement.setString(1, login.getUserName());
-			preparedStatement.setString(2, login.getHashedPassword());
+			preparedStatement.setString(1, username);
 			// execute query
 			rs = preparedStatement.executeQuery();
 			while (rs.next()) {
-				// at least one user has these credentials 
-				success = true;
-				break;
+				results.add(toUser(rs));
 			}
 		} catch (ClassNotFoundException | SQLException e) {
-			LOGGER.error("error while logining in", e);
-			throw new SearchException(e, login);
+			LOGGER.error("error while reading the credentials of username: " + username, e);
+			final User criteria = new User();
+			criteria.setUserName(username);
+			throw new SearchException(e, criteria);
 		} finally {
 			// close the connection
 			JDBCConnection.close(connection, preparedStatement, rs);
 		}
-		// log the login attemp
-		if (success) {
-			LOGGER.info("Successful login from database using username: " + login.getUserName());
-		} else {
-			LOGGER.warning("Failed login from database using username: " + login.getUserName());
+		return results;
+	}
+
+	/**
+	 * Replaces the hashed password of a user in the database, only if it still
+	 * is the one read with the user
+	 * 
+	 * @param stored
+	 *            - user as read from the database
+	 * @param hashedPassword
+	 *            - the new hash of the same password
+	 * @return true if the hash was replaced
+	 * @throws UpdateException
+	 */
+	@Override
+	public boolean replaceHashedPassword(User stored, String hashedPassword) throws UpdateException {
+		Connection connection = null;
+		PreparedStatement preparedStatement = null;
+		try {
+			// get the connection
+			connection = JDBCConnection.getConnection();
+			final String sqlString = "UPDATE LOGIN_USERS SET HASHED_PASSWORD = ? " + "WHERE HASHED_PASSWORD = ? "
+					+ "AND IDENTITYID IN (SELECT ID FROM IDENTITIES WHERE UID_LOWER = ?)";
+			preparedStatement = connection.prepareStatement(sqlString);
+			// set parameters
+			preparedStatement.setString(1, hashedPassword);
+			preparedStatement.setString(2, stored.getHashedPassword());
+			preparedStatement.setString(3, stored.getUid().toLowerCase(Locale.ROOT));
+			// execute query
+			return preparedStatement.executeUpdate() > 0;
+		} catch (ClassNotFoundException | SQLException e) {
+			LOGGER.error("error while replacing the hashed password of user: " + stored.getUserName(), e);
+			throw new UpdateException(e, stored);
+		} finally {
+			// close connection
+			JDBCConnection.close(connection, preparedStatement, null);
 		}
-		return success;
 	}
 
 	/*
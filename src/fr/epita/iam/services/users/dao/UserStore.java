@@ -0,0 +1,359 @@
+package fr.epita.iam.services.users.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import fr.epita.iam.datamodel.Page;
+import fr.epita.iam.datamodel.User;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * In-memory store of the local users with a hash index on the identity UID and
+ * a hash index on the username. Every user gets an internal sequence number,
+ * which keeps the insertion order of the file and is the key of the paginated
+ * searches.
+ * </p>
+ *
+ * <p>
+ * UIDs are compared ignoring case, usernames are matched with contains
+ * semantics, and null criteria match everything. Users are copied in and out
+ * of the store, so callers can't modify it by accident.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>UserStore store = new UserStore();</code>
+ * <code>store.add(user);</code>
+ * <code>List&lt;User&gt; candidates = store.getByUsername(username);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class UserStore {
+
+	/**
+	 * Source of the cursors of the pages returned by the store
+	 */
+	public static final String CURSOR_SOURCE = "xml";
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private long sequence = 0;
+	// sequence -> user, in insertion order
+	private final NavigableMap<Long, User> users = new TreeMap<>();
+	// lower case uid -> sequence
+	private final Map<String, Long> uidIndex = new HashMap<>();
+	// username -> sequences
+	private final Map<String, Set<Long>> usernameIndex = new HashMap<>();
+
+	/**
+	 * Add a user to the store. If a user with the same UID is already stored, it
+	 * is replaced.
+	 *
+	 * @param user
+	 */
+	public void add(User user) {
+		lock.writeLock().lock();
+		try {
+			final Long existing = uidIndex.get(key(user.getUid()));
+			if (existing != null) {
+				unindex(existing, users.remove(existing));
+			}
+			final long id = ++sequence;
+			final User copy = copy(user);
+			users.put(id, copy);
+			index(id, copy);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the username of the user having this UID, and its hashed password
+	 * if the edited user has one.
+	 *
+	 * @param uid
+	 * @param to
+	 *            - edited user
+	 * @return false if no user has this UID
+	 */
+	public boolean update(String uid, User to) {
+		lock.writeLock().lock();
+		try {
+			final Long id = uidIndex.get(key(uid));
+			if (id == null) {
+				return false;
+			}
+			final User stored = users.get(id);
+			unindex(id, stored);
+			stored.setUserName(to.getUserName());
+			if (to.getHashedPassword() != null) {
+				// password has been changed
+				stored.setHashedPassword(to.getHashedPassword());
+			}
+			index(id, stored);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the user having this UID
+	 *
+	 * @param uid
+	 * @return the removed user, or null if no user has this UID
+	 */
+	public User remove(String uid) {
+		lock.writeLock().lock();
+		try {
+			final Long id = uidIndex.get(key(uid));
+			if (id == null) {
+				return null;
+			}
+			final User removed = users.remove(id);
+			unindex(id, removed);
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param uid
+	 * @return a copy of the user having this UID, or null
+	 */
+	public User get(String uid) {
+		lock.readLock().lock();
+		try {
+			final Long id = uidIndex.get(key(uid));
+			return id == null ? null : copy(users.get(id));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param username
+	 * @return copies of the users having exactly this username
+	 */
+	public List<User> getByUsername(String username) {
+		lock.readLock().lock();
+		try {
+			final List<User> results = new ArrayList<>();
+			final Set<Long> ids = usernameIndex.get(username);
+			if (ids != null) {
+				for (Long id : ids) {
+					results.add(copy(users.get(id)));
+				}
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the hashed password of the user having this UID, only if it is
+	 * still the expected one
+	 *
+	 * @param uid
+	 * @param expected
+	 *            - hashed password read with the user
+	 * @param hashedPassword
+	 *            - the new hashed password
+	 * @return false if no user has this UID, or its password changed
+	 */
+	public boolean replaceHashedPassword(String uid, String expected, String hashedPassword) {
+		lock.writeLock().lock();
+		try {
+			final Long id = uidIndex.get(key(uid));
+			if (id == null) {
+				return false;
+			}
+			final User stored = users.get(id);
+			if (expected == null || !expected.equals(stored.getHashedPassword())) {
+				return false;
+			}
+			stored.setHashedPassword(hashedPassword);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Search the store, through the UID index when the UID is part of the
+	 * criteria.
+	 *
+	 * @param criteria
+	 * @return copies of the matched users, in insertion order
+	 */
+	public List<User> search(User criteria) {
+		lock.readLock().lock();
+		try {
+			final List<User> results = new ArrayList<>();
+			for (Long id : candidates(criteria, 0)) {
+				final User user = users.get(id);
+				if (matches(user, criteria)) {
+					results.add(copy(user));
+				}
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #search(User)}, one page at a time. The page starts right
+	 * after the sequence number held by the cursor, so every page costs the same
+	 * whatever its position.
+	 *
+	 * @param criteria
+	 * @param pageSize
+	 *            - maximum number of users of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return copies of the matched users of the page, in insertion order
+	 * @throws IllegalArgumentException
+	 *             if the page size is not positive or the cursor was not
+	 *             returned by a store
+	 */
+	public Page<User> searchPage(User criteria, int pageSize, String cursor) {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("The page size must be positive: " + pageSize);
+		}
+		final long after = Page.seek(cursor, CURSOR_SOURCE);
+		lock.readLock().lock();
+		try {
+			final List<User> results = new ArrayList<>();
+			long last = after;
+			for (Long id : candidates(criteria, after)) {
+				final User user = users.get(id);
+				if (matches(user, criteria)) {
+					if (results.size() == pageSize) {
+						// there is at least one more match
+						return new Page<>(results, Page.cursor(CURSOR_SOURCE, last));
+					}
+					results.add(copy(user));
+					last = id;
+				}
+			}
+			return new Page<>(results, null);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return copies of all the users, in insertion order
+	 */
+	public List<User> all() {
+		lock.readLock().lock();
+		try {
+			final List<User> results = new ArrayList<>(users.size());
+			for (User user : users.values()) {
+				results.add(copy(user));
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return number of stored users
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return users.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove every user
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			users.clear();
+			uidIndex.clear();
+			usernameIndex.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Uses the UID index when the UID is part of the criteria
+	 *
+	 * @return the sequence numbers greater than after of the users that may
+	 *         match, sorted
+	 */
+	private Collection<Long> candidates(User criteria, long after) {
+		if (criteria.getUid() != null) {
+			final Long id = uidIndex.get(key(criteria.getUid()));
+			return id == null || id <= after ? Collections.<Long>emptySet() : Collections.singleton(id);
+		}
+		return users.tailMap(after, false).keySet();
+	}
+
+	private void index(long id, User user) {
+		uidIndex.put(key(user.getUid()), id);
+		if (user.getUserName() != null) {
+			usernameIndex.computeIfAbsent(user.getUserName(), u -> new HashSet<>()).add(id);
+		}
+	}
+
+	private void unindex(long id, User user) {
+		uidIndex.remove(key(user.getUid()));
+		if (user.getUserName() != null) {
+			final Set<Long> ids = usernameIndex.get(user.getUserName());
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty()) {
+					usernameIndex.remove(user.getUserName());
+				}
+			}
+		}
+	}
+
+	private static boolean matches(User user, User criteria) {
+		return (criteria.getUid() == null || key(criteria.getUid()).equals(key(user.getUid())))
+				&& (criteria.getUserName() == null
+						|| user.getUserName() != null && user.getUserName().contains(criteria.getUserName()));
+	}
+
+	private static String key(String value) {
+		return value == null ? "" : value.toLowerCase(Locale.ROOT);
+	}
+
+	private static User copy(User user) {
+		final User copy = new User();
+		copy.setUserName(user.getUserName());
+		copy.setHashedPassword(user.getHashedPassword());
+		copy.setIdentityID(user.getIdentityID());
+		copy.setUid(user.getUid());
+		return copy;
+	}
+
+}
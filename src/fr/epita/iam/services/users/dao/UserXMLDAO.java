@@ -2,22 +2,16 @@ package fr.epita.iam.services.users.dao;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
 
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
 
+import fr.epita.iam.datamodel.Page;
 import fr.epita.iam.datamodel.User;
 import fr.epita.iam.exceptions.CreationException;
 import fr.epita.iam.exceptions.DeleteException;
@@ -27,16 +21,28 @@ import fr.epita.iam.exceptions.ReadOnlyException;
 import fr.epita.iam.exceptions.SearchException;
 import fr.epita.iam.exceptions.UpdateException;
 import fr.epita.iam.services.connections.XMLConnection;
+import fr.epita.iam.services.persistence.BinarySnapshot;
+import fr.epita.iam.services.persistence.Operation;
+import fr.epita.iam.services.persistence.StorePersistence;
+import fr.epita.iam.services.security.PasswordHashers;
 import fr.epita.logger.Logger;
 
 /**
  * <h3>Description</h3>
  * <p>
- * Manages the XML User DAO.
+ * Manages the XML User DAO. The local users XML file is streamed once per
+ * process into a {@link UserStore} shared by every instance of this DAO, and
+ * searches and logins run against its indexes. Changes are written to the file
+ * by a {@link StorePersistence}, either right away or in the background.
+ * </p>
+ *
+ * <p>
+ * When a binary snapshot is available, logins are served from the mapped file,
+ * and the store is only loaded on the first search or change.
  * </p>
  *
  * <h3>Usage</h3>
- * 
+ *
  * <pre>
  * <code>UserXMLDAOManager dao = new UserXMLDAOManager();</code>
  * </pre>
@@ -47,43 +53,166 @@ import fr.epita.logger.Logger;
 public class UserXMLDAO implements UserDAO {
 
 	private static final Logger LOGGER = new Logger(UserXMLDAO.class);
-	private Document document;
-	private String oldHashedPassword = null;
 
-	private static final String USEREXPRESSION = "/users/user[";
-	private static final String PROPERTYNAMEEXPRESSION = "./property[@name='";
-	private static final String TEXTEXPRESSION = "']/text()";
+	// users copied at a time by the streams
+	private static final int STREAM_PAGE_SIZE = 500;
 
-	private static final String PROPERTY = "property";
-	private static final String USER = "user";
-	
-	private static final String USERNAME = "username";
-	private static final String IDENTITYID = "uid";
-	private static final String HASHEDPASSWORD = "hashedPassword";
+	private static UserStore sharedStore;
+	private static StorePersistence<User> sharedPersistence;
+	// serves the logins until the store is loaded
+	private static volatile BinarySnapshot<User> sharedSnapshot;
+	private static boolean snapshotMapped;
 
-	private static final String USERNAMEEXPRESSION = PROPERTYNAMEEXPRESSION + USERNAME + TEXTEXPRESSION;
-	private static final String IDENTITYIDEXPRESSION = PROPERTYNAMEEXPRESSION + IDENTITYID + TEXTEXPRESSION;
-	private static final String HASHEDPASSWORDEXPRESSION = PROPERTYNAMEEXPRESSION + HASHEDPASSWORD + TEXTEXPRESSION;
+	private UserStore store;
+	private StorePersistence<User> persistence;
 
 	/**
 	 * <h3>Constuctor</h3>
-	 * Parse the XML file and prepare the document
+	 * Load the users of the XML file in the store, if not already loaded and if
+	 * there is no binary snapshot to map
 	 */
 	public UserXMLDAO() {
+		if (mapSnapshot() == null) {
+			try {
+				open();
+			} catch (final IOException e) {
+				// already logged, every call fails until the file can be loaded
+			}
+		}
+	}
+
+	/**
+	 * Loads the store on first use
+	 *
+	 * @throws IOException
+	 *             if the XML file could not be loaded, the next call tries again
+	 */
+	private void open() throws IOException {
+		if (store == null) {
+			store = getStore();
+			persistence = getPersistence(store);
+		}
+	}
+
+	/**
+	 * Loads the store on first use, for a search
+	 *
+	 * @throws SearchException
+	 *             if the XML file could not be loaded
+	 */
+	private void open(User criteria) throws SearchException {
 		try {
-			// get the XML document
-			document = XMLConnection.getUsersXML();
-		} catch (ParserConfigurationException | SAXException | IOException e) {
-			LOGGER.error("Failed to load local users' XML.", e);
+			open();
+		} catch (final IOException e) {
+			throw new SearchException(e, criteria);
+		}
+	}
+
+	/**
+	 * Maps the binary snapshot once, if the store is not loaded yet
+	 *
+	 * @return the mapped snapshot, or null
+	 */
+	private static synchronized BinarySnapshot<User> mapSnapshot() {
+		if (sharedStore == null && !snapshotMapped) {
+			snapshotMapped = true;
+			try {
+				sharedSnapshot = XMLConnection.mapUsers();
+			} catch (final IOException e) {
+				LOGGER.error("Failed to map the binary snapshot, loading the local users instead.", e);
+			}
+		}
+		return sharedSnapshot;
+	}
+
+	/**
+	 * Streams the snapshot into the shared store on first use
+	 *
+	 * @return the shared store
+	 * @throws IOException
+	 *             if the file could not be loaded, nothing is kept so an empty
+	 *             store is never served nor written to the file
+	 */
+	private static synchronized UserStore getStore() throws IOException {
+		if (sharedStore == null) {
+			final UserStore loaded = new UserStore();
+			try {
+				if (sharedSnapshot != null) {
+					sharedSnapshot.forEach(loaded::add);
+				} else {
+					XMLConnection.readUsers(loaded::add);
+					// changes made since the last snapshot, in journal mode
+					XMLConnection.replayUsers((operation, user) -> apply(loaded, operation, user));
+				}
+			} catch (final IOException e) {
+				LOGGER.error("Failed to load local users' XML.", e);
+				throw e;
+			}
+			sharedStore = loaded;
+			// the snapshot is out of date as soon as the store changes, and the
+			// file can only be replaced once it is unmapped
+			if (sharedSnapshot != null) {
+				sharedSnapshot.close();
+				sharedSnapshot = null;
+			}
+		}
+		return sharedStore;
+	}
+
+	private static void apply(UserStore store, Operation operation, User user) {
+		switch (operation) {
+		case CREATE:
+			store.add(user);
+			break;
+		case UPDATE:
+			store.update(user.getUid(), user);
+			break;
+		case DELETE:
+			store.remove(user.getUid());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @param store
+	 *            - the shared store, holding the whole file
+	 * @return the persistence of the shared store
+	 */
+	private static synchronized StorePersistence<User> getPersistence(UserStore store) {
+		if (sharedPersistence == null) {
+			sharedPersistence = XMLConnection.createUserPersistence(store::all);
 		}
+		return sharedPersistence;
+	}
+
+	/**
+	 * @return the persistence of the local users XML file, for its metrics
+	 * @throws IOException
+	 *             if the file could not be loaded
+	 */
+	public static StorePersistence<User> getPersistence() throws IOException {
+		return getPersistence(getStore());
+	}
 
+	/**
+	 * Writes every user to the local users XML file, which is not kept up to date
+	 * in binary snapshot mode
+	 *
+	 * @throws TransformerException
+	 * @throws IOException
+	 *             if the file could not be loaded
+	 */
+	public static void exportXML() throws TransformerException, IOException {
+		XMLConnection.saveUsers(getStore().all());
 	}
 
 	/**
 	 * Adds the user to the XML file if not in read only mode and IdentityID is not duplicated and
 	 * exists in the Identities table. Otherwise throws {@link ReadOnlyException},
 	 * {@link DuplicateException} or {@link NoIdentityFoundException}
-	 * 
+	 *
 	 * @param user
 	 *            - user to add
 	 * @throws CreationException
@@ -94,54 +223,78 @@ public class UserXMLDAO implements UserDAO {
 	 */
 	@Override
 	public void create(User user) throws CreationException, TransformerException {
-		// get root element
-		final Element root = document.getDocumentElement();
-		// create a new identity element
-		final Element userElement = getNewUserElt();
-		// set the properties
-		setProperties(user, userElement);
-		// append the identity element to the root
-		root.appendChild(userElement);
-		// save the document
-		XMLConnection.saveUserXML(document);
+		final User stored = toStored(user);
+		try {
+			open();
+		} catch (final IOException e) {
+			throw new CreationException(e, user);
+		}
+		synchronized (store) {
+			store.add(stored);
+			persistence.changed(Operation.CREATE, stored);
+		}
 	}
 
-	private void setProperties(User user, final Element userElement) {
-		userElement.appendChild(getNewPropertyElmt(USERNAME, user.getUserName()));
-		userElement.appendChild(getNewPropertyElmt(IDENTITYID, user.getUid().toLowerCase()));
-		String hashedPassword = null;
-		if(user.getHashedPassword() == null) {
-			// password hasn't been change during user editing
-			hashedPassword = this.oldHashedPassword;
-		} else {
-			// password has been changed
-			hashedPassword = user.getHashedPassword();
-		}
-		userElement.appendChild(getNewPropertyElmt(HASHEDPASSWORD, hashedPassword));
+	/**
+	 * Same as {@link #create(User)}, the XML file doesn't link the users to the
+	 * identities
+	 *
+	 * @param user
+	 *            - user to add, with the UID of its identity
+	 * @throws CreationException
+	 * @throws TransformerException
+	 */
+	@Override
+	public void createForUid(User user) throws CreationException, TransformerException {
+		create(user);
 	}
 
-	private Element getNewPropertyElmt(String propertyName, String propertyValue) {
-		// create a new property element
-		final Element userProperty = getNewPropertyElt();
-		// set node values
-		userProperty.setNodeValue(propertyName);
-		userProperty.setAttribute("name", propertyName);
-		userProperty.setTextContent(propertyValue);
-		return userProperty;
+	/**
+	 * Adds the users to the XML file, written once for all of them.
+	 *
+	 * @param users
+	 *            - users to add
+	 * @throws CreationException
+	 * @throws TransformerException
+	 */
+	@Override
+	public void createAll(Collection<User> users) throws CreationException, TransformerException {
+		final List<User> stored = new ArrayList<>(users.size());
+		for (User user : users) {
+			stored.add(toStored(user));
+		}
+		try {
+			open();
+		} catch (final IOException e) {
+			throw new CreationException(e, users.iterator().next());
+		}
+		synchronized (store) {
+			for (User user : stored) {
+				store.add(user);
+			}
+			persistence.changedAll(Operation.CREATE, stored);
+		}
 	}
 
-	private Element getNewUserElt() {
-		return document.createElement(USER);
+	@Override
+	public List<User> findDuplicates(Collection<User> users) throws SearchException {
+		// not needed
+		return Collections.emptyList();
 	}
 
-	private Element getNewPropertyElt() {
-		return document.createElement(PROPERTY);
+	private static User toStored(User user) {
+		final User stored = new User();
+		stored.setUserName(user.getUserName());
+		stored.setHashedPassword(user.getHashedPassword());
+		stored.setUid(user.getUid().toLowerCase(Locale.ROOT));
+		return stored;
 	}
 
 	/**
 	 * Updates the information of a user in the XML file if not in read only mode.
-	 * Otherwise throws {@link ReadOnlyException}
-	 * 
+	 * Otherwise throws {@link ReadOnlyException}. The hashed password is kept if
+	 * the edited user doesn't have one.
+	 *
 	 * @param from
 	 *            - original user
 	 * @param to
@@ -151,34 +304,21 @@ public class UserXMLDAO implements UserDAO {
 	 * @throws TransformerException
 	 */
 	@Override
-	public void update(User from, User to) throws TransformerException {
+	public void update(User from, User to) throws UpdateException, TransformerException {
 		if (from.getIdentityID() == to.getIdentityID()) {
 			// safe to go
-			// construct the expression
-			String expression = USEREXPRESSION + IDENTITYIDEXPRESSION + " = '" + from.getUid().toLowerCase() + "']";
 			try {
-				final XPathFactory xpathFactory = XPathFactory.newInstance();
-				final XPath xpath = xpathFactory.newXPath();
-				// compile the expression
-				final XPathExpression xPathExpression = xpath.compile(expression);
-				// evaluate
-				final Node result = (Node) xPathExpression.evaluate(document, XPathConstants.NODE);
-
-				while (result.getFirstChild() != null) {
-					// delete the old element
-					result.removeChild(result.getFirstChild());
-				}
-				if (result instanceof Element) {
-					// create a new element
-					Element el = (Element) result;
-					this.oldHashedPassword = from.getHashedPassword();
-					to.setUid(from.getUid());
-					setProperties(to, el);
-					XMLConnection.saveUserXML(document);
+				open();
+			} catch (final IOException e) {
+				throw new UpdateException(e, to);
+			}
+			synchronized (store) {
+				if (from.getUid() != null && store.update(from.getUid(), to)) {
+					// the journal needs the UID, which the edited user may not have
+					persistence.changed(Operation.UPDATE, store.get(from.getUid()));
+				} else {
+					LOGGER.error("An error occured, user not found in XML file: " + from);
 				}
-
-			} catch (XPathExpressionException | NullPointerException e) {
-				LOGGER.error("An error occured", e);
 			}
 		}
 
@@ -187,41 +327,31 @@ public class UserXMLDAO implements UserDAO {
 	/**
 	 * Delete a user from the XML file if not in read only mode. Otherwise throws
 	 * {@link ReadOnlyException}
-	 * 
+	 *
 	 * @param identity
 	 * @throws ReadOnlyException
 	 * @throws DeleteException
 	 * @throws TransformerException
 	 */
 	@Override
-	public void delete(User user) throws TransformerException {
-		// construct the expression
-		String expression = USEREXPRESSION + IDENTITYIDEXPRESSION + " = '" + user.getUid() + "']";
+	public void delete(User user) throws DeleteException, TransformerException {
 		try {
-			final XPathFactory xpathFactory = XPathFactory.newInstance();
-			final XPath xpath = xpathFactory.newXPath();
-			// compile
-			final XPathExpression xPathExpression = xpath.compile(expression);
-			// evaluate
-			final Node result = (Node) xPathExpression.evaluate(document, XPathConstants.NODE);
-			
-			if(result != null) {
-				// if node found, delete it
-				result.getParentNode().removeChild(result);
-				XMLConnection.saveUserXML(document);
+			open();
+		} catch (final IOException e) {
+			throw new DeleteException(e, user);
+		}
+		synchronized (store) {
+			if (store.remove(user.getUid()) != null) {
+				persistence.changed(Operation.DELETE, user);
 			} else {
 				LOGGER.warning("Trying to delete an user from XML file that doesn't exist: " + user);
 			}
-			
-		} catch (final XPathExpressionException e) {
-			LOGGER.error("An error occured", e);
 		}
-
 	}
 
 	/**
-	 * Search for a user.
-	 * 
+	 * Search for a user. Null criteria match every user.
+	 *
 	 * @param criteria
 	 *            - criteria of user to search for
 	 * @return list of matched identities
@@ -229,55 +359,48 @@ public class UserXMLDAO implements UserDAO {
 	 */
 	@Override
 	public List<User> search(User criteria) throws SearchException {
-		final List<User> users = new ArrayList<>();
-
-		// construct the expression
-		String expression = USEREXPRESSION;
-
-		if (criteria.getUserName() != null) {
-			expression += "contains(" + USERNAMEEXPRESSION + ", '" + criteria.getUserName() + "')";
-		} else {
-			expression += USERNAMEEXPRESSION + " = *";
-		}
-
-		expression += " and ";
-
-		expression += IDENTITYIDEXPRESSION + " = ";
-		if (criteria.getUid() != null) {
-			expression += "'" + criteria.getUid() + "'";
-		} else {
-			expression += "*";
-		}
+		open(criteria);
+		return store.search(criteria);
+	}
 
-		expression += "]";
+	/**
+	 * Same as {@link #search(User)}, the matched users are copied one page of
+	 * {@value #STREAM_PAGE_SIZE} at a time as the stream is consumed
+	 *
+	 * @param criteria
+	 *            - criteria of users to search for
+	 * @return stream of matched users
+	 * @throws SearchException
+	 */
+	@Override
+	public Stream<User> stream(User criteria) throws SearchException {
+		open(criteria);
+		final UserStore loaded = store;
+		return Page.stream(cursor -> loaded.searchPage(criteria, STREAM_PAGE_SIZE, cursor));
+	}
 
+	/**
+	 * Search the loaded users one page at a time, in insertion order
+	 *
+	 * @param criteria
+	 *            - criteria of users to search for
+	 * @param pageSize
+	 *            - maximum number of users of the page
+	 * @param cursor
+	 *            - cursor returned with the previous page, null for the first
+	 *            page
+	 * @return the page of matched users
+	 * @throws SearchException
+	 */
+	@Override
+	public Page<User> searchPage(User criteria, int pageSize, String cursor) throws SearchException {
+		open(criteria);
 		try {
-			final XPathFactory xpathFactory = XPathFactory.newInstance();
-			final XPath xpath = xpathFactory.newXPath();
-			// compile
-			final XPathExpression xPathExpression = xpath.compile(expression);
-			// evaluate
-			final NodeList results = (NodeList) xPathExpression.evaluate(document, XPathConstants.NODESET);
-
-			final int length = results.getLength();
-			for (int i = 0; i < length; i++) {
-				// deserialise the results
-				final Node item = results.item(i);
-				final User user = new User();
-				user.setUserName((String) xpathFactory.newXPath().compile(USERNAMEEXPRESSION).evaluate(item,
-						XPathConstants.STRING));
-				user.setPassword((String) xpathFactory.newXPath().compile(HASHEDPASSWORDEXPRESSION).evaluate(item,
-						XPathConstants.STRING));
-				user.setUid(
-						(String) xpathFactory.newXPath().compile(IDENTITYIDEXPRESSION).evaluate(item, XPathConstants.STRING));
-				users.add(user);
-			}
-
-		} catch (final XPathExpressionException e) {
-			LOGGER.error("An error occured", e);
+			return store.searchPage(criteria, pageSize, cursor);
+		} catch (final IllegalArgumentException e) {
+			LOGGER.error("Invalid cursor for the XML search: " + cursor);
+			throw new SearchException(e, criteria);
 		}
-
-		return users;
 	}
 
 	public User getUserByIdentityId(User criteria) throws SearchException {
@@ -290,8 +413,16 @@ public class UserXMLDAO implements UserDAO {
 		return 0;
 	}
 
+	@Override
+	public Map<String, Integer> getIds(Collection<String> uids) throws SearchException {
+		// not needed
+		return Collections.emptyMap();
+	}
+
 	/**
-	 * 
+	 * Verifies the clear text password against the hashes of the users having
+	 * this username
+	 *
 	 * @param login
 	 *            - login credentials
 	 * @return true if login succeeded, false otherwise
@@ -300,24 +431,11 @@ public class UserXMLDAO implements UserDAO {
 	@Override
 	public boolean login(User login) throws SearchException {
 		boolean success = false;
-		// construct the expression
-		String expression = USEREXPRESSION + USERNAMEEXPRESSION + " = '" + login.getUserName() + "' and ";
-		expression += HASHEDPASSWORDEXPRESSION + " = '" + login.getHashedPassword() + "'";
-		expression += "]";
-		try {
-			final XPathFactory xpathFactory = XPathFactory.newInstance();
-			final XPath xpath = xpathFactory.newXPath();
-			// compile
-			final XPathExpression xPathExpression = xpath.compile(expression);
-			// evaluate
-			final NodeList results = (NodeList) xPathExpression.evaluate(document, XPathConstants.NODESET);
-			final int length = results.getLength();
-			if(length > 0) {
-				// at least one user has these credentials
+		for (User user : findByUsername(login.getUserName())) {
+			if (PasswordHashers.verify(login.getPassword(), user.getHashedPassword())) {
 				success = true;
+				break;
 			}
-		} catch (final XPathExpressionException e) {
-			LOGGER.error("An error occured", e);
 		}
 		// log the login attemp
 		if(success) {
@@ -328,6 +446,68 @@ public class UserXMLDAO implements UserDAO {
 		return success;
 	}
 
+	/**
+	 * Served from the binary snapshot until the store is loaded
+	 *
+	 * @param username
+	 * @return the users having exactly this username, with their hashed password
+	 *         and UID
+	 * @throws SearchException
+	 */
+	@Override
+	public List<User> findByUsername(String username) throws SearchException {
+		final BinarySnapshot<User> snapshot = sharedSnapshot;
+		if (store == null && snapshot != null) {
+			try {
+				// the snapshot index ignores the case of the usernames, the store doesn't
+				final List<User> results = new ArrayList<>();
+				for (User user : snapshot.get(username)) {
+					if (username != null && username.equals(user.getUserName())) {
+						results.add(user);
+					}
+				}
+				return results;
+			} catch (final IllegalStateException e) {
+				// closed meanwhile, the store is loaded
+			}
+		}
+		open(new User(username, null, 0));
+		return store.getByUsername(username);
+	}
+
+	/**
+	 * Replaces the hashed password of a user in the XML file, only if it still is
+	 * the one read with the user
+	 *
+	 * @param stored
+	 *            - user as read from the XML file
+	 * @param hashedPassword
+	 *            - the new hash of the same password
+	 * @return true if the hash was replaced
+	 * @throws UpdateException
+	 *             if the XML file could not be loaded
+	 * @throws TransformerException
+	 */
+	@Override
+	public boolean replaceHashedPassword(User stored, String hashedPassword)
+			throws UpdateException, TransformerException {
+		if (stored.getUid() == null) {
+			return false;
+		}
+		try {
+			open();
+		} catch (final IOException e) {
+			throw new UpdateException(e, stored);
+		}
+		synchronized (store) {
+			if (!store.replaceHashedPassword(stored.getUid(), stored.getHashedPassword(), hashedPassword)) {
+				return false;
+			}
+			persistence.changed(Operation.UPDATE, store.get(stored.getUid()));
+		}
+		return true;
+	}
+
 	/* (non-Javadoc)
 	 * @see fr.epita.iam.services.users.dao.UserDAO#checkOldPwd(fr.epita.iam.datamodel.User, fr.epita.iam.datamodel.User)
 	 */
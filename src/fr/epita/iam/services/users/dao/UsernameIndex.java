@@ -0,0 +1,172 @@
+package fr.epita.iam.services.users.dao;
+
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import fr.epita.iam.datamodel.User;
+import fr.epita.iam.exceptions.SearchException;
+import fr.epita.iam.services.configuration.ConfigurationService;
+import fr.epita.iam.services.index.PrefixIndex;
+import fr.epita.logger.Logger;
+
+/**
+ * <h3>Description</h3>
+ * <p>
+ * Prefix index of the usernames of the database, for the type-ahead of
+ * {@link UserDAOManager#suggest(String, int)}. The index is loaded from the
+ * database on the first suggestion, then kept up to date by the
+ * {@link UserDAOManager} on every create, update and delete. Changes made to
+ * the database by other processes are not seen until {@link #invalidate()}.
+ * </p>
+ *
+ * <h3>Usage</h3>
+ *
+ * <pre>
+ * <code>UsernameIndex index = UsernameIndex.getInstance();</code>
+ * <code>index.load(() -&gt; dbDAO.stream(new User()));</code>
+ * <code>List&lt;String&gt; usernames = index.suggest("sam", 10);</code>
+ * </pre>
+ * </p>
+ *
+ * @author Samer Masaad
+ */
+public class UsernameIndex {
+
+	private static final Logger LOGGER = new Logger(UsernameIndex.class);
+
+	private static final String ENABLED = "search.index.enabled";
+
+	private static UsernameIndex instance;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	// username -> username
+	private final PrefixIndex<String> usernames = new PrefixIndex<>();
+	private volatile boolean loaded = false;
+
+	/**
+	 * @return the index shared by the user DAO managers, or null if disabled in
+	 *         the configuration file
+	 */
+	public static synchronized UsernameIndex getInstance() {
+		if (instance == null) {
+			final String enabled = ConfigurationService.getInstance().getConfigurationValue(ENABLED);
+			if (enabled != null && !Boolean.parseBoolean(enabled.trim())) {
+				return null;
+			}
+			instance = new UsernameIndex();
+		}
+		return instance;
+	}
+
+	/**
+	 * Loads every user of the source, unless already loaded. The changes
+	 * reported while loading wait for the load to finish.
+	 *
+	 * @param source
+	 *            - every user of the database, the stream is closed
+	 * @throws SearchException
+	 */
+	public void load(Source source) throws SearchException {
+		if (loaded) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+			final long start = System.nanoTime();
+			usernames.clear();
+			try (Stream<User> users = source.open()) {
+				users.forEach(user -> usernames.put(user.getUserName(), user.getUserName()));
+			} catch (final RuntimeException e) {
+				usernames.clear();
+				throw e;
+			}
+			usernames.compact();
+			loaded = true;
+			LOGGER.info("Username index loaded with " + usernames.size() + " users in "
+					+ (System.nanoTime() - start) / 1000000 + "ms");
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets every username, the index is loaded again on the next suggestion
+	 */
+	public void invalidate() {
+		lock.writeLock().lock();
+		try {
+			loaded = false;
+			usernames.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Indexes a username
+	 *
+	 * @param username
+	 */
+	public void put(String username) {
+		if (username == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			// checked under the lock, a load in progress may not have read it
+			if (loaded) {
+				usernames.put(username, username);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a username
+	 *
+	 * @param username
+	 */
+	public void remove(String username) {
+		if (username == null) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (loaded) {
+				usernames.remove(username);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            - start of the username, ignoring case
+	 * @param limit
+	 *            - maximum number of usernames returned
+	 * @return the matched usernames, sorted ignoring case
+	 */
+	public List<String> suggest(String prefix, int limit) {
+		lock.readLock().lock();
+		try {
+			return usernames.suggest(prefix, limit);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Opens the stream of the users to load
+	 */
+	public interface Source {
+		Stream<User> open() throws SearchException;
+	}
+
+}
@@ -0,0 +1,131 @@
+package fr.epita.iam.services.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.epita.iam.datamodel.User;
+import fr.epita.iam.services.async.AsyncUserDAO;
+import fr.epita.iam.services.async.DAOExecutor;
+import fr.epita.iam.services.users.dao.UserDAO;
+import fr.epita.iam.services.users.dao.UserDAOManager;
+
+/**
+ * Keeps a number of logins in flight, first with the blocking
+ * {@link UserDAOManager} and one platform thread per login in flight, then
+ * with the {@link AsyncUserDAO}, and prints the logins per second, the
+ * failures and the peak number of live threads of each.
+ *
+ * Arguments: username, password, latency in milliseconds added to every login
+ * to stand for the round trip to a remote database (default 0), then the
+ * numbers of logins in flight (default 100 1000 5000). The user must exist.
+ */
+public class TestAsyncLoginLoad {
+
+	private static final int LOGINS_PER_CLIENT = 5;
+
+	public static void main(String[] args) throws Exception {
+		final String username = args.length > 0 ? args[0] : "root";
+		final String password = args.length > 1 ? args[1] : "root";
+		final long latency = args.length > 2 ? Long.parseLong(args[2]) : 0;
+		final int[] levels = args.length > 3
+				? Arrays.stream(args, 3, args.length).mapToInt(Integer::parseInt).toArray()
+				: new int[] { 100, 1000, 5000 };
+
+		final UserDAO dao = withLatency(new UserDAOManager(), latency);
+		final DAOExecutor executor = DAOExecutor.getInstance();
+		final AsyncUserDAO asyncDAO = new AsyncUserDAO(dao, executor);
+		System.out.println(executor);
+		if (!dao.login(new User(username, password, 0))) {
+			System.out.println("failure: " + username + " can't log in");
+			return;
+		}
+
+		System.out.println("api\tin flight\tlogins/s\tfailures\tpeak threads");
+		for (int level : levels) {
+			blocking(dao, username, password, level);
+			async(asyncDAO, username, password, level);
+		}
+	}
+
+	private static void blocking(UserDAO dao, String username, String password, int inFlight)
+			throws InterruptedException {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		final AtomicInteger failures = new AtomicInteger();
+		final long start = System.nanoTime();
+		final ExecutorService clients = Executors.newFixedThreadPool(inFlight);
+		for (int i = 0; i < inFlight * LOGINS_PER_CLIENT; i++) {
+			clients.execute(() -> {
+				try {
+					if (!dao.login(new User(username, password, 0))) {
+						failures.incrementAndGet();
+					}
+				} catch (final Exception e) {
+					failures.incrementAndGet();
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(1, TimeUnit.HOURS);
+		print("blocking", inFlight, start, failures.get(), threads.getPeakThreadCount());
+	}
+
+	private static void async(AsyncUserDAO dao, String username, String password, int inFlight)
+			throws InterruptedException {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		final AtomicInteger failures = new AtomicInteger();
+		final Semaphore window = new Semaphore(inFlight);
+		final CountDownLatch done = new CountDownLatch(inFlight * LOGINS_PER_CLIENT);
+		final long start = System.nanoTime();
+		// a single thread keeps the logins in flight
+		for (int i = 0; i < inFlight * LOGINS_PER_CLIENT; i++) {
+			window.acquire();
+			dao.login(new User(username, password, 0)).whenComplete((valid, e) -> {
+				if (e != null || !valid) {
+					failures.incrementAndGet();
+				}
+				window.release();
+				done.countDown();
+			});
+		}
+		done.await();
+		print("async", inFlight, start, failures.get(), threads.getPeakThreadCount());
+	}
+
+	private static void print(String api, int inFlight, long start, int failures, int peakThreads) {
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(api + "\t" + inFlight + "\t" + Math.round(inFlight * LOGINS_PER_CLIENT / seconds) + "\t"
+				+ failures + "\t" + peakThreads);
+	}
+
+	/**
+	 * @return the DAO, whose logins first wait for the latency
+	 */
+	private static UserDAO withLatency(UserDAO dao, long latency) {
+		if (latency <= 0) {
+			return dao;
+		}
+		return (UserDAO) Proxy.newProxyInstance(UserDAO.class.getClassLoader(), new Class<?>[] { UserDAO.class },
+				(proxy, method, methodArgs) -> {
+					if ("login".equals(method.getName())) {
+						Thread.sleep(latency);
+					}
+					try {
+						return method.invoke(dao, methodArgs);
+					} catch (final InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+
+}
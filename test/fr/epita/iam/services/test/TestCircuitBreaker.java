@@ -0,0 +1,127 @@
+package fr.epita.iam.services.test;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.exceptions.SearchException;
+import fr.epita.iam.services.connections.CircuitBreaker;
+import fr.epita.iam.services.connections.CircuitBreaker.CircuitOpenException;
+import fr.epita.iam.services.connections.ConnectionPool.PoolTimeoutException;
+import fr.epita.iam.services.connections.JDBCConnection;
+
+/**
+ * Checks the {@link CircuitBreaker} with reads that fail or sleep instead of
+ * reading the database: a transient failure is retried, a busy connection pool
+ * is neither retried nor counted, failed and slow reads open the circuit, then
+ * the reads go to their fallback or fail on their connection without waiting,
+ * and a single probe closes the circuit or opens it again. No database needed.
+ */
+public class TestCircuitBreaker {
+
+	private static final long OPEN_MILLIS = 200;
+
+	public static void main(String[] args) throws Exception {
+		boolean success = true;
+		final CircuitBreaker breaker = new CircuitBreaker(4, 4, 50, 50, 75, OPEN_MILLIS, 3, 10, 40,
+				Arrays.asList("08001"));
+
+		// transient failure
+		final AtomicInteger attempts = new AtomicInteger();
+		final String read = breaker.call(() -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw failure("08001");
+			}
+			return "database";
+		});
+		success &= check("retried", "database".equals(read) && attempts.get() == 2 && breaker.getRetries() == 1);
+
+		// busy pool, neither retried nor counted
+		attempts.set(0);
+		for (int i = 0; i < 4; i++) {
+			try {
+				breaker.call(() -> {
+					attempts.incrementAndGet();
+					throw new SearchException(new PoolTimeoutException("Timed out"), new Identity());
+				});
+			} catch (final SearchException e) {
+				// expected
+			}
+		}
+		success &= check("busy pool", attempts.get() == 4 && breaker.getRetries() == 1
+				&& breaker.getState() == CircuitBreaker.State.CLOSED);
+
+		// failures open the circuit, with the first one, not retried
+		attempts.set(0);
+		for (int i = 0; i < 2; i++) {
+			try {
+				breaker.call(() -> {
+					attempts.incrementAndGet();
+					throw failure("XJ040");
+				});
+			} catch (final SearchException e) {
+				// expected
+			}
+		}
+		success &= check("open on failures", attempts.get() == 2 && breaker.getState() == CircuitBreaker.State.OPEN);
+
+		// fallback and fail fast
+		success &= check("fallback", "xml".equals(breaker.call(() -> "database", () -> "xml")));
+		final long start = System.nanoTime();
+		boolean failedFast = false;
+		try {
+			breaker.call(() -> {
+				try {
+					JDBCConnection.getConnection();
+					return "database";
+				} catch (final ClassNotFoundException | SQLException e) {
+					throw new SearchException(e, new Identity());
+				}
+			});
+		} catch (final SearchException e) {
+			failedFast = e.getCause() instanceof CircuitOpenException;
+		}
+		final long rejectedMicros = (System.nanoTime() - start) / 1000;
+		success &= check("failed fast in " + rejectedMicros + "us", failedFast && breaker.getRejected() == 2);
+
+		// failed probe
+		Thread.sleep(OPEN_MILLIS + 50);
+		try {
+			breaker.call(() -> {
+				throw failure("XJ040");
+			});
+		} catch (final SearchException e) {
+			// expected
+		}
+		success &= check("probe failed", breaker.getState() == CircuitBreaker.State.OPEN && breaker.isOpen());
+
+		// successful probe
+		Thread.sleep(OPEN_MILLIS + 50);
+		success &= check("probe succeeded", "database".equals(breaker.call(() -> "database", () -> "xml"))
+				&& breaker.getState() == CircuitBreaker.State.CLOSED);
+
+		// slow reads open the circuit
+		for (int i = 0; i < 4; i++) {
+			final long latency = i < 3 ? 60 : 0;
+			breaker.call(() -> {
+				Thread.sleep(latency);
+				return "database";
+			}, () -> "xml");
+		}
+		success &= check("open on slow reads", breaker.getState() == CircuitBreaker.State.OPEN);
+
+		System.out.println(breaker);
+		System.out.println(success ? "success" : "failure");
+	}
+
+	private static SearchException failure(String sqlState) {
+		return new SearchException(new SQLException("Failed", sqlState), new Identity());
+	}
+
+	private static boolean check(String name, boolean passed) {
+		System.out.println(name + ": " + (passed ? "ok" : "failed"));
+		return passed;
+	}
+
+}
@@ -0,0 +1,52 @@
+package fr.epita.iam.services.test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.epita.iam.services.connections.ConnectionPool;
+import fr.epita.iam.services.connections.JDBCConnection;
+
+public class TestConnectionPool {
+
+	public static void main(String[] args) throws ClassNotFoundException, SQLException {
+		// given
+		final ConnectionPool pool = JDBCConnection.getPool();
+
+		// when
+		final List<Connection> borrowed = new ArrayList<>();
+		for (int i = 0; i < pool.getMaxSize(); i++) {
+			borrowed.add(JDBCConnection.getConnection());
+		}
+		for (Connection connection : borrowed) {
+			connection.close();
+		}
+		for (int i = 0; i < pool.getMaxSize(); i++) {
+			JDBCConnection.getConnection().close();
+		}
+		// the same query prepared twice on a connection is prepared once
+		final long hits = pool.getStatementCacheHits();
+		final long misses = pool.getStatementCacheMisses();
+		final Connection connection = JDBCConnection.getConnection();
+		for (int i = 0; i < 2; i++) {
+			final PreparedStatement statement = connection.prepareStatement("VALUES 1");
+			statement.executeQuery().close();
+			statement.close();
+		}
+		connection.close();
+
+		// then
+		if (pool.getCreatedCount() == pool.getMaxSize() && pool.getInUse() == 0
+				&& pool.getStatementCacheMisses() == misses + 1 && pool.getStatementCacheHits() == hits + 1) {
+			System.out.println("success");
+		} else {
+			System.out.println("failure");
+		}
+		System.out.println(pool);
+
+		JDBCConnection.shutdown();
+	}
+
+}
@@ -0,0 +1,94 @@
+package fr.epita.iam.services.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.TransformerException;
+
+import fr.epita.iam.services.connections.DualWriter;
+import fr.epita.iam.services.connections.DualWriter.JoinPolicy;
+
+/**
+ * Checks the {@link DualWriter} with writes that sleep instead of writing the
+ * database and the XML files: with the join policy "both", a database write
+ * and an XML write of 100ms each take about 100ms together, an XML write
+ * started with a failed database write is undone, and a failed XML write is
+ * retried, and waited for, before the writes after it. With the join policy "primary", the
+ * write returns before the XML write, which is counted in the lag until the
+ * writer is drained. No database needed.
+ */
+public class TestDualWriter {
+
+	private static final long LATENCY = 100;
+
+	public static void main(String[] args) throws Exception {
+		boolean success = true;
+		final DualWriter both = new DualWriter(JoinPolicy.BOTH, 50, 5);
+		final List<String> xml = new CopyOnWriteArrayList<>();
+
+		// concurrent writes
+		long start = System.nanoTime();
+		try (DualWriter.WriteHandle write = both.begin(() -> sleep(xml, "a"), () -> xml.remove("a"))) {
+			Thread.sleep(LATENCY);
+			write.primaryWritten();
+		}
+		final long bothMillis = (System.nanoTime() - start) / 1000000;
+		success &= check("both in " + bothMillis + "ms", bothMillis < LATENCY * 3 / 2 && xml.contains("a"));
+
+		// failed database write, closed without primaryWritten()
+		final DualWriter.WriteHandle failed = both.begin(() -> sleep(xml, "b"), () -> xml.remove("b"));
+		Thread.sleep(LATENCY);
+		failed.close();
+		success &= check("undone", !xml.contains("b") && both.getUndone() == 1);
+
+		// failed XML write, retried before the next one
+		final AtomicInteger attempts = new AtomicInteger();
+		try (DualWriter.WriteHandle write = both.begin(() -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new TransformerException("XML file locked");
+			}
+			xml.add("c");
+		}, () -> xml.remove("c"))) {
+			write.primaryWritten();
+		}
+		success &= check("waited for the retries", xml.contains("c") && attempts.get() == 3);
+		try (DualWriter.WriteHandle write = both.begin(() -> xml.add("d"), () -> xml.remove("d"))) {
+			write.primaryWritten();
+		}
+		both.drain(2000);
+		success &= check("retried in order", xml.indexOf("c") >= 0 && xml.indexOf("c") < xml.indexOf("d")
+				&& attempts.get() == 3 && both.getPending() == 0);
+		System.out.println(both);
+
+		// join on the primary only
+		final DualWriter primary = new DualWriter(JoinPolicy.PRIMARY, 50, 5);
+		start = System.nanoTime();
+		try (DualWriter.WriteHandle write = primary.begin(() -> sleep(xml, "e"), () -> xml.remove("e"))) {
+			write.primaryWritten();
+		}
+		final long primaryMillis = (System.nanoTime() - start) / 1000000;
+		final boolean notYet = !xml.contains("e") && primary.getLagOperations() == 1;
+		final boolean drained = primary.drain(1000);
+		success &= check("primary in " + primaryMillis + "ms", primaryMillis < LATENCY / 2 && notYet
+				&& drained && xml.contains("e") && primary.getLagOperations() == 0);
+		System.out.println(primary);
+
+		System.out.println(success ? "success" : "failure");
+	}
+
+	private static void sleep(List<String> xml, String value) {
+		try {
+			Thread.sleep(LATENCY);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		xml.add(value);
+	}
+
+	private static boolean check(String name, boolean passed) {
+		System.out.println(name + ": " + (passed ? "ok" : "failed"));
+		return passed;
+	}
+
+}
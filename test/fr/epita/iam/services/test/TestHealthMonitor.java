@@ -0,0 +1,69 @@
+package fr.epita.iam.services.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import fr.epita.iam.launcher.Global;
+import fr.epita.iam.launcher.HealthMonitor;
+import fr.epita.iam.launcher.HealthMonitor.Event;
+
+/**
+ * Checks the {@link HealthMonitor} with probes that are switched by hand: the
+ * XML files fail over to read-only mode after 2 failed probes and recover
+ * after 3 successful ones, and the database fails over but doesn't recover as
+ * long as its schema can't be migrated. Each change is seen through
+ * {@link Global#getState()} and the events.
+ *
+ * Run with -Dconf pointing at a configuration whose database isn't running.
+ */
+public class TestHealthMonitor {
+
+	public static void main(String[] args) {
+		boolean success = true;
+		final AtomicBoolean database = new AtomicBoolean(true);
+		final AtomicBoolean xml = new AtomicBoolean(true);
+		final HealthMonitor monitor = new HealthMonitor(1000, 2, 3, database::get, xml::get);
+		final List<Event> events = new CopyOnWriteArrayList<>();
+		monitor.addListener(events::add);
+
+		monitor.check();
+		success &= check("healthy", events.isEmpty() && Global.isDBWorking() && !Global.isReadOnly());
+
+		// XML files
+		xml.set(false);
+		monitor.check();
+		success &= check("one failure tolerated", events.isEmpty() && Global.isXMLWorking());
+		monitor.check();
+		success &= check("XML failover", events.size() == 1 && events.get(0).getType() == Event.Type.FAILOVER
+				&& !Global.isXMLWorking() && Global.isReadOnly() && Global.isDBWorking());
+		xml.set(true);
+		monitor.check();
+		monitor.check();
+		success &= check("not recovered yet", events.size() == 1 && !Global.isXMLWorking());
+		monitor.check();
+		success &= check("XML recovery", events.size() == 2 && events.get(1).getType() == Event.Type.RECOVERY
+				&& events.get(1).getDowntimeMillis() >= 0 && Global.isXMLWorking() && !Global.isReadOnly());
+
+		// database
+		database.set(false);
+		monitor.check();
+		monitor.check();
+		success &= check("database failover", events.size() == 3 && "database".equals(events.get(2).getComponent())
+				&& !Global.isDBWorking() && Global.isReadOnly());
+		database.set(true);
+		for (int i = 0; i < 3; i++) {
+			monitor.check();
+		}
+		success &= check("no recovery without migrations", events.size() == 3 && !Global.isDBWorking());
+
+		events.forEach(System.out::println);
+		System.out.println(success ? "success" : "failure");
+	}
+
+	private static boolean check(String name, boolean passed) {
+		System.out.println(name + ": " + (passed ? "ok" : "failed"));
+		return passed;
+	}
+
+}
@@ -0,0 +1,71 @@
+package fr.epita.iam.services.test;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.epita.iam.services.importer.CSVRecordParser;
+import fr.epita.iam.services.importer.ImportPipeline;
+import fr.epita.iam.services.importer.ImportProgress;
+import fr.epita.iam.services.importer.RecordParser;
+
+/**
+ * Imports a generated CSV file through the {@link ImportPipeline}, with a
+ * writer that only counts the batches, and prints the throughput. Every tenth
+ * record is invalid and must be rejected. The passwords are hashed with the
+ * configured algorithm, whose cost bounds the throughput: with PBKDF2 and
+ * 100000 iterations, a few dozen records per second. To measure the pipeline
+ * itself, run it with a configuration whose security.hash.algorithm is md5.
+ *
+ * The number of records can be given as argument, default: 1000.
+ */
+public class TestImportPipeline {
+
+	public static void main(String[] args) throws Exception {
+		final int size = args.length == 0 ? 1000 : Integer.parseInt(args[0]);
+
+		// given
+		final File file = generate(size);
+		final AtomicInteger batches = new AtomicInteger();
+		final ImportPipeline pipeline = new ImportPipeline((identities, users, progress) -> {
+			batches.incrementAndGet();
+			progress.identitiesWritten(identities.size());
+			progress.usersWritten(users.size());
+		}, 4, 1000, 1000, 1000);
+		pipeline.setListener(System.out::println);
+
+		// when
+		final ImportProgress report;
+		try (RecordParser parser = new CSVRecordParser(file)) {
+			report = pipeline.run(parser);
+		} finally {
+			file.delete();
+		}
+
+		// then
+		final long invalid = size / 10;
+		if (report.getParsed() == size && report.getRejected() == invalid
+				&& report.getIdentitiesWritten() == size - invalid && report.getUsersWritten() == size - invalid) {
+			System.out.println("Success: " + batches.get() + " batches, " + report);
+		} else {
+			System.out.println("Failure: " + report);
+		}
+	}
+
+	private static File generate(int size) throws IOException {
+		final File file = File.createTempFile("import-", ".csv");
+		try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			writer.write("uid,displayName,email,username,password\n");
+			for (int i = 0; i < size; i++) {
+				// the email of every tenth record is invalid
+				final String email = i % 10 == 9 ? "user" + i : "user" + i + "@iam.com";
+				writer.write("uid" + i + ",\"Name, " + i + "\"," + email + ",user" + i + ",pwd" + i + "\n");
+			}
+		}
+		return file;
+	}
+
+}
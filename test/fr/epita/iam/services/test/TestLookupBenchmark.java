@@ -0,0 +1,148 @@
+package fr.epita.iam.services.test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+import fr.epita.iam.services.connections.JDBCConnection;
+
+/**
+ * Measures the latency of the lookups of the logins and creations against the
+ * table size, before and after the indexes of the first migration
+ * (sql/migrations/V1__lookup_indexes.sql). The tables are copies of the ones
+ * of sql/init.sql, created and dropped by the benchmark. Needs the database.
+ *
+ * The table sizes can be given as arguments, default: 1000 10000 100000.
+ */
+public class TestLookupBenchmark {
+
+	private static final int LOOKUPS = 500;
+
+	private static final String[] QUERIES = { "SELECT ID FROM BENCH_USERS WHERE USERNAME = ?",
+			"SELECT ID FROM BENCH_IDENTITIES WHERE UID = ?", "SELECT ID FROM BENCH_IDENTITIES WHERE LOWER(UID) = ?",
+			"SELECT ID FROM BENCH_USERS WHERE IDENTITYID = ?" };
+	private static final String[] INDEXED_QUERIES = { QUERIES[0], QUERIES[1],
+			"SELECT ID FROM BENCH_IDENTITIES WHERE UID_LOWER = ?", QUERIES[3] };
+	private static final String[] NAMES = { "username", "uid", "lower uid", "identityid" };
+
+	public static void main(String[] args) throws Exception {
+		final int[] sizes = args.length == 0 ? new int[] { 1000, 10000, 100000 }
+				: Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+
+		System.out.println("rows\tlookup\tbefore p50(us)\tafter p50(us)");
+		for (int size : sizes) {
+			final Connection connection = JDBCConnection.getConnection();
+			try {
+				create(connection, size);
+				final long[] before = measure(connection, QUERIES, size);
+				index(connection);
+				final long[] after = measure(connection, INDEXED_QUERIES, size);
+				for (int i = 0; i < NAMES.length; i++) {
+					System.out.println(size + "\t" + NAMES[i] + "\t" + before[i] / 1000 + "\t" + after[i] / 1000);
+				}
+			} finally {
+				drop(connection);
+				JDBCConnection.close(connection, null, null);
+			}
+		}
+	}
+
+	private static void create(Connection connection, int size) throws SQLException {
+		drop(connection);
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("CREATE TABLE BENCH_IDENTITIES (ID INT NOT NULL GENERATED ALWAYS AS IDENTITY "
+					+ "PRIMARY KEY, DISPLAY_NAME VARCHAR(255), EMAIL VARCHAR(255), UID VARCHAR(255))");
+			statement.execute("CREATE TABLE BENCH_USERS (ID INT NOT NULL GENERATED ALWAYS AS IDENTITY "
+					+ "PRIMARY KEY, USERNAME VARCHAR(255), HASHED_PASSWORD VARCHAR(255), IDENTITYID INT)");
+		}
+		connection.setAutoCommit(false);
+		try (PreparedStatement identities = connection
+				.prepareStatement("INSERT INTO BENCH_IDENTITIES (DISPLAY_NAME, EMAIL, UID) VALUES (?, ?, ?)");
+				PreparedStatement users = connection.prepareStatement(
+						"INSERT INTO BENCH_USERS (USERNAME, HASHED_PASSWORD, IDENTITYID) VALUES (?, ?, ?)")) {
+			for (int i = 1; i <= size; i++) {
+				identities.setString(1, "Name " + i);
+				identities.setString(2, "user" + i + "@iam.com");
+				identities.setString(3, "Uid" + i);
+				identities.addBatch();
+				users.setString(1, "user" + i);
+				users.setString(2, "hash" + i);
+				users.setInt(3, i);
+				users.addBatch();
+				if (i % 1000 == 0 || i == size) {
+					identities.executeBatch();
+					users.executeBatch();
+				}
+			}
+			connection.commit();
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+
+	private static void index(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			statement.execute("ALTER TABLE BENCH_IDENTITIES ADD COLUMN UID_LOWER VARCHAR(255) "
+					+ "GENERATED ALWAYS AS (LOWER(UID))");
+			statement.execute("ALTER TABLE BENCH_IDENTITIES ADD CONSTRAINT BENCH_UID_UNIQUE UNIQUE (UID)");
+			statement.execute("ALTER TABLE BENCH_IDENTITIES ADD CONSTRAINT BENCH_UID_LOWER_UNIQUE UNIQUE (UID_LOWER)");
+			statement.execute("ALTER TABLE BENCH_USERS ADD CONSTRAINT BENCH_USERNAME_UNIQUE UNIQUE (USERNAME)");
+			statement.execute("ALTER TABLE BENCH_USERS ADD CONSTRAINT BENCH_IDENTITYID_UNIQUE UNIQUE (IDENTITYID)");
+		}
+	}
+
+	/**
+	 * @return p50 of each query, in nanoseconds
+	 */
+	private static long[] measure(Connection connection, String[] queries, int size) throws SQLException {
+		final long[] p50 = new long[queries.length];
+		for (int q = 0; q < queries.length; q++) {
+			final Random random = new Random(q);
+			final long[] nanos = new long[LOOKUPS];
+			try (PreparedStatement statement = connection.prepareStatement(queries[q])) {
+				for (int i = 0; i < LOOKUPS; i++) {
+					final int row = 1 + random.nextInt(size);
+					switch (q) {
+					case 0:
+						statement.setString(1, "user" + row);
+						break;
+					case 1:
+						statement.setString(1, "Uid" + row);
+						break;
+					case 2:
+						statement.setString(1, "uid" + row);
+						break;
+					default:
+						statement.setInt(1, row);
+						break;
+					}
+					final long start = System.nanoTime();
+					try (ResultSet rs = statement.executeQuery()) {
+						if (!rs.next()) {
+							throw new IllegalStateException("Row " + row + " not found by " + queries[q]);
+						}
+					}
+					nanos[i] = System.nanoTime() - start;
+				}
+			}
+			Arrays.sort(nanos);
+			p50[q] = nanos[LOOKUPS / 2];
+		}
+		return p50;
+	}
+
+	private static void drop(Connection connection) {
+		for (String table : new String[] { "BENCH_USERS", "BENCH_IDENTITIES" }) {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("DROP TABLE " + table);
+			} catch (final SQLException e) {
+				// not created yet
+			}
+		}
+	}
+
+}
@@ -0,0 +1,83 @@
+package fr.epita.iam.services.test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import fr.epita.iam.services.security.MD5Hasher;
+
+/**
+ * Compares the previous MD5 hashing of the users with {@link MD5Hasher}: both
+ * must return the same hashes, then the time and the bytes allocated per hash
+ * are printed. The allocations are read from the ThreadMXBean of the HotSpot
+ * JVMs.
+ *
+ * The number of hashes can be given as argument, default: 1000000.
+ */
+public class TestPasswordHashBenchmark {
+
+	// keeps the JIT from removing the hashes
+	private static volatile int sink;
+
+	public static void main(String[] args) throws Exception {
+		final int count = args.length == 0 ? 1000000 : Integer.parseInt(args[0]);
+
+		// given
+		final String[] passwords = new String[1024];
+		for (int i = 0; i < passwords.length; i++) {
+			passwords[i] = "password" + i + (i % 7 == 0 ? "é€" : "");
+		}
+		for (String password : passwords) {
+			if (!legacy(password).equals(MD5Hasher.hash(password))) {
+				System.out.println("Failure: different hashes for " + password);
+				return;
+			}
+		}
+
+		// when / then
+		System.out.println("hasher\thashes\ttime(ms)\tns/hash\tbytes/hash");
+		for (int run = 0; run < 3; run++) {
+			// the first runs warm up the JIT
+			measure("legacy", count, i -> legacy(passwords[i & 1023]));
+			measure("md5", count, i -> MD5Hasher.hash(passwords[i & 1023]));
+		}
+	}
+
+	/**
+	 * The hashing of the users before {@link MD5Hasher}, with the charset made
+	 * explicit
+	 */
+	private static String legacy(String passwordToHash) throws NoSuchAlgorithmException {
+		final MessageDigest md = MessageDigest.getInstance("MD5");
+		md.update(passwordToHash.getBytes(StandardCharsets.UTF_8));
+		final byte[] bytes = md.digest();
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bytes.length; i++) {
+			sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+		}
+		return sb.toString();
+	}
+
+	private static void measure(String name, int count, Hash hash) throws Exception {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+		int checksum = 0;
+		final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+		final long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			checksum += hash.run(i).charAt(0);
+		}
+		final long elapsed = System.nanoTime() - start;
+		final long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+		sink = checksum;
+		System.out.println(name + "\t" + count + "\t" + elapsed / 1000000 + "\t" + elapsed / count + "\t"
+				+ allocated / count);
+	}
+
+	private interface Hash {
+		String run(int i) throws Exception;
+	}
+
+}
@@ -0,0 +1,65 @@
+package fr.epita.iam.services.test;
+
+import java.util.Arrays;
+
+import fr.epita.iam.services.security.PBKDF2PasswordHasher;
+import fr.epita.iam.services.security.PasswordHasher;
+import fr.epita.iam.services.security.PasswordHashers;
+import fr.epita.iam.services.security.ScryptPasswordHasher;
+
+/**
+ * Measures the p50 and p99 time of a hash for several PBKDF2 iteration counts
+ * and scrypt costs, to pick the settings of the password hashing section of the
+ * configuration file. A setting is within budget when its p99 is below the
+ * login budget. Each hash is verified before being measured.
+ *
+ * The login budget in milliseconds and the number of hashes per setting can be
+ * given as arguments, default: 250 and 20.
+ */
+public class TestPasswordHasherCalibration {
+
+	// keeps the JIT from removing the hashes
+	private static volatile int sink;
+
+	public static void main(String[] args) {
+		final double budget = args.length > 0 ? Double.parseDouble(args[0]) : 250;
+		final int count = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		// warms up the JIT, the first hashes are much slower
+		for (int i = 0; i < 20; i++) {
+			sink += new PBKDF2PasswordHasher(10000).hash("warmup").length();
+			sink += new ScryptPasswordHasher(12, 8, 1).hash("warmup").length();
+		}
+
+		System.out.println("hasher\tsetting\tp50(ms)\tp99(ms)\twithin budget");
+		for (int iterations : new int[] { 10000, 50000, 100000, 200000, 400000 }) {
+			measure(new PBKDF2PasswordHasher(iterations), "iterations=" + iterations, count, budget);
+		}
+		for (int logN : new int[] { 12, 13, 14, 15, 16 }) {
+			measure(new ScryptPasswordHasher(logN, 8, 1), "logN=" + logN + ",r=8,p=1", count, budget);
+		}
+		System.out.println("configured default: " + PasswordHashers.getDefault());
+	}
+
+	private static void measure(PasswordHasher hasher, String setting, int count, double budget) {
+		final String encoded = hasher.hash("calibration");
+		if (!hasher.verify("calibration", encoded) || hasher.verify("calibrations", encoded)) {
+			System.out.println("Failure: " + hasher.getId() + " " + setting + " doesn't verify its own hash");
+			return;
+		}
+		final long[] nanos = new long[count];
+		int checksum = 0;
+		for (int i = 0; i < count; i++) {
+			final long start = System.nanoTime();
+			checksum += hasher.hash("password" + i).length();
+			nanos[i] = System.nanoTime() - start;
+		}
+		sink = checksum;
+		Arrays.sort(nanos);
+		final double p50 = nanos[(count - 1) / 2] / 1e6;
+		final double p99 = nanos[(int) Math.ceil(count * 0.99) - 1] / 1e6;
+		System.out.println(hasher.getId() + "\t" + setting + "\t" + String.format("%.1f", p50) + "\t"
+				+ String.format("%.1f", p99) + "\t" + (p99 <= budget ? "yes" : "no"));
+	}
+
+}
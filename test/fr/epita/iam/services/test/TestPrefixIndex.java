@@ -0,0 +1,99 @@
+package fr.epita.iam.services.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import fr.epita.iam.services.index.PrefixIndex;
+
+/**
+ * Applies random puts and removes to a {@link PrefixIndex} and to a plain map,
+ * checking that the suggestions of the index are the ones found by scanning
+ * the map, then measures the latency of the suggestions among 1000000
+ * entries. No database needed.
+ */
+public class TestPrefixIndex {
+
+	private static final String[] NAMES = { "Samer", "Sam", "Thomas", "Quentin", "julie", "JULIEN", "Marie",
+			"Marius", "Nicolas", "Camille" };
+	private static final int LIMIT = 10;
+
+	public static void main(String[] args) {
+		// given
+		final Random random = new Random(42);
+		final PrefixIndex<Integer> index = new PrefixIndex<>();
+		final Map<Integer, String> model = new HashMap<>();
+
+		// when / then
+		boolean success = true;
+		for (int i = 0; i < 50000 && success; i++) {
+			final int key = random.nextInt(3000);
+			if (random.nextInt(4) == 0) {
+				index.remove(key);
+				model.remove(key);
+			} else {
+				final String value = NAMES[random.nextInt(NAMES.length)] + " " + random.nextInt(100);
+				index.put(key, value);
+				model.put(key, value.toLowerCase(Locale.ROOT));
+			}
+			if (i % 100 == 0) {
+				final String prefix = NAMES[random.nextInt(NAMES.length)].substring(0, 1 + random.nextInt(3));
+				success = check(index, model, prefix);
+			}
+		}
+		index.compact();
+		success = success && check(index, model, "ma") && check(index, model, "") && index.size() == model.size();
+		System.out.println(success ? "success" : "failure");
+
+		measure();
+	}
+
+	/**
+	 * The values are compared, the order of the keys having the same value is
+	 * not defined
+	 */
+	private static boolean check(PrefixIndex<Integer> index, Map<Integer, String> model, String prefix) {
+		final List<String> expected = model.values().stream()
+				.filter(value -> value.startsWith(prefix.toLowerCase(Locale.ROOT))).sorted().limit(LIMIT)
+				.collect(Collectors.toList());
+		final List<String> actual = new ArrayList<>();
+		for (Integer key : index.suggest(prefix, LIMIT)) {
+			actual.add(model.get(key));
+		}
+		if (!expected.equals(actual)) {
+			System.out.println("prefix " + prefix + ": expected " + expected + ", got " + actual);
+			return false;
+		}
+		return true;
+	}
+
+	private static void measure() {
+		final int size = 1000000;
+		final PrefixIndex<Integer> index = new PrefixIndex<>();
+		long start = System.nanoTime();
+		for (int i = 0; i < size; i++) {
+			index.put(i, NAMES[i % NAMES.length] + " " + i);
+		}
+		index.compact();
+		System.out.println(size + " entries indexed in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+		final Random random = new Random(1);
+		final long[] nanos = new long[10000];
+		for (int i = 0; i < nanos.length; i++) {
+			final String name = NAMES[random.nextInt(NAMES.length)];
+			final String prefix = name.substring(0, 1 + random.nextInt(name.length()));
+			start = System.nanoTime();
+			index.suggest(prefix, LIMIT);
+			nanos[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		System.out.println("suggest: p50 " + nanos[nanos.length / 2] / 1000 + "us, p99 "
+				+ nanos[nanos.length * 99 / 100] / 1000 + "us");
+	}
+
+}
@@ -0,0 +1,90 @@
+package fr.epita.iam.services.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.Page;
+import fr.epita.iam.services.identity.dao.IdentityStore;
+
+/**
+ * Pages through an {@link IdentityStore} and checks that the pages add up to
+ * the full search, then compares the time of the first page with the time of
+ * the 500th page.
+ */
+public class TestSearchPage {
+
+	public static void main(String[] args) {
+		// given
+		final int size = 100000;
+		final int pageSize = 100;
+		final IdentityStore store = new IdentityStore();
+		for (int i = 0; i < size; i++) {
+			store.add(new Identity("Display Name " + i, "uid" + i, "user" + i + "@iam.com"));
+		}
+		final Identity all = new Identity();
+		final Identity some = new Identity("Name 1", null, null);
+
+		// when
+		final List<Identity> allPages = readAll(store, all, pageSize);
+		final List<Identity> somePages = readAll(store, some, pageSize);
+
+		// then
+		if (same(allPages, store.search(all)) && same(somePages, store.search(some))) {
+			System.out.println("Success: " + allPages.size() + " and " + somePages.size() + " identities paged");
+		} else {
+			System.out.println("Failure: pages don't match the search");
+		}
+
+		// page 1 and page 500 cost the same
+		final String cursor500 = cursorOf(store, all, pageSize, 499);
+		final long first = time(() -> store.searchPage(all, pageSize, null));
+		final long later = time(() -> store.searchPage(all, pageSize, cursor500));
+		System.out.println("page 1: " + first / 1000 + "us, page 500: " + later / 1000 + "us");
+	}
+
+	private static List<Identity> readAll(IdentityStore store, Identity criteria, int pageSize) {
+		final List<Identity> results = new ArrayList<>();
+		String cursor = null;
+		do {
+			final Page<Identity> page = store.searchPage(criteria, pageSize, cursor);
+			results.addAll(page.getItems());
+			cursor = page.getNextCursor();
+		} while (cursor != null);
+		return results;
+	}
+
+	private static String cursorOf(IdentityStore store, Identity criteria, int pageSize, int pages) {
+		String cursor = null;
+		for (int i = 0; i < pages; i++) {
+			cursor = store.searchPage(criteria, pageSize, cursor).getNextCursor();
+		}
+		return cursor;
+	}
+
+	private static boolean same(List<Identity> paged, List<Identity> searched) {
+		if (paged.size() != searched.size()) {
+			return false;
+		}
+		for (int i = 0; i < paged.size(); i++) {
+			if (!paged.get(i).getUid().equals(searched.get(i).getUid())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long time(Runnable search) {
+		// warm up, then keep the best of 20 runs
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < 1020; i++) {
+			final long start = System.nanoTime();
+			search.run();
+			if (i >= 1000) {
+				best = Math.min(best, System.nanoTime() - start);
+			}
+		}
+		return best;
+	}
+
+}
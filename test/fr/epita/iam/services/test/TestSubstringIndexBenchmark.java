@@ -0,0 +1,62 @@
+package fr.epita.iam.services.test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.services.identity.dao.IdentitySearchIndex;
+
+/**
+ * Loads synthetic identities in an {@link IdentitySearchIndex} then measures
+ * the latency of its contains-queries on the display name and the email, the
+ * searches a LIKE '%x%' answers with a table scan. No database needed.
+ *
+ * The number of identities can be given as argument, default: 1000000.
+ */
+public class TestSubstringIndexBenchmark {
+
+	private static final int QUERIES = 2000;
+
+	private static final String[] FIRST_NAMES = { "Samer", "Thomas", "Quentin", "Julie", "Marie", "Nicolas",
+			"Camille", "Lucas", "Emma", "Hugo" };
+	private static final String[] DOMAINS = { "iam.com", "epita.fr", "mail.com", "example.org" };
+
+	public static void main(String[] args) throws Exception {
+		final int size = args.length == 0 ? 1000000 : Integer.parseInt(args[0]);
+		final IdentitySearchIndex index = new IdentitySearchIndex();
+
+		long start = System.nanoTime();
+		index.load(() -> IntStream.range(0, size).mapToObj(TestSubstringIndexBenchmark::identity));
+		System.out.println(index.size() + " identities loaded in " + (System.nanoTime() - start) / 1000000 + "ms");
+
+		final Random random = new Random(42);
+		final long[] displayNames = new long[QUERIES];
+		final long[] emails = new long[QUERIES];
+		long matches = 0;
+		for (int i = 0; i < QUERIES; i++) {
+			final int row = random.nextInt(size);
+			start = System.nanoTime();
+			matches += index.search(Integer.toString(row), null).size();
+			displayNames[i] = System.nanoTime() - start;
+			start = System.nanoTime();
+			matches += index.search(null, "user" + row + "@").size();
+			emails[i] = System.nanoTime() - start;
+		}
+		print("display name", displayNames);
+		print("email", emails);
+		System.out.println(matches + " matches");
+	}
+
+	private static Identity identity(int i) {
+		return new Identity(FIRST_NAMES[i % FIRST_NAMES.length] + " " + i, "uid" + i,
+				"user" + i + "@" + DOMAINS[i % DOMAINS.length]);
+	}
+
+	private static void print(String name, long[] nanos) {
+		Arrays.sort(nanos);
+		System.out.println(name + ": p50 " + nanos[nanos.length / 2] / 1000 + "us, p99 "
+				+ nanos[nanos.length * 99 / 100] / 1000 + "us");
+	}
+
+}
@@ -0,0 +1,52 @@
+package fr.epita.iam.services.test;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.datamodel.User;
+import fr.epita.iam.services.connections.UnitOfWork;
+import fr.epita.iam.services.identity.dao.IdentityDAO;
+import fr.epita.iam.services.identity.dao.IdentityDAOManager;
+import fr.epita.iam.services.users.dao.UserDAO;
+import fr.epita.iam.services.users.dao.UserDAOManager;
+
+/**
+ * Creates an identity and its user in one {@link UnitOfWork}, then does the
+ * same in a unit that is rolled back: the first identity must be found with its
+ * user, the second one must not be found. Needs the database.
+ */
+public class TestUnitOfWork {
+
+	public static void main(String[] args) throws Exception {
+		final IdentityDAO identityDAO = new IdentityDAOManager();
+		final UserDAO userDAO = new UserDAOManager();
+		final String suffix = Long.toString(System.currentTimeMillis());
+
+		// given / when
+		try (UnitOfWork unit = UnitOfWork.begin()) {
+			create(identityDAO, userDAO, "committed" + suffix);
+			unit.commit();
+		}
+		try (UnitOfWork unit = UnitOfWork.begin()) {
+			create(identityDAO, userDAO, "rolledback" + suffix);
+			unit.rollback();
+		}
+
+		// then
+		final boolean committed = identityDAO.getUserByUid(new Identity(null, "committed" + suffix, null)) != null
+				&& !userDAO.findByUsername("committed" + suffix).isEmpty();
+		final boolean rolledBack = identityDAO.getUserByUid(new Identity(null, "rolledback" + suffix, null)) == null
+				&& userDAO.findByUsername("rolledback" + suffix).isEmpty();
+		if (committed && rolledBack) {
+			System.out.println("success");
+		} else {
+			System.out.println("failure: committed=" + committed + ", rolled back=" + rolledBack);
+		}
+	}
+
+	private static void create(IdentityDAO identityDAO, UserDAO userDAO, String uid) throws Exception {
+		identityDAO.create(new Identity(uid, uid, uid + "@iam.com"));
+		final User user = new User(uid, "pass", 0);
+		user.setUid(uid);
+		userDAO.createForUid(user);
+	}
+
+}
@@ -1,6 +1,8 @@
 package fr.epita.iam.services.test;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.transform.TransformerException;
 
@@ -21,13 +23,61 @@ import fr.epita.iam.services.users.dao.UserDAOManager;
 public class TestUserDAOManager {
 
 	public static void main(String[] args) throws CreationException, SearchException, ReadOnlyException,
-			DuplicateException, UpdateException, TransformerException, DeleteException, NoIdentityFoundException {
+			DuplicateException, UpdateException, TransformerException, DeleteException, NoIdentityFoundException,
+			InterruptedException {
 
 		//TestCreateAndSearch();
 
 		testUpdate();
 
 		// testDelete();
+
+		testConcurrentCreateForUid();
+	}
+
+	/**
+	 * Creates the user of the same identity from several threads at once: exactly
+	 * one creation must succeed, the others must be refused as duplicates
+	 *
+	 * @throws InterruptedException
+	 */
+	private static void testConcurrentCreateForUid() throws InterruptedException {
+		// given
+		final UserDAO dao = new UserDAOManager();
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger duplicates = new AtomicInteger();
+		final Thread[] creators = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final User user = new User("concurrent", "pass", 0);
+			user.setUid("2");
+			creators[i] = new Thread(() -> {
+				try {
+					start.await();
+					dao.createForUid(user);
+					created.incrementAndGet();
+				} catch (final DuplicateException e) {
+					duplicates.incrementAndGet();
+				} catch (final Exception e) {
+					System.out.println(e);
+				}
+			});
+			creators[i].start();
+		}
+
+		// when
+		start.countDown();
+		for (Thread creator : creators) {
+			creator.join();
+		}
+
+		// then
+		if (created.get() == 1 && duplicates.get() == threads - 1) {
+			System.out.println("success");
+		} else {
+			System.out.println("failure: " + created + " created, " + duplicates + " duplicates");
+		}
 	}
 
 	private static void testDelete() throws ReadOnlyException, DeleteException, CreationException, DuplicateException,
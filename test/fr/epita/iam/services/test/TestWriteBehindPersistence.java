@@ -0,0 +1,73 @@
+package fr.epita.iam.services.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.transform.TransformerException;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.services.connections.RecordCodecs;
+import fr.epita.iam.services.connections.XMLRecordReader;
+import fr.epita.iam.services.connections.XMLRecordWriter;
+import fr.epita.iam.services.identity.dao.IdentityStore;
+import fr.epita.iam.services.persistence.JournalPersistence;
+import fr.epita.iam.services.persistence.Operation;
+import fr.epita.iam.services.persistence.StorePersistence;
+import fr.epita.iam.services.persistence.SynchronousPersistence;
+import fr.epita.iam.services.persistence.WriteBehindPersistence;
+
+/**
+ * Imports the same identities with the synchronous, the write-behind and the
+ * journal persistence, and compares the bytes written per change and the time
+ * taken.
+ */
+public class TestWriteBehindPersistence {
+
+	public static void main(String[] args) throws IOException, TransformerException {
+		final int size = args.length == 0 ? 2000 : Integer.parseInt(args[0]);
+
+		final File synchronous = File.createTempFile("sync-", ".xml");
+		final File writeBehind = File.createTempFile("write-behind-", ".xml");
+		final File journal = File.createTempFile("journal-", ".xml");
+		try {
+			final IdentityStore syncStore = new IdentityStore();
+			importIdentities(size, syncStore, new SynchronousPersistence<>(synchronous, syncStore::all,
+					XMLRecordWriter::writeIdentities));
+
+			final IdentityStore writeBehindStore = new IdentityStore();
+			importIdentities(size, writeBehindStore, new WriteBehindPersistence<>(writeBehind,
+					writeBehindStore::all, XMLRecordWriter::writeIdentities, 1000, 500));
+
+			final IdentityStore journalStore = new IdentityStore();
+			importIdentities(size, journalStore, new JournalPersistence<>(journal, journalStore::all,
+					XMLRecordWriter::writeIdentities, RecordCodecs.IDENTITY, 60000, 10000));
+
+			// then
+			final IdentityStore reloaded = new IdentityStore();
+			XMLRecordReader.readIdentities(writeBehind, reloaded::add);
+			if (reloaded.size() == size && synchronous.length() == writeBehind.length()
+					&& synchronous.length() == journal.length()) {
+				System.out.println("success");
+			} else {
+				System.out.println("failure");
+			}
+		} finally {
+			synchronous.delete();
+			writeBehind.delete();
+			journal.delete();
+		}
+	}
+
+	private static void importIdentities(int size, IdentityStore store, StorePersistence<Identity> persistence)
+			throws TransformerException {
+		final long start = System.nanoTime();
+		for (int i = 0; i < size; i++) {
+			final Identity identity = new Identity("Display Name " + i, "uid" + i, "user" + i + "@iam.com");
+			store.add(identity);
+			persistence.changed(Operation.CREATE, identity);
+		}
+		persistence.close();
+		System.out.println((System.nanoTime() - start) / 1000000 + "ms " + persistence);
+	}
+
+}
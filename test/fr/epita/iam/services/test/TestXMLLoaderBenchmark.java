@@ -0,0 +1,149 @@
+package fr.epita.iam.services.test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.AbstractList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+import fr.epita.iam.datamodel.Identity;
+import fr.epita.iam.services.connections.RecordCodecs;
+import fr.epita.iam.services.connections.XMLConnection;
+import fr.epita.iam.services.connections.XMLRecordReader;
+import fr.epita.iam.services.connections.XMLRecordWriter;
+import fr.epita.iam.services.identity.dao.IdentityStore;
+import fr.epita.iam.services.persistence.BinarySnapshot;
+
+/**
+ * Compares the parse time and the peak heap of the StAX loader and of the DOM
+ * loader, both loading the identities into an {@link IdentityStore}, with the
+ * binary snapshot: loaded into a store, or only mapped to look up 1000 UIDs.
+ *
+ * Sizes can be given as arguments, default: 10000 100000 1000000. Run with a
+ * large heap (-Xmx4g) for the DOM loader to cope with 1M records.
+ */
+public class TestXMLLoaderBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int[] sizes = args.length == 0 ? new int[] { 10000, 100000, 1000000 } : new int[args.length];
+		for (int i = 0; i < args.length; i++) {
+			sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		System.out.println("records\tloader\ttime(ms)\tpeak heap(MB)\tloaded");
+		for (int size : sizes) {
+			// given
+			final File file = generate(size);
+			final File snapshot = generateSnapshot(file);
+			try {
+				// warm up on the smaller runs only
+				if (size <= 10000) {
+					loadStax(file);
+					loadDom(file);
+				}
+				// when / then
+				measure(size, "stax", () -> loadStax(file));
+				measure(size, "dom", () -> loadDom(file));
+				measure(size, "binary", () -> loadBinary(snapshot));
+				measure(size, "mapped", () -> lookupMapped(snapshot, size));
+			} finally {
+				file.delete();
+				snapshot.delete();
+			}
+		}
+	}
+
+	private static File generate(int size) throws IOException {
+		final File file = File.createTempFile("identities-" + size + "-", ".xml");
+		final List<Identity> identities = new AbstractList<Identity>() {
+			@Override
+			public Identity get(int index) {
+				return new Identity("Display Name " + index, "uid" + index, "user" + index + "@iam.com");
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+		XMLRecordWriter.writeIdentities(file, identities);
+		return file;
+	}
+
+	private static File generateSnapshot(File file) throws IOException {
+		final File snapshot = new File(file.getPath() + ".bin");
+		final IdentityStore store = new IdentityStore();
+		XMLRecordReader.readIdentities(file, store::add);
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(snapshot))) {
+			BinarySnapshot.writer(RecordCodecs.IDENTITY, Identity::getUid).write(output, store.all());
+		}
+		return snapshot;
+	}
+
+	private static int loadBinary(File snapshot) throws Exception {
+		final IdentityStore store = new IdentityStore();
+		try (BinarySnapshot<Identity> mapped = BinarySnapshot.map(snapshot, RecordCodecs.IDENTITY)) {
+			mapped.forEach(store::add);
+		}
+		return store.size();
+	}
+
+	private static int lookupMapped(File snapshot, int size) throws Exception {
+		int found = 0;
+		try (BinarySnapshot<Identity> mapped = BinarySnapshot.map(snapshot, RecordCodecs.IDENTITY)) {
+			for (int i = 0; i < 1000; i++) {
+				found += mapped.get("UID" + (long) i * size / 1000).size();
+			}
+		}
+		return found;
+	}
+
+	private static int loadStax(File file) throws Exception {
+		final IdentityStore store = new IdentityStore();
+		XMLRecordReader.readIdentities(file, store::add);
+		return store.size();
+	}
+
+	private static int loadDom(File file) throws Exception {
+		final IdentityStore store = new IdentityStore();
+		final Document document;
+		try (InputStream input = new FileInputStream(file)) {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
+		}
+		XMLConnection.readIdentities(document, store::add);
+		return store.size();
+	}
+
+	private static void measure(int size, String loader, Loader load) throws Exception {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+		final long start = System.nanoTime();
+		final int loaded = load.run();
+		final long elapsed = (System.nanoTime() - start) / 1000000;
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		System.out.println(size + "\t" + loader + "\t" + elapsed + "\t" + peak / (1024 * 1024) + "\t" + loaded);
+	}
+
+	private interface Loader {
+		int run() throws Exception;
+	}
+
+}